@@ -0,0 +1,284 @@
+package com.example.demo.service;
+
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureSubpacketVector;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses the OpenPGP compression algorithm for a payload from a sample of its first bytes.
+ *
+ * <p>Payloads that are already compressed (zip, gzip, parquet, images) or encrypted look like
+ * random bytes: deflating them again costs CPU and saves nothing, so they are sent
+ * {@link CompressionAlgorithmTags#UNCOMPRESSED uncompressed}. Highly redundant payloads such as
+ * text extracts get {@link CompressionAlgorithmTags#BZIP2 BZIP2}, which shrinks them noticeably
+ * further than deflate, but only when every recipient key lists BZIP2 among its preferred
+ * compression algorithms: not every OpenPGP implementation reads it. Everything else keeps
+ * {@link CompressionAlgorithmTags#ZIP ZIP}, as before.
+ * {@link CompressionAlgorithmTags#ZLIB ZLIB} is the same deflate stream with a checksum, so it is
+ * never preferred over ZIP but can still be requested explicitly.
+ */
+public final class AdaptiveCompression {
+
+    /**
+     * Pseudo algorithm tag asking the encrypt and sign paths to choose the algorithm themselves.
+     */
+    public static final int ADAPTIVE = -1;
+
+    /**
+     * Bytes read from the head of the payload before the algorithm is chosen: the first two
+     * 64 KB blocks.
+     */
+    public static final int SAMPLE_SIZE = 1 << 17;
+
+    /**
+     * Shannon entropy in bits per byte above which a sample is treated as incompressible
+     * without trying to deflate it.
+     */
+    static final double INCOMPRESSIBLE_ENTROPY = 7.9;
+
+    /**
+     * Deflated-to-raw sample ratio above which compression is not worth the CPU.
+     */
+    static final double INCOMPRESSIBLE_RATIO = 0.9;
+
+    /**
+     * Deflated-to-raw sample ratio below which BZIP2 is chosen over ZIP.
+     */
+    static final double HIGHLY_COMPRESSIBLE_RATIO = 0.2;
+
+    /**
+     * Samples shorter than this are sent uncompressed: the packet overhead outweighs any saving.
+     */
+    static final int MIN_SAMPLE = 256;
+
+    /**
+     * Per-thread sample buffer and deflate scratch buffer.
+     */
+    private static final ThreadLocal<byte[][]> BUFFERS = ThreadLocal.withInitial(() -> new byte[][]{new byte[SAMPLE_SIZE], new byte[1 << 14]});
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+
+    private AdaptiveCompression() {
+    }
+
+    /**
+     * Returns this thread's {@link #SAMPLE_SIZE} sample buffer. It is only valid until the next
+     * call on the same thread.
+     */
+    public static byte[] sampleBuffer() {
+        return BUFFERS.get()[0];
+    }
+
+    /**
+     * Reads from {@code in} until {@code sample} is full or the stream ends, and returns the number
+     * of bytes read.
+     */
+    public static int readSample(InputStream in, byte[] sample) throws IOException {
+        int length = 0;
+        int read;
+        while (length < sample.length && (read = in.read(sample, length, sample.length - length)) > 0) {
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Chooses the compression algorithm for a payload starting with the first {@code length}
+     * bytes of {@code sample} when the reader's preferences are unknown, e.g. for a signed-only
+     * message. Never returns BZIP2.
+     */
+    public static int choose(byte[] sample, int length) {
+        return choose(sample, length, Collections.<PGPPublicKey>emptyList());
+    }
+
+    /**
+     * Chooses the compression algorithm for a payload starting with the first {@code length}
+     * bytes of {@code sample}, encrypted to {@code recipients}. BZIP2 is only chosen if every
+     * recipient prefers it; otherwise highly redundant payloads fall back to ZIP. Uncompressed
+     * data is readable by every implementation and needs no preference.
+     */
+    public static int choose(byte[] sample, int length, Collection<PGPPublicKey> recipients) {
+        if (length < MIN_SAMPLE || entropy(sample, length) >= INCOMPRESSIBLE_ENTROPY) {
+            return CompressionAlgorithmTags.UNCOMPRESSED;
+        }
+        double ratio = estimateRatio(sample, length);
+        if (ratio >= INCOMPRESSIBLE_RATIO) {
+            return CompressionAlgorithmTags.UNCOMPRESSED;
+        } else if (ratio <= HIGHLY_COMPRESSIBLE_RATIO && allPrefer(recipients, CompressionAlgorithmTags.BZIP2)) {
+            return CompressionAlgorithmTags.BZIP2;
+        }
+        return CompressionAlgorithmTags.ZIP;
+    }
+
+    /**
+     * Whether every key, and there is at least one, lists {@code algorithm} in the preferred
+     * compression algorithms of one of its signatures. A key whose signatures carry no
+     * preferences does not.
+     */
+    static boolean allPrefer(Collection<PGPPublicKey> keys, int algorithm) {
+        if (keys.isEmpty()) {
+            return false;
+        }
+        for (PGPPublicKey key : keys) {
+            if (!prefers(key, algorithm)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean prefers(PGPPublicKey key, int algorithm) {
+        Iterator<PGPSignature> signatures = key.getSignatures();
+        while (signatures.hasNext()) {
+            PGPSignatureSubpacketVector hashed = signatures.next().getHashedSubPackets();
+            int[] preferred = hashed == null ? null : hashed.getPreferredCompressionAlgorithms();
+            if (preferred != null) {
+                for (int candidate : preferred) {
+                    if (candidate == algorithm) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Shannon entropy of the byte histogram of the sample, in bits per byte.
+     */
+    static double entropy(byte[] sample, int length) {
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[sample[i] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    /**
+     * Deflates the sample at the fastest level and returns the compressed-to-raw size ratio.
+     * Only the output size is kept; the compressed bytes are discarded as they are produced.
+     */
+    static double estimateRatio(byte[] sample, int length) {
+        Deflater deflater = DEFLATERS.get();
+        byte[] scratch = BUFFERS.get()[1];
+        deflater.reset();
+        deflater.setInput(sample, 0, length);
+        deflater.finish();
+        long compressed = 0;
+        while (!deflater.finished()) {
+            compressed += deflater.deflate(scratch);
+        }
+        return (double) compressed / length;
+    }
+
+    public static String algorithmName(int algorithm) {
+        switch (algorithm) {
+            case CompressionAlgorithmTags.UNCOMPRESSED:
+                return "UNCOMPRESSED";
+            case CompressionAlgorithmTags.ZIP:
+                return "ZIP";
+            case CompressionAlgorithmTags.ZLIB:
+                return "ZLIB";
+            case CompressionAlgorithmTags.BZIP2:
+                return "BZIP2";
+            default:
+                return "UNKNOWN(" + algorithm + ")";
+        }
+    }
+
+    /**
+     * The compression applied to one payload: the algorithm used and the size of the compressed
+     * data packet against the plaintext it carries.
+     */
+    public static final class Result {
+
+        private final int algorithm;
+        private final long uncompressedBytes;
+        private final long compressedBytes;
+
+        public Result(int algorithm, long uncompressedBytes, long compressedBytes) {
+            this.algorithm = algorithm;
+            this.uncompressedBytes = uncompressedBytes;
+            this.compressedBytes = compressedBytes;
+        }
+
+        public int getAlgorithm() {
+            return algorithm;
+        }
+
+        public String getAlgorithmName() {
+            return algorithmName(algorithm);
+        }
+
+        public long getUncompressedBytes() {
+            return uncompressedBytes;
+        }
+
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        /**
+         * Compressed packet size over plaintext size; below 1 means compression paid off.
+         */
+        public double getRatio() {
+            return uncompressedBytes == 0 ? 1 : (double) compressedBytes / uncompressedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %d -> %d bytes (%.3f)", getAlgorithmName(), uncompressedBytes, compressedBytes, getRatio());
+        }
+    }
+
+    /**
+     * Passes writes through to the wrapped stream and counts them. Closing it does not close the
+     * wrapped stream.
+     */
+    public static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
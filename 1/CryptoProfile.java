@@ -0,0 +1,308 @@
+package com.example.demo.service;
+
+import org.bouncycastle.bcpg.AEADEncDataPacket;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricEncIntegrityPacket;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSessionKey;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.PGPDataDecryptor;
+import org.bouncycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+
+import javax.crypto.Cipher;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The algorithms written into outgoing messages and the JCA provider used for each primitive.
+ *
+ * <p>The symmetric cipher, hash and compression decide what a partner has to be able to read, so
+ * they belong to the profile agreed with that partner. The providers only decide which
+ * implementation does the work on this machine, e.g. the JDK's SunJCE with AES-NI instead of the
+ * pure-Java Bouncy Castle AES, and can be changed freely. A {@code null} provider means the JCA
+ * default, i.e. the first installed provider offering the algorithm.
+ *
+ * <p>A cipher provider that does not implement the algorithm of a given message (SunJCE has no
+ * CAST5, for example) is bypassed for that message in favour of {@link #FALLBACK_PROVIDER}.
+ */
+public final class CryptoProfile {
+
+    /**
+     * Provider used wherever a profile's own provider lacks an algorithm.
+     */
+    public static final String FALLBACK_PROVIDER = "BC";
+
+    /**
+     * What {@link PgpService} has always sent: CAST5 with SHA-256 signatures, everything in Bouncy
+     * Castle. Compression is chosen per payload, within what the recipient keys prefer.
+     */
+    public static final CryptoProfile DEFAULT = builder("default")
+            .symmetricAlgorithm(SymmetricKeyAlgorithmTags.CAST5)
+            .build();
+
+    /**
+     * What {@code PGPCryptoExample} has always sent: AES-256 with SHA-256 signatures, everything in
+     * Bouncy Castle. Compression is chosen per payload, within what the recipient keys prefer.
+     */
+    public static final CryptoProfile AES_256 = builder("aes-256")
+            .symmetricAlgorithm(SymmetricKeyAlgorithmTags.AES_256)
+            .build();
+
+    private static final Map<String, Boolean> CIPHER_SUPPORT = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final int symmetricAlgorithm;
+    private final int hashAlgorithm;
+    private final int compressionAlgorithm;
+    private final String cipherProvider;
+    private final String keyProvider;
+    private final String signatureProvider;
+
+    private CryptoProfile(Builder builder) {
+        this.name = builder.name;
+        this.symmetricAlgorithm = builder.symmetricAlgorithm;
+        this.hashAlgorithm = builder.hashAlgorithm;
+        this.compressionAlgorithm = builder.compressionAlgorithm;
+        this.cipherProvider = builder.cipherProvider;
+        this.keyProvider = builder.keyProvider;
+        this.signatureProvider = builder.signatureProvider;
+    }
+
+    public static Builder builder(String name) {
+        return new Builder(name);
+    }
+
+    public Builder toBuilder() {
+        return new Builder(name)
+                .symmetricAlgorithm(symmetricAlgorithm)
+                .hashAlgorithm(hashAlgorithm)
+                .compressionAlgorithm(compressionAlgorithm)
+                .cipherProvider(cipherProvider)
+                .keyProvider(keyProvider)
+                .signatureProvider(signatureProvider);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * One of {@link SymmetricKeyAlgorithmTags}.
+     */
+    public int getSymmetricAlgorithm() {
+        return symmetricAlgorithm;
+    }
+
+    /**
+     * One of {@link HashAlgorithmTags}, used for signatures.
+     */
+    public int getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    /**
+     * One of {@link CompressionAlgorithmTags}, or {@link AdaptiveCompression#ADAPTIVE}.
+     */
+    public int getCompressionAlgorithm() {
+        return compressionAlgorithm;
+    }
+
+    /**
+     * Provider of the symmetric cipher that encrypts and decrypts the message body.
+     */
+    public String getCipherProvider() {
+        return cipherProvider;
+    }
+
+    /**
+     * Provider of the public-key operations that wrap and unwrap the session key.
+     */
+    public String getKeyProvider() {
+        return keyProvider;
+    }
+
+    /**
+     * Provider of the signature algorithm, which also hashes the signed content.
+     */
+    public String getSignatureProvider() {
+        return signatureProvider;
+    }
+
+    public JcePGPDataEncryptorBuilder dataEncryptorBuilder(boolean withIntegrityCheck) {
+        JcePGPDataEncryptorBuilder builder = new JcePGPDataEncryptorBuilder(symmetricAlgorithm)
+                .setWithIntegrityPacket(withIntegrityCheck)
+                .setSecureRandom(new SecureRandom());
+        String provider = cipherProviderFor(symmetricAlgorithm);
+        return provider == null ? builder : builder.setProvider(provider);
+    }
+
+    public JcePublicKeyKeyEncryptionMethodGenerator keyEncryptionMethod(PGPPublicKey encKey) {
+        JcePublicKeyKeyEncryptionMethodGenerator method = new JcePublicKeyKeyEncryptionMethodGenerator(encKey);
+        return keyProvider == null ? method : method.setProvider(keyProvider);
+    }
+
+    /**
+     * Unwraps session keys with the key provider and decrypts the message body with the cipher
+     * provider for the algorithm the session key names, which is only known once it is unwrapped.
+     */
+    public PublicKeyDataDecryptorFactory publicKeyDecryptorFactory(PGPPrivateKey privateKey) {
+        PublicKeyDataDecryptorFactory keyDecryptor = publicKeyDecryptorFactory(privateKey, null);
+        return new PublicKeyDataDecryptorFactory() {
+            @Override
+            public byte[] recoverSessionData(int keyAlgorithm, byte[][] secKeyData) throws PGPException {
+                return keyDecryptor.recoverSessionData(keyAlgorithm, secKeyData);
+            }
+
+            @Override
+            public PGPDataDecryptor createDataDecryptor(boolean withIntegrityPacket, int encAlgorithm, byte[] key) throws PGPException {
+                return publicKeyDecryptorFactory(privateKey, cipherProviderFor(encAlgorithm)).createDataDecryptor(withIntegrityPacket, encAlgorithm, key);
+            }
+
+            @Override
+            public PGPDataDecryptor createDataDecryptor(AEADEncDataPacket aeadEncDataPacket, PGPSessionKey sessionKey) throws PGPException {
+                return publicKeyDecryptorFactory(privateKey, cipherProviderFor(sessionKey.getAlgorithm())).createDataDecryptor(aeadEncDataPacket, sessionKey);
+            }
+
+            @Override
+            public PGPDataDecryptor createDataDecryptor(SymmetricEncIntegrityPacket seipd, PGPSessionKey sessionKey) throws PGPException {
+                return publicKeyDecryptorFactory(privateKey, cipherProviderFor(sessionKey.getAlgorithm())).createDataDecryptor(seipd, sessionKey);
+            }
+        };
+    }
+
+    private PublicKeyDataDecryptorFactory publicKeyDecryptorFactory(PGPPrivateKey privateKey, String contentProvider) {
+        JcePublicKeyDataDecryptorFactoryBuilder builder = new JcePublicKeyDataDecryptorFactoryBuilder();
+        if (keyProvider != null) {
+            builder.setProvider(keyProvider);
+        }
+        if (contentProvider != null) {
+            builder.setContentProvider(contentProvider);
+        }
+        return builder.build(privateKey);
+    }
+
+    public JcaPGPContentSignerBuilder contentSignerBuilder(int keyAlgorithm) {
+        JcaPGPContentSignerBuilder builder = new JcaPGPContentSignerBuilder(keyAlgorithm, hashAlgorithm);
+        return signatureProvider == null ? builder : builder.setProvider(signatureProvider);
+    }
+
+    public JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider() {
+        JcaPGPContentVerifierBuilderProvider provider = new JcaPGPContentVerifierBuilderProvider();
+        return signatureProvider == null ? provider : provider.setProvider(signatureProvider);
+    }
+
+    /**
+     * The cipher provider if it implements {@code symmetricAlgorithm} in the CFB mode OpenPGP
+     * uses, otherwise {@link #FALLBACK_PROVIDER}.
+     */
+    String cipherProviderFor(int symmetricAlgorithm) {
+        return supportsCipher(cipherProvider, symmetricAlgorithm) ? cipherProvider : FALLBACK_PROVIDER;
+    }
+
+    static boolean supportsCipher(String provider, int symmetricAlgorithm) {
+        String cipherName = PGPUtil.getSymmetricCipherName(symmetricAlgorithm);
+        if (cipherName == null) {
+            return false;
+        }
+        String transformation = cipherName + "/CFB/NoPadding";
+        return CIPHER_SUPPORT.computeIfAbsent(provider + "/" + transformation, key -> {
+            try {
+                if (provider == null) {
+                    Cipher.getInstance(transformation);
+                } else {
+                    Cipher.getInstance(transformation, provider);
+                }
+                return true;
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[cipher=%s/%s, hash=%s, compression=%s, keyProvider=%s, signatureProvider=%s]",
+                name, PGPUtil.getSymmetricCipherName(symmetricAlgorithm), providerName(cipherProvider), hashName(hashAlgorithm),
+                compressionAlgorithm == AdaptiveCompression.ADAPTIVE ? "ADAPTIVE" : AdaptiveCompression.algorithmName(compressionAlgorithm),
+                providerName(keyProvider), providerName(signatureProvider));
+    }
+
+    static String providerName(String provider) {
+        return provider == null ? "default" : provider;
+    }
+
+    private static String hashName(int hashAlgorithm) {
+        try {
+            return PGPUtil.getDigestName(hashAlgorithm);
+        } catch (PGPException e) {
+            return "UNKNOWN(" + hashAlgorithm + ")";
+        }
+    }
+
+    public static final class Builder {
+
+        private final String name;
+        private int symmetricAlgorithm = SymmetricKeyAlgorithmTags.AES_256;
+        private int hashAlgorithm = HashAlgorithmTags.SHA256;
+        private int compressionAlgorithm = AdaptiveCompression.ADAPTIVE;
+        private String cipherProvider = FALLBACK_PROVIDER;
+        private String keyProvider = FALLBACK_PROVIDER;
+        private String signatureProvider = FALLBACK_PROVIDER;
+
+        private Builder(String name) {
+            this.name = name;
+        }
+
+        public Builder symmetricAlgorithm(int symmetricAlgorithm) {
+            this.symmetricAlgorithm = symmetricAlgorithm;
+            return this;
+        }
+
+        public Builder hashAlgorithm(int hashAlgorithm) {
+            this.hashAlgorithm = hashAlgorithm;
+            return this;
+        }
+
+        public Builder compressionAlgorithm(int compressionAlgorithm) {
+            this.compressionAlgorithm = compressionAlgorithm;
+            return this;
+        }
+
+        public Builder cipherProvider(String cipherProvider) {
+            this.cipherProvider = cipherProvider;
+            return this;
+        }
+
+        public Builder keyProvider(String keyProvider) {
+            this.keyProvider = keyProvider;
+            return this;
+        }
+
+        public Builder signatureProvider(String signatureProvider) {
+            this.signatureProvider = signatureProvider;
+            return this;
+        }
+
+        /**
+         * Sets the same provider for every primitive.
+         */
+        public Builder provider(String provider) {
+            return cipherProvider(provider).keyProvider(provider).signatureProvider(provider);
+        }
+
+        public CryptoProfile build() {
+            return new CryptoProfile(this);
+        }
+    }
+}
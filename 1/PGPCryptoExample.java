@@ -1,19 +1,49 @@
-import org.bouncycastle.bcpg.ArmoredOutputStream;
+import com.example.demo.service.AdaptiveCompression;
+import com.example.demo.service.CryptoProfile;
+import com.example.demo.service.PgpArmor;
+import org.bouncycastle.bcpg.BCPGOutputStream;
 import org.bouncycastle.openpgp.*;
 import org.bouncycastle.openpgp.operator.jcajce.*;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.security.Security;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 
 public class PGPCryptoExample {
 
+    private static final int BUFFER_SIZE = 1 << 16;
+
     static {
         Security.addProvider(new BouncyCastleProvider());
     }
 
+    /**
+     * Cipher, hash, compression and providers for every message written or read here.
+     */
+    private static volatile CryptoProfile profile = CryptoProfile.AES_256;
+
+    public static CryptoProfile getProfile() {
+        return profile;
+    }
+
+    public static void setProfile(CryptoProfile profile) {
+        PGPCryptoExample.profile = profile;
+    }
+
+    /**
+     * Resolves the private key for a public-key encrypted session key packet, or returns
+     * {@code null} if the key is not held.
+     */
+    public interface PrivateKeyLookup {
+        PGPPrivateKey findPrivateKey(long keyID) throws PGPException;
+    }
+
     public static void main(String[] args) throws Exception {
         // Load keys
         PGPPrivateKey privateKey = KeyLoader.loadPrivateKey("path/to/privatekey.asc", "passphrase".toCharArray());
@@ -22,17 +52,14 @@ public class PGPCryptoExample {
         // Original message
         String message = "Hello, this is a secret message!";
 
-        // Sign the message
-        byte[] signedData = signMessage(message.getBytes(), privateKey, publicKey);
-
-        // Encrypt the signed message
-        byte[] encryptedData = encryptMessage(signedData, publicKey);
+        // Sign, compress and encrypt the message in a single pass
+        ByteArrayOutputStream encryptedOut = new ByteArrayOutputStream();
+        signAndEncryptMessage(new ByteArrayInputStream(message.getBytes()), encryptedOut, privateKey, publicKey, publicKey, true);
 
-        // Decrypt the message
-        byte[] decryptedData = decryptMessage(encryptedData, privateKey);
-
-        // Verify the signature
-        boolean isVerified = verifyMessage(decryptedData, publicKey);
+        // Decrypt the message and verify the signature in a single pass
+        ByteArrayOutputStream decryptedOut = new ByteArrayOutputStream();
+        boolean isVerified = decryptAndVerifyMessage(new ByteArrayInputStream(encryptedOut.toByteArray()), privateKey, publicKey, decryptedOut);
+        byte[] decryptedData = decryptedOut.toByteArray();
 
         System.out.println("Decrypted Message: " + new String(decryptedData));
         System.out.println("Signature Verified: " + isVerified);
@@ -40,41 +67,62 @@ public class PGPCryptoExample {
 
     public static byte[] signMessage(byte[] data, PGPPrivateKey privateKey, PGPPublicKey publicKey) throws Exception {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ArmoredOutputStream armoredOut = new ArmoredOutputStream(out);
-
-        PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        OutputStream cos = comData.open(armoredOut);
+        signMessage(new ByteArrayInputStream(data), out, privateKey, publicKey, true);
+        return out.toByteArray();
+    }
 
-        PGPSignatureGenerator sGen = new PGPSignatureGenerator(
-                new JcaPGPContentSignerBuilder(publicKey.getAlgorithm(), PGPUtil.SHA256).setProvider("BC"));
+    /**
+     * Writes {@code in} as a compressed, one-pass signed message, optionally armored, without
+     * holding the payload in memory. Unless the profile fixes it, the compression algorithm is
+     * chosen from a sample of the head of {@code in}; it is returned with the achieved ratio.
+     * Neither stream is closed.
+     */
+    public static AdaptiveCompression.Result signMessage(InputStream in, OutputStream out, PGPPrivateKey privateKey, PGPPublicKey publicKey, boolean armor) throws Exception {
+        CryptoProfile profile = PGPCryptoExample.profile;
+        byte[] sample = AdaptiveCompression.sampleBuffer();
+        int sampleLength = AdaptiveCompression.readSample(in, sample);
+        int algorithm = compressionAlgorithm(profile, sample, sampleLength, Collections.<PGPPublicKey>emptyList());
+
+        OutputStream target = armor ? PgpArmor.getEncoderStream(out) : out;
+
+        PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(algorithm);
+        AdaptiveCompression.CountingOutputStream comCounter = new AdaptiveCompression.CountingOutputStream(target);
+        OutputStream cos = comData.open(comCounter, new byte[BUFFER_SIZE]);
+
+        PGPSignatureGenerator sGen = new PGPSignatureGenerator(profile.contentSignerBuilder(publicKey.getAlgorithm()));
         sGen.init(PGPSignature.BINARY_DOCUMENT, privateKey);
 
         BCPGOutputStream bOut = new BCPGOutputStream(cos);
         sGen.generateOnePassVersion(false).encode(bOut);
 
         PGPLiteralDataGenerator lGen = new PGPLiteralDataGenerator();
-        OutputStream lOut = lGen.open(bOut, PGPLiteralData.BINARY, PGPLiteralData.CONSOLE, data.length, new Date());
-        lOut.write(data);
-        sGen.update(data);
+        OutputStream lOut = lGen.open(bOut, PGPLiteralData.BINARY, PGPLiteralData.CONSOLE, new Date(), new byte[BUFFER_SIZE]);
+        lOut.write(sample, 0, sampleLength);
+        sGen.update(sample, 0, sampleLength);
+        long plainBytes = sampleLength;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = in.read(buffer)) > 0) {
+            lOut.write(buffer, 0, len);
+            sGen.update(buffer, 0, len);
+            plainBytes += len;
+        }
         lGen.close();
 
         sGen.generate().encode(bOut);
         comData.close();
-        armoredOut.close();
-
-        return out.toByteArray();
+        if (armor) {
+            target.close();
+        }
+        return new AdaptiveCompression.Result(algorithm, plainBytes, comCounter.getCount());
     }
 
     public static byte[] encryptMessage(byte[] data, PGPPublicKey publicKey) throws Exception {
         ByteArrayOutputStream encOut = new ByteArrayOutputStream();
-        ArmoredOutputStream armoredOut = new ArmoredOutputStream(encOut);
+        OutputStream armoredOut = PgpArmor.getEncoderStream(encOut);
 
-        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(
-                new JcePGPDataEncryptorBuilder(PGPEncryptedData.AES_256)
-                        .setWithIntegrityPacket(true)
-                        .setSecureRandom(new SecureRandom())
-                        .setProvider("BC"));
-        encGen.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(publicKey).setProvider("BC"));
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(profile.dataEncryptorBuilder(true));
+        encGen.addMethod(profile.keyEncryptionMethod(publicKey));
 
         OutputStream encOutStream = encGen.open(armoredOut, data.length);
         encOutStream.write(data);
@@ -84,8 +132,76 @@ public class PGPCryptoExample {
         return encOut.toByteArray();
     }
 
+    /**
+     * Signs, compresses, encrypts and optionally armors {@code in} in a single pass. The one-pass
+     * signature, literal data and signature packets are written inside one compressed packet,
+     * inside one encrypted packet, so the payload is read once and never held in memory.
+     * Neither stream is closed.
+     */
+    public static void signAndEncryptMessage(InputStream in, OutputStream out, PGPPrivateKey signingKey, PGPPublicKey signingPublicKey, PGPPublicKey encryptionKey, boolean armor) throws Exception {
+        CryptoProfile profile = PGPCryptoExample.profile;
+        byte[] sample = AdaptiveCompression.sampleBuffer();
+        int sampleLength = AdaptiveCompression.readSample(in, sample);
+
+        OutputStream target = armor ? PgpArmor.getEncoderStream(out) : out;
+
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(profile.dataEncryptorBuilder(true));
+        encGen.addMethod(profile.keyEncryptionMethod(encryptionKey));
+        OutputStream encOut = encGen.open(target, new byte[BUFFER_SIZE]);
+
+        PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(compressionAlgorithm(profile, sample, sampleLength, Collections.singletonList(encryptionKey)));
+        BCPGOutputStream bOut = new BCPGOutputStream(comData.open(encOut, new byte[BUFFER_SIZE]));
+
+        PGPSignatureGenerator sGen = new PGPSignatureGenerator(profile.contentSignerBuilder(signingPublicKey.getAlgorithm()));
+        sGen.init(PGPSignature.BINARY_DOCUMENT, signingKey);
+        sGen.generateOnePassVersion(false).encode(bOut);
+
+        PGPLiteralDataGenerator lGen = new PGPLiteralDataGenerator();
+        OutputStream lOut = lGen.open(bOut, PGPLiteralData.BINARY, PGPLiteralData.CONSOLE, new Date(), new byte[BUFFER_SIZE]);
+        lOut.write(sample, 0, sampleLength);
+        sGen.update(sample, 0, sampleLength);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = in.read(buffer)) > 0) {
+            lOut.write(buffer, 0, len);
+            sGen.update(buffer, 0, len);
+        }
+        lGen.close();
+
+        sGen.generate().encode(bOut);
+        comData.close();
+        encGen.close();
+        if (armor) {
+            target.close();
+        }
+    }
+
     public static byte[] decryptMessage(byte[] encryptedData, PGPPrivateKey privateKey) throws Exception {
-        InputStream in = PGPUtil.getDecoderStream(new ByteArrayInputStream(encryptedData));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        decryptMessage(new ByteArrayInputStream(encryptedData), privateKey, out);
+        return out.toByteArray();
+    }
+
+    public static void decryptMessage(InputStream encryptedIn, PGPPrivateKey privateKey, WritableByteChannel out) throws Exception {
+        decryptMessage(encryptedIn, privateKey, Channels.newOutputStream(out));
+    }
+
+    public static void decryptMessage(InputStream encryptedIn, PGPPrivateKey privateKey, OutputStream out) throws Exception {
+        decryptMessage(encryptedIn, keyID -> privateKey, out);
+    }
+
+    /**
+     * Decrypts {@code encryptedIn} into {@code out}, copying the literal data in
+     * {@link #BUFFER_SIZE} blocks rather than a byte at a time. The private key is chosen by the
+     * key ID of each encrypted session key in turn, so a message addressed to several recipients
+     * is decrypted with whichever key {@code keys} holds. Neither stream is closed.
+     *
+     * <p>Messages without an integrity packet are refused, and a failed integrity check throws
+     * once the literal data has been written, so the caller must discard {@code out} on any
+     * exception.
+     */
+    public static void decryptMessage(InputStream encryptedIn, PrivateKeyLookup keys, OutputStream out) throws Exception {
+        InputStream in = PgpArmor.getDecoderStream(encryptedIn);
         PGPObjectFactory pgpF = new PGPObjectFactory(in, new JcaKeyFingerprintCalculator());
         PGPEncryptedDataList enc = null;
 
@@ -96,10 +212,23 @@ public class PGPCryptoExample {
             enc = (PGPEncryptedDataList) pgpF.nextObject();
         }
 
-        Iterator<PGPPublicKeyEncryptedData> it = enc.getEncryptedDataObjects();
-        PGPPublicKeyEncryptedData pbe = it.next();
+        Iterator<PGPEncryptedData> it = enc.getEncryptedDataObjects();
+        PGPPrivateKey privateKey = null;
+        PGPPublicKeyEncryptedData pbe = null;
+        while (privateKey == null && it.hasNext()) {
+            pbe = (PGPPublicKeyEncryptedData) it.next();
+            privateKey = keys.findPrivateKey(pbe.getKeyID());
+        }
+
+        if (privateKey == null) {
+            throw new IllegalArgumentException("Secret key for message not found.");
+        }
+        if (!pbe.isIntegrityProtected()) {
+            throw new PGPException("Message is not integrity protected.");
+        }
 
-        InputStream clear = pbe.getDataStream(new JcePublicKeyDataDecryptorFactoryBuilder().setProvider("BC").build(privateKey));
+        CryptoProfile profile = PGPCryptoExample.profile;
+        InputStream clear = pbe.getDataStream(profile.publicKeyDecryptorFactory(privateKey));
         PGPObjectFactory plainFact = new PGPObjectFactory(clear, new JcaKeyFingerprintCalculator());
 
         PGPCompressedData cData = (PGPCompressedData) plainFact.nextObject();
@@ -107,16 +236,99 @@ public class PGPCryptoExample {
 
         PGPLiteralData ld = (PGPLiteralData) pgpFact.nextObject();
         InputStream unc = ld.getInputStream();
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int ch;
-        while ((ch = unc.read()) >= 0) {
-            out.write(ch);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = unc.read(buffer)) > 0) {
+            out.write(buffer, 0, len);
+        }
+        out.flush();
+
+        if (!pbe.verify()) {
+            throw new PGPException("Message failed integrity check.");
         }
-        return out.toByteArray();
+    }
+
+    public static boolean decryptAndVerifyMessage(InputStream encryptedIn, PGPPrivateKey privateKey, PGPPublicKey verificationKey, OutputStream out) throws Exception {
+        return decryptAndVerifyMessage(encryptedIn, keyID -> privateKey, verificationKey, out);
+    }
+
+    /**
+     * Reads a message written by {@link #signAndEncryptMessage}, decrypting it into {@code out}
+     * while the signature is computed over the same blocks. Returns whether the signature
+     * verifies; the caller must discard the output if it does not. Neither stream is closed.
+     */
+    public static boolean decryptAndVerifyMessage(InputStream encryptedIn, PrivateKeyLookup keys, PGPPublicKey verificationKey, OutputStream out) throws Exception {
+        InputStream in = PgpArmor.getDecoderStream(encryptedIn);
+        PGPObjectFactory pgpF = new PGPObjectFactory(in, new JcaKeyFingerprintCalculator());
+        PGPEncryptedDataList enc = null;
+
+        Object o = pgpF.nextObject();
+        if (o instanceof PGPEncryptedDataList) {
+            enc = (PGPEncryptedDataList) o;
+        } else {
+            enc = (PGPEncryptedDataList) pgpF.nextObject();
+        }
+
+        Iterator<PGPEncryptedData> it = enc.getEncryptedDataObjects();
+        PGPPrivateKey privateKey = null;
+        PGPPublicKeyEncryptedData pbe = null;
+        while (privateKey == null && it.hasNext()) {
+            pbe = (PGPPublicKeyEncryptedData) it.next();
+            privateKey = keys.findPrivateKey(pbe.getKeyID());
+        }
+
+        if (privateKey == null) {
+            throw new IllegalArgumentException("Secret key for message not found.");
+        }
+
+        CryptoProfile profile = PGPCryptoExample.profile;
+        InputStream clear = pbe.getDataStream(profile.publicKeyDecryptorFactory(privateKey));
+        PGPObjectFactory plainFact = new PGPObjectFactory(clear, new JcaKeyFingerprintCalculator());
+
+        Object message = plainFact.nextObject();
+        if (message instanceof PGPCompressedData) {
+            plainFact = new PGPObjectFactory(((PGPCompressedData) message).getDataStream(), new JcaKeyFingerprintCalculator());
+            message = plainFact.nextObject();
+        }
+
+        if (!(message instanceof PGPOnePassSignatureList)) {
+            throw new PGPException("Encrypted message is not one-pass signed.");
+        }
+        PGPOnePassSignature ops = ((PGPOnePassSignatureList) message).get(0);
+        ops.init(profile.contentVerifierBuilderProvider(), verificationKey);
+
+        PGPLiteralData ld = (PGPLiteralData) plainFact.nextObject();
+        InputStream dIn = ld.getInputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = dIn.read(buffer)) > 0) {
+            ops.update(buffer, 0, len);
+            out.write(buffer, 0, len);
+        }
+        out.flush();
+
+        PGPSignatureList signatures = (PGPSignatureList) plainFact.nextObject();
+        if (pbe.isIntegrityProtected() && !pbe.verify()) {
+            throw new PGPException("Message failed integrity check.");
+        }
+        return ops.getKeyID() == verificationKey.getKeyID() && ops.verify(signatures.get(0));
     }
 
     public static boolean verifyMessage(byte[] signedData, PGPPublicKey publicKey) throws Exception {
-        InputStream in = PGPUtil.getDecoderStream(new ByteArrayInputStream(signedData));
+        return verifyMessage(new ByteArrayInputStream(signedData), publicKey, (OutputStream) null);
+    }
+
+    public static boolean verifyMessage(InputStream signedIn, PGPPublicKey publicKey, WritableByteChannel out) throws Exception {
+        return verifyMessage(signedIn, publicKey, Channels.newOutputStream(out));
+    }
+
+    /**
+     * Verifies the one-pass signed message in {@code signedIn}, feeding the signature in
+     * {@link #BUFFER_SIZE} blocks. The signed content is copied to {@code out} on the way through,
+     * or discarded if {@code out} is {@code null}. Neither stream is closed.
+     */
+    public static boolean verifyMessage(InputStream signedIn, PGPPublicKey publicKey, OutputStream out) throws Exception {
+        InputStream in = PgpArmor.getDecoderStream(signedIn);
         PGPObjectFactory pgpFact = new PGPObjectFactory(in, new JcaKeyFingerprintCalculator());
 
         PGPCompressedData c1 = (PGPCompressedData) pgpFact.nextObject();
@@ -128,14 +340,26 @@ public class PGPCryptoExample {
         PGPLiteralData p2 = (PGPLiteralData) pgpFact2.nextObject();
         InputStream dIn = p2.getInputStream();
 
-        ops.init(new JcaPGPContentVerifierBuilderProvider().setProvider("BC"), publicKey);
+        ops.init(profile.contentVerifierBuilderProvider(), publicKey);
 
-        int ch;
-        while ((ch = dIn.read()) >= 0) {
-            ops.update((byte) ch);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = dIn.read(buffer)) > 0) {
+            ops.update(buffer, 0, len);
+            if (out != null) {
+                out.write(buffer, 0, len);
+            }
+        }
+        if (out != null) {
+            out.flush();
         }
 
         PGPSignatureList p3 = (PGPSignatureList) pgpFact2.nextObject();
         return ops.verify(p3.get(0));
     }
+
+    private static int compressionAlgorithm(CryptoProfile profile, byte[] sample, int sampleLength, List<PGPPublicKey> recipients) {
+        int algorithm = profile.getCompressionAlgorithm();
+        return algorithm == AdaptiveCompression.ADAPTIVE ? AdaptiveCompression.choose(sample, sampleLength, recipients) : algorithm;
+    }
 }
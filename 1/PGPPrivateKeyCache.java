@@ -0,0 +1,175 @@
+package com.example.sftppgpservice.service;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches private keys extracted from a secret key ring file, keyed by key ID.
+ *
+ * <p>Extracting a private key runs the S2K passphrase derivation, which dominates the cost of
+ * decrypting small files, so each key is extracted at most once per version of the key ring.
+ * The file's modification time and size are checked on every lookup; when either changes the
+ * file is re-read and, if its SHA-256 digest differs from the cached one, all extracted keys are
+ * dropped.
+ *
+ * <p>No lookup holds a monitor. Each key is extracted by the first caller asking for it, while
+ * callers asking for the same key wait on its future and callers asking for other keys go on in
+ * parallel; re-reading the file holds a {@link ReentrantLock}. A virtual thread waiting for
+ * either releases its carrier.
+ *
+ * <p>{@link #findPrivateKey} fits {@code PGPCryptoExample.PrivateKeyLookup} as a method reference.
+ */
+public class PGPPrivateKeyCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(PGPPrivateKeyCache.class);
+
+    private final Path keyRingPath;
+
+    private final char[] passphrase;
+
+    private final ReentrantLock reloadLock = new ReentrantLock();
+
+    private volatile KeyRing keyRing;
+
+    public PGPPrivateKeyCache(Path keyRingPath, char[] passphrase) {
+        this.keyRingPath = keyRingPath;
+        this.passphrase = passphrase.clone();
+    }
+
+    /**
+     * The private key {@code keyID}, or {@code null} if the key ring does not hold it.
+     */
+    public PGPPrivateKey findPrivateKey(long keyID) throws PGPException {
+        KeyRing current = refreshIfChanged();
+
+        CompletableFuture<PGPPrivateKey> created = new CompletableFuture<>();
+        CompletableFuture<PGPPrivateKey> existing = current.privateKeys.putIfAbsent(keyID, created);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            PGPSecretKey secretKey = current.secretKeyRings.getSecretKey(keyID);
+            created.complete(secretKey == null ? null
+                    : secretKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider("BC").build(passphrase)));
+        } catch (PGPException | RuntimeException e) {
+            // Let the next lookup try again rather than caching the failure
+            current.privateKeys.remove(keyID, created);
+            created.completeExceptionally(e);
+        }
+        return await(created);
+    }
+
+    public void invalidate() {
+        keyRing = null;
+    }
+
+    int size() {
+        KeyRing current = keyRing;
+        if (current == null) {
+            return 0;
+        }
+        int size = 0;
+        for (CompletableFuture<PGPPrivateKey> privateKey : current.privateKeys.values()) {
+            if (privateKey.isDone() && !privateKey.isCompletedExceptionally() && privateKey.join() != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private static PGPPrivateKey await(CompletableFuture<PGPPrivateKey> privateKey) throws PGPException {
+        try {
+            return privateKey.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PGPException("Interrupted while waiting for a private key to be extracted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PGPException) {
+                throw (PGPException) e.getCause();
+            }
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    private KeyRing refreshIfChanged() throws PGPException {
+        try {
+            KeyRing current = keyRing;
+            FileTime currentModified = Files.getLastModifiedTime(keyRingPath);
+            long currentSize = Files.size(keyRingPath);
+            if (current != null && current.isVersion(currentModified, currentSize)) {
+                return current;
+            }
+
+            reloadLock.lock();
+            try {
+                current = keyRing;
+                if (current != null && current.isVersion(currentModified, currentSize)) {
+                    return current;
+                }
+                byte[] content = Files.readAllBytes(keyRingPath);
+                byte[] currentDigest = MessageDigest.getInstance("SHA-256").digest(content);
+                if (current != null && Arrays.equals(currentDigest, current.digest)) {
+                    current = new KeyRing(current.secretKeyRings, current.privateKeys, currentModified, currentSize, currentDigest);
+                } else {
+                    logger.info("Loading PGP key ring: {}", keyRingPath);
+                    PGPSecretKeyRingCollection secretKeyRings = new PGPSecretKeyRingCollection(
+                            PGPUtil.getDecoderStream(new ByteArrayInputStream(content)), new JcaKeyFingerprintCalculator());
+                    current = new KeyRing(secretKeyRings, new ConcurrentHashMap<>(), currentModified, currentSize, currentDigest);
+                }
+                keyRing = current;
+                return current;
+            } finally {
+                reloadLock.unlock();
+            }
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new PGPException("Unable to read key ring " + keyRingPath, e);
+        }
+    }
+
+    /**
+     * One version of the key ring file and the keys extracted from it so far. A touched file with
+     * unchanged content gets a new version sharing the extracted keys.
+     */
+    private static final class KeyRing {
+
+        final PGPSecretKeyRingCollection secretKeyRings;
+        final ConcurrentMap<Long, CompletableFuture<PGPPrivateKey>> privateKeys;
+        final FileTime lastModified;
+        final long size;
+        final byte[] digest;
+
+        KeyRing(PGPSecretKeyRingCollection secretKeyRings, ConcurrentMap<Long, CompletableFuture<PGPPrivateKey>> privateKeys,
+                FileTime lastModified, long size, byte[] digest) {
+            this.secretKeyRings = secretKeyRings;
+            this.privateKeys = privateKeys;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.digest = digest;
+        }
+
+        boolean isVersion(FileTime modified, long size) {
+            return modified.equals(lastModified) && size == this.size;
+        }
+    }
+}
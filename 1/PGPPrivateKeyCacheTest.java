@@ -0,0 +1,130 @@
+package com.example.sftppgpservice.service;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PGPPrivateKeyCacheTest {
+
+    static final char[] PASSPHRASE = "your_passphrase".toCharArray();
+
+    private static PGPSecretKey firstKey;
+
+    private static PGPSecretKey secondKey;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeAll
+    public static void generateKeys() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        firstKey = generateSecretKey();
+        secondKey = generateSecretKey();
+    }
+
+    @Test
+    public void testKeyIsExtractedOnce() throws Exception {
+        Path keyRing = writeKeyRing(tempDir.resolve("secring.asc"), firstKey);
+        PGPPrivateKeyCache cache = new PGPPrivateKeyCache(keyRing, PASSPHRASE);
+
+        PGPPrivateKey privateKey = cache.findPrivateKey(firstKey.getKeyID());
+        assertNotNull(privateKey);
+        assertSame(privateKey, cache.findPrivateKey(firstKey.getKeyID()));
+        assertNull(cache.findPrivateKey(secondKey.getKeyID()));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testTouchedKeyRingKeepsKeys() throws Exception {
+        Path keyRing = writeKeyRing(tempDir.resolve("secring.asc"), firstKey);
+        PGPPrivateKeyCache cache = new PGPPrivateKeyCache(keyRing, PASSPHRASE);
+        PGPPrivateKey privateKey = cache.findPrivateKey(firstKey.getKeyID());
+
+        Files.setLastModifiedTime(keyRing, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+
+        assertSame(privateKey, cache.findPrivateKey(firstKey.getKeyID()));
+    }
+
+    @Test
+    public void testReplacedKeyRingInvalidatesKeys() throws Exception {
+        Path keyRing = writeKeyRing(tempDir.resolve("secring.asc"), firstKey);
+        PGPPrivateKeyCache cache = new PGPPrivateKeyCache(keyRing, PASSPHRASE);
+        assertNotNull(cache.findPrivateKey(firstKey.getKeyID()));
+
+        writeKeyRing(keyRing, secondKey);
+        Files.setLastModifiedTime(keyRing, FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+
+        assertNull(cache.findPrivateKey(firstKey.getKeyID()));
+        assertNotNull(cache.findPrivateKey(secondKey.getKeyID()));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneExtraction() throws Exception {
+        Path keyRing = writeKeyRing(tempDir.resolve("secring.asc"), firstKey);
+        PGPPrivateKeyCache cache = new PGPPrivateKeyCache(keyRing, PASSPHRASE);
+
+        ExecutorService lookups = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<PGPPrivateKey>> privateKeys = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                privateKeys.add(lookups.submit(() -> cache.findPrivateKey(firstKey.getKeyID())));
+            }
+            PGPPrivateKey privateKey = privateKeys.get(0).get(30, TimeUnit.SECONDS);
+            assertNotNull(privateKey);
+            for (Future<PGPPrivateKey> other : privateKeys) {
+                assertSame(privateKey, other.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            lookups.shutdownNow();
+        }
+        assertEquals(1, cache.size());
+
+        cache.invalidate();
+        assertEquals(0, cache.size());
+        assertNotNull(cache.findPrivateKey(firstKey.getKeyID()));
+        assertEquals(1, cache.size());
+    }
+
+    static Path writeKeyRing(Path path, PGPSecretKey secretKey) throws Exception {
+        try (OutputStream out = Files.newOutputStream(path)) {
+            secretKey.encode(out);
+        }
+        return path;
+    }
+
+    static PGPSecretKey generateSecretKey() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", "BC");
+        kpg.initialize(2048);
+        PGPKeyPair keyPair = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1);
+        return new PGPSecretKey(PGPSignature.DEFAULT_CERTIFICATION, keyPair, "test@example.com", sha1Calc, null, null,
+                new JcaPGPContentSignerBuilder(keyPair.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.CAST5, sha1Calc).setProvider("BC").build(PASSPHRASE));
+    }
+}
@@ -0,0 +1,413 @@
+package com.example.demo.service;
+
+import org.bouncycastle.bcpg.PacketTags;
+import org.bouncycastle.openpgp.PGPUtil;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * ASCII armor (RFC 4880 section 6) for the encrypt, sign and decrypt paths, as a faster
+ * replacement for Bouncy Castle's {@code ArmoredOutputStream} and {@code ArmoredInputStream}.
+ *
+ * <p>Those encode and decode base64 one character at a time and update the CRC24 checksum bit by
+ * bit, which makes armoring a large share of the CPU spent on an armored feed. Here the payload is
+ * base64 encoded and decoded in {@link #BLOCK_SIZE} blocks with the {@link Base64} bulk codecs, and
+ * the checksum is updated a byte at a time from a lookup table. The output is what Bouncy Castle
+ * writes, minus its {@code Version} header, and either side reads the other's armor.
+ */
+public final class PgpArmor {
+
+    /**
+     * Payload bytes encoded per block: 1024 lines of 48 bytes, i.e. 64 base64 characters each.
+     */
+    public static final int BLOCK_SIZE = 48 * 1024;
+
+    private static final int LINE_LENGTH = 64;
+
+    private static final int MAX_LEADING_WHITESPACE = 1024;
+
+    private static final int CRC24_INIT = 0xB704CE;
+
+    private static final int CRC24_POLY = 0x1864CFB;
+
+    private static final int[] CRC24_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 16;
+            for (int bit = 0; bit < 8; bit++) {
+                crc <<= 1;
+                if ((crc & 0x1000000) != 0) {
+                    crc ^= CRC24_POLY;
+                }
+            }
+            CRC24_TABLE[i] = crc & 0xFFFFFF;
+        }
+    }
+
+    private PgpArmor() {
+    }
+
+    /**
+     * Armors everything written to the returned stream into {@code out}. Closing the returned
+     * stream writes the checksum and footer but does not close {@code out}. If nothing was
+     * written, nothing is armored.
+     */
+    public static OutputStream getEncoderStream(OutputStream out) {
+        return new EncoderStream(out);
+    }
+
+    /**
+     * Like {@link PGPUtil#getDecoderStream(InputStream)}: returns {@code in} itself if it holds
+     * binary OpenPGP data, a {@link DecoderStream} if it is armored, and Bouncy Castle's decoder
+     * for anything else, such as base64 without armor headers.
+     */
+    public static InputStream getDecoderStream(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        in.mark(MAX_LEADING_WHITESPACE + 1);
+        int ch = in.read();
+        for (int skipped = 0; skipped < MAX_LEADING_WHITESPACE && (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n'); skipped++) {
+            ch = in.read();
+        }
+        in.reset();
+        if (ch < 0 || (ch & 0x80) != 0) {
+            return in;
+        }
+        return ch == '-' ? new DecoderStream(in) : PGPUtil.getDecoderStream(in);
+    }
+
+    /**
+     * Updates a CRC24 checksum, as used by OpenPGP armor, with {@code len} bytes of {@code buf}.
+     */
+    static int updateCrc(int crc, byte[] buf, int off, int len) {
+        for (int i = off, end = off + len; i < end; i++) {
+            crc = ((crc << 8) ^ CRC24_TABLE[((crc >> 16) ^ buf[i]) & 0xff]) & 0xFFFFFF;
+        }
+        return crc;
+    }
+
+    static int crc(byte[] buf, int off, int len) {
+        return updateCrc(CRC24_INIT, buf, off, len);
+    }
+
+    /**
+     * The armor type for a message starting with {@code firstByte}, chosen as Bouncy Castle does.
+     */
+    private static String armorType(int firstByte) {
+        if ((firstByte & 0x80) == 0) {
+            return "PGP MESSAGE";
+        }
+        int tag = (firstByte & 0x40) != 0 ? firstByte & 0x3f : (firstByte >> 2) & 0xf;
+        switch (tag) {
+            case PacketTags.PUBLIC_KEY:
+                return "PGP PUBLIC KEY BLOCK";
+            case PacketTags.SECRET_KEY:
+                return "PGP PRIVATE KEY BLOCK";
+            case PacketTags.SIGNATURE:
+                return "PGP SIGNATURE";
+            default:
+                return "PGP MESSAGE";
+        }
+    }
+
+    /**
+     * Writes armor into the wrapped stream, base64 encoding one {@link #BLOCK_SIZE} block at a
+     * time. Closing it finishes the armor but leaves the wrapped stream open.
+     */
+    public static final class EncoderStream extends OutputStream {
+
+        private final OutputStream out;
+        private final byte[] newLine = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+        private final Base64.Encoder encoder = Base64.getMimeEncoder(LINE_LENGTH, newLine);
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] encoded = new byte[BLOCK_SIZE / 48 * (LINE_LENGTH + newLine.length)];
+        private int length;
+        private int crc = CRC24_INIT;
+        private String type;
+        private boolean closed;
+
+        public EncoderStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            if (type == null) {
+                writeHeader(b[off] & 0xff);
+            }
+            crc = updateCrc(crc, b, off, len);
+            while (len > 0) {
+                int n = Math.min(len, BLOCK_SIZE - length);
+                System.arraycopy(b, off, block, length, n);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == BLOCK_SIZE) {
+                    int encodedLength = encoder.encode(block, encoded);
+                    out.write(encoded, 0, encodedLength);
+                    out.write(newLine);
+                    length = 0;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (type == null) {
+                // nothing written: like Bouncy Castle, emit no armor at all
+                out.flush();
+                return;
+            }
+            if (length > 0) {
+                out.write(encoder.encode(Arrays.copyOf(block, length)));
+                out.write(newLine);
+            }
+            byte[] checksum = {(byte) (crc >> 16), (byte) (crc >> 8), (byte) crc};
+            out.write('=');
+            out.write(Base64.getEncoder().encode(checksum));
+            out.write(newLine);
+            out.write(("-----END " + type + "-----").getBytes(StandardCharsets.US_ASCII));
+            out.write(newLine);
+            out.flush();
+        }
+
+        private void writeHeader(int firstByte) throws IOException {
+            type = armorType(firstByte);
+            out.write(("-----BEGIN " + type + "-----").getBytes(StandardCharsets.US_ASCII));
+            out.write(newLine);
+            out.write(newLine);
+        }
+    }
+
+    /**
+     * Reads armored data from the wrapped stream, collecting the base64 characters of the body and
+     * decoding them in blocks of {@code 4 * BLOCK_SIZE / 3}. The checksum, when present, is
+     * verified as soon as the last block is decoded. Reading stops at the end of the first
+     * armored block.
+     */
+    public static final class DecoderStream extends InputStream {
+
+        private static final int CHAR_BLOCK = BLOCK_SIZE / 3 * 4;
+
+        private final InputStream in;
+        private final Base64.Decoder decoder = Base64.getDecoder();
+        private final byte[] raw = new byte[1 << 16];
+        private int rawPos;
+        private int rawLimit;
+        private final byte[] chars = new byte[CHAR_BLOCK];
+        private int charCount;
+        private byte[] decoded = new byte[BLOCK_SIZE];
+        private int decodedPos;
+        private int decodedLimit;
+        private int crc = CRC24_INIT;
+        private boolean headerRead;
+        private boolean atLineStart = true;
+        private boolean ended;
+
+        public DecoderStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!headerRead) {
+                readHeader();
+            }
+            while (decodedPos == decodedLimit) {
+                if (ended) {
+                    return -1;
+                }
+                fill();
+            }
+            int n = Math.min(len, decodedLimit - decodedPos);
+            System.arraycopy(decoded, decodedPos, b, off, n);
+            decodedPos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return decodedLimit - decodedPos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        /**
+         * Collects body characters until a block is full or the body ends, then decodes them.
+         * Lines are copied a run at a time rather than a character at a time.
+         */
+        private void fill() throws IOException {
+            while (true) {
+                if (rawPos == rawLimit && !refill()) {
+                    throw new EOFException("Armored data ended before its checksum or END line.");
+                }
+                byte c = raw[rawPos];
+                if (c == '\n' || c == '\r') {
+                    atLineStart = true;
+                    rawPos++;
+                    continue;
+                } else if (c == ' ' || c == '\t') {
+                    rawPos++;
+                    continue;
+                } else if (atLineStart && (c == '=' || c == '-')) {
+                    finishBody();
+                    return;
+                }
+                atLineStart = false;
+
+                int end = rawPos + 1;
+                while (end < rawLimit && (c = raw[end]) != '\n' && c != '\r' && c != ' ' && c != '\t') {
+                    end++;
+                }
+                int n = Math.min(end - rawPos, CHAR_BLOCK - charCount);
+                System.arraycopy(raw, rawPos, chars, charCount, n);
+                rawPos += n;
+                charCount += n;
+                if (charCount == CHAR_BLOCK) {
+                    decode(chars);
+                    charCount = 0;
+                    return;
+                }
+            }
+        }
+
+        private void finishBody() throws IOException {
+            decode(Arrays.copyOf(chars, charCount));
+            charCount = 0;
+            ended = true;
+
+            String line = readLine();
+            if (line != null && line.startsWith("=")) {
+                byte[] checksum = decodeBase64(line.substring(1).trim());
+                if (checksum.length != 3) {
+                    throw new IOException("Malformed armor checksum: " + line);
+                }
+                int expected = ((checksum[0] & 0xff) << 16) | ((checksum[1] & 0xff) << 8) | (checksum[2] & 0xff);
+                if (expected != crc) {
+                    throw new IOException("Armor checksum mismatch.");
+                }
+                line = readLine();
+            }
+            while (line != null && !line.startsWith("-----END ")) {
+                line = readLine();
+            }
+        }
+
+        private void decode(byte[] src) throws IOException {
+            try {
+                if (src.length == CHAR_BLOCK) {
+                    decodedLimit = decoder.decode(src, decoded);
+                } else {
+                    decoded = decoder.decode(src);
+                    decodedLimit = decoded.length;
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid base64 in armored data.", e);
+            }
+            decodedPos = 0;
+            crc = updateCrc(crc, decoded, 0, decodedLimit);
+        }
+
+        private byte[] decodeBase64(String s) throws IOException {
+            try {
+                return decoder.decode(s);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid base64 in armored data.", e);
+            }
+        }
+
+        /**
+         * Skips to the BEGIN line, then past the armor headers. A body that starts without the
+         * blank line after the headers is tolerated.
+         */
+        private void readHeader() throws IOException {
+            headerRead = true;
+            String line = readLine();
+            while (line != null && line.trim().isEmpty()) {
+                line = readLine();
+            }
+            if (line == null || !line.startsWith("-----BEGIN ")) {
+                throw new IOException("Not ASCII armored data.");
+            }
+            while ((line = readLine()) != null && !line.trim().isEmpty()) {
+                if (line.indexOf(':') < 0) {
+                    for (int i = 0; i < line.length(); i++) {
+                        char c = line.charAt(i);
+                        if (c != ' ' && c != '\t') {
+                            chars[charCount++] = (byte) c;
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+
+        /**
+         * The rest of the current line without its terminator, or {@code null} at end of stream.
+         * Only used for the header, checksum and footer lines.
+         */
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                if (rawPos == rawLimit && !refill()) {
+                    return line.length() == 0 ? null : line.toString();
+                }
+                byte c = raw[rawPos++];
+                if (c == '\n') {
+                    atLineStart = true;
+                    return line.toString();
+                } else if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+        }
+
+        private boolean refill() throws IOException {
+            int n = in.read(raw);
+            if (n <= 0) {
+                return false;
+            }
+            rawPos = 0;
+            rawLimit = n;
+            return true;
+        }
+    }
+}
@@ -1,25 +1,38 @@
 package com.example.sftppgpservice.service;
 
+import com.example.sftp.pool.DirectoryChanges;
+import com.example.sftp.pool.RemoteDirectoryIndex;
+import com.example.sftp.pool.RemoteListing;
+import com.example.sftp.pool.SegmentedDownloader;
+import com.example.sftp.pool.SftpConnectionPool;
+import com.example.sftp.pool.SftpEndpoint;
+import com.example.sftp.pool.SftpTransferEngine;
+import com.example.sftp.pool.SftpTuner;
 import com.jcraft.jsch.*;
-import org.bouncycastle.openpgp.*;
-import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
-import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.io.*;
-import java.util.Iterator;
-import java.util.Properties;
-import java.util.Vector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 public class SFTPPGPService {
 
     private static final Logger logger = LoggerFactory.getLogger(SFTPPGPService.class);
 
+    private static final int BUFFER_SIZE = 1 << 16;
+
     @Value("${sftp.host}")
     private String sftpHost;
 
@@ -35,6 +48,9 @@ public class SFTPPGPService {
     @Value("${sftp.remoteDir}")
     private String sftpRemoteDir;
 
+    @Value("${sftp.filePattern:*}")
+    private String sftpFilePattern;
+
     @Value("${sftp.localDir}")
     private String sftpLocalDir;
 
@@ -47,84 +63,143 @@ public class SFTPPGPService {
     @Value("${pgp.passphrase}")
     private String pgpPassphrase;
 
-    @Scheduled(cron = "0 */5 * * * ?")
-    public void executeSFTPJob() {
-        logger.info("Starting SFTP job...");
-
-        try {
-            JSch jsch = new JSch();
-            jsch.addIdentity(sftpPrivateKey);
+    @Value("${pgp.streamFromSftp:true}")
+    private boolean streamFromSftp;
 
-            Session session = jsch.getSession(sftpUsername, sftpHost, sftpPort);
-            Properties config = new Properties();
-            config.put("StrictHostKeyChecking", "no");
-            session.setConfig(config);
-            session.connect();
+    @Autowired
+    private SftpConnectionPool sftpConnectionPool;
 
-            ChannelSftp sftpChannel = (ChannelSftp) session.openChannel("sftp");
-            sftpChannel.connect();
+    @Autowired
+    private SftpTransferEngine sftpTransferEngine;
 
-            logger.info("Connected to SFTP server.");
+    @Autowired
+    private SegmentedDownloader segmentedDownloader;
 
-            Vector<ChannelSftp.LsEntry> files = sftpChannel.ls(sftpRemoteDir);
+    @Autowired
+    private RemoteDirectoryIndex remoteDirectoryIndex;
 
-            for (ChannelSftp.LsEntry file : files) {
-                if (!file.getAttrs().isDir()) {
-                    String remoteFilePath = sftpRemoteDir + "/" + file.getFilename();
-                    String localFilePath = sftpLocalDir + "/" + file.getFilename();
+    private PGPPrivateKeyCache privateKeyCache;
 
-                    sftpChannel.get(remoteFilePath, localFilePath);
-                    logger.info("Downloaded file: {}", file.getFilename());
+    @Scheduled(cron = "0 */5 * * * ?")
+    public void executeSFTPJob() {
+        logger.info("Starting SFTP job...");
 
-                    // Decrypt the file
-                    decryptFile(localFilePath, localFilePath + ".decrypted");
+        try {
+            SftpEndpoint endpoint = sftpEndpoint();
+
+            // Only files that are new or changed since they were last processed are fetched
+            RemoteDirectoryIndex.Scan scan = remoteDirectoryIndex.scan();
+            // Only what the index commit needs is kept: the entries processed successfully
+            List<ChannelSftp.LsEntry> processed = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger failed = new AtomicInteger();
+            DirectoryChanges changes;
+            try (RemoteListing listing = RemoteListing.open(sftpConnectionPool, endpoint, sftpRemoteDir,
+                    RemoteListing.glob(sftpFilePattern).and(scan::offer), RemoteListing.DEFAULT_CAPACITY)) {
+                // Each file is downloaded and decrypted on its own pooled channel, several at a
+                // time, as soon as the listing returns it
+                sftpTransferEngine.run(endpoint, listing, this::downloadAndDecrypt, outcome -> {
+                    if (outcome.isSucceeded()) {
+                        processed.add(outcome.getItem());
+                    } else {
+                        failed.incrementAndGet();
+                        logger.error("Failed to process file: {}", outcome.getItem().getFilename(), outcome.getError());
+                    }
+                });
+                if (listing.getFailure() != null) {
+                    logger.error("Listing of {} failed; files not listed yet are left for the next run.", sftpRemoteDir, listing.getFailure());
                 }
+                // Files a broken listing never got to are not gone
+                changes = scan.finish(listing.isComplete());
+            }
+            logger.info("Remote directory: {}.", changes);
+
+            // Failed files stay out of the index, so the next run picks them up again
+            remoteDirectoryIndex.commit(changes, processed);
+            logger.info("SFTP job finished: {} of {} files processed.", processed.size(), processed.size() + failed.get());
+            SftpTuner tuner = sftpConnectionPool.getTuner();
+            if (tuner != null) {
+                logger.info("Transfer tuning: {}", tuner.stats().get(endpoint.getHost() + ":" + endpoint.getPort()));
             }
-
-            sftpChannel.disconnect();
-            session.disconnect();
         } catch (Exception e) {
             logger.error("Error during SFTP job", e);
         }
     }
 
-    private void decryptFile(String inputFilePath, String outputFilePath) throws IOException, PGPException {
-        logger.info("Decrypting file: {}", inputFilePath);
+    private long downloadAndDecrypt(ChannelSftp sftpChannel, ChannelSftp.LsEntry file) throws Exception {
+        String remoteFilePath = sftpRemoteDir + "/" + file.getFilename();
+        String localFilePath = sftpLocalDir + "/" + file.getFilename();
+        long size = file.getAttrs().getSize();
 
-        // Load PGP keys
-        InputStream keyIn = new FileInputStream(pgpPrivateKeyPath);
-        PGPSecretKeyRingCollection pgpSec = new PGPSecretKeyRingCollection(PGPUtil.getDecoderStream(keyIn), new JcaKeyFingerprintCalculator());
-
-        PGPSecretKey secretKey = null;
-        Iterator<PGPSecretKeyRing> keyRingIter = pgpSec.getKeyRings();
-        while (keyRingIter.hasNext()) {
-            PGPSecretKeyRing keyRing = keyRingIter.next();
-            Iterator<PGPSecretKey> keyIter = keyRing.getSecretKeys();
-            while (keyIter.hasNext()) {
-                secretKey = keyIter.next();
-                if (secretKey.isSigningKey()) {
-                    break;
-                }
-            }
+        // Large files are fetched over several channels first, which streaming cannot do
+        if (streamFromSftp && !segmentedDownloader.isSegmented(size)) {
+            decryptRemoteFile(sftpChannel, remoteFilePath, localFilePath + ".decrypted");
+            return size;
         }
-        keyIn.close();
 
-        if (secretKey == null) {
-            throw new IllegalArgumentException("No private key found in the key ring.");
+        segmentedDownloader.download(sftpEndpoint(), sftpChannel, remoteFilePath, file.getAttrs(), Paths.get(localFilePath));
+        logger.info("Downloaded file: {}", file.getFilename());
+
+        // Decrypt the file
+        decryptFile(localFilePath, localFilePath + ".decrypted");
+        if (streamFromSftp) {
+            // Keep localDir to plaintext only, as for streamed files
+            Files.delete(Paths.get(localFilePath));
         }
+        return size;
+    }
+
+    private SftpEndpoint sftpEndpoint() {
+        return SftpEndpoint.builder(sftpHost, sftpPort, sftpUsername)
+                .privateKey(sftpPrivateKey)
+                .build();
+    }
 
-        // Decrypt the file using the PGPCryptoExample methods (adjust accordingly if necessary)
-        byte[] encryptedData = readFile(inputFilePath);
-        PGPPrivateKey privateKey = secretKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider("BC").build(pgpPassphrase.toCharArray()));
-        byte[] decryptedData = PGPCryptoExample.decryptMessage(encryptedData, privateKey);
+    private void decryptFile(String inputFilePath, String outputFilePath) throws Exception {
+        logger.info("Decrypting file: {}", inputFilePath);
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(inputFilePath))) {
+            decrypt(in, Paths.get(outputFilePath));
+        }
+        logger.info("Decrypted file saved to: {}", outputFilePath);
+    }
 
-        writeFile(outputFilePath, decryptedData);
+    /**
+     * Pipes the remote file straight through the PGP decoder into {@code outputFilePath}: the
+     * ciphertext never touches local disk and heap use is bounded by the transfer and decoder
+     * buffers.
+     */
+    private void decryptRemoteFile(ChannelSftp sftpChannel, String remoteFilePath, String outputFilePath) throws Exception {
+        logger.info("Streaming and decrypting file: {}", remoteFilePath);
+
+        // JSch sizes its read requests by the reads it is given, so read in the tuned buffer size
+        SftpTuner tuner = sftpConnectionPool.getTuner();
+        int bufferSize = tuner == null ? BUFFER_SIZE : tuner.bufferSize(sftpChannel, BUFFER_SIZE);
+        try (InputStream in = new BufferedInputStream(sftpChannel.get(remoteFilePath), bufferSize)) {
+            decrypt(in, Paths.get(outputFilePath));
+        }
         logger.info("Decrypted file saved to: {}", outputFilePath);
     }
 
-    private byte[] readFile(String filePath) throws IOException {
-        try (InputStream is = new FileInputStream(filePath);
-             ByteArrayOutputStream buffer = new ByteArrayOutputStream()) {
-            int nRead;
-            byte[] data = new byte[1024];
-            while ((nRead = is.read(data, 0, data.length)) != -1) {
+    /**
+     * Decrypts {@code in} next to {@code target} and renames the plaintext into place only once
+     * the whole message has been read and its integrity check has passed, so neither a broken
+     * transfer nor a tampered ciphertext leaves a file under the final name.
+     */
+    private void decrypt(InputStream in, Path target) throws Exception {
+        Path partial = Paths.get(target + ".part");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(partial), BUFFER_SIZE)) {
+            PGPCryptoExample.decryptMessage(in, privateKeyCache()::findPrivateKey, out);
+        } catch (Exception e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private synchronized PGPPrivateKeyCache privateKeyCache() {
+        if (privateKeyCache == null) {
+            privateKeyCache = new PGPPrivateKeyCache(Paths.get(pgpPrivateKeyPath), pgpPassphrase.toCharArray());
+        }
+        return privateKeyCache;
+    }
+}
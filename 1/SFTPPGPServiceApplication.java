@@ -1,7 +1,22 @@
 package com.example.sftppgpservice;
 
+import com.example.sftp.pool.RemoteDirectoryIndex;
+import com.example.sftp.pool.SegmentedDownloader;
+import com.example.sftp.pool.SftpConnectionPool;
+import com.example.sftp.pool.SftpExecutors;
+import com.example.sftp.pool.SftpPoolConfig;
+import com.example.sftp.pool.SftpTransferEngine;
+import com.example.sftp.pool.SftpTuner;
+import com.example.sftp.pool.TransferProfile;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Bean;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
 
 @SpringBootApplication
 public class SFTPPGPServiceApplication {
@@ -9,4 +24,60 @@ public class SFTPPGPServiceApplication {
     public static void main(String[] args) {
         SpringApplication.run(SFTPPGPServiceApplication.class, args);
     }
+
+    /**
+     * Learns buffer size, outstanding requests, compression and cipher order per host from live
+     * transfers, starting from the configured values, and keeps what it learned in stateDir.
+     */
+    @Bean
+    public SftpTuner sftpTuner(@Value("${sftp.tuning.bufferSize:65536}") int bufferSize,
+                               @Value("${sftp.tuning.bulkRequests:16}") int bulkRequests,
+                               @Value("${sftp.tuning.compression:false}") boolean compression,
+                               @Value("${sftp.tuning.cipherAlgorithms:aes128-ctr,aes192-ctr,aes256-ctr}") String[] ciphers,
+                               @Value("${sftp.tuning.stateDir:}") String stateDir) {
+        return new SftpTuner(new TransferProfile(bufferSize, bulkRequests, compression, Arrays.asList(ciphers)),
+                stateDir.isEmpty() ? null : Paths.get(stateDir));
+    }
+
+    @Bean(destroyMethod = "close")
+    public SftpConnectionPool sftpConnectionPool(SftpTuner sftpTuner,
+                                                 @Value("${sftp.pool.minSessions:0}") int minSessions,
+                                                 @Value("${sftp.pool.maxSessions:2}") int maxSessions,
+                                                 @Value("${sftp.pool.maxChannelsPerSession:4}") int maxChannelsPerSession,
+                                                 @Value("${sftp.pool.idleTimeout:300}") long idleTimeoutSeconds,
+                                                 @Value("${sftp.pool.serverAliveInterval:60}") long serverAliveIntervalSeconds,
+                                                 @Value("${sftp.pool.serverAliveCountMax:3}") int serverAliveCountMax) {
+        return new SftpConnectionPool(SftpPoolConfig.builder()
+                .minSessions(minSessions)
+                .maxSessions(maxSessions)
+                .maxChannelsPerSession(maxChannelsPerSession)
+                .idleTimeout(Duration.ofSeconds(idleTimeoutSeconds))
+                .serverAliveInterval(Duration.ofSeconds(serverAliveIntervalSeconds))
+                .serverAliveCountMax(serverAliveCountMax)
+                .build(), sftpTuner);
+    }
+
+    @Bean(destroyMethod = "close")
+    public SftpTransferEngine sftpTransferEngine(SftpConnectionPool sftpConnectionPool,
+                                                 @Value("${sftp.maxConcurrentTransfers:5}") int maxConcurrentTransfers,
+                                                 @Value("${sftp.maxTransfersPerHost:5}") int maxTransfersPerHost,
+                                                 @Value("${sftp.threadMode:platform}") String threadMode) {
+        return SftpTransferEngine.create(sftpConnectionPool, SftpExecutors.Mode.of(threadMode), maxConcurrentTransfers, maxTransfersPerHost);
+    }
+
+    @Bean(destroyMethod = "close")
+    public SegmentedDownloader segmentedDownloader(SftpConnectionPool sftpConnectionPool,
+                                                   @Value("${sftp.segmentedDownload.threshold:268435456}") long threshold,
+                                                   @Value("${sftp.segmentedDownload.channels:4}") int channels) {
+        return new SegmentedDownloader(sftpConnectionPool, threshold, channels);
+    }
+
+    /**
+     * Name, size and modification time of every file processed from remoteDir, so each job only
+     * fetches what is new or changed.
+     */
+    @Bean
+    public RemoteDirectoryIndex remoteDirectoryIndex(@Value("${sftp.indexFile}") String indexFile) throws IOException {
+        return new RemoteDirectoryIndex(Paths.get(indexFile));
+    }
 }
@@ -1,23 +1,53 @@
 package com.example.sftppgpservice.service;
 
+import com.example.demo.service.CryptoProfile;
+import com.example.sftp.pool.RemoteDirectoryIndex;
+import com.example.sftp.pool.SegmentedDownloader;
+import com.example.sftp.pool.SftpConnectionPool;
+import com.example.sftp.pool.SftpEndpoint;
+import com.example.sftp.pool.SftpLease;
+import com.example.sftp.pool.SftpTransferEngine;
 import com.jcraft.jsch.ChannelSftp;
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
 import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.*;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.util.ReflectionTestUtils;
 
-import java.io.FileInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Properties;
+import java.io.OutputStream;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Security;
+import java.util.Date;
+import java.util.Random;
 import java.util.Vector;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
 
@@ -29,10 +59,10 @@ public class SFTPPGPServiceTest {
     private SFTPPGPService sftpPGPService;
 
     @Mock
-    private JSch jsch;
+    private SftpConnectionPool sftpConnectionPool;
 
     @Mock
-    private Session session;
+    private SftpLease lease;
 
     @Mock
     private ChannelSftp sftpChannel;
@@ -43,6 +73,9 @@ public class SFTPPGPServiceTest {
     @Value("${sftp.localDir}")
     private String localDir;
 
+    @TempDir
+    Path stateDir;
+
     @BeforeEach
     public void setup() throws Exception {
         ReflectionTestUtils.setField(sftpPGPService, "sftpHost", "sftp.example.com");
@@ -50,50 +83,259 @@ public class SFTPPGPServiceTest {
         ReflectionTestUtils.setField(sftpPGPService, "sftpUsername", "sftpuser");
         ReflectionTestUtils.setField(sftpPGPService, "sftpPrivateKey", "/path/to/private/key");
         ReflectionTestUtils.setField(sftpPGPService, "sftpRemoteDir", "/remote/dir");
+        ReflectionTestUtils.setField(sftpPGPService, "sftpFilePattern", "*.pgp");
         ReflectionTestUtils.setField(sftpPGPService, "sftpLocalDir", localDir);
         ReflectionTestUtils.setField(sftpPGPService, "pgpPrivateKeyPath", "/path/to/pgp/privatekey.asc");
         ReflectionTestUtils.setField(sftpPGPService, "pgpPassphrase", "your_passphrase");
 
         MockitoAnnotations.openMocks(this);
+        ReflectionTestUtils.setField(sftpPGPService, "sftpTransferEngine", new SftpTransferEngine(sftpConnectionPool, Runnable::run, 2));
+        ReflectionTestUtils.setField(sftpPGPService, "segmentedDownloader", new SegmentedDownloader(sftpConnectionPool, SegmentedDownloader.DEFAULT_THRESHOLD, 4));
+        ReflectionTestUtils.setField(sftpPGPService, "remoteDirectoryIndex", new RemoteDirectoryIndex(stateDir.resolve("remote-dir.idx")));
     }
 
     @Test
-    public void testExecuteSFTPJob() throws Exception {
-        when(jsch.getSession(anyString(), anyString(), anyInt())).thenReturn(session);
-        when(session.openChannel("sftp")).thenReturn(sftpChannel);
-        when(sftpChannel.ls(anyString())).thenReturn(mock(Vector.class));
+    public void testExecuteSFTPJob(@TempDir Path tempDir) throws Exception {
+        ReflectionTestUtils.setField(sftpPGPService, "sftpLocalDir", tempDir.toString());
+        Vector<ChannelSftp.LsEntry> files = new Vector<>();
+        files.add(lsEntry("file.pgp"));
 
-        doNothing().when(session).connect();
-        doNothing().when(sftpChannel).connect();
+        when(sftpConnectionPool.borrow(any(SftpEndpoint.class))).thenReturn(lease);
+        when(lease.channel()).thenReturn(sftpChannel);
+        stubListing(files);
         doNothing().when(sftpChannel).get(anyString(), anyString());
-        doNothing().when(sftpChannel).disconnect();
-        doNothing().when(session).disconnect();
+
+        try (MockedStatic<PGPCryptoExample> pgpCryptoMock = mockStatic(PGPCryptoExample.class)) {
+            Files.write(tempDir.resolve("file.pgp"), new byte[]{1, 2, 3});
+            sftpPGPService.executeSFTPJob();
+        }
+
+        ArgumentCaptor<SftpEndpoint> endpoint = ArgumentCaptor.forClass(SftpEndpoint.class);
+        verify(sftpConnectionPool, times(2)).borrow(endpoint.capture());
+        assertEquals("sftpuser@sftp.example.com:22", endpoint.getValue().toString());
+        verify(sftpChannel, times(1)).ls(eq("/remote/dir"), any(ChannelSftp.LsEntrySelector.class));
+        verify(sftpChannel, times(1)).get("/remote/dir/file.pgp", tempDir.resolve("file.pgp").toString());
+        verify(sftpChannel, never()).disconnect();
+        verify(lease, never()).invalidate();
+        verify(lease, times(2)).close();
+    }
+
+    @Test
+    public void testExecuteSFTPJobSkipsFilesAlreadyProcessed(@TempDir Path tempDir) throws Exception {
+        ReflectionTestUtils.setField(sftpPGPService, "sftpLocalDir", tempDir.toString());
+        Vector<ChannelSftp.LsEntry> files = new Vector<>();
+        files.add(lsEntry("file.pgp"));
+
+        when(sftpConnectionPool.borrow(any(SftpEndpoint.class))).thenReturn(lease);
+        when(lease.channel()).thenReturn(sftpChannel);
+        stubListing(files);
+        doNothing().when(sftpChannel).get(anyString(), anyString());
+
+        try (MockedStatic<PGPCryptoExample> pgpCryptoMock = mockStatic(PGPCryptoExample.class)) {
+            Files.write(tempDir.resolve("file.pgp"), new byte[]{1, 2, 3});
+            sftpPGPService.executeSFTPJob();
+            // A restarted service reads the same index
+            ReflectionTestUtils.setField(sftpPGPService, "remoteDirectoryIndex", new RemoteDirectoryIndex(stateDir.resolve("remote-dir.idx")));
+            sftpPGPService.executeSFTPJob();
+        }
+
+        verify(sftpChannel, times(2)).ls(eq("/remote/dir"), any(ChannelSftp.LsEntrySelector.class));
+        verify(sftpChannel, times(1)).get("/remote/dir/file.pgp", tempDir.resolve("file.pgp").toString());
+    }
+
+    @Test
+    public void testExecuteSFTPJobContinuesAfterFailedFile(@TempDir Path tempDir) throws Exception {
+        ReflectionTestUtils.setField(sftpPGPService, "sftpLocalDir", tempDir.toString());
+        Vector<ChannelSftp.LsEntry> files = new Vector<>();
+        files.add(lsEntry("broken.pgp"));
+        files.add(lsEntry("file.pgp"));
+
+        when(sftpConnectionPool.borrow(any(SftpEndpoint.class))).thenReturn(lease);
+        when(lease.channel()).thenReturn(sftpChannel);
+        stubListing(files);
+        doThrow(new SftpException(ChannelSftp.SSH_FX_FAILURE, "connection lost")).when(sftpChannel).get(eq("/remote/dir/broken.pgp"), anyString());
+        doNothing().when(sftpChannel).get(eq("/remote/dir/file.pgp"), anyString());
+
+        try (MockedStatic<PGPCryptoExample> pgpCryptoMock = mockStatic(PGPCryptoExample.class)) {
+            Files.write(tempDir.resolve("file.pgp"), new byte[]{1, 2, 3});
+            sftpPGPService.executeSFTPJob();
+        }
+
+        assertTrue(Files.exists(tempDir.resolve("file.pgp.decrypted")));
+        verify(lease, times(1)).invalidate();
+        verify(lease, times(3)).close();
+    }
+
+    @Test
+    public void testExecuteSFTPJobDownloadsLargeFilesBeforeDecrypting(@TempDir Path tempDir) throws Exception {
+        ReflectionTestUtils.setField(sftpPGPService, "sftpLocalDir", tempDir.toString());
+        ReflectionTestUtils.setField(sftpPGPService, "streamFromSftp", true);
+        SegmentedDownloader segmentedDownloader = mock(SegmentedDownloader.class);
+        ReflectionTestUtils.setField(sftpPGPService, "segmentedDownloader", segmentedDownloader);
+        Vector<ChannelSftp.LsEntry> files = new Vector<>();
+        files.add(lsEntry("large.pgp"));
+
+        when(sftpConnectionPool.borrow(any(SftpEndpoint.class))).thenReturn(lease);
+        when(lease.channel()).thenReturn(sftpChannel);
+        stubListing(files);
+        when(segmentedDownloader.isSegmented(anyLong())).thenReturn(true);
+        when(segmentedDownloader.download(any(SftpEndpoint.class), eq(sftpChannel), eq("/remote/dir/large.pgp"), any(SftpATTRS.class), any(Path.class)))
+                .thenAnswer(invocation -> {
+                    Files.write(invocation.getArgument(4, Path.class), new byte[]{1, 2, 3});
+                    return 3L;
+                });
+
+        try (MockedStatic<PGPCryptoExample> pgpCryptoMock = mockStatic(PGPCryptoExample.class)) {
+            sftpPGPService.executeSFTPJob();
+        }
+
+        assertTrue(Files.exists(tempDir.resolve("large.pgp.decrypted")));
+        assertFalse(Files.exists(tempDir.resolve("large.pgp")));
+        verify(sftpChannel, never()).get(anyString());
+        verify(lease, never()).invalidate();
+    }
+
+    @Test
+    public void testExecuteSFTPJobDropsChannelAfterFailure() throws Exception {
+        when(sftpConnectionPool.borrow(any(SftpEndpoint.class))).thenReturn(lease);
+        when(lease.channel()).thenReturn(sftpChannel);
+        doThrow(new SftpException(ChannelSftp.SSH_FX_FAILURE, "connection lost"))
+                .when(sftpChannel).ls(anyString(), any(ChannelSftp.LsEntrySelector.class));
 
         sftpPGPService.executeSFTPJob();
 
-        verify(sftpChannel, times(1)).ls(anyString());
-        verify(sftpChannel, times(1)).get(anyString(), anyString());
-        verify(sftpChannel, times(1)).disconnect();
-        verify(session, times(1)).disconnect();
+        verify(lease, times(1)).invalidate();
+        verify(lease, times(1)).close();
+    }
+
+    private void stubListing(Vector<ChannelSftp.LsEntry> files) throws SftpException {
+        doAnswer(invocation -> {
+            ChannelSftp.LsEntrySelector selector = invocation.getArgument(1);
+            for (ChannelSftp.LsEntry file : files) {
+                if (selector.select(file) == ChannelSftp.LsEntrySelector.BREAK) {
+                    break;
+                }
+            }
+            return null;
+        }).when(sftpChannel).ls(anyString(), any(ChannelSftp.LsEntrySelector.class));
+    }
+
+    private static ChannelSftp.LsEntry lsEntry(String fileName) {
+        ChannelSftp.LsEntry entry = mock(ChannelSftp.LsEntry.class);
+        SftpATTRS attrs = mock(SftpATTRS.class);
+        when(entry.getFilename()).thenReturn(fileName);
+        when(entry.getAttrs()).thenReturn(attrs);
+        return entry;
     }
 
     @Test
-    public void testDecryptFile() throws Exception {
-        InputStream mockInputStream = mock(FileInputStream.class);
-        when(mockInputStream.read(any(byte[].class), anyInt(), anyInt())).thenReturn(-1);
+    public void testDecryptFile(@TempDir Path tempDir) throws Exception {
+        Path encryptedFile = Files.write(tempDir.resolve("file.pgp"), new byte[]{1, 2, 3});
+        Path decryptedFile = tempDir.resolve("file.pgp.decrypted");
 
-        doReturn(mockInputStream).when(sftpPGPService).readFile(anyString());
+        try (MockedStatic<PGPCryptoExample> pgpCryptoMock = mockStatic(PGPCryptoExample.class)) {
+            ReflectionTestUtils.invokeMethod(sftpPGPService, "decryptFile", encryptedFile.toString(), decryptedFile.toString());
 
-        byte[] encryptedData = new byte[]{};
-        byte[] decryptedData = new byte[]{};
+            pgpCryptoMock.verify(() -> PGPCryptoExample.decryptMessage(any(InputStream.class), any(PGPCryptoExample.PrivateKeyLookup.class), any(OutputStream.class)));
+            assertTrue(Files.exists(decryptedFile));
+        }
+    }
+
+    @Test
+    public void testDecryptRemoteFileStreamsIntoDestination(@TempDir Path tempDir) throws Exception {
+        Path decryptedFile = tempDir.resolve("file.pgp.decrypted");
+        byte[] plain = {4, 5, 6};
+        when(sftpChannel.get("/remote/dir/file.pgp")).thenReturn(new ByteArrayInputStream(new byte[]{1, 2, 3}));
 
         try (MockedStatic<PGPCryptoExample> pgpCryptoMock = mockStatic(PGPCryptoExample.class)) {
-            pgpCryptoMock.when(() -> PGPCryptoExample.decryptMessage(eq(encryptedData), any()))
-                    .thenReturn(decryptedData);
+            pgpCryptoMock.when(() -> PGPCryptoExample.decryptMessage(any(InputStream.class), any(PGPCryptoExample.PrivateKeyLookup.class), any(OutputStream.class)))
+                    .thenAnswer(invocation -> {
+                        invocation.getArgument(2, OutputStream.class).write(plain);
+                        return null;
+                    });
 
-            sftpPGPService.decryptFile("/path/to/encrypted/file", "/path/to/decrypted/file");
+            ReflectionTestUtils.invokeMethod(sftpPGPService, "decryptRemoteFile", sftpChannel, "/remote/dir/file.pgp", decryptedFile.toString());
+        }
+
+        assertArrayEquals(plain, Files.readAllBytes(decryptedFile));
+        assertFalse(Files.exists(tempDir.resolve("file.pgp.decrypted.part")));
+        assertFalse(Files.exists(tempDir.resolve("file.pgp")));
+        verify(sftpChannel, never()).get(anyString(), anyString());
+    }
 
-            verify(mockInputStream, times(1)).close();
+    @Test
+    public void testDecryptRemoteFileLeavesNothingBehindOnFailure(@TempDir Path tempDir) throws Exception {
+        Path decryptedFile = tempDir.resolve("file.pgp.decrypted");
+        when(sftpChannel.get("/remote/dir/file.pgp")).thenReturn(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+
+        try (MockedStatic<PGPCryptoExample> pgpCryptoMock = mockStatic(PGPCryptoExample.class)) {
+            pgpCryptoMock.when(() -> PGPCryptoExample.decryptMessage(any(InputStream.class), any(PGPCryptoExample.PrivateKeyLookup.class), any(OutputStream.class)))
+                    .thenAnswer(invocation -> {
+                        invocation.getArgument(2, OutputStream.class).write(new byte[]{4});
+                        throw new IOException("connection reset");
+                    });
+
+            UndeclaredThrowableException e = assertThrows(UndeclaredThrowableException.class,
+                    () -> ReflectionTestUtils.invokeMethod(sftpPGPService, "decryptRemoteFile", sftpChannel, "/remote/dir/file.pgp", decryptedFile.toString()));
+            assertTrue(e.getCause() instanceof IOException);
         }
+
+        assertFalse(Files.exists(decryptedFile));
+        assertFalse(Files.exists(tempDir.resolve("file.pgp.decrypted.part")));
+    }
+
+    @Test
+    public void testTamperedCiphertextLeavesNoFile(@TempDir Path tempDir) throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        PGPSecretKey secretKey = PGPPrivateKeyCacheTest.generateSecretKey();
+        Path keyRing = PGPPrivateKeyCacheTest.writeKeyRing(tempDir.resolve("secring.asc"), secretKey);
+        ReflectionTestUtils.setField(sftpPGPService, "pgpPrivateKeyPath", keyRing.toString());
+        ReflectionTestUtils.setField(sftpPGPService, "pgpPassphrase", new String(PGPPrivateKeyCacheTest.PASSPHRASE));
+
+        byte[] plain = new byte[100 * 1024];
+        new Random(11).nextBytes(plain);
+        byte[] encrypted = encrypt(plain, secretKey.getPublicKey());
+        byte[] tampered = encrypted.clone();
+        tampered[tampered.length / 2] ^= 1;
+        Path encryptedFile = Files.write(tempDir.resolve("file.pgp"), tampered);
+        Path decryptedFile = tempDir.resolve("file.pgp.decrypted");
+        when(sftpChannel.get("/remote/dir/file.pgp")).thenReturn(new ByteArrayInputStream(encrypted), new ByteArrayInputStream(tampered));
+
+        ReflectionTestUtils.invokeMethod(sftpPGPService, "decryptRemoteFile", sftpChannel, "/remote/dir/file.pgp", decryptedFile.toString());
+        assertArrayEquals(plain, Files.readAllBytes(decryptedFile));
+        Files.delete(decryptedFile);
+
+        UndeclaredThrowableException remote = assertThrows(UndeclaredThrowableException.class,
+                () -> ReflectionTestUtils.invokeMethod(sftpPGPService, "decryptRemoteFile", sftpChannel, "/remote/dir/file.pgp", decryptedFile.toString()));
+        assertTrue(remote.getCause() instanceof PGPException);
+        assertFalse(Files.exists(decryptedFile));
+        assertFalse(Files.exists(tempDir.resolve("file.pgp.decrypted.part")));
+
+        UndeclaredThrowableException local = assertThrows(UndeclaredThrowableException.class,
+                () -> ReflectionTestUtils.invokeMethod(sftpPGPService, "decryptFile", encryptedFile.toString(), decryptedFile.toString()));
+        assertTrue(local.getCause() instanceof PGPException);
+        assertFalse(Files.exists(decryptedFile));
+        assertFalse(Files.exists(tempDir.resolve("file.pgp.decrypted.part")));
+    }
+
+    /**
+     * Encrypts {@code plain} with an integrity packet and no compression, so a flipped ciphertext
+     * byte garbles the literal data without breaking the packet structure and only the integrity
+     * check can catch it.
+     */
+    private static byte[] encrypt(byte[] plain, PGPPublicKey encKey) throws Exception {
+        CryptoProfile profile = PGPCryptoExample.getProfile();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(profile.dataEncryptorBuilder(true));
+        encGen.addMethod(profile.keyEncryptionMethod(encKey));
+        OutputStream encOut = encGen.open(out, new byte[1 << 16]);
+        PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(PGPCompressedData.UNCOMPRESSED);
+        PGPLiteralDataGenerator litData = new PGPLiteralDataGenerator();
+        OutputStream litOut = litData.open(comData.open(encOut), PGPLiteralData.BINARY, "file", plain.length, new Date());
+        litOut.write(plain);
+        litData.close();
+        comData.close();
+        encGen.close();
+        return out.toByteArray();
     }
 }
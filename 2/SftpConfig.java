@@ -1,5 +1,11 @@
 package com.example.sftp.config;
 
+import com.example.sftp.pool.RemoteDirectoryIndex;
+import com.example.sftp.pool.SftpConnectionPool;
+import com.example.sftp.pool.SftpEndpoint;
+import com.example.sftp.pool.SftpExecutors;
+import com.example.sftp.pool.SftpPoolConfig;
+import com.example.sftp.pool.SftpTransferEngine;
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.Session;
@@ -8,6 +14,8 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Properties;
 
 @Configuration
@@ -25,6 +33,18 @@ public class SftpConfig {
     @Value("${sftp.privateKey}")
     private String sftpPrivateKey;
 
+    @Value("${sftp.maxConcurrentTransfers:5}")
+    private int maxConcurrentTransfers;
+
+    @Value("${sftp.maxTransfersPerHost:5}")
+    private int maxTransfersPerHost;
+
+    @Value("${sftp.threadMode:platform}")
+    private String threadMode;
+
+    @Value("${sftp.index.file}")
+    private String indexFile;
+
     @Bean
     public ChannelSftp sftpChannel() throws Exception {
         JSch jsch = new JSch();
@@ -40,4 +60,30 @@ public class SftpConfig {
         channelSftp.connect();
         return channelSftp;
     }
+
+    @Bean
+    public SftpEndpoint sftpEndpoint() {
+        return SftpEndpoint.builder(sftpHost, sftpPort, sftpUser)
+                .privateKey(sftpPrivateKey)
+                .build();
+    }
+
+    @Bean(destroyMethod = "close")
+    public SftpConnectionPool sftpConnectionPool() {
+        // Room for every parallel transfer, at four channels per session
+        return new SftpConnectionPool(SftpPoolConfig.builder()
+                .maxSessions((maxConcurrentTransfers + 3) / 4)
+                .maxChannelsPerSession(4)
+                .build());
+    }
+
+    @Bean(destroyMethod = "close")
+    public SftpTransferEngine sftpTransferEngine(SftpConnectionPool sftpConnectionPool) {
+        return SftpTransferEngine.create(sftpConnectionPool, SftpExecutors.Mode.of(threadMode), maxConcurrentTransfers, maxTransfersPerHost);
+    }
+
+    @Bean
+    public RemoteDirectoryIndex remoteDirectoryIndex() throws IOException {
+        return new RemoteDirectoryIndex(Paths.get(indexFile));
+    }
 }
@@ -1,5 +1,9 @@
 package com.example.sftp.service;
 
+import com.example.sftp.pool.RemoteDirectoryIndex;
+import com.example.sftp.pool.RemoteListing;
+import com.example.sftp.pool.SftpEndpoint;
+import com.example.sftp.pool.SftpTransferEngine;
 import com.jcraft.jsch.ChannelSftp;
 import org.bouncycastle.openpgp.*;
 import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
@@ -14,16 +18,28 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 @Service
 public class SftpService {
 
     private final ChannelSftp sftpChannel;
 
+    private final SftpTransferEngine sftpTransferEngine;
+
+    private final SftpEndpoint sftpEndpoint;
+
+    private final RemoteDirectoryIndex remoteDirectoryIndex;
+
     @Value("${sftp.remote.directory}")
     private String remoteDirectory;
 
+    @Value("${sftp.file.pattern:*}")
+    private String filePattern;
+
     @Value("${sftp.local.directory}")
     private String localDirectory;
 
@@ -33,28 +49,51 @@ public class SftpService {
     @Value("${pgp.passphrase}")
     private String pgpPassphrase;
 
-    public SftpService(ChannelSftp sftpChannel) {
+    public SftpService(ChannelSftp sftpChannel, SftpTransferEngine sftpTransferEngine, SftpEndpoint sftpEndpoint,
+                       RemoteDirectoryIndex remoteDirectoryIndex) {
         this.sftpChannel = sftpChannel;
+        this.sftpTransferEngine = sftpTransferEngine;
+        this.sftpEndpoint = sftpEndpoint;
+        this.remoteDirectoryIndex = remoteDirectoryIndex;
     }
 
     @Scheduled(cron = "${sftp.scheduler.cron}")
     public void downloadAndDecryptFiles() throws Exception {
-        sftpChannel.cd(remoteDirectory);
-        sftpChannel.ls("*").forEach(file -> {
-            ChannelSftp.LsEntry entry = (ChannelSftp.LsEntry) file;
-            String filename = entry.getFilename();
-            try (InputStream inputStream = sftpChannel.get(filename);
+        // Only files that are new or changed since the last successful download are fetched
+        RemoteDirectoryIndex.Scan scan = remoteDirectoryIndex.scan();
+        RemoteListing listing = RemoteListing.open(sftpChannel, remoteDirectory, RemoteListing.glob(filePattern).and(scan::offer),
+                RemoteListing.DEFAULT_CAPACITY);
+
+        // Download several files at once, each on its own pooled channel, and decrypt as they land,
+        // while the listing goes on
+        List<ChannelSftp.LsEntry> downloaded = Collections.synchronizedList(new ArrayList<>());
+        sftpTransferEngine.run(sftpEndpoint, listing, (channel, file) -> {
+            String filename = file.getFilename();
+            long bytes = 0;
+            try (InputStream inputStream = channel.get(remoteDirectory + "/" + filename);
                  FileOutputStream outputStream = new FileOutputStream(localDirectory + "/" + filename)) {
                 byte[] buffer = new byte[1024];
                 int bytesRead;
                 while ((bytesRead = inputStream.read(buffer)) != -1) {
                     outputStream.write(buffer, 0, bytesRead);
+                    bytes += bytesRead;
                 }
-                decryptFile(localDirectory + "/" + filename);
-            } catch (Exception e) {
-                e.printStackTrace();
+            }
+            decryptFile(localDirectory + "/" + filename);
+            return bytes;
+        }, outcome -> {
+            if (outcome.isSucceeded()) {
+                downloaded.add(outcome.getItem());
+            } else {
+                outcome.getError().printStackTrace();
             }
         });
+        if (listing.getFailure() != null) {
+            listing.getFailure().printStackTrace();
+        }
+        // Failed files stay out of the index and are tried again on the next run; files a broken
+        // listing never got to are not taken for deleted
+        remoteDirectoryIndex.commit(scan.finish(listing.isComplete()), downloaded);
     }
 
     private void decryptFile(String filePath) throws Exception {
@@ -1,26 +1,37 @@
 package com.example.sftp.service;
 
+import com.example.sftp.pool.RemoteDirectoryIndex;
+import com.example.sftp.pool.SftpConnectionPool;
+import com.example.sftp.pool.SftpEndpoint;
+import com.example.sftp.pool.SftpLease;
+import com.example.sftp.pool.SftpTransferEngine;
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.SftpATTRS;
 import com.jcraft.jsch.SftpException;
 import com.jcraft.jsch.SftpStatVFS;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Vector;
 
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @SpringBootTest
@@ -33,10 +44,22 @@ public class SftpServiceTest {
     @Value("${sftp.local.directory}")
     private String localDirectory;
 
+    @TempDir
+    Path stateDir;
+
     @BeforeEach
     public void setUp() throws Exception {
         sftpChannel = Mockito.mock(ChannelSftp.class);
-        sftpService = new SftpService(sftpChannel);
+        SftpEndpoint sftpEndpoint = SftpEndpoint.builder("localhost", 22, "user").build();
+        SftpConnectionPool sftpConnectionPool = Mockito.mock(SftpConnectionPool.class);
+        SftpLease lease = Mockito.mock(SftpLease.class);
+        when(sftpConnectionPool.borrow(sftpEndpoint)).thenReturn(lease);
+        when(lease.channel()).thenReturn(sftpChannel);
+        sftpService = new SftpService(sftpChannel, new SftpTransferEngine(sftpConnectionPool, Runnable::run, 1), sftpEndpoint,
+                new RemoteDirectoryIndex(stateDir.resolve("remote-dir.idx")));
+        ReflectionTestUtils.setField(sftpService, "remoteDirectory", "/remote/directory");
+        ReflectionTestUtils.setField(sftpService, "filePattern", "*.gpg");
+        ReflectionTestUtils.setField(sftpService, "localDirectory", localDirectory);
     }
 
     @Test
@@ -48,7 +71,11 @@ public class SftpServiceTest {
         when(entry.getFilename()).thenReturn("testfile.txt.gpg");
         when(entry.getAttrs()).thenReturn(attrs);
         fileList.add(entry);
-        when(sftpChannel.ls(anyString())).thenReturn(fileList);
+        Mockito.doAnswer(invocation -> {
+            ChannelSftp.LsEntrySelector selector = invocation.getArgument(1);
+            fileList.forEach(selector::select);
+            return null;
+        }).when(sftpChannel).ls(anyString(), any(ChannelSftp.LsEntrySelector.class));
 
         // Mock the file download
         String fileContent = "encrypted file content";
@@ -63,6 +90,10 @@ public class SftpServiceTest {
         File downloadedFile = new File(downloadedFilePath);
         assertTrue(downloadedFile.exists());
 
+        // The mock content doesn't decrypt, so the file stays out of the index and is tried again
+        sftpService.downloadAndDecryptFiles();
+        verify(sftpChannel, times(2)).get(anyString());
+
         // Clean up
         Files.deleteIfExists(Paths.get(downloadedFilePath));
     }
@@ -1,6 +1,7 @@
+import com.example.sftp.pool.SftpConnectionPool;
+import com.example.sftp.pool.SftpEndpoint;
+import com.example.sftp.pool.SftpLease;
 import com.jcraft.jsch.*;
-import java.util.Base64;
-import java.util.Properties;
 
 public class ConnectToTibcoMailbox {
 
@@ -14,44 +15,30 @@ public class ConnectToTibcoMailbox {
             // Public key of the server in Base64 format
             String serverHostKeyBase64 = "AAAAB3NzaC1yc2EAAAABIwAAAQEArb9O4v1Hj...";
 
-            // Parse the Base64 encoded host key
-            byte[] serverHostKey = Base64.getDecoder().decode(serverHostKeyBase64);
+            // Path to user's private key for public key authentication
+            String privateKeyPath = System.getProperty("user.home") + "/.ssh/id_rsa";
 
-            // Initialize JSch
-            JSch jsch = new JSch();
+            // Trust only the server's host key, and authenticate with the private key
+            SftpEndpoint endpoint = SftpEndpoint.builder(hostname, port, username)
+                    .hostKey(serverHostKeyBase64)
+                    .privateKey(privateKeyPath)
+                    .build();
 
-            // Create a HostKey instance
-            HostKey hostKey = new HostKey(hostname, serverHostKey);
+            // Lease an SFTP channel from the shared pool; closing the lease hands it back
+            try (SftpLease lease = SftpConnectionPool.shared().borrow(endpoint)) {
+                System.out.println("Connected to the TIBCO Mailbox server!");
 
-            // Add the server's host key to the host key repository
-            jsch.getHostKeyRepository().add(hostKey, null);
-
-            // Create a session
-            Session session = jsch.getSession(username, hostname, port);
-
-            // Use public key authentication
-            String privateKeyPath = System.getProperty("user.home") + "/.ssh/id_rsa";  // Path to user's private key
-            jsch.addIdentity(privateKeyPath);
-
-            // Configure session
-            Properties config = new Properties();
-            config.put("StrictHostKeyChecking", "no");  // Enable in production with proper key management
-            session.setConfig(config);
-
-            // Connect to the server
-            session.connect();
-
-            System.out.println("Connected to the TIBCO Mailbox server!");
-
-            // Perform SFTP operations (example: list files in the root directory)
-            Channel channel = session.openChannel("sftp");
-            channel.connect();
-            ChannelSftp sftpChannel = (ChannelSftp) channel;
-            sftpChannel.ls("/").forEach(System.out::println);
+                // Perform SFTP operations (example: list files in the root directory), printing each
+                // entry as the server returns it instead of collecting the whole listing first
+                ChannelSftp sftpChannel = lease.channel();
+                sftpChannel.ls("/", entry -> {
+                    System.out.println(entry);
+                    return ChannelSftp.LsEntrySelector.CONTINUE;
+                });
+            }
 
             // Disconnect
-            sftpChannel.disconnect();
-            session.disconnect();
+            SftpConnectionPool.shared().close();
 
         } catch (JSchException | SftpException e) {
             e.printStackTrace();
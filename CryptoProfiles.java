@@ -0,0 +1,93 @@
+package com.example.demo.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * The default {@link CryptoProfile} plus per-partner overrides.
+ *
+ * <p>When the system property {@value #SELF_BENCHMARK_PROPERTY} is {@code true}, the default
+ * profile's cipher and signature providers are chosen at startup by
+ * {@link CryptoProviderSelector} from the providers listed in {@value #PROVIDERS_PROPERTY}
+ * (comma-separated, {@code default} meaning the JCA default; {@value #DEFAULT_PROVIDERS} if unset).
+ * Partner profiles are never re-tuned: whatever was registered for a partner, providers
+ * included, is what that partner gets.
+ */
+@Component
+public class CryptoProfiles {
+
+    public static final String SELF_BENCHMARK_PROPERTY = "pgp.crypto.self-benchmark";
+
+    public static final String PROVIDERS_PROPERTY = "pgp.crypto.providers";
+
+    static final String DEFAULT_PROVIDERS = "BC,SunJCE,default";
+
+    private static final Logger LOG = Logger.getLogger(CryptoProfiles.class.getName());
+
+    private final Map<String, CryptoProfile> partnerProfiles = new ConcurrentHashMap<>();
+
+    private volatile CryptoProfile defaultProfile;
+
+    public CryptoProfiles() {
+        this(CryptoProfile.DEFAULT);
+        if (Boolean.getBoolean(SELF_BENCHMARK_PROPERTY)) {
+            selectFastestProviders(parseProviders(System.getProperty(PROVIDERS_PROPERTY, DEFAULT_PROVIDERS)));
+        }
+    }
+
+    public CryptoProfiles(CryptoProfile defaultProfile) {
+        this.defaultProfile = defaultProfile;
+    }
+
+    public CryptoProfile getDefaultProfile() {
+        return defaultProfile;
+    }
+
+    public void setDefaultProfile(CryptoProfile defaultProfile) {
+        this.defaultProfile = defaultProfile;
+    }
+
+    public void setPartnerProfile(String partnerId, CryptoProfile profile) {
+        partnerProfiles.put(partnerId, profile);
+    }
+
+    public void removePartnerProfile(String partnerId) {
+        partnerProfiles.remove(partnerId);
+    }
+
+    /**
+     * The profile registered for {@code partnerId}, or the default profile.
+     */
+    public CryptoProfile forPartner(String partnerId) {
+        CryptoProfile profile = partnerId == null ? null : partnerProfiles.get(partnerId);
+        return profile != null ? profile : defaultProfile;
+    }
+
+    /**
+     * Re-tunes the default profile's providers by benchmarking {@code candidates} on this machine.
+     */
+    public CryptoProfile selectFastestProviders(List<String> candidates) {
+        long start = System.nanoTime();
+        CryptoProfile tuned = CryptoProviderSelector.selectFastest(defaultProfile, candidates);
+        defaultProfile = tuned;
+        LOG.info(String.format("Selected crypto providers in %d ms: %s", (System.nanoTime() - start) / 1_000_000, tuned));
+        return tuned;
+    }
+
+    static List<String> parseProviders(String providers) {
+        List<String> candidates = new ArrayList<>();
+        for (String provider : Arrays.asList(providers.split(","))) {
+            String trimmed = provider.trim();
+            if (!trimmed.isEmpty()) {
+                candidates.add("default".equalsIgnoreCase(trimmed) ? null : trimmed);
+            }
+        }
+        return candidates;
+    }
+}
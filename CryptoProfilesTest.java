@@ -0,0 +1,54 @@
+package com.example.demo.service;
+
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.security.Security;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CryptoProfilesTest {
+
+    @BeforeClass
+    public static void registerProvider() {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    @Test
+    public void testSelectFastestProvidersKeepsAlgorithmsAndPartnerProfiles() {
+        CryptoProfile partnerProfile = CryptoProfile.builder("partner").symmetricAlgorithm(SymmetricKeyAlgorithmTags.CAST5).build();
+        CryptoProfiles profiles = new CryptoProfiles(CryptoProfile.AES_256);
+        profiles.setPartnerProfile("partner", partnerProfile);
+
+        CryptoProfile tuned = profiles.selectFastestProviders(Arrays.asList("BC", "SunJCE", null, "NoSuchProvider"));
+
+        assertSame(tuned, profiles.getDefaultProfile());
+        assertSame(tuned, profiles.forPartner("someone-else"));
+        assertSame(partnerProfile, profiles.forPartner("partner"));
+        assertEquals(CryptoProfile.AES_256.getSymmetricAlgorithm(), tuned.getSymmetricAlgorithm());
+        assertEquals(CryptoProfile.AES_256.getHashAlgorithm(), tuned.getHashAlgorithm());
+        assertEquals(CryptoProfile.AES_256.getCompressionAlgorithm(), tuned.getCompressionAlgorithm());
+        assertNotEquals("NoSuchProvider", tuned.getCipherProvider());
+        assertNotEquals("NoSuchProvider", tuned.getSignatureProvider());
+        assertTrue(CryptoProfile.supportsCipher(tuned.getCipherProvider(), SymmetricKeyAlgorithmTags.AES_256));
+    }
+
+    @Test
+    public void testPrimitiveWithoutCandidateKeepsProvider() {
+        CryptoProfile cast5 = CryptoProfile.builder("cast5").symmetricAlgorithm(SymmetricKeyAlgorithmTags.CAST5).build();
+
+        // SunJCE implements neither CAST5 nor RSA signatures
+        CryptoProfile tuned = CryptoProviderSelector.selectFastest(cast5, Arrays.asList("SunJCE"));
+
+        assertEquals(CryptoProfile.FALLBACK_PROVIDER, tuned.getCipherProvider());
+        assertEquals(CryptoProfile.FALLBACK_PROVIDER, tuned.getSignatureProvider());
+    }
+
+    @Test
+    public void testParseProviders() {
+        assertEquals(Arrays.asList("BC", "SunJCE", null), CryptoProfiles.parseProviders(" BC, SunJCE ,default,"));
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.demo.service;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.PGPDataEncryptor;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.List;
+
+/**
+ * Startup micro-benchmark that picks, among candidate JCA providers, the fastest implementation of
+ * a profile's bulk primitives on the current CPU: the symmetric cipher that encrypts message
+ * bodies and the signature that hashes signed content. Only providers change; the algorithms a
+ * partner sees stay exactly as the profile says. Session key wrapping happens once per message
+ * and is left alone.
+ *
+ * <p>Each candidate processes {@link #ROUNDS} x {@link #ROUND_BYTES} after a warm-up of the same
+ * size, and its best round counts. Candidates that lack the algorithm are skipped.
+ */
+public final class CryptoProviderSelector {
+
+    static final int ROUND_BYTES = 1024 * 1024;
+
+    static final int ROUNDS = 3;
+
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    private CryptoProviderSelector() {
+    }
+
+    /**
+     * Returns {@code profile} with its cipher and signature providers replaced by the fastest of
+     * {@code candidates} ({@code null} standing for the JCA default). A primitive keeps its
+     * provider if no candidate implements it.
+     */
+    public static CryptoProfile selectFastest(CryptoProfile profile, List<String> candidates) {
+        CryptoProfile.Builder tuned = profile.toBuilder();
+
+        String cipherProvider = profile.getCipherProvider();
+        long bestCipher = Long.MAX_VALUE;
+        for (String candidate : candidates) {
+            long nanos = timeCipher(candidate, profile.getSymmetricAlgorithm());
+            if (nanos < bestCipher) {
+                bestCipher = nanos;
+                cipherProvider = candidate;
+            }
+        }
+
+        KeyPair signingKeyPair = generateSigningKeyPair();
+        String signatureProvider = profile.getSignatureProvider();
+        long bestSignature = Long.MAX_VALUE;
+        for (String candidate : candidates) {
+            long nanos = signingKeyPair == null ? Long.MAX_VALUE : timeSignature(candidate, profile.getHashAlgorithm(), signingKeyPair);
+            if (nanos < bestSignature) {
+                bestSignature = nanos;
+                signatureProvider = candidate;
+            }
+        }
+
+        return tuned.cipherProvider(cipherProvider).signatureProvider(signatureProvider).build();
+    }
+
+    /**
+     * Best time for one round of OpenPGP CFB encryption with {@code provider}, or
+     * {@link Long#MAX_VALUE} if it does not implement the cipher.
+     */
+    static long timeCipher(String provider, int symmetricAlgorithm) {
+        if (!CryptoProfile.supportsCipher(provider, symmetricAlgorithm)) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            JcePGPDataEncryptorBuilder builder = new JcePGPDataEncryptorBuilder(symmetricAlgorithm).setWithIntegrityPacket(true);
+            if (provider != null) {
+                builder.setProvider(provider);
+            }
+            PGPDataEncryptor encryptor = builder.build(PGPUtil.makeRandomKey(symmetricAlgorithm, new SecureRandom()));
+            byte[] block = new byte[BLOCK_SIZE];
+
+            long best = Long.MAX_VALUE;
+            for (int round = -1; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                try (OutputStream out = encryptor.getOutputStream(new DiscardingOutputStream())) {
+                    for (int written = 0; written < ROUND_BYTES; written += BLOCK_SIZE) {
+                        out.write(block);
+                    }
+                }
+                if (round >= 0) {
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+            }
+            return best;
+        } catch (PGPException | IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Best time for one round of RSA signing with {@code provider}, dominated by hashing the
+     * content, or {@link Long#MAX_VALUE} if the provider does not implement the signature.
+     */
+    static long timeSignature(String provider, int hashAlgorithm, KeyPair keyPair) {
+        try {
+            String algorithm = PGPUtil.getDigestName(hashAlgorithm) + "withRSA";
+            Signature signature = provider == null ? Signature.getInstance(algorithm) : Signature.getInstance(algorithm, provider);
+            byte[] block = new byte[BLOCK_SIZE];
+
+            long best = Long.MAX_VALUE;
+            for (int round = -1; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                signature.initSign(keyPair.getPrivate());
+                for (int written = 0; written < ROUND_BYTES; written += BLOCK_SIZE) {
+                    signature.update(block);
+                }
+                signature.sign();
+                if (round >= 0) {
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+            }
+            return best;
+        } catch (PGPException | GeneralSecurityException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * A throwaway key for the signature rounds. Its size only affects the single private-key
+     * operation per round, so the smallest size every provider accepts keeps startup short.
+     */
+    private static KeyPair generateSigningKeyPair() {
+        try {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+            kpg.initialize(1024);
+            return kpg.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    private static class DiscardingOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
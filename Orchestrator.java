@@ -1,12 +1,23 @@
+import com.example.sftp.pool.SftpExecutors;
+
 import java.util.concurrent.*;
 
 public class Orchestrator {
 
     private final ConcurrentHashMap<String, String> serviceStatus = new ConcurrentHashMap<>();
     private final PriorityBlockingQueue<Runnable> taskQueue = new PriorityBlockingQueue<>();
-    private final ExecutorService executorService = Executors.newFixedThreadPool(10);
+    private final ExecutorService executorService;
     private final CountDownLatch latch = new CountDownLatch(3); // example count
 
+    public Orchestrator() {
+        this(Executors.newFixedThreadPool(10));
+    }
+
+    // Tasks mostly wait on other services, so a virtual thread per task works as well as a pool
+    public Orchestrator(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
     public void startOrchestration() {
         // Example tasks
         Runnable task1 = () -> {
@@ -61,7 +72,9 @@ public class Orchestrator {
     }
 
     public static void main(String[] args) {
-        Orchestrator orchestrator = new Orchestrator();
+        // -Dorchestrator.threadMode=virtual on Java 21 and later
+        SftpExecutors.Mode mode = SftpExecutors.Mode.of(System.getProperty("orchestrator.threadMode", "platform"));
+        Orchestrator orchestrator = new Orchestrator(SftpExecutors.newExecutor(mode, "orchestrator", 10));
         orchestrator.startOrchestration();
     }
 }
@@ -0,0 +1,111 @@
+import com.example.demo.service.CryptoProfile;
+import org.bouncycastle.bcpg.BCPGOutputStream;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PGPCryptoExampleTest {
+
+    private static PGPKeyPair signer;
+
+    private static PGPKeyPair recipient;
+
+    private static PGPKeyPair stranger;
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        // PGPCryptoExample registers the Bouncy Castle provider when it is loaded
+        PGPCryptoExample.getProfile();
+        signer = generateKeyPair();
+        recipient = generateKeyPair();
+        stranger = generateKeyPair();
+    }
+
+    @Test
+    public void testSignAndEncryptRoundTrip() throws Exception {
+        byte[] plain = new byte[300 * 1024 + 17];
+        new Random(4).nextBytes(plain);
+
+        for (boolean armor : new boolean[]{false, true}) {
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            PGPCryptoExample.signAndEncryptMessage(new ByteArrayInputStream(plain), encrypted, signer.getPrivateKey(), signer.getPublicKey(),
+                    recipient.getPublicKey(), armor);
+
+            ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+            assertTrue("armor " + armor, PGPCryptoExample.decryptAndVerifyMessage(new ByteArrayInputStream(encrypted.toByteArray()),
+                    keyID -> keyID == recipient.getKeyID() ? recipient.getPrivateKey() : null, signer.getPublicKey(), decrypted));
+            assertArrayEquals("armor " + armor, plain, decrypted.toByteArray());
+        }
+    }
+
+    @Test
+    public void testTamperedSignatureIsRejected() throws Exception {
+        byte[] plain = "Settlement batch 42".getBytes("US-ASCII");
+        byte[] encrypted = signAndEncryptWithTamperedSignature(plain);
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        assertFalse(PGPCryptoExample.decryptAndVerifyMessage(new ByteArrayInputStream(encrypted), recipient.getPrivateKey(),
+                signer.getPublicKey(), decrypted));
+        assertArrayEquals(plain, decrypted.toByteArray());
+    }
+
+    @Test
+    public void testWrongSignerKeyIsRejected() throws Exception {
+        byte[] plain = "Settlement batch 43".getBytes("US-ASCII");
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        PGPCryptoExample.signAndEncryptMessage(new ByteArrayInputStream(plain), encrypted, stranger.getPrivateKey(), stranger.getPublicKey(),
+                recipient.getPublicKey(), false);
+
+        assertFalse(PGPCryptoExample.decryptAndVerifyMessage(new ByteArrayInputStream(encrypted.toByteArray()), recipient.getPrivateKey(),
+                signer.getPublicKey(), new ByteArrayOutputStream()));
+    }
+
+    /**
+     * Writes the same packets as {@link PGPCryptoExample#signAndEncryptMessage}, with one bit of
+     * the signature flipped after it was generated.
+     */
+    private static byte[] signAndEncryptWithTamperedSignature(byte[] plain) throws Exception {
+        CryptoProfile profile = PGPCryptoExample.getProfile();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(profile.dataEncryptorBuilder(true));
+        encGen.addMethod(profile.keyEncryptionMethod(recipient.getPublicKey()));
+        OutputStream encOut = encGen.open(out, new byte[1 << 16]);
+
+        PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
+        BCPGOutputStream bOut = new BCPGOutputStream(comData.open(encOut));
+
+        PGPSignatureGenerator sGen = new PGPSignatureGenerator(profile.contentSignerBuilder(signer.getPublicKey().getAlgorithm()));
+        sGen.init(PGPSignature.BINARY_DOCUMENT, signer.getPrivateKey());
+        sGen.generateOnePassVersion(false).encode(bOut);
+
+        PGPLiteralDataGenerator lGen = new PGPLiteralDataGenerator();
+        OutputStream lOut = lGen.open(bOut, PGPLiteralData.BINARY, PGPLiteralData.CONSOLE, plain.length, new Date());
+        lOut.write(plain);
+        sGen.update(plain);
+        lGen.close();
+
+        byte[] signature = sGen.generate().getEncoded();
+        signature[signature.length - 1] ^= 1;
+        bOut.write(signature);
+        comData.close();
+        encGen.close();
+        return out.toByteArray();
+    }
+
+    private static PGPKeyPair generateKeyPair() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", "BC");
+        kpg.initialize(2048);
+        return new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+    }
+}
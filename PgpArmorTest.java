@@ -0,0 +1,129 @@
+package com.example.demo.service;
+
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PgpArmorTest {
+
+    private static final int[] SIZES = {1, 2, 3, 47, 48, 49, PgpArmor.BLOCK_SIZE - 1, PgpArmor.BLOCK_SIZE, PgpArmor.BLOCK_SIZE + 1,
+            3 * PgpArmor.BLOCK_SIZE + 5, 1024 * 1024 + 7};
+
+    @Test
+    public void testCrc24MatchesBitwiseDefinition() {
+        byte[] data = payload(10_000, 1);
+        int crc = 0xB704CE;
+        for (byte b : data) {
+            crc ^= (b & 0xff) << 16;
+            for (int i = 0; i < 8; i++) {
+                crc <<= 1;
+                if ((crc & 0x1000000) != 0) {
+                    crc ^= 0x1864CFB;
+                }
+            }
+        }
+        assertEquals(crc & 0xFFFFFF, PgpArmor.crc(data, 0, data.length));
+
+        int incremental = PgpArmor.updateCrc(PgpArmor.crc(data, 0, 4321), data, 4321, data.length - 4321);
+        assertEquals(crc & 0xFFFFFF, incremental);
+    }
+
+    @Test
+    public void testBouncyCastleReadsOurArmor() throws Exception {
+        assertEquals(0, encode(new byte[0]).length);
+        for (int size : SIZES) {
+            byte[] data = payload(size, size);
+            byte[] armored = encode(data);
+            assertArrayEquals("size " + size, data, readAll(new ArmoredInputStream(new ByteArrayInputStream(armored))));
+        }
+    }
+
+    @Test
+    public void testWeReadBouncyCastleArmor() throws Exception {
+        for (int size : SIZES) {
+            byte[] data = payload(size, size);
+            ByteArrayOutputStream armored = new ByteArrayOutputStream();
+            try (ArmoredOutputStream out = new ArmoredOutputStream(armored)) {
+                out.write(data);
+            }
+            InputStream in = PgpArmor.getDecoderStream(new ByteArrayInputStream(armored.toByteArray()));
+            assertTrue(in instanceof PgpArmor.DecoderStream);
+            assertArrayEquals("size " + size, data, readAll(in));
+        }
+    }
+
+    @Test
+    public void testReadsCrLfArmorWithHeadersAndNoChecksum() throws Exception {
+        byte[] data = payload(1000, 3);
+        String body = java.util.Base64.getMimeEncoder(64, "\r\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(data);
+        String armored = "\r\n-----BEGIN PGP MESSAGE-----\r\nVersion: Other 1.0\r\nComment: test\r\n\r\n" + body + "\r\n-----END PGP MESSAGE-----\r\n";
+        assertArrayEquals(data, readAll(PgpArmor.getDecoderStream(new ByteArrayInputStream(armored.getBytes(StandardCharsets.US_ASCII)))));
+    }
+
+    @Test
+    public void testDetectsChecksumMismatch() throws Exception {
+        byte[] armored = encode(payload(5000, 4));
+        String text = new String(armored, StandardCharsets.US_ASCII);
+        int checksum = text.indexOf("\n=") + 2;
+        char replacement = text.charAt(checksum) == 'A' ? 'B' : 'A';
+        byte[] corrupted = (text.substring(0, checksum) + replacement + text.substring(checksum + 1)).getBytes(StandardCharsets.US_ASCII);
+        try {
+            readAll(PgpArmor.getDecoderStream(new ByteArrayInputStream(corrupted)));
+            fail("checksum mismatch not detected");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("checksum"));
+        }
+    }
+
+    @Test
+    public void testBinaryPassesThrough() throws Exception {
+        byte[] binary = payload(100, 5);
+        binary[0] = (byte) 0x85;
+        InputStream in = PgpArmor.getDecoderStream(new ByteArrayInputStream(binary));
+        assertFalse(in instanceof PgpArmor.DecoderStream);
+        assertArrayEquals(binary, readAll(in));
+    }
+
+    @Test
+    public void testArmorTypeFollowsFirstPacket() throws Exception {
+        assertTrue(new String(encode(new byte[]{(byte) 0x85, 1}), StandardCharsets.US_ASCII).startsWith("-----BEGIN PGP MESSAGE-----"));
+        assertTrue(new String(encode(new byte[]{(byte) 0x89, 1}), StandardCharsets.US_ASCII).startsWith("-----BEGIN PGP SIGNATURE-----"));
+        assertTrue(new String(encode(new byte[]{(byte) 0x99, 1}), StandardCharsets.US_ASCII).startsWith("-----BEGIN PGP PUBLIC KEY BLOCK-----"));
+    }
+
+    private static byte[] encode(byte[] data) throws IOException {
+        ByteArrayOutputStream armored = new ByteArrayOutputStream();
+        try (OutputStream out = PgpArmor.getEncoderStream(armored)) {
+            for (int off = 0; off < data.length; off += 10_000) {
+                out.write(data, off, Math.min(10_000, data.length - off));
+            }
+        }
+        return armored.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7000];
+        int len;
+        while ((len = in.read(buffer)) > 0) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] payload(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
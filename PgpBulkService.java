@@ -0,0 +1,288 @@
+package com.example.demo.service;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Encrypts or decrypts many files at once on a worker pool sized to the available cores.
+ *
+ * <p>Key material is loaded once per call and shared by every worker, and each worker reuses the
+ * {@link PgpService} buffers of its thread. A file that fails is reported in its own
+ * {@link FileResult} and its partial output is removed; the other files are unaffected.
+ */
+@Service
+public class PgpBulkService {
+
+    private static final String ENCRYPTED_SUFFIX = ".pgp";
+
+    private static final String DECRYPTED_SUFFIX = ".decrypted";
+
+    private final PgpService pgpService;
+
+    private final ExecutorService workers;
+
+    public PgpBulkService(PgpService pgpService) {
+        this(pgpService, Runtime.getRuntime().availableProcessors());
+    }
+
+    public PgpBulkService(PgpService pgpService, int parallelism) {
+        this.pgpService = pgpService;
+        this.workers = Executors.newFixedThreadPool(parallelism, new WorkerThreadFactory());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    public BulkResult encryptDirectory(Path sourceDir, Path targetDir, String publicKeyFileName, boolean armor, boolean withIntegrityCheck) throws IOException, PGPException, InterruptedException {
+        return encryptFiles(listFiles(sourceDir), targetDir, publicKeyFileName, armor, withIntegrityCheck);
+    }
+
+    public BulkResult encryptFiles(List<Path> files, Path targetDir, String publicKeyFileName, boolean armor, boolean withIntegrityCheck) throws IOException, PGPException, InterruptedException {
+        PGPPublicKey encKey = PgpService.readPublicKey(publicKeyFileName);
+        Files.createDirectories(targetDir);
+
+        return process(files, source -> targetDir.resolve(source.getFileName() + ENCRYPTED_SUFFIX), (source, target) -> {
+            try (InputStream in = Files.newInputStream(source);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(target))) {
+                Date modificationTime = new Date(Files.getLastModifiedTime(source).toMillis());
+                return pgpService.encryptStream(in, out, encKey, source.getFileName().toString(), modificationTime, armor, withIntegrityCheck);
+            }
+        });
+    }
+
+    public BulkResult decryptDirectory(Path sourceDir, Path targetDir, String keyFileName, char[] password) throws IOException, PGPException, InterruptedException {
+        return decryptFiles(listFiles(sourceDir), targetDir, keyFileName, password);
+    }
+
+    public BulkResult decryptFiles(List<Path> files, Path targetDir, String keyFileName, char[] password) throws IOException, PGPException, InterruptedException {
+        PgpService.PrivateKeyLookup keys;
+        try (InputStream keyIn = new BufferedInputStream(Files.newInputStream(Paths.get(keyFileName)))) {
+            keys = PgpService.readPrivateKeys(keyIn, password);
+        }
+        Files.createDirectories(targetDir);
+
+        return process(files, source -> targetDir.resolve(decryptedName(source.getFileName().toString())), (source, target) -> {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(source));
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(target))) {
+                pgpService.decryptStream(in, keys, out);
+            }
+            return null;
+        });
+    }
+
+    private BulkResult process(List<Path> files, Function<Path, Path> targetResolver, FileOperation operation) throws InterruptedException {
+        long start = System.nanoTime();
+
+        List<Future<FileResult>> futures = new ArrayList<>(files.size());
+        for (Path source : files) {
+            futures.add(workers.submit(() -> processFile(source, targetResolver.apply(source), operation)));
+        }
+
+        List<FileResult> results = new ArrayList<>(files.size());
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(FileResult.failed(files.get(i), e.getCause(), 0));
+                }
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            throw e;
+        }
+        return new BulkResult(results, System.nanoTime() - start);
+    }
+
+    private static FileResult processFile(Path source, Path target, FileOperation operation) {
+        long start = System.nanoTime();
+        try {
+            AdaptiveCompression.Result compression = operation.apply(source, target);
+            return FileResult.succeeded(source, target, Files.size(source), Files.size(target), compression, System.nanoTime() - start);
+        } catch (Exception e) {
+            try {
+                Files.deleteIfExists(target);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            return FileResult.failed(source, e, System.nanoTime() - start);
+        }
+    }
+
+    private static List<Path> listFiles(Path dir) throws IOException {
+        try (Stream<Path> entries = Files.list(dir)) {
+            return entries.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static String decryptedName(String fileName) {
+        String lower = fileName.toLowerCase();
+        if (lower.endsWith(".pgp") || lower.endsWith(".gpg") || lower.endsWith(".asc")) {
+            return fileName.substring(0, fileName.length() - 4);
+        }
+        return fileName + DECRYPTED_SUFFIX;
+    }
+
+    /**
+     * Processes one file, returning the compression applied when encrypting or {@code null}.
+     */
+    @FunctionalInterface
+    private interface FileOperation {
+        AdaptiveCompression.Result apply(Path source, Path target) throws Exception;
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "pgp-bulk-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    public static class FileResult {
+
+        private final Path source;
+        private final Path target;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final AdaptiveCompression.Result compression;
+        private final long durationNanos;
+        private final Throwable error;
+
+        private FileResult(Path source, Path target, long bytesIn, long bytesOut, AdaptiveCompression.Result compression, long durationNanos, Throwable error) {
+            this.source = source;
+            this.target = target;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.compression = compression;
+            this.durationNanos = durationNanos;
+            this.error = error;
+        }
+
+        static FileResult succeeded(Path source, Path target, long bytesIn, long bytesOut, AdaptiveCompression.Result compression, long durationNanos) {
+            return new FileResult(source, target, bytesIn, bytesOut, compression, durationNanos, null);
+        }
+
+        static FileResult failed(Path source, Throwable error, long durationNanos) {
+            return new FileResult(source, null, 0, 0, null, durationNanos, error);
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public Path getSource() {
+            return source;
+        }
+
+        public Path getTarget() {
+            return target;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        /**
+         * The compression algorithm and ratio chosen for an encrypted file; {@code null} for
+         * decrypted or failed files.
+         */
+        public AdaptiveCompression.Result getCompression() {
+            return compression;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+    }
+
+    public static class BulkResult {
+
+        private final List<FileResult> files;
+        private final long elapsedNanos;
+
+        BulkResult(List<FileResult> files, long elapsedNanos) {
+            this.files = Collections.unmodifiableList(files);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public List<FileResult> getFiles() {
+            return files;
+        }
+
+        public List<FileResult> getFailures() {
+            return files.stream().filter(result -> !result.isSuccess()).collect(Collectors.toList());
+        }
+
+        public int getSucceeded() {
+            return (int) files.stream().filter(FileResult::isSuccess).count();
+        }
+
+        public int getFailed() {
+            return files.size() - getSucceeded();
+        }
+
+        public long getBytesIn() {
+            return files.stream().mapToLong(FileResult::getBytesIn).sum();
+        }
+
+        public long getBytesOut() {
+            return files.stream().mapToLong(FileResult::getBytesOut).sum();
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Input bytes processed per second of wall-clock time across all workers.
+         */
+        public double getThroughputBytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : getBytesIn() * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files (%d failed), %d bytes in %.1f ms, %.1f MB/s",
+                    files.size(), getFailed(), getBytesIn(), elapsedNanos / 1_000_000.0, getThroughputBytesPerSecond() / (1024 * 1024));
+        }
+    }
+}
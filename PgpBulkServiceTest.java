@@ -0,0 +1,83 @@
+package com.example.demo.service;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Security;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PgpBulkServiceTest {
+
+    private static final char[] PASSPHRASE = "test-passphrase".toCharArray();
+
+    private static final int FILE_COUNT = 20;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static PGPSecretKey secretKey;
+
+    private final PgpBulkService bulkService = new PgpBulkService(new PgpService(), 4);
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        secretKey = PgpServiceTest.generateSecretKey(PASSPHRASE);
+    }
+
+    @After
+    public void shutdown() {
+        bulkService.shutdown();
+    }
+
+    @Test
+    public void testEncryptAndDecryptDirectory() throws Exception {
+        File publicKeyFile = tmp.newFile("pub.asc");
+        try (OutputStream out = new FileOutputStream(publicKeyFile)) {
+            secretKey.getPublicKey().encode(out);
+        }
+        File secretKeyFile = tmp.newFile("sec.asc");
+        try (OutputStream out = new FileOutputStream(secretKeyFile)) {
+            secretKey.encode(out);
+        }
+
+        Path plainDir = tmp.newFolder("plain").toPath();
+        Random random = new Random(42);
+        for (int i = 0; i < FILE_COUNT; i++) {
+            byte[] content = new byte[random.nextInt(256 * 1024)];
+            random.nextBytes(content);
+            Files.write(plainDir.resolve("file-" + i + ".bin"), content);
+        }
+
+        Path encryptedDir = tmp.getRoot().toPath().resolve("encrypted");
+        PgpBulkService.BulkResult encrypted = bulkService.encryptDirectory(plainDir, encryptedDir, publicKeyFile.getPath(), false, true);
+        assertEquals(FILE_COUNT, encrypted.getSucceeded());
+        assertEquals(0, encrypted.getFailed());
+
+        Files.write(encryptedDir.resolve("corrupt.bin.pgp"), new byte[]{1, 2, 3});
+
+        Path decryptedDir = tmp.getRoot().toPath().resolve("decrypted");
+        PgpBulkService.BulkResult decrypted = bulkService.decryptDirectory(encryptedDir, decryptedDir, secretKeyFile.getPath(), PASSPHRASE);
+        assertEquals(FILE_COUNT, decrypted.getSucceeded());
+        assertEquals(1, decrypted.getFailed());
+        assertEquals("corrupt.bin.pgp", decrypted.getFailures().get(0).getSource().getFileName().toString());
+        assertFalse(Files.exists(decryptedDir.resolve("corrupt.bin")));
+
+        for (int i = 0; i < FILE_COUNT; i++) {
+            String name = "file-" + i + ".bin";
+            assertArrayEquals(Files.readAllBytes(plainDir.resolve(name)), Files.readAllBytes(decryptedDir.resolve(name)));
+        }
+    }
+}
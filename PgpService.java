@@ -1,17 +1,24 @@
 package com.example.demo.service;
 
-import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openpgp.*;
-import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
-import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
-import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchProviderException;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 public class PgpService {
@@ -20,44 +27,247 @@ public class PgpService {
         Security.addProvider(new BouncyCastleProvider());
     }
 
-    public void encryptFile(String inputFileName, String outputFileName, String publicKeyFileName, boolean armor, boolean withIntegrityCheck) throws IOException, PGPException {
-        OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFileName));
+    /**
+     * Size of the buffers handed to the literal, compressed and encrypted data generators, and of
+     * the copy buffer used to drain the input. Packets are emitted with partial body lengths of
+     * this size, so it also bounds how much of the payload is held in memory at any one time.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Per-thread buffers for the three generators and the copy loop. A generator only uses its
+     * buffer until it is closed, so a worker thread reuses one set for every file it processes.
+     */
+    private static final ThreadLocal<byte[][]> BUFFERS = ThreadLocal.withInitial(() -> new byte[4][BUFFER_SIZE]);
+
+    /**
+     * Resolves the private key for a public-key encrypted session key packet, or returns
+     * {@code null} if the key is not held.
+     */
+    public interface PrivateKeyLookup {
+        PGPPrivateKey findPrivateKey(long keyID) throws PGPException;
+    }
+
+    private final CryptoProfiles profiles;
+
+    public PgpService() {
+        this(new CryptoProfiles(CryptoProfile.DEFAULT));
+    }
+
+    @Autowired
+    public PgpService(CryptoProfiles profiles) {
+        this.profiles = profiles;
+    }
+
+    public CryptoProfiles getProfiles() {
+        return profiles;
+    }
+
+    public AdaptiveCompression.Result encryptFile(String inputFileName, String outputFileName, String publicKeyFileName, boolean armor, boolean withIntegrityCheck) throws IOException, PGPException {
+        return encryptFile(inputFileName, outputFileName, publicKeyFileName, profiles.getDefaultProfile(), armor, withIntegrityCheck);
+    }
+
+    /**
+     * Encrypts for a partner with the profile registered for it in {@link CryptoProfiles}, or the
+     * default profile if there is none.
+     */
+    public AdaptiveCompression.Result encryptFile(String inputFileName, String outputFileName, String publicKeyFileName, String partnerId, boolean armor, boolean withIntegrityCheck) throws IOException, PGPException {
+        return encryptFile(inputFileName, outputFileName, publicKeyFileName, profiles.forPartner(partnerId), armor, withIntegrityCheck);
+    }
+
+    public AdaptiveCompression.Result encryptFile(String inputFileName, String outputFileName, String publicKeyFileName, CryptoProfile profile, boolean armor, boolean withIntegrityCheck) throws IOException, PGPException {
         PGPPublicKey encKey = readPublicKey(publicKeyFileName);
+        File inputFile = new File(inputFileName);
 
-        if (armor) {
-            out = new ArmoredOutputStream(out);
+        try (InputStream in = new FileInputStream(inputFile);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFileName), BUFFER_SIZE)) {
+            return encryptStream(in, out, encKey, inputFile.getName(), new Date(inputFile.lastModified()), profile, armor, withIntegrityCheck);
         }
+    }
 
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        PGPUtil.writeFileToLiteralData(comData.open(bOut), PGPLiteralData.BINARY, new File(inputFileName));
+    /**
+     * Encrypts the file once for every key in {@code publicKeyFileNames}. Any one of the matching
+     * private keys decrypts the result.
+     */
+    public AdaptiveCompression.Result encryptFile(String inputFileName, String outputFileName, List<String> publicKeyFileNames, boolean armor, boolean withIntegrityCheck) throws IOException, PGPException {
+        List<PGPPublicKey> recipients = readPublicKeys(publicKeyFileNames);
+        File inputFile = new File(inputFileName);
 
+        try (InputStream in = new FileInputStream(inputFile);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFileName), BUFFER_SIZE)) {
+            return encryptStream(in, out, recipients, inputFile.getName(), new Date(inputFile.lastModified()), profiles.getDefaultProfile(), armor, withIntegrityCheck);
+        }
+    }
+
+    /**
+     * Writes one encrypted copy of the file per recipient: the copy in {@code outputFileNames[i]}
+     * can only be read with the private key for {@code publicKeyFileNames[i]}.
+     *
+     * @see #encryptStreamPerRecipient(InputStream, List, List, String, Date, CryptoProfile, boolean, boolean)
+     */
+    public AdaptiveCompression.Result encryptFilePerRecipient(String inputFileName, List<String> publicKeyFileNames, List<String> outputFileNames, boolean armor, boolean withIntegrityCheck) throws IOException, PGPException {
+        if (publicKeyFileNames.size() != outputFileNames.size()) {
+            throw new IllegalArgumentException("Expected one output file per public key, got " + publicKeyFileNames.size() + " keys and " + outputFileNames.size() + " output files.");
+        }
+        List<PGPPublicKey> recipients = readPublicKeys(publicKeyFileNames);
+        File inputFile = new File(inputFileName);
+
+        List<OutputStream> outs = new ArrayList<>(outputFileNames.size());
+        try (InputStream in = new FileInputStream(inputFile)) {
+            for (String outputFileName : outputFileNames) {
+                outs.add(new BufferedOutputStream(new FileOutputStream(outputFileName), BUFFER_SIZE));
+            }
+            return encryptStreamPerRecipient(in, recipients, outs, inputFile.getName(), new Date(inputFile.lastModified()), profiles.getDefaultProfile(), armor, withIntegrityCheck);
+        } finally {
+            closeAll(outs);
+        }
+    }
+
+    /**
+     * Encrypts {@code in} to {@code out} as a single pass through the literal, compressed and
+     * encrypted data generators. Nothing is buffered beyond a fixed set of {@link #BUFFER_SIZE}
+     * buffers, so heap use is independent of the payload size. Neither stream is closed.
+     *
+     * <p>Algorithms and providers come from the default {@link CryptoProfile}, whose compression
+     * is chosen per payload by {@link AdaptiveCompression}, so data that is already compressed is
+     * not deflated a second time.
+     */
+    public AdaptiveCompression.Result encryptStream(InputStream in, OutputStream out, PGPPublicKey encKey, String fileName, Date modificationTime, boolean armor, boolean withIntegrityCheck) throws IOException, PGPException {
+        return encryptStream(in, out, encKey, fileName, modificationTime, profiles.getDefaultProfile(), armor, withIntegrityCheck);
+    }
+
+    /**
+     * As {@link #encryptStream(InputStream, OutputStream, PGPPublicKey, String, Date, boolean, boolean)}
+     * with an explicit symmetric algorithm ({@link org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags})
+     * and compression algorithm ({@link org.bouncycastle.bcpg.CompressionAlgorithmTags}, or
+     * {@link AdaptiveCompression#ADAPTIVE} to sample the head of {@code in} and choose one).
+     */
+    public AdaptiveCompression.Result encryptStream(InputStream in, OutputStream out, PGPPublicKey encKey, String fileName, Date modificationTime, int symmetricAlgorithm, int compressionAlgorithm, boolean armor, boolean withIntegrityCheck) throws IOException, PGPException {
+        CryptoProfile profile = profiles.getDefaultProfile().toBuilder()
+                .symmetricAlgorithm(symmetricAlgorithm)
+                .compressionAlgorithm(compressionAlgorithm)
+                .build();
+        return encryptStream(in, out, encKey, fileName, modificationTime, profile, armor, withIntegrityCheck);
+    }
+
+    /**
+     * As {@link #encryptStream(InputStream, OutputStream, PGPPublicKey, String, Date, boolean, boolean)}
+     * with the cipher, compression and providers of {@code profile}.
+     */
+    public AdaptiveCompression.Result encryptStream(InputStream in, OutputStream out, PGPPublicKey encKey, String fileName, Date modificationTime, CryptoProfile profile, boolean armor, boolean withIntegrityCheck) throws IOException, PGPException {
+        return encryptStream(in, out, Collections.singletonList(encKey), fileName, modificationTime, profile, armor, withIntegrityCheck);
+    }
+
+    /**
+     * Encrypts {@code in} to {@code out} for every key in {@code recipients}. The payload is
+     * compressed and encrypted once under a single session key, and only that session key is
+     * wrapped per recipient, so adding a recipient costs one public-key operation and a few
+     * hundred bytes rather than another pass over the payload. Any one of the matching private
+     * keys decrypts the result.
+     */
+    public AdaptiveCompression.Result encryptStream(InputStream in, OutputStream out, List<PGPPublicKey> recipients, String fileName, Date modificationTime, CryptoProfile profile, boolean armor, boolean withIntegrityCheck) throws IOException, PGPException {
+        if (recipients.isEmpty()) {
+            throw new IllegalArgumentException("At least one recipient is required.");
+        }
+        int compressionAlgorithm = profile.getCompressionAlgorithm();
+        byte[] sample = null;
+        int sampleLength = 0;
+        if (compressionAlgorithm == AdaptiveCompression.ADAPTIVE) {
+            sample = AdaptiveCompression.sampleBuffer();
+            sampleLength = AdaptiveCompression.readSample(in, sample);
+            compressionAlgorithm = AdaptiveCompression.choose(sample, sampleLength, recipients);
+        }
+
+        OutputStream target = armor ? PgpArmor.getEncoderStream(out) : out;
+
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(profile.dataEncryptorBuilder(withIntegrityCheck));
+        for (PGPPublicKey encKey : recipients) {
+            encGen.addMethod(profile.keyEncryptionMethod(encKey));
+        }
+
+        PGPCompressedDataGenerator comData = new PGPCompressedDataGenerator(compressionAlgorithm);
+        PGPLiteralDataGenerator litData = new PGPLiteralDataGenerator();
+
+        byte[][] buffers = BUFFERS.get();
+        OutputStream encOut = encGen.open(target, buffers[0]);
+        AdaptiveCompression.CountingOutputStream comCounter = new AdaptiveCompression.CountingOutputStream(encOut);
+        OutputStream comOut = comData.open(comCounter, buffers[1]);
+        OutputStream litOut = litData.open(comOut, PGPLiteralData.BINARY, fileName, modificationTime, buffers[2]);
+
+        if (sampleLength > 0) {
+            litOut.write(sample, 0, sampleLength);
+        }
+        long plainBytes = sampleLength + copy(in, litOut, buffers[3]);
+
+        litData.close();
         comData.close();
-        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(
-                new JcePGPDataEncryptorBuilder(PGPEncryptedData.CAST5)
-                        .setWithIntegrityPacket(withIntegrityCheck)
-                        .setSecureRandom(new SecureRandom())
-                        .setProvider("BC"));
+        encGen.close();
+        if (armor) {
+            target.close();
+        }
+        return new AdaptiveCompression.Result(compressionAlgorithm, plainBytes, comCounter.getCount());
+    }
+
+    /**
+     * Encrypts {@code in} once and writes a separate copy to {@code outs[i]} that only
+     * {@code recipients[i]} can decrypt, for partners that must not see who else received a file.
+     * As with {@link #encryptStream(InputStream, OutputStream, List, String, Date, CryptoProfile, boolean, boolean)},
+     * the payload is compressed and encrypted a single time; the copies differ only in the
+     * session key packet in front of the shared encrypted data. None of the streams is closed.
+     */
+    public AdaptiveCompression.Result encryptStreamPerRecipient(InputStream in, List<PGPPublicKey> recipients, List<? extends OutputStream> outs, String fileName, Date modificationTime, CryptoProfile profile, boolean armor, boolean withIntegrityCheck) throws IOException, PGPException {
+        if (recipients.size() != outs.size()) {
+            throw new IllegalArgumentException("Expected one output per recipient, got " + recipients.size() + " recipients and " + outs.size() + " outputs.");
+        }
+        List<OutputStream> targets = new ArrayList<>(outs.size());
+        for (OutputStream out : outs) {
+            targets.add(armor ? PgpArmor.getEncoderStream(out) : out);
+        }
 
-        encGen.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(encKey).setProvider("BC"));
-        byte[] bytes = bOut.toByteArray();
-        OutputStream cOut = encGen.open(out, bytes.length);
-        cOut.write(bytes);
-        cOut.close();
-        out.close();
+        SessionKeyFanOutStream fanOut = new SessionKeyFanOutStream(targets);
+        AdaptiveCompression.Result result = encryptStream(in, fanOut, recipients, fileName, modificationTime, profile, false, withIntegrityCheck);
+        fanOut.close();
+        if (armor) {
+            for (OutputStream target : targets) {
+                target.close();
+            }
+        }
+        return result;
     }
 
     public void decryptFile(String inputFileName, String outputFileName, String keyFileName, char[] password) throws IOException, PGPException, NoSuchProviderException {
-        InputStream in = new BufferedInputStream(new FileInputStream(inputFileName));
-        InputStream keyIn = new BufferedInputStream(new FileInputStream(keyFileName));
-        decryptFile(in, keyIn, password, new BufferedOutputStream(new FileOutputStream(outputFileName)));
-        keyIn.close();
-        in.close();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(inputFileName));
+             InputStream keyIn = new BufferedInputStream(new FileInputStream(keyFileName));
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFileName), BUFFER_SIZE)) {
+            decryptStream(in, keyIn, password, out);
+        }
+    }
+
+    /**
+     * Decrypts {@code in} straight into {@code channel}, e.g. a {@link java.nio.channels.FileChannel}
+     * opened on the destination file. The channel is not closed.
+     */
+    public void decryptStream(InputStream in, InputStream keyIn, char[] password, WritableByteChannel channel) throws IOException, PGPException {
+        decryptStream(in, keyIn, password, Channels.newOutputStream(channel));
+    }
+
+    public void decryptStream(InputStream in, InputStream keyIn, char[] password, OutputStream out) throws IOException, PGPException {
+        decryptStream(in, readPrivateKeys(keyIn, password), out);
     }
 
-    private static void decryptFile(InputStream in, InputStream keyIn, char[] password, OutputStream out) throws IOException, PGPException {
-        in = PGPUtil.getDecoderStream(in);
-        PGPObjectFactory pgpF = new PGPObjectFactory(in, new JcaPGPContentVerifierBuilderProvider());
+    public void decryptStream(InputStream in, PrivateKeyLookup keys, OutputStream out) throws IOException, PGPException {
+        decryptStream(in, keys, profiles.getDefaultProfile(), out);
+    }
+
+    /**
+     * Decrypts {@code in} into {@code out}, copying the literal data in {@link #BUFFER_SIZE} blocks.
+     * The private key is chosen by the key ID of each encrypted session key in turn. The message
+     * names its own algorithms; {@code profile} only supplies the providers. Neither stream is
+     * closed.
+     */
+    public void decryptStream(InputStream in, PrivateKeyLookup keys, CryptoProfile profile, OutputStream out) throws IOException, PGPException {
+        in = PgpArmor.getDecoderStream(in);
+        PGPObjectFactory pgpF = new PGPObjectFactory(in, new JcaKeyFingerprintCalculator());
         PGPEncryptedDataList enc = null;
         Object o = pgpF.nextObject();
         if (o instanceof PGPEncryptedDataList) {
@@ -71,30 +281,113 @@ public class PgpService {
         PGPPublicKeyEncryptedData pbe = null;
         while (sKey == null && it.hasNext()) {
             pbe = (PGPPublicKeyEncryptedData) it.next();
-            sKey = findPrivateKey(keyIn, pbe.getKeyID(), password);
+            sKey = keys.findPrivateKey(pbe.getKeyID());
         }
 
         if (sKey == null) {
             throw new IllegalArgumentException("Secret key for message not found.");
         }
 
-        InputStream clear = pbe.getDataStream(new JcePublicKeyDataDecryptorFactoryBuilder().setProvider("BC").build(sKey));
+        InputStream clear = pbe.getDataStream(profile.publicKeyDecryptorFactory(sKey));
 
-        PGPObjectFactory plainFact = new PGPObjectFactory(clear, new JcaPGPContentVerifierBuilderProvider());
+        PGPObjectFactory plainFact = new PGPObjectFactory(clear, new JcaKeyFingerprintCalculator());
 
         Object message = plainFact.nextObject();
         if (message instanceof PGPCompressedData) {
             PGPCompressedData cData = (PGPCompressedData) message;
-            PGPObjectFactory pgpFact = new PGPObjectFactory(cData.getDataStream(), new JcaPGPContentVerifierBuilderProvider());
+            PGPObjectFactory pgpFact = new PGPObjectFactory(cData.getDataStream(), new JcaKeyFingerprintCalculator());
 
             message = pgpFact.nextObject();
         }
 
         if (message instanceof PGPLiteralData) {
             PGPLiteralData ld = (PGPLiteralData) message;
-            InputStream unc = ld.getInputStream();
-            int ch;
-            while ((ch = unc.read()) >= 0) {
-                out.write(ch);
+            copy(ld.getInputStream(), out, BUFFERS.get()[3]);
+        } else if (message instanceof PGPOnePassSignatureList) {
+            throw new PGPException("Encrypted message contains a signed message - not literal data.");
+        } else {
+            throw new PGPException("Message is not a simple encrypted file - type unknown.");
+        }
+
+        if (pbe.isIntegrityProtected() && !pbe.verify()) {
+            throw new PGPException("Message failed integrity check.");
+        }
+        out.flush();
+    }
+
+    private static long copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        long total = 0;
+        int len;
+        while ((len = in.read(buffer)) > 0) {
+            out.write(buffer, 0, len);
+            total += len;
+        }
+        return total;
+    }
+
+    private static void closeAll(List<? extends Closeable> closeables) throws IOException {
+        IOException failure = null;
+        for (Closeable closeable : closeables) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    static List<PGPPublicKey> readPublicKeys(List<String> fileNames) throws IOException, PGPException {
+        List<PGPPublicKey> keys = new ArrayList<>(fileNames.size());
+        for (String fileName : fileNames) {
+            keys.add(readPublicKey(fileName));
+        }
+        return keys;
+    }
+
+    static PGPPublicKey readPublicKey(String fileName) throws IOException, PGPException {
+        try (InputStream keyIn = new BufferedInputStream(new FileInputStream(fileName))) {
+            PGPPublicKeyRingCollection pgpPub = new PGPPublicKeyRingCollection(PGPUtil.getDecoderStream(keyIn), new JcaKeyFingerprintCalculator());
+
+            Iterator<PGPPublicKeyRing> keyRingIter = pgpPub.getKeyRings();
+            while (keyRingIter.hasNext()) {
+                Iterator<PGPPublicKey> keyIter = keyRingIter.next().getPublicKeys();
+                while (keyIter.hasNext()) {
+                    PGPPublicKey key = keyIter.next();
+                    if (key.isEncryptionKey()) {
+                        return key;
+                    }
+                }
             }
-        } else
+        }
+        throw new IllegalArgumentException("Can't find encryption key in key ring.");
+    }
+
+    /**
+     * Parses the secret key ring collection in {@code keyIn} once and returns a lookup that
+     * extracts each private key on first use and then keeps it, so the S2K passphrase derivation
+     * runs once per key however many messages are decrypted with it. The lookup is thread-safe.
+     */
+    public static PrivateKeyLookup readPrivateKeys(InputStream keyIn, char[] password) throws IOException, PGPException {
+        PGPSecretKeyRingCollection pgpSec = new PGPSecretKeyRingCollection(PGPUtil.getDecoderStream(keyIn), new JcaKeyFingerprintCalculator());
+        Map<Long, PGPPrivateKey> privateKeys = new ConcurrentHashMap<>();
+        return keyID -> {
+            PGPPrivateKey privateKey = privateKeys.get(keyID);
+            if (privateKey == null) {
+                PGPSecretKey pgpSecKey = pgpSec.getSecretKey(keyID);
+                if (pgpSecKey == null) {
+                    return null;
+                }
+                privateKey = pgpSecKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider("BC").build(password));
+                privateKeys.put(keyID, privateKey);
+            }
+            return privateKey;
+        };
+    }
+}
@@ -0,0 +1,418 @@
+package com.example.demo.service;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PgpServiceTest {
+
+    private static final char[] PASSPHRASE = "test-passphrase".toCharArray();
+
+    private static final long LARGE_FILE_SIZE = 3L * 1024 * 1024 * 1024;
+
+    private static final int RANDOM_BLOCK_SIZE = 1024 * 1024;
+
+    private static final long RANDOM_BLOCK_STRIDE = 32L * 1024 * 1024;
+
+    private static final String SMALL_HEAP = "-Xmx48m";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static PGPSecretKey secretKey;
+
+    @BeforeClass
+    public static void generateKeys() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        secretKey = generateSecretKey(PASSPHRASE);
+    }
+
+    @Test
+    public void testEncryptDecryptRoundTrip() throws Exception {
+        File publicKeyFile = writePublicKey(tmp.newFile("pub.asc"));
+        File secretKeyFile = writeSecretKey(tmp.newFile("sec.asc"));
+
+        byte[] plain = new byte[300 * 1024];
+        new Random(42).nextBytes(plain);
+        File input = tmp.newFile("input.bin");
+        Files.write(input.toPath(), plain);
+
+        PgpService pgpService = new PgpService();
+        for (boolean armor : new boolean[]{false, true}) {
+            File encrypted = new File(tmp.getRoot(), "input.bin." + armor + ".pgp");
+            File decrypted = new File(tmp.getRoot(), "input.bin." + armor + ".out");
+
+            pgpService.encryptFile(input.getPath(), encrypted.getPath(), publicKeyFile.getPath(), armor, true);
+            pgpService.decryptFile(encrypted.getPath(), decrypted.getPath(), secretKeyFile.getPath(), PASSPHRASE);
+
+            assertArrayEquals(plain, Files.readAllBytes(decrypted.toPath()));
+        }
+    }
+
+    @Test
+    public void testDecryptStreamToChannel() throws Exception {
+        File publicKeyFile = writePublicKey(tmp.newFile("pub.asc"));
+        File secretKeyFile = writeSecretKey(tmp.newFile("sec.asc"));
+
+        byte[] plain = new byte[1024 * 1024 + 17];
+        new Random(7).nextBytes(plain);
+        PgpService pgpService = new PgpService();
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        pgpService.encryptStream(new ByteArrayInputStream(plain), encrypted, PgpService.readPublicKey(publicKeyFile.getPath()),
+                "payload.bin", new Date(), false, true);
+
+        File decrypted = tmp.newFile("payload.bin");
+        try (InputStream keyIn = new FileInputStream(secretKeyFile);
+             FileChannel channel = FileChannel.open(decrypted.toPath(), StandardOpenOption.WRITE)) {
+            pgpService.decryptStream(new ByteArrayInputStream(encrypted.toByteArray()), keyIn, PASSPHRASE, channel);
+        }
+
+        assertArrayEquals(plain, Files.readAllBytes(decrypted.toPath()));
+    }
+
+    @Test
+    public void testAdaptiveCompression() throws Exception {
+        File publicKeyFile = writePublicKey(tmp.newFile("pub.asc"));
+        File secretKeyFile = writeSecretKey(tmp.newFile("sec.asc"));
+        PGPPublicKey encKey = PgpService.readPublicKey(publicKeyFile.getPath());
+        PgpService pgpService = new PgpService();
+
+        byte[] random = new byte[300 * 1024];
+        new Random(42).nextBytes(random);
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; csv.length() < 300 * 1024; i++) {
+            csv.append(i).append(",ACME Corp,").append(i % 97).append(".50,USD,SETTLED\n");
+        }
+        byte[] text = csv.toString().getBytes("US-ASCII");
+
+        AdaptiveCompression.Result randomResult = encryptAndCheckRoundTrip(pgpService, encKey, secretKeyFile, random);
+        assertEquals(PGPCompressedData.UNCOMPRESSED, randomResult.getAlgorithm());
+        assertEquals(random.length, randomResult.getUncompressedBytes());
+        assertTrue(randomResult.getRatio() >= 1);
+
+        AdaptiveCompression.Result textResult = encryptAndCheckRoundTrip(pgpService, encKey, secretKeyFile, text);
+        assertNotEquals(PGPCompressedData.UNCOMPRESSED, textResult.getAlgorithm());
+        assertEquals(text.length, textResult.getUncompressedBytes());
+        assertTrue(textResult.getRatio() < 0.5);
+
+        AdaptiveCompression.Result tinyResult = encryptAndCheckRoundTrip(pgpService, encKey, secretKeyFile, "hello".getBytes("US-ASCII"));
+        assertEquals(PGPCompressedData.UNCOMPRESSED, tinyResult.getAlgorithm());
+    }
+
+    /**
+     * Not every partner's implementation reads BZIP2, so highly redundant payloads only get it when
+     * every recipient key lists it among its preferred compression algorithms.
+     */
+    @Test
+    public void testAdaptiveCompressionFollowsKeyPreferences() throws Exception {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; csv.length() < 300 * 1024; i++) {
+            csv.append(i).append(",ACME Corp,").append(i % 97).append(".50,USD,SETTLED\n");
+        }
+        byte[] text = csv.toString().getBytes("US-ASCII");
+        PGPSecretKey zipOnly = generateSecretKey(PASSPHRASE, PGPCompressedData.ZLIB, PGPCompressedData.ZIP);
+        PGPSecretKey bzip2 = generateSecretKey(PASSPHRASE, PGPCompressedData.BZIP2, PGPCompressedData.ZIP);
+        PgpService pgpService = new PgpService();
+
+        assertEquals("no preferences", PGPCompressedData.ZIP,
+                encryptAndCheckRoundTrip(pgpService, secretKey.getPublicKey(), writeSecretKey(tmp.newFile("sec.asc")), text).getAlgorithm());
+        assertEquals("no BZIP2 in the preferences", PGPCompressedData.ZIP,
+                encryptAndCheckRoundTrip(pgpService, zipOnly.getPublicKey(), writeSecretKey(zipOnly, tmp.newFile("zip.asc")), text).getAlgorithm());
+        assertEquals(PGPCompressedData.BZIP2,
+                encryptAndCheckRoundTrip(pgpService, bzip2.getPublicKey(), writeSecretKey(bzip2, tmp.newFile("bzip2.asc")), text).getAlgorithm());
+
+        AdaptiveCompression.Result mixed = pgpService.encryptStream(new ByteArrayInputStream(text), new ByteArrayOutputStream(),
+                Arrays.asList(bzip2.getPublicKey(), zipOnly.getPublicKey()), "payload.bin", new Date(), CryptoProfile.DEFAULT, false, true);
+        assertEquals("one recipient without BZIP2", PGPCompressedData.ZIP, mixed.getAlgorithm());
+    }
+
+    @Test
+    public void testCryptoProfiles() throws Exception {
+        File publicKeyFile = writePublicKey(tmp.newFile("pub.asc"));
+        File secretKeyFile = writeSecretKey(tmp.newFile("sec.asc"));
+        byte[] plain = new byte[200 * 1024];
+        new Random(3).nextBytes(plain);
+        File input = tmp.newFile("input.bin");
+        Files.write(input.toPath(), plain);
+
+        CryptoProfile sunJceAes = CryptoProfile.builder("sunjce-aes").symmetricAlgorithm(PGPEncryptedData.AES_256).cipherProvider("SunJCE").build();
+        CryptoProfile defaultProviderAes = CryptoProfile.builder("jca-default-aes").symmetricAlgorithm(PGPEncryptedData.AES_128).provider(null).build();
+        CryptoProfile sunJceCast5 = CryptoProfile.builder("sunjce-cast5").symmetricAlgorithm(PGPEncryptedData.CAST5).cipherProvider("SunJCE").build();
+        assertEquals(CryptoProfile.FALLBACK_PROVIDER, sunJceCast5.cipherProviderFor(PGPEncryptedData.CAST5));
+
+        CryptoProfiles profiles = new CryptoProfiles(CryptoProfile.DEFAULT);
+        profiles.setPartnerProfile("partner-aes", sunJceAes);
+        profiles.setPartnerProfile("partner-jca", defaultProviderAes);
+        profiles.setPartnerProfile("partner-cast5", sunJceCast5);
+        PgpService pgpService = new PgpService(profiles);
+
+        String[] partners = {"partner-aes", "partner-jca", "partner-cast5", "unknown-partner"};
+        int[] expectedAlgorithms = {PGPEncryptedData.AES_256, PGPEncryptedData.AES_128, PGPEncryptedData.CAST5, PGPEncryptedData.CAST5};
+        for (int i = 0; i < partners.length; i++) {
+            File encrypted = new File(tmp.getRoot(), partners[i] + ".pgp");
+            File decrypted = new File(tmp.getRoot(), partners[i] + ".out");
+
+            pgpService.encryptFile(input.getPath(), encrypted.getPath(), publicKeyFile.getPath(), partners[i], false, true);
+            assertEquals(partners[i], expectedAlgorithms[i], symmetricAlgorithmOf(encrypted));
+
+            try (InputStream in = new FileInputStream(encrypted);
+                 InputStream keyIn = new FileInputStream(secretKeyFile);
+                 OutputStream out = new FileOutputStream(decrypted)) {
+                pgpService.decryptStream(in, PgpService.readPrivateKeys(keyIn, PASSPHRASE), profiles.forPartner(partners[i]), out);
+            }
+            assertArrayEquals(partners[i], plain, Files.readAllBytes(decrypted.toPath()));
+        }
+    }
+
+    @Test
+    public void testMultipleRecipients() throws Exception {
+        PGPSecretKey[] recipients = {secretKey, generateSecretKey(PASSPHRASE), generateSecretKey(PASSPHRASE)};
+        byte[] plain = new byte[200 * 1024];
+        new Random(5).nextBytes(plain);
+        File input = tmp.newFile("input.bin");
+        Files.write(input.toPath(), plain);
+
+        List<String> publicKeyFiles = new ArrayList<>();
+        for (int i = 0; i < recipients.length; i++) {
+            publicKeyFiles.add(writePublicKey(recipients[i], tmp.newFile("pub" + i + ".asc")).getPath());
+        }
+        File encrypted = new File(tmp.getRoot(), "input.bin.pgp");
+        PgpService pgpService = new PgpService();
+        pgpService.encryptFile(input.getPath(), encrypted.getPath(), publicKeyFiles, false, true);
+
+        assertEquals(recipients.length, encryptedDataList(Files.readAllBytes(encrypted.toPath())).size());
+        for (int i = 0; i < recipients.length; i++) {
+            File decrypted = new File(tmp.getRoot(), "input.bin." + i + ".out");
+            pgpService.decryptFile(encrypted.getPath(), decrypted.getPath(), writeSecretKey(recipients[i], tmp.newFile("sec" + i + ".asc")).getPath(), PASSPHRASE);
+            assertArrayEquals("recipient " + i, plain, Files.readAllBytes(decrypted.toPath()));
+        }
+    }
+
+    /**
+     * Per-recipient copies must each open with their own key only, and share the encrypted data
+     * packet byte for byte: the payload is encrypted once and only the session key is re-wrapped.
+     */
+    @Test
+    public void testPerRecipientCopies() throws Exception {
+        PGPSecretKey[] recipients = {secretKey, generateSecretKey(PASSPHRASE), generateSecretKey(PASSPHRASE)};
+        byte[] plain = new byte[200 * 1024];
+        new Random(6).nextBytes(plain);
+        File input = tmp.newFile("input.bin");
+        Files.write(input.toPath(), plain);
+
+        List<String> publicKeyFiles = new ArrayList<>();
+        List<String> secretKeyFiles = new ArrayList<>();
+        for (int i = 0; i < recipients.length; i++) {
+            publicKeyFiles.add(writePublicKey(recipients[i], tmp.newFile("pub" + i + ".asc")).getPath());
+            secretKeyFiles.add(writeSecretKey(recipients[i], tmp.newFile("sec" + i + ".asc")).getPath());
+        }
+
+        PgpService pgpService = new PgpService();
+        for (boolean armor : new boolean[]{false, true}) {
+            List<String> copies = new ArrayList<>();
+            for (int i = 0; i < recipients.length; i++) {
+                copies.add(new File(tmp.getRoot(), "input.bin." + i + "." + armor + ".pgp").getPath());
+            }
+            pgpService.encryptFilePerRecipient(input.getPath(), publicKeyFiles, copies, armor, true);
+
+            byte[] sharedData = null;
+            for (int i = 0; i < recipients.length; i++) {
+                byte[] copy = Files.readAllBytes(new File(copies.get(i)).toPath());
+                if (armor) {
+                    copy = dearmor(copy);
+                }
+                PGPEncryptedDataList list = encryptedDataList(copy);
+                assertEquals(1, list.size());
+                assertEquals(recipients[i].getKeyID(), ((PGPPublicKeyEncryptedData) list.get(0)).getKeyID());
+
+                int sessionKeyPacket = SessionKeyFanOutStream.sessionKeyPacketLength(copy, 0, copy.length);
+                byte[] data = Arrays.copyOfRange(copy, sessionKeyPacket, copy.length);
+                if (sharedData == null) {
+                    sharedData = data;
+                } else {
+                    assertArrayEquals(sharedData, data);
+                }
+
+                File decrypted = new File(tmp.getRoot(), "input.bin." + i + "." + armor + ".out");
+                pgpService.decryptFile(copies.get(i), decrypted.getPath(), secretKeyFiles.get(i), PASSPHRASE);
+                assertArrayEquals("recipient " + i, plain, Files.readAllBytes(decrypted.toPath()));
+
+                try {
+                    pgpService.decryptFile(copies.get(i), decrypted.getPath(), secretKeyFiles.get((i + 1) % recipients.length), PASSPHRASE);
+                    fail("copy " + i + " opened with another recipient's key");
+                } catch (IllegalArgumentException expected) {
+                }
+            }
+        }
+    }
+
+    private static PGPEncryptedDataList encryptedDataList(byte[] message) throws Exception {
+        return (PGPEncryptedDataList) new PGPObjectFactory(PGPUtil.getDecoderStream(new ByteArrayInputStream(message)), new JcaKeyFingerprintCalculator()).nextObject();
+    }
+
+    private static byte[] dearmor(byte[] armored) throws Exception {
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        try (InputStream in = PGPUtil.getDecoderStream(new ByteArrayInputStream(armored))) {
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                binary.write(buffer, 0, len);
+            }
+        }
+        return binary.toByteArray();
+    }
+
+    private static int symmetricAlgorithmOf(File encrypted) throws Exception {
+        try (InputStream in = new FileInputStream(encrypted)) {
+            PGPEncryptedDataList list = (PGPEncryptedDataList) new PGPObjectFactory(PGPUtil.getDecoderStream(in), new JcaKeyFingerprintCalculator()).nextObject();
+            PGPPublicKeyEncryptedData pbe = (PGPPublicKeyEncryptedData) list.get(0);
+            PGPPrivateKey privateKey = secretKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider("BC").build(PASSPHRASE));
+            return pbe.getSymmetricAlgorithm(new JcePublicKeyDataDecryptorFactoryBuilder().setProvider("BC").build(privateKey));
+        }
+    }
+
+    private static AdaptiveCompression.Result encryptAndCheckRoundTrip(PgpService pgpService, PGPPublicKey encKey, File secretKeyFile, byte[] plain) throws Exception {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        AdaptiveCompression.Result result = pgpService.encryptStream(new ByteArrayInputStream(plain), encrypted, encKey, "payload.bin", new Date(), false, true);
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        try (InputStream keyIn = new FileInputStream(secretKeyFile)) {
+            pgpService.decryptStream(new ByteArrayInputStream(encrypted.toByteArray()), keyIn, PASSPHRASE, decrypted);
+        }
+        assertArrayEquals(plain, decrypted.toByteArray());
+        return result;
+    }
+
+    /**
+     * Encrypts a multi-GB sparse file in a child JVM with a heap far smaller than the file, which
+     * fails with an OutOfMemoryError if any stage of the pipeline buffers the payload. Random blocks
+     * are scattered through the holes so that the compressed payload alone is larger than the heap.
+     */
+    @Test
+    public void testEncryptLargeFileWithSmallHeap() throws Exception {
+        File publicKeyFile = writePublicKey(tmp.newFile("pub.asc"));
+        File input = tmp.newFile("large.bin");
+        try (RandomAccessFile raf = new RandomAccessFile(input, "rw")) {
+            raf.setLength(LARGE_FILE_SIZE);
+            Random random = new Random(42);
+            byte[] block = new byte[RANDOM_BLOCK_SIZE];
+            for (long offset = 0; offset < LARGE_FILE_SIZE; offset += RANDOM_BLOCK_STRIDE) {
+                random.nextBytes(block);
+                raf.seek(offset);
+                raf.write(block);
+            }
+        }
+        File encrypted = new File(tmp.getRoot(), "large.bin.pgp");
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, SMALL_HEAP, "-cp", System.getProperty("java.class.path"),
+                LargeFileEncryptor.class.getName(), input.getPath(), encrypted.getPath(), publicKeyFile.getPath())
+                .inheritIO()
+                .start();
+
+        assertTrue("encryption did not finish in time", process.waitFor(10, TimeUnit.MINUTES));
+        assertEquals("child JVM failed, see its output above", 0, process.exitValue());
+        assertTrue(encrypted.length() > (LARGE_FILE_SIZE / RANDOM_BLOCK_STRIDE) * RANDOM_BLOCK_SIZE);
+        assertTrue(encrypted.length() < LARGE_FILE_SIZE);
+    }
+
+    /**
+     * Encrypts with ZIP rather than adaptive compression: the random block at the head of the file
+     * would otherwise send it uncompressed, and the test is about the compressing pipeline.
+     */
+    public static class LargeFileEncryptor {
+
+        public static void main(String[] args) throws Exception {
+            File input = new File(args[0]);
+            try (InputStream in = new FileInputStream(input);
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]))) {
+                new PgpService().encryptStream(in, out, PgpService.readPublicKey(args[2]), input.getName(), new Date(input.lastModified()),
+                        PGPEncryptedData.CAST5, PGPCompressedData.ZIP, false, true);
+            }
+        }
+    }
+
+    static PGPSecretKey generateSecretKey(char[] passphrase) throws Exception {
+        return generateSecretKey(passphrase, (int[]) null);
+    }
+
+    /**
+     * Generates a key whose self-signature lists {@code preferredCompression}, or no preferences
+     * at all if it is {@code null}.
+     */
+    static PGPSecretKey generateSecretKey(char[] passphrase, int... preferredCompression) throws Exception {
+        PGPSignatureSubpacketVector hashedPackets = null;
+        if (preferredCompression != null) {
+            PGPSignatureSubpacketGenerator preferences = new PGPSignatureSubpacketGenerator();
+            preferences.setPreferredCompressionAlgorithms(false, preferredCompression);
+            hashedPackets = preferences.generate();
+        }
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", "BC");
+        kpg.initialize(2048);
+        PGPKeyPair keyPair = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1);
+        return new PGPSecretKey(PGPSignature.DEFAULT_CERTIFICATION, keyPair, "test@example.com", sha1Calc, hashedPackets, null,
+                new JcaPGPContentSignerBuilder(keyPair.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.CAST5, sha1Calc).setProvider("BC").build(passphrase));
+    }
+
+    private static File writePublicKey(File file) throws Exception {
+        return writePublicKey(secretKey, file);
+    }
+
+    private static File writePublicKey(PGPSecretKey key, File file) throws Exception {
+        try (OutputStream out = new FileOutputStream(file)) {
+            key.getPublicKey().encode(out);
+        }
+        return file;
+    }
+
+    private static File writeSecretKey(File file) throws Exception {
+        return writeSecretKey(secretKey, file);
+    }
+
+    private static File writeSecretKey(PGPSecretKey key, File file) throws Exception {
+        try (OutputStream out = new FileOutputStream(file)) {
+            key.encode(out);
+        }
+        return file;
+    }
+}
@@ -1,97 +1,228 @@
+import com.example.sftp.pool.DownloadCheckpoint;
+import com.example.sftp.pool.DownloadQueue;
+import com.example.sftp.pool.DownloadStatusWriter;
+import com.example.sftp.pool.HostCircuitBreaker;
+import com.example.sftp.pool.ResumableDownloader;
+import com.example.sftp.pool.RetryPolicy;
+import com.example.sftp.pool.SegmentedDownloader;
+import com.example.sftp.pool.SftpConnectionPool;
+import com.example.sftp.pool.SftpEndpoint;
+import com.example.sftp.pool.SftpExecutors;
+import com.example.sftp.pool.SftpLease;
 import com.jcraft.jsch.*;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
 import java.sql.*;
-import java.time.LocalDateTime;
-import java.util.Properties;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public class SFTPClient {
     private static final String DB_URL = "jdbc:your_database_url";
     private static final String DB_USER = "your_db_user";
     private static final String DB_PASSWORD = "your_db_password";
-    private static final int MAX_RETRIES = 3;
+    // Network failures back off from 30 seconds to 30 minutes over 8 attempts, failed logins
+    // from 15 minutes over 3, and missing files are not retried
+    private static final RetryPolicy RETRY_POLICY = RetryPolicy.DEFAULT;
+    private static final int HOST_FAILURE_THRESHOLD = 5; // Host failures in a row before its downloads are put off
+    private static final Duration HOST_OPEN_DURATION = Duration.ofMinutes(1); // How long until a failing host is probed again
+    private static final int WORKERS = 8; // Downloads run side by side on each node
+    private static final Duration LEASE = Duration.ofMinutes(2); // A node that stops renewing loses its files after this
+    private static final long IDLE_POLL_MILLIS = 60000; // How long to wait when nothing is pending
+    private static final int STATUS_BATCH_SIZE = 50; // Outcomes committed together at most
+    private static final Duration STATUS_MAX_DELAY = Duration.ofMillis(20); // Longest an outcome waits for its batch
+    private static final long SEGMENTED_DOWNLOAD_THRESHOLD = 256L * 1024 * 1024; // Split larger files across channels
+    private static final int SEGMENTED_DOWNLOAD_CHANNELS = 4;
+    private static final Duration CHECKPOINT_INTERVAL = Duration.ofSeconds(5); // How often progress is saved for a resume
+
+    private static final SegmentedDownloader DOWNLOADER =
+            new SegmentedDownloader(SftpConnectionPool.shared(), SEGMENTED_DOWNLOAD_THRESHOLD, SEGMENTED_DOWNLOAD_CHANNELS);
+    // Resume checkpoints live in file_downloads next to the status:
+    //   ALTER TABLE file_downloads ADD bytes_transferred BIGINT DEFAULT 0 NOT NULL, ADD remote_size BIGINT, ADD remote_mtime INT
+    private static final ResumableDownloader RESUMER = new ResumableDownloader(CHECKPOINT_INTERVAL);
+    // Claims, lease renewals, checkpoints and status batches all borrow from one small pool
+    private static final HikariDataSource DATA_SOURCE = dataSource();
+    // Any number of nodes share file_downloads; each claims files under a lease it keeps renewing:
+    //   ALTER TABLE file_downloads ADD lease_owner VARCHAR(128), ADD lease_expires TIMESTAMP
+    private static final DownloadQueue QUEUE = new DownloadQueue(DATA_SOURCE::getConnection,
+            "file_downloads", ManagementFactory.getRuntimeMXBean().getName(), LEASE, RETRY_POLICY.getMaxAttempts());
+    // Outcomes of all workers go out together, each committed before its worker moves on
+    private static final DownloadStatusWriter STATUS_WRITER = new DownloadStatusWriter(QUEUE, STATUS_BATCH_SIZE, STATUS_MAX_DELAY);
+    private static final HostCircuitBreaker HOST_BREAKER = new HostCircuitBreaker(HOST_FAILURE_THRESHOLD, HOST_OPEN_DURATION);
+
+    private static HikariDataSource dataSource() {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("sftp-client");
+        config.setJdbcUrl(DB_URL);
+        config.setUsername(DB_USER);
+        config.setPassword(DB_PASSWORD);
+        // A checkpoint per worker, plus the claim, the renewal and the status writer
+        config.setMaximumPoolSize(WORKERS + 3);
+        return new HikariDataSource(config);
+    }
 
     public static void main(String[] args) {
+        ExecutorService workers = SftpExecutors.newPlatformThreadExecutor("download", WORKERS);
+        Semaphore idleWorkers = new Semaphore(WORKERS);
+        ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "download-lease-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long renewMillis = LEASE.toMillis() / 3;
+        renewer.scheduleWithFixedDelay(SFTPClient::renewLeases, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
         while (true) {
-            processPendingDownloads();
             try {
-                Thread.sleep(60000); // Sleep for 1 minute
+                if (processPendingDownloads(workers, idleWorkers) == 0) {
+                    Thread.sleep(IDLE_POLL_MILLIS);
+                }
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         }
     }
 
-    private static void processPendingDownloads() {
-        try (Connection conn = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD)) {
-            String query = "SELECT * FROM file_downloads WHERE status = 'PENDING' OR (status = 'FAILED' AND retry_count < ? AND next_attempt <= ?)";
-            try (PreparedStatement stmt = conn.prepareStatement(query)) {
-                stmt.setInt(1, MAX_RETRIES);
-                stmt.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now()));
-                try (ResultSet rs = stmt.executeQuery()) {
-                    while (rs.next()) {
-                        int id = rs.getInt("id");
-                        String fileName = rs.getString("file_name");
-                        downloadFile(conn, id, fileName);
-                    }
+    /**
+     * Waits for a free worker, then claims a file for it and for every other free worker.
+     * Returns the number of files claimed.
+     */
+    private static int processPendingDownloads(ExecutorService workers, Semaphore idleWorkers) throws InterruptedException {
+        idleWorkers.acquire();
+        int free = 1 + idleWorkers.drainPermits();
+        List<DownloadQueue.Claim> claims;
+        try {
+            claims = QUEUE.claim(free);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            claims = Collections.emptyList();
+        }
+        idleWorkers.release(free - claims.size());
+        for (DownloadQueue.Claim claim : claims) {
+            workers.execute(() -> {
+                try {
+                    downloadFile(claim);
+                } finally {
+                    // Nothing to do once the outcome is written; otherwise the lease runs out and the file is retried
+                    QUEUE.abandon(claim.getId());
+                    idleWorkers.release();
                 }
-            }
+            });
+        }
+        return claims.size();
+    }
+
+    private static void renewLeases() {
+        try {
+            QUEUE.renew();
         } catch (SQLException e) {
+            // Leases run out unless a later renewal gets through
             e.printStackTrace();
         }
     }
 
-    private static void downloadFile(Connection conn, int id, String fileName) {
+    private static void downloadFile(DownloadQueue.Claim claim) {
+        long id = claim.getId();
+        String fileName = claim.getFileName();
+        DownloadCheckpoint checkpoint = claim.getCheckpoint();
         String sftpHost = "your_sftp_host";
         String sftpUser = "your_sftp_user";
         String sftpPassword = "your_sftp_password";
         String sftpDirectory = "your_sftp_directory";
         String localDirectory = "your_local_directory";
 
-        JSch jsch = new JSch();
-        Session session = null;
-        ChannelSftp channelSftp = null;
+        SftpEndpoint endpoint = SftpEndpoint.builder(sftpHost, 22, sftpUser)
+                .password(sftpPassword)
+                .build();
 
-        try {
-            session = jsch.getSession(sftpUser, sftpHost, 22);
-            session.setPassword(sftpPassword);
-            Properties config = new Properties();
-            config.put("StrictHostKeyChecking", "no");
-            session.setConfig(config);
-            session.connect();
-
-            channelSftp = (ChannelSftp) session.openChannel("sftp");
-            channelSftp.connect();
+        // While the host is down, put the file off instead of tying up a worker with a connect timeout
+        if (!HOST_BREAKER.tryAcquire(sftpHost)) {
+            updateDownloadStatus(DownloadQueue.Outcome.deferred(id, "Host " + sftpHost + " is failing, download put off",
+                    afterHostRetry(sftpHost)));
+            return;
+        }
+
+        // Files of one polling run, and of consecutive runs, reuse the pooled session and channel
+        try (SftpLease lease = SftpConnectionPool.shared().borrow(endpoint)) {
+            ChannelSftp channelSftp = lease.channel();
             channelSftp.cd(sftpDirectory);
-            channelSftp.get(fileName, localDirectory + "/" + fileName);
+            // A download that got somewhere picks up where it left off; a first attempt at a large
+            // file is split across channels and, if it fails, checkpoints its completed ranges.
+            // Retries stay on one channel, which checkpoints as it goes.
+            SftpATTRS attrs = checkpoint == null && claim.getRetryCount() == 0 ? channelSftp.stat(fileName) : null;
+            if (attrs != null && DOWNLOADER.isSegmented(attrs.getSize())) {
+                DOWNLOADER.download(endpoint, channelSftp, fileName, attrs, Paths.get(localDirectory, fileName),
+                        progress -> saveCheckpoint(id, progress));
+            } else {
+                RESUMER.download(channelSftp, fileName, Paths.get(localDirectory, fileName), checkpoint,
+                        progress -> saveCheckpoint(id, progress));
+            }
 
-            updateDownloadStatus(conn, id, "SUCCESS", null);
+            HOST_BREAKER.onSuccess(sftpHost);
+            updateDownloadStatus(DownloadQueue.Outcome.succeeded(id));
 
-        } catch (JSchException | SftpException e) {
-            handleDownloadFailure(conn, id, e.getMessage());
-        } finally {
-            if (channelSftp != null && channelSftp.isConnected()) {
-                channelSftp.disconnect();
-            }
-            if (session != null && session.isConnected()) {
-                session.disconnect();
+        } catch (JSchException | SftpException | IOException | RuntimeException e) {
+            handleDownloadFailure(claim, sftpHost, e);
+        }
+    }
+
+    private static void updateDownloadStatus(DownloadQueue.Outcome outcome) {
+        try {
+            if (!STATUS_WRITER.write(outcome)) {
+                System.err.println("Lease on download " + outcome.getId() + " was lost; another node took it over, status "
+                        + outcome.getStatus() + " dropped");
             }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    private static void updateDownloadStatus(Connection conn, int id, String status, String errorMessage) {
-        String updateQuery = "UPDATE file_downloads SET status = ?, retry_count = retry_count + 1, last_attempt = ?, next_attempt = ?, error_message = ? WHERE id = ?";
-        try (PreparedStatement stmt = conn.prepareStatement(updateQuery)) {
-            stmt.setString(1, status);
-            stmt.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now()));
-            stmt.setTimestamp(3, status.equals("SUCCESS") ? null : Timestamp.valueOf(LocalDateTime.now().plusMinutes(5))); // Retry after 5 minutes if failed
-            stmt.setString(4, errorMessage);
-            stmt.setInt(5, id);
-            stmt.executeUpdate();
+    private static void saveCheckpoint(long id, DownloadCheckpoint checkpoint) {
+        try {
+            QUEUE.saveCheckpoint(id, checkpoint);
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    private static void handleDownloadFailure(Connection conn, int id, String errorMessage) {
-        updateDownloadStatus(conn, id, "FAILED", errorMessage);
+    /**
+     * A time within one open duration after the host may be tried again, so the files put off
+     * meanwhile do not all come back at once.
+     */
+    private static Instant afterHostRetry(String host) {
+        return HOST_BREAKER.retryAt(host).plusMillis(ThreadLocalRandom.current().nextLong(HOST_OPEN_DURATION.toMillis()));
+    }
+
+    private static void handleDownloadFailure(DownloadQueue.Claim claim, String host, Exception e) {
+        RetryPolicy.FailureKind kind = RetryPolicy.classify(e);
+        if (kind.isHostFailure()) {
+            HOST_BREAKER.onFailure(host);
+        } else if (kind == RetryPolicy.FailureKind.MISSING_FILE) {
+            HOST_BREAKER.onSuccess(host); // The host answered
+        }
+        Duration delay = RETRY_POLICY.nextDelay(kind, claim.getRetryCount() + 1);
+        Instant nextAttempt = null; // Given up
+        if (delay != null) {
+            nextAttempt = Instant.now().plus(delay);
+            // No sooner than the host is probed again
+            if (HOST_BREAKER.state(host) != HostCircuitBreaker.State.CLOSED) {
+                Instant hostRetry = afterHostRetry(host);
+                if (hostRetry.isAfter(nextAttempt)) {
+                    nextAttempt = hostRetry;
+                }
+            }
+        }
+        updateDownloadStatus(DownloadQueue.Outcome.failed(claim.getId(), kind + ": " + e.getMessage(), nextAttempt));
     }
 }
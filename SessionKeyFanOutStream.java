@@ -0,0 +1,153 @@
+package com.example.demo.service;
+
+import org.bouncycastle.bcpg.PacketTags;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Turns one OpenPGP message encrypted for several recipients into one copy per recipient.
+ *
+ * <p>A message starts with one public-key encrypted session key packet per recipient, in the
+ * order the key encryption methods were added, followed by the encrypted data packet. This stream
+ * holds back the leading session key packets until all of them have been written, sends the
+ * i-th one to the i-th output only, and from then on copies every byte to all outputs. Each copy
+ * is therefore a complete message that only its own recipient can open, while the payload behind
+ * it was compressed and encrypted once.
+ *
+ * <p>Closing this stream flushes the outputs but does not close them.
+ */
+final class SessionKeyFanOutStream extends OutputStream {
+
+    private final OutputStream[] outs;
+
+    private ByteArrayOutputStream head = new ByteArrayOutputStream(1024);
+
+    SessionKeyFanOutStream(List<? extends OutputStream> outs) {
+        this.outs = outs.toArray(new OutputStream[0]);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (head != null) {
+            head.write(b, off, len);
+            splitHead();
+        } else {
+            for (OutputStream out : outs) {
+                out.write(b, off, len);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (OutputStream out : outs) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (head != null) {
+            throw new IOException("Message ended before all " + outs.length + " session key packets were written.");
+        }
+        flush();
+    }
+
+    /**
+     * Once the buffered head holds a complete session key packet for every output, writes each
+     * packet to its output and the rest of the head to all of them.
+     */
+    private void splitHead() throws IOException {
+        byte[] buf = head.toByteArray();
+        int[] starts = new int[outs.length + 1];
+        for (int i = 0; i < outs.length; i++) {
+            int length = sessionKeyPacketLength(buf, starts[i], buf.length - starts[i]);
+            if (length < 0) {
+                return;
+            }
+            starts[i + 1] = starts[i] + length;
+        }
+        for (int i = 0; i < outs.length; i++) {
+            outs[i].write(buf, starts[i], starts[i + 1] - starts[i]);
+            outs[i].write(buf, starts[outs.length], buf.length - starts[outs.length]);
+        }
+        head = null;
+    }
+
+    /**
+     * Length, header included, of the public-key encrypted session key packet starting at
+     * {@code off}, or -1 if fewer than that many bytes are available yet.
+     */
+    static int sessionKeyPacketLength(byte[] buf, int off, int available) throws IOException {
+        if (available < 1) {
+            return -1;
+        }
+        int hdr = buf[off] & 0xff;
+        if ((hdr & 0x80) == 0) {
+            throw new IOException("Invalid OpenPGP packet header: 0x" + Integer.toHexString(hdr));
+        }
+
+        int tag;
+        int headerLength;
+        long bodyLength;
+        if ((hdr & 0x40) != 0) {
+            tag = hdr & 0x3f;
+            if (available < 2) {
+                return -1;
+            }
+            int l1 = buf[off + 1] & 0xff;
+            if (l1 < 192) {
+                headerLength = 2;
+                bodyLength = l1;
+            } else if (l1 <= 223) {
+                headerLength = 3;
+                if (available < headerLength) {
+                    return -1;
+                }
+                bodyLength = ((l1 - 192) << 8) + (buf[off + 2] & 0xff) + 192;
+            } else if (l1 == 255) {
+                headerLength = 6;
+                if (available < headerLength) {
+                    return -1;
+                }
+                bodyLength = readLength(buf, off + 2, 4);
+            } else {
+                throw new IOException("Session key packet with a partial body length.");
+            }
+        } else {
+            tag = (hdr >> 2) & 0xf;
+            int lengthType = hdr & 0x3;
+            if (lengthType == 3) {
+                throw new IOException("Session key packet with an indeterminate length.");
+            }
+            int lengthBytes = 1 << lengthType;
+            headerLength = 1 + lengthBytes;
+            if (available < headerLength) {
+                return -1;
+            }
+            bodyLength = readLength(buf, off + 1, lengthBytes);
+        }
+
+        if (tag != PacketTags.PUBLIC_KEY_ENC_SESSION) {
+            throw new IOException("Expected a public-key encrypted session key packet, found packet tag " + tag + ".");
+        }
+        long total = headerLength + bodyLength;
+        return total <= available ? (int) total : -1;
+    }
+
+    private static long readLength(byte[] buf, int off, int bytes) {
+        long length = 0;
+        for (int i = 0; i < bytes; i++) {
+            length = (length << 8) | (buf[off + i] & 0xff);
+        }
+        return length;
+    }
+}
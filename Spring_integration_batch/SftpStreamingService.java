@@ -1,3 +1,4 @@
+import com.example.sftp.pool.RemoteListing;
 import com.jcraft.jsch.ChannelSftp;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
@@ -34,6 +35,9 @@ public class SftpStreamingService {
     @Value("${sftp.remote.path}")
     private String remotePath;
 
+    @Value("${sftp.file.pattern:*}")
+    private String filePattern;
+
     @Value("${sftp.local.path}")
     private String localPath;
 
@@ -43,24 +47,38 @@ public class SftpStreamingService {
     @Scheduled(cron = "${sftp.cron}")
     public void transferFiles() {
         Session<ChannelSftp.LsEntry> session = null;
+        Session<ChannelSftp.LsEntry> listingSession = null;
         try {
             session = sftpSessionFactory.getSession();
             session.open();
             session.cd(remotePath);
 
-            for (ChannelSftp.LsEntry entry : session.list("*")) {
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(session.readRaw(entry.getFilename())))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        kafkaTemplate.send(kafkaTopic, line);
+            // Stream the listing over a session of its own, since a channel can't list and read at
+            // once; each file is sent while the rest of the directory is still coming in
+            listingSession = sftpSessionFactory.getSession();
+            try (RemoteListing listing = RemoteListing.open((ChannelSftp) listingSession.getClientInstance(), remotePath,
+                    RemoteListing.glob(filePattern), RemoteListing.DEFAULT_CAPACITY)) {
+                while (listing.hasNext()) {
+                    ChannelSftp.LsEntry entry = listing.next();
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(session.readRaw(entry.getFilename())))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            kafkaTemplate.send(kafkaTopic, line);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
+                }
+                if (listing.getFailure() != null) {
+                    listing.getFailure().printStackTrace();
                 }
             }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            if (listingSession != null) {
+                listingSession.close();
+            }
             if (session != null) {
                 session.close();
             }
@@ -0,0 +1,160 @@
+package com.example.demo.benchmark;
+
+import com.example.demo.service.AdaptiveCompression;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Keys, payloads and sinks shared by the benchmarks. Payloads are generated on the fly from a
+ * fixed block so that a 1 GB run neither allocates 1 GB nor measures disk reads.
+ */
+final class BenchmarkFixtures {
+
+    static final char[] PASSPHRASE = "benchmark".toCharArray();
+
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    /**
+     * Half lowercase text, half random bytes: deflate reaches roughly 60%, which is typical of
+     * the CSV and fixed-width extracts we send to partners.
+     */
+    private static final byte[] BLOCK = new byte[BLOCK_SIZE];
+
+    static {
+        Security.addProvider(new BouncyCastleProvider());
+
+        Random random = new Random(42);
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            BLOCK[i] = i % 2 == 0 ? (byte) ('a' + random.nextInt(26)) : (byte) random.nextInt(256);
+        }
+    }
+
+    private BenchmarkFixtures() {
+    }
+
+    static PGPSecretKey generateSecretKey() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", "BC");
+        kpg.initialize(2048);
+        PGPKeyPair keyPair = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1);
+        return new PGPSecretKey(PGPSignature.DEFAULT_CERTIFICATION, keyPair, "benchmark@example.com", sha1Calc, null, null,
+                new JcaPGPContentSignerBuilder(keyPair.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256, sha1Calc).setProvider("BC").build(PASSPHRASE));
+    }
+
+    static PGPPrivateKey extractPrivateKey(PGPSecretKey secretKey) throws PGPException {
+        return secretKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider("BC").build(PASSPHRASE));
+    }
+
+    /**
+     * Parses sizes such as {@code 1KB}, {@code 64MB} or {@code 1GB}.
+     */
+    static long parseSize(String size) {
+        String upper = size.trim().toUpperCase();
+        if (upper.endsWith("GB")) {
+            return Long.parseLong(upper.substring(0, upper.length() - 2)) << 30;
+        } else if (upper.endsWith("MB")) {
+            return Long.parseLong(upper.substring(0, upper.length() - 2)) << 20;
+        } else if (upper.endsWith("KB")) {
+            return Long.parseLong(upper.substring(0, upper.length() - 2)) << 10;
+        }
+        return Long.parseLong(upper);
+    }
+
+    static int symmetricAlgorithm(String name) {
+        switch (name) {
+            case "CAST5":
+                return SymmetricKeyAlgorithmTags.CAST5;
+            case "AES_128":
+                return SymmetricKeyAlgorithmTags.AES_128;
+            case "AES_256":
+                return SymmetricKeyAlgorithmTags.AES_256;
+            default:
+                throw new IllegalArgumentException("Unknown cipher: " + name);
+        }
+    }
+
+    static int compressionAlgorithm(String name) {
+        switch (name) {
+            case "UNCOMPRESSED":
+                return CompressionAlgorithmTags.UNCOMPRESSED;
+            case "ZIP":
+                return CompressionAlgorithmTags.ZIP;
+            case "ZLIB":
+                return CompressionAlgorithmTags.ZLIB;
+            case "BZIP2":
+                return CompressionAlgorithmTags.BZIP2;
+            case "ADAPTIVE":
+                return AdaptiveCompression.ADAPTIVE;
+            default:
+                throw new IllegalArgumentException("Unknown compression: " + name);
+        }
+    }
+
+    /**
+     * Yields {@code size} bytes by cycling through {@link #BLOCK}.
+     */
+    static final class PayloadInputStream extends InputStream {
+
+        private long remaining;
+        private int position;
+
+        PayloadInputStream(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            if (remaining == 0) {
+                return -1;
+            }
+            remaining--;
+            int b = BLOCK[position] & 0xff;
+            position = (position + 1) % BLOCK_SIZE;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = (int) Math.min(Math.min(len, remaining), BLOCK_SIZE - position);
+            System.arraycopy(BLOCK, position, b, off, n);
+            position = (position + n) % BLOCK_SIZE;
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /**
+     * Discards everything written to it, keeping only the byte count.
+     */
+    static final class CountingOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.demo.benchmark;
+
+import com.example.demo.service.PgpArmor;
+import org.bouncycastle.bcpg.ArmoredInputStream;
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ASCII armor on its own: Bouncy Castle's {@code ArmoredOutputStream}/{@code ArmoredInputStream}
+ * ({@code BC}) against {@link PgpArmor} ({@code BLOCK}), over random bytes standing in for
+ * ciphertext and written in the 64 KB blocks the encrypt path produces.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Benchmark)
+public class PgpArmorBenchmark {
+
+    private static final int WRITE_SIZE = 1 << 16;
+
+    @Param({"1MB", "64MB"})
+    public String payloadSize;
+
+    @Param({"BC", "BLOCK"})
+    public String codec;
+
+    private byte[] payload;
+
+    private byte[] armored;
+
+    private byte[] readBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        payload = new byte[(int) BenchmarkFixtures.parseSize(payloadSize)];
+        new Random(42).nextBytes(payload);
+        readBuffer = new byte[WRITE_SIZE];
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 3 * 4 + payload.length / 48 + 1024);
+        encode(out);
+        armored = out.toByteArray();
+    }
+
+    @Benchmark
+    public long encode(BytesProcessed processed) throws IOException {
+        BenchmarkFixtures.CountingOutputStream out = new BenchmarkFixtures.CountingOutputStream();
+        encode(out);
+        processed.bytes += payload.length;
+        return out.count;
+    }
+
+    @Benchmark
+    public long decode(BytesProcessed processed) throws IOException {
+        long count = 0;
+        try (InputStream in = "BC".equals(codec)
+                ? new ArmoredInputStream(new ByteArrayInputStream(armored))
+                : PgpArmor.getDecoderStream(new ByteArrayInputStream(armored))) {
+            int len;
+            while ((len = in.read(readBuffer)) > 0) {
+                count += len;
+            }
+        }
+        processed.bytes += payload.length;
+        return count;
+    }
+
+    private void encode(OutputStream target) throws IOException {
+        try (OutputStream out = "BC".equals(codec) ? new ArmoredOutputStream(target) : PgpArmor.getEncoderStream(target)) {
+            for (int off = 0; off < payload.length; off += WRITE_SIZE) {
+                out.write(payload, off, Math.min(WRITE_SIZE, payload.length - off));
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.demo.benchmark;
+
+import com.example.demo.service.CryptoProfile;
+import com.example.demo.service.PgpService;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypting one payload for several recipients through {@link PgpService}: one
+ * {@code encryptStream} call per recipient (what callers did before), one message carrying every
+ * recipient's session key packet, and one copy per recipient from a single encryption. The last
+ * two should stay nearly flat as {@code recipients} grows.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+@State(Scope.Benchmark)
+public class PgpFanOutBenchmark {
+
+    private static final Date MODIFICATION_TIME = new Date(0);
+
+    @Param({"1MB", "64MB"})
+    public String payloadSize;
+
+    @Param({"1", "4", "16"})
+    public int recipients;
+
+    @Param({"false", "true"})
+    public boolean armor;
+
+    private final PgpService pgpService = new PgpService();
+
+    private final CryptoProfile profile = CryptoProfile.AES_256;
+
+    private long size;
+
+    private List<PGPPublicKey> publicKeys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        size = BenchmarkFixtures.parseSize(payloadSize);
+        publicKeys = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            publicKeys.add(BenchmarkFixtures.generateSecretKey().getPublicKey());
+        }
+    }
+
+    @Benchmark
+    public long encryptPerCall(BytesProcessed processed) throws Exception {
+        BenchmarkFixtures.CountingOutputStream out = new BenchmarkFixtures.CountingOutputStream();
+        for (PGPPublicKey publicKey : publicKeys) {
+            pgpService.encryptStream(new BenchmarkFixtures.PayloadInputStream(size), out, publicKey, "payload.bin", MODIFICATION_TIME,
+                    profile, armor, true);
+        }
+        processed.bytes += size;
+        return out.count;
+    }
+
+    @Benchmark
+    public long encryptOnceForAll(BytesProcessed processed) throws Exception {
+        BenchmarkFixtures.CountingOutputStream out = new BenchmarkFixtures.CountingOutputStream();
+        pgpService.encryptStream(new BenchmarkFixtures.PayloadInputStream(size), out, publicKeys, "payload.bin", MODIFICATION_TIME,
+                profile, armor, true);
+        processed.bytes += size;
+        return out.count;
+    }
+
+    @Benchmark
+    public long encryptOncePerRecipientCopies(BytesProcessed processed) throws Exception {
+        List<BenchmarkFixtures.CountingOutputStream> outs = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            outs.add(new BenchmarkFixtures.CountingOutputStream());
+        }
+        pgpService.encryptStreamPerRecipient(new BenchmarkFixtures.PayloadInputStream(size), publicKeys, outs, "payload.bin",
+                MODIFICATION_TIME, profile, armor, true);
+        processed.bytes += size;
+        long count = 0;
+        for (BenchmarkFixtures.CountingOutputStream out : outs) {
+            count += out.count;
+        }
+        return count;
+    }
+}
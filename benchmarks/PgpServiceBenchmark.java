@@ -0,0 +1,113 @@
+package com.example.demo.benchmark;
+
+import com.example.demo.service.CryptoProfile;
+import com.example.demo.service.PgpService;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypt and decrypt through {@link PgpService} across payload size, cipher, compression and
+ * armor. {@code CAST5}/{@code ZIP} is what {@code PgpService.encryptFile} sends today and
+ * {@code AES_256} is what {@code PGPCryptoExample.encryptMessage} uses. {@code cipherProvider}
+ * compares Bouncy Castle's pure-Java ciphers with the JDK's ({@code default} is the JCA default);
+ * a provider without the cipher falls back to Bouncy Castle, as in production.
+ *
+ * <p>Decrypt reads a message produced once per trial from a temporary file, so its numbers
+ * include buffered file reads but not the encryption.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+@State(Scope.Benchmark)
+public class PgpServiceBenchmark {
+
+    private static final Date MODIFICATION_TIME = new Date(0);
+
+    @Param({"1KB", "1MB", "64MB", "1GB"})
+    public String payloadSize;
+
+    @Param({"CAST5", "AES_128", "AES_256"})
+    public String cipher;
+
+    @Param({"UNCOMPRESSED", "ZIP", "ZLIB", "BZIP2", "ADAPTIVE"})
+    public String compression;
+
+    @Param({"false", "true"})
+    public boolean armor;
+
+    @Param({"BC", "SunJCE"})
+    public String cipherProvider;
+
+    private final PgpService pgpService = new PgpService();
+
+    private long size;
+
+    private CryptoProfile profile;
+
+    private PGPPublicKey publicKey;
+
+    private PgpService.PrivateKeyLookup keys;
+
+    private Path encryptedFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        size = BenchmarkFixtures.parseSize(payloadSize);
+        profile = CryptoProfile.builder("benchmark")
+                .symmetricAlgorithm(BenchmarkFixtures.symmetricAlgorithm(cipher))
+                .compressionAlgorithm(BenchmarkFixtures.compressionAlgorithm(compression))
+                .cipherProvider("default".equals(cipherProvider) ? null : cipherProvider)
+                .build();
+
+        PGPSecretKey secretKey = BenchmarkFixtures.generateSecretKey();
+        PGPPrivateKey privateKey = BenchmarkFixtures.extractPrivateKey(secretKey);
+        publicKey = secretKey.getPublicKey();
+        keys = keyID -> keyID == privateKey.getKeyID() ? privateKey : null;
+
+        encryptedFile = Files.createTempFile("pgp-benchmark", ".pgp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(encryptedFile))) {
+            encrypt(out);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(encryptedFile);
+    }
+
+    @Benchmark
+    public long encrypt(BytesProcessed processed) throws Exception {
+        BenchmarkFixtures.CountingOutputStream out = new BenchmarkFixtures.CountingOutputStream();
+        encrypt(out);
+        processed.bytes += size;
+        return out.count;
+    }
+
+    @Benchmark
+    public long decrypt(BytesProcessed processed) throws Exception {
+        BenchmarkFixtures.CountingOutputStream out = new BenchmarkFixtures.CountingOutputStream();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(encryptedFile), 1 << 16)) {
+            pgpService.decryptStream(in, keys, profile, out);
+        }
+        processed.bytes += size;
+        return out.count;
+    }
+
+    private void encrypt(OutputStream out) throws Exception {
+        pgpService.encryptStream(new BenchmarkFixtures.PayloadInputStream(size), out, publicKey, "payload.bin", MODIFICATION_TIME,
+                profile, armor, true);
+    }
+}
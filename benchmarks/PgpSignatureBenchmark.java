@@ -0,0 +1,143 @@
+package com.example.demo.benchmark;
+
+import com.example.demo.service.AdaptiveCompression;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sign, verify, sign+encrypt and decrypt+verify through {@code PGPCryptoExample} across payload
+ * size and armor.
+ *
+ * <p>{@code PGPCryptoExample} lives in the default package, which a named package cannot import,
+ * so its methods are bound once through {@link MethodHandles} and invoked exactly.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+@State(Scope.Benchmark)
+public class PgpSignatureBenchmark {
+
+    private static final MethodHandle SIGN;
+    private static final MethodHandle VERIFY;
+    private static final MethodHandle SIGN_AND_ENCRYPT;
+    private static final MethodHandle DECRYPT_AND_VERIFY;
+
+    static {
+        try {
+            Class<?> example = Class.forName("PGPCryptoExample");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            SIGN = lookup.findStatic(example, "signMessage", MethodType.methodType(AdaptiveCompression.Result.class,
+                    InputStream.class, OutputStream.class, PGPPrivateKey.class, PGPPublicKey.class, boolean.class));
+            VERIFY = lookup.findStatic(example, "verifyMessage", MethodType.methodType(boolean.class,
+                    InputStream.class, PGPPublicKey.class, OutputStream.class));
+            SIGN_AND_ENCRYPT = lookup.findStatic(example, "signAndEncryptMessage", MethodType.methodType(void.class,
+                    InputStream.class, OutputStream.class, PGPPrivateKey.class, PGPPublicKey.class, PGPPublicKey.class, boolean.class));
+            DECRYPT_AND_VERIFY = lookup.findStatic(example, "decryptAndVerifyMessage", MethodType.methodType(boolean.class,
+                    InputStream.class, PGPPrivateKey.class, PGPPublicKey.class, OutputStream.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @Param({"1KB", "1MB", "64MB", "1GB"})
+    public String payloadSize;
+
+    @Param({"false", "true"})
+    public boolean armor;
+
+    private long size;
+
+    private PGPPrivateKey privateKey;
+
+    private PGPPublicKey publicKey;
+
+    private Path signedFile;
+
+    private Path signedAndEncryptedFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        size = BenchmarkFixtures.parseSize(payloadSize);
+
+        PGPSecretKey secretKey = BenchmarkFixtures.generateSecretKey();
+        privateKey = BenchmarkFixtures.extractPrivateKey(secretKey);
+        publicKey = secretKey.getPublicKey();
+
+        signedFile = Files.createTempFile("pgp-benchmark", ".sig");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(signedFile))) {
+            sign(out);
+        }
+        signedAndEncryptedFile = Files.createTempFile("pgp-benchmark", ".pgp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(signedAndEncryptedFile))) {
+            signAndEncrypt(out);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(signedFile);
+        Files.deleteIfExists(signedAndEncryptedFile);
+    }
+
+    @Benchmark
+    public long sign(BytesProcessed processed) throws Throwable {
+        BenchmarkFixtures.CountingOutputStream out = new BenchmarkFixtures.CountingOutputStream();
+        sign(out);
+        processed.bytes += size;
+        return out.count;
+    }
+
+    @Benchmark
+    public boolean verify(BytesProcessed processed) throws Throwable {
+        boolean verified;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(signedFile), 1 << 16)) {
+            verified = (boolean) VERIFY.invokeExact(in, publicKey, (OutputStream) new BenchmarkFixtures.CountingOutputStream());
+        }
+        processed.bytes += size;
+        return verified;
+    }
+
+    @Benchmark
+    public long signAndEncrypt(BytesProcessed processed) throws Throwable {
+        BenchmarkFixtures.CountingOutputStream out = new BenchmarkFixtures.CountingOutputStream();
+        signAndEncrypt(out);
+        processed.bytes += size;
+        return out.count;
+    }
+
+    @Benchmark
+    public boolean decryptAndVerify(BytesProcessed processed) throws Throwable {
+        boolean verified;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(signedAndEncryptedFile), 1 << 16)) {
+            verified = (boolean) DECRYPT_AND_VERIFY.invokeExact(in, privateKey, publicKey,
+                    (OutputStream) new BenchmarkFixtures.CountingOutputStream());
+        }
+        processed.bytes += size;
+        return verified;
+    }
+
+    private AdaptiveCompression.Result sign(OutputStream out) throws Throwable {
+        return (AdaptiveCompression.Result) SIGN.invokeExact((InputStream) new BenchmarkFixtures.PayloadInputStream(size), out,
+                privateKey, publicKey, armor);
+    }
+
+    private void signAndEncrypt(OutputStream out) throws Throwable {
+        SIGN_AND_ENCRYPT.invokeExact((InputStream) new BenchmarkFixtures.PayloadInputStream(size), out, privateKey, publicKey,
+                publicKey, armor);
+    }
+}
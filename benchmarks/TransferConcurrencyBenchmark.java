@@ -0,0 +1,116 @@
+package com.example.demo.benchmark;
+
+import com.example.sftp.pool.HostPermits;
+import com.example.sftp.pool.SftpExecutors;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to get through {@code transfers} simulated SFTP transfers spread over {@code hosts}, each
+ * {@code roundTrips} waits of {@code rttMillis} for the server, dispatched the way
+ * {@code SftpTransferEngine} does: a {@link HostPermits} permit taken on the caller's thread,
+ * released when the transfer ends. On a {@code platform} pool of {@code threads} the waits queue
+ * behind the pool; on {@code virtual} threads (Java 21 and later) every transfer the permits allow
+ * waits at once.
+ *
+ * <p>{@code wait=monitor} waits inside a {@code synchronized} block, as JSch does for window space
+ * and channel data, which pins a virtual thread to its carrier on Java 21 to 23; the difference to
+ * {@code wait=sleep} is what pinning costs.
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar TransferConcurrencyBenchmark -p mode=virtual
+ * </pre>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Benchmark)
+public class TransferConcurrencyBenchmark {
+
+    @Param({"platform", "virtual"})
+    public String mode;
+
+    @Param({"sleep", "monitor"})
+    public String wait;
+
+    @Param({"10000"})
+    public int transfers;
+
+    @Param({"50"})
+    public int hosts;
+
+    @Param({"200"})
+    public int maxPerHost;
+
+    @Param({"200"})
+    public int threads;
+
+    @Param({"5"})
+    public int roundTrips;
+
+    @Param({"20"})
+    public long rttMillis;
+
+    private ExecutorService executor;
+
+    private HostPermits permits;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        executor = SftpExecutors.newExecutor(SftpExecutors.Mode.of(mode), "transfer", threads);
+        permits = new HostPermits(maxPerHost, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long transferAll() throws Exception {
+        boolean monitor = "monitor".equals(wait);
+        List<CompletableFuture<Long>> futures = new ArrayList<>(transfers);
+        for (int i = 0; i < transfers; i++) {
+            String host = "host" + i % hosts;
+            permits.acquire(host);
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return transfer(monitor);
+                } finally {
+                    permits.release(host);
+                }
+            }, executor));
+        }
+        long waited = 0;
+        for (CompletableFuture<Long> future : futures) {
+            waited += future.get();
+        }
+        return waited;
+    }
+
+    private long transfer(boolean monitor) {
+        long start = System.nanoTime();
+        Object lock = new Object();
+        try {
+            for (int i = 0; i < roundTrips; i++) {
+                if (monitor) {
+                    synchronized (lock) {
+                        lock.wait(rttMillis);
+                    }
+                } else {
+                    Thread.sleep(rttMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How a remote directory listing differs from what a {@link RemoteDirectoryIndex} last recorded:
+ * files that are new, files whose size or modification time changed, and files that are gone.
+ *
+ * <p>The changes of a {@link RemoteDirectoryIndex#scan()} count the new and changed files but
+ * leave their lists empty; the caller had each of them as it was offered.
+ */
+public final class DirectoryChanges {
+
+    private final List<ChannelSftp.LsEntry> added;
+    private final List<ChannelSftp.LsEntry> changed;
+    private final int addedCount;
+    private final int changedCount;
+    private final List<String> deleted;
+    private final int unchanged;
+
+    DirectoryChanges(List<ChannelSftp.LsEntry> added, List<ChannelSftp.LsEntry> changed, int addedCount, int changedCount,
+                     List<String> deleted, int unchanged) {
+        this.added = Collections.unmodifiableList(added);
+        this.changed = Collections.unmodifiableList(changed);
+        this.addedCount = addedCount;
+        this.changedCount = changedCount;
+        this.deleted = Collections.unmodifiableList(deleted);
+        this.unchanged = unchanged;
+    }
+
+    public List<ChannelSftp.LsEntry> getAdded() {
+        return added;
+    }
+
+    public List<ChannelSftp.LsEntry> getChanged() {
+        return changed;
+    }
+
+    public int getAddedCount() {
+        return addedCount;
+    }
+
+    public int getChangedCount() {
+        return changedCount;
+    }
+
+    /**
+     * Names recorded in the index that are no longer listed.
+     */
+    public List<String> getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Files listed and recorded with the same size and modification time.
+     */
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * The files to transfer: the added ones, then the changed ones.
+     */
+    public List<ChannelSftp.LsEntry> getModified() {
+        List<ChannelSftp.LsEntry> modified = new ArrayList<>(added.size() + changed.size());
+        modified.addAll(added);
+        modified.addAll(changed);
+        return modified;
+    }
+
+    public boolean isEmpty() {
+        return addedCount == 0 && changedCount == 0 && deleted.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return addedCount + " added, " + changedCount + " changed, " + deleted.size() + " deleted, " + unchanged + " unchanged";
+    }
+}
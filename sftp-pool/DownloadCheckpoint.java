@@ -0,0 +1,38 @@
+package com.example.sftp.pool;
+
+/**
+ * How far a download got: bytes safely on local disk, and the size and modification time of the
+ * remote file they came from, so a resume can tell whether the remote file is still the same.
+ */
+public final class DownloadCheckpoint {
+
+    private final long offset;
+    private final long remoteSize;
+    private final int remoteMtime;
+
+    public DownloadCheckpoint(long offset, long remoteSize, int remoteMtime) {
+        this.offset = offset;
+        this.remoteSize = remoteSize;
+        this.remoteMtime = remoteMtime;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getRemoteSize() {
+        return remoteSize;
+    }
+
+    /**
+     * Remote modification time in seconds since the epoch, as SFTP reports it.
+     */
+    public int getRemoteMtime() {
+        return remoteMtime;
+    }
+
+    @Override
+    public String toString() {
+        return offset + "/" + remoteSize + " bytes, mtime " + remoteMtime;
+    }
+}
@@ -0,0 +1,411 @@
+package com.example.sftp.pool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out pending downloads from a database table to workers on any number of nodes, each row
+ * to one worker at a time.
+ *
+ * <p>A worker claims a batch of rows in one transaction: {@code SELECT ... FOR UPDATE SKIP LOCKED}
+ * picks rows no other claim is looking at, and each is stamped with the worker's
+ * {@code lease_owner} and a {@code lease_expires} one lease from now. The row stays claimable by
+ * status, so a worker that dies simply lets its leases run out, after which another worker claims
+ * the rows again. A live worker keeps its rows with {@link #renew()}, well within the lease, but
+ * only those it is still working on: a row is renewed from its claim until it is released or
+ * {@link #abandon abandoned}, so a download that ended without an outcome is claimed again once
+ * its lease runs out, as if its worker had died.
+ * Checkpoints and the final status are written only while the worker still owns the lease; if the
+ * lease was lost to another worker, they are dropped and the call returns false.
+ *
+ * <p>Expects these columns next to the existing ones:
+ * <pre>
+ * ALTER TABLE file_downloads ADD lease_owner VARCHAR(128), ADD lease_expires TIMESTAMP
+ * CREATE INDEX file_downloads_claim ON file_downloads (status, next_attempt)
+ * </pre>
+ * Leases are compared with this node's clock, so clocks must agree to well within a lease.
+ */
+public class DownloadQueue {
+
+    /**
+     * Opens a connection to the queue's database, e.g. {@code dataSource::getConnection}.
+     */
+    @FunctionalInterface
+    public interface Connections {
+        Connection open() throws SQLException;
+    }
+
+    /**
+     * A row claimed by this worker.
+     */
+    public static final class Claim {
+
+        private final long id;
+        private final String fileName;
+        private final int retryCount;
+        private final DownloadCheckpoint checkpoint;
+
+        Claim(long id, String fileName, int retryCount, DownloadCheckpoint checkpoint) {
+            this.id = id;
+            this.fileName = fileName;
+            this.retryCount = retryCount;
+            this.checkpoint = checkpoint;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * Attempts made before this one.
+         */
+        public int getRetryCount() {
+            return retryCount;
+        }
+
+        /**
+         * The last checkpoint of an earlier attempt, or null.
+         */
+        public DownloadCheckpoint getCheckpoint() {
+            return checkpoint;
+        }
+
+        @Override
+        public String toString() {
+            return "Claim{id=" + id + ", fileName=" + fileName + ", retryCount=" + retryCount + "}";
+        }
+    }
+
+    /**
+     * How an attempt at a claimed row ended, recorded with {@link #release}.
+     */
+    public static final class Outcome {
+
+        private final long id;
+        private final String status;
+        private final String errorMessage;
+        private final Instant nextAttempt;
+        private final boolean attempted;
+        private final boolean clearCheckpoint;
+
+        private Outcome(long id, String status, String errorMessage, Instant nextAttempt, boolean attempted, boolean clearCheckpoint) {
+            this.id = id;
+            this.status = status;
+            this.errorMessage = errorMessage;
+            this.nextAttempt = nextAttempt;
+            this.attempted = attempted;
+            this.clearCheckpoint = clearCheckpoint;
+        }
+
+        /**
+         * The download completed; its checkpoint is cleared along with the status.
+         */
+        public static Outcome succeeded(long id) {
+            return new Outcome(id, "SUCCESS", null, null, true, true);
+        }
+
+        /**
+         * The download failed; the row may be claimed again from {@code nextAttempt}, keeping its
+         * checkpoint for a resume, or never if it is null.
+         */
+        public static Outcome failed(long id, String errorMessage, Instant nextAttempt) {
+            return new Outcome(id, "FAILED", errorMessage, nextAttempt, true, false);
+        }
+
+        /**
+         * The download was not attempted, e.g. because its host is known to be down, and may be
+         * claimed again from {@code nextAttempt}. Its retry count stays as it is.
+         */
+        public static Outcome deferred(long id, String reason, Instant nextAttempt) {
+            return new Outcome(id, "FAILED", reason, nextAttempt, false, false);
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+
+        public Instant getNextAttempt() {
+            return nextAttempt;
+        }
+
+        @Override
+        public String toString() {
+            return "Outcome{id=" + id + ", status=" + status + ", nextAttempt=" + nextAttempt + "}";
+        }
+    }
+
+    private final Connections connections;
+    private final String owner;
+    private final Duration lease;
+    private final int maxRetries;
+    private final Clock clock;
+    private final String claimQuery;
+    private final String leaseUpdate;
+    private final String renewUpdate;
+    private final Set<Long> active = ConcurrentHashMap.newKeySet();
+    private final String checkpointUpdate;
+    private final String statusUpdate;
+
+    /**
+     * @param owner      identifies this worker among all nodes, e.g. host name and process id
+     * @param lease      how long a claimed row stays with this worker without a renewal
+     * @param maxRetries attempts after which a failed row is no longer claimed, whatever its
+     *                   {@code next_attempt}
+     */
+    public DownloadQueue(Connections connections, String table, String owner, Duration lease, int maxRetries) {
+        this(connections, table, owner, lease, maxRetries, Clock.systemUTC());
+    }
+
+    DownloadQueue(Connections connections, String table, String owner, Duration lease, int maxRetries, Clock clock) {
+        if (lease.isZero() || lease.isNegative()) {
+            throw new IllegalArgumentException("Expected a positive lease, got " + lease + ".");
+        }
+        this.connections = connections;
+        this.owner = owner;
+        this.lease = lease;
+        this.maxRetries = maxRetries;
+        this.clock = clock;
+        this.claimQuery = "SELECT id, file_name, retry_count, bytes_transferred, remote_size, remote_mtime FROM " + table
+                + " WHERE (status = 'PENDING' OR (status = 'FAILED' AND retry_count < ? AND next_attempt <= ?))"
+                + " AND (lease_expires IS NULL OR lease_expires <= ?)"
+                + " ORDER BY id FETCH FIRST ? ROWS ONLY FOR UPDATE SKIP LOCKED";
+        this.leaseUpdate = "UPDATE " + table + " SET lease_owner = ?, lease_expires = ? WHERE id = ?";
+        this.renewUpdate = "UPDATE " + table + " SET lease_expires = ? WHERE lease_owner = ? AND id IN (";
+        this.checkpointUpdate = "UPDATE " + table + " SET bytes_transferred = ?, remote_size = ?, remote_mtime = ?"
+                + " WHERE id = ? AND lease_owner = ?";
+        this.statusUpdate = "UPDATE " + table + " SET status = ?, retry_count = retry_count + ?, last_attempt = COALESCE(?, last_attempt),"
+                + " next_attempt = ?, error_message = ?, lease_owner = NULL, lease_expires = NULL WHERE id = ? AND lease_owner = ?";
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Duration getLease() {
+        return lease;
+    }
+
+    /**
+     * Claims up to {@code max} rows that are pending, or failed and due for a retry, and not
+     * leased by a live worker. Returns fewer, or none, if that is all there is.
+     */
+    public List<Claim> claim(int max) throws SQLException {
+        if (max < 1) {
+            return Collections.emptyList();
+        }
+        Instant now = clock.instant();
+        Timestamp nowStamp = Timestamp.from(now);
+        try (Connection conn = connections.open()) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                List<Claim> claims = new ArrayList<>();
+                try (PreparedStatement stmt = conn.prepareStatement(claimQuery)) {
+                    stmt.setInt(1, maxRetries);
+                    stmt.setTimestamp(2, nowStamp);
+                    stmt.setTimestamp(3, nowStamp);
+                    stmt.setInt(4, max);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            claims.add(new Claim(rs.getLong("id"), rs.getString("file_name"), rs.getInt("retry_count"), readCheckpoint(rs)));
+                        }
+                    }
+                }
+                if (!claims.isEmpty()) {
+                    // The rows stay locked until the commit, so no other claim can take them meanwhile
+                    try (PreparedStatement stmt = conn.prepareStatement(leaseUpdate)) {
+                        Timestamp expires = Timestamp.from(now.plus(lease));
+                        for (Claim claim : claims) {
+                            stmt.setString(1, owner);
+                            stmt.setTimestamp(2, expires);
+                            stmt.setLong(3, claim.getId());
+                            stmt.addBatch();
+                        }
+                        stmt.executeBatch();
+                    }
+                }
+                conn.commit();
+                for (Claim claim : claims) {
+                    active.add(claim.getId());
+                }
+                return claims;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Extends the lease of every row this worker is still working on by one lease from now.
+     * Returns the number of rows still held.
+     */
+    public int renew() throws SQLException {
+        List<Long> ids = new ArrayList<>(active);
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        StringBuilder sql = new StringBuilder(renewUpdate);
+        for (int i = 0; i < ids.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(')');
+        try (Connection conn = connections.open();
+             PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            stmt.setTimestamp(1, Timestamp.from(clock.instant().plus(lease)));
+            stmt.setString(2, owner);
+            for (int i = 0; i < ids.size(); i++) {
+                stmt.setLong(3 + i, ids.get(i));
+            }
+            return stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Stops renewing the lease on {@code id} without recording anything, so that the row is
+     * claimed again once the lease runs out. For a worker that ends without {@link #release};
+     * does nothing after it.
+     */
+    public void abandon(long id) {
+        active.remove(id);
+    }
+
+    /**
+     * Records how far the download of {@code id} got, or clears it with null. Returns false if the
+     * row is no longer leased to this worker.
+     */
+    public boolean saveCheckpoint(long id, DownloadCheckpoint checkpoint) throws SQLException {
+        try (Connection conn = connections.open();
+             PreparedStatement stmt = conn.prepareStatement(checkpointUpdate)) {
+            setCheckpoint(stmt, id, checkpoint);
+            return stmt.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * Records the outcome of an attempt and gives up the lease. Returns false, writing nothing, if
+     * the row is no longer leased to this worker.
+     */
+    public boolean release(Outcome outcome) throws SQLException {
+        return release(Collections.singletonList(outcome))[0];
+    }
+
+    /**
+     * Records several outcomes in one transaction, as JDBC batches, and gives up their leases.
+     * Returns for each whether it was written, i.e. whether the row was still leased to this
+     * worker. Once this returns, the outcomes are committed. Either way the rows are no longer
+     * renewed; if this throws, their leases run out.
+     */
+    public boolean[] release(List<Outcome> outcomes) throws SQLException {
+        boolean[] released = new boolean[outcomes.size()];
+        if (outcomes.isEmpty()) {
+            return released;
+        }
+        try {
+            return writeOutcomes(outcomes, released);
+        } finally {
+            for (Outcome outcome : outcomes) {
+                active.remove(outcome.id);
+            }
+        }
+    }
+
+    private boolean[] writeOutcomes(List<Outcome> outcomes, boolean[] released) throws SQLException {
+        Timestamp now = Timestamp.from(clock.instant());
+        try (Connection conn = connections.open()) {
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                // Checkpoints first: the status update gives up the lease they are written under
+                try (PreparedStatement stmt = conn.prepareStatement(checkpointUpdate)) {
+                    boolean any = false;
+                    for (Outcome outcome : outcomes) {
+                        if (outcome.clearCheckpoint) {
+                            setCheckpoint(stmt, outcome.id, null);
+                            stmt.addBatch();
+                            any = true;
+                        }
+                    }
+                    if (any) {
+                        stmt.executeBatch();
+                    }
+                }
+                int[] counts;
+                try (PreparedStatement stmt = conn.prepareStatement(statusUpdate)) {
+                    for (Outcome outcome : outcomes) {
+                        stmt.setString(1, outcome.status);
+                        stmt.setInt(2, outcome.attempted ? 1 : 0);
+                        stmt.setTimestamp(3, outcome.attempted ? now : null);
+                        stmt.setTimestamp(4, outcome.nextAttempt == null ? null : Timestamp.from(outcome.nextAttempt));
+                        stmt.setString(5, outcome.errorMessage);
+                        stmt.setLong(6, outcome.id);
+                        stmt.setString(7, owner);
+                        stmt.addBatch();
+                    }
+                    counts = stmt.executeBatch();
+                }
+                conn.commit();
+                for (int i = 0; i < counts.length; i++) {
+                    // Drivers that do not count rows in batches can only be taken at their word
+                    released[i] = counts[i] == 1 || counts[i] == Statement.SUCCESS_NO_INFO;
+                }
+                return released;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    private void setCheckpoint(PreparedStatement stmt, long id, DownloadCheckpoint checkpoint) throws SQLException {
+        if (checkpoint == null) {
+            stmt.setLong(1, 0);
+            stmt.setNull(2, Types.BIGINT);
+            stmt.setNull(3, Types.INTEGER);
+        } else {
+            stmt.setLong(1, checkpoint.getOffset());
+            stmt.setLong(2, checkpoint.getRemoteSize());
+            stmt.setInt(3, checkpoint.getRemoteMtime());
+        }
+        stmt.setLong(4, id);
+        stmt.setString(5, owner);
+    }
+
+    private static DownloadCheckpoint readCheckpoint(ResultSet rs) throws SQLException {
+        long bytesTransferred = rs.getLong("bytes_transferred");
+        long remoteSize = rs.getLong("remote_size");
+        if (bytesTransferred <= 0 || rs.wasNull()) {
+            return null;
+        }
+        return new DownloadCheckpoint(bytesTransferred, remoteSize, rs.getInt("remote_mtime"));
+    }
+}
@@ -0,0 +1,259 @@
+package com.example.sftp.pool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DownloadQueueTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+    private static final Duration LEASE = Duration.ofMinutes(2);
+
+    private String url;
+    private Connection keepAlive;
+    private final MutableClock clock = new MutableClock(Instant.parse("2024-01-01T00:00:00Z"));
+
+    @Before
+    public void setUp() throws Exception {
+        url = "jdbc:h2:mem:downloads" + DATABASES.incrementAndGet() + ";LOCK_TIMEOUT=10000";
+        keepAlive = DriverManager.getConnection(url);
+        try (Statement stmt = keepAlive.createStatement()) {
+            stmt.execute("CREATE TABLE file_downloads (id BIGINT PRIMARY KEY, file_name VARCHAR(255) NOT NULL,"
+                    + " status VARCHAR(16) NOT NULL, retry_count INT DEFAULT 0 NOT NULL, last_attempt TIMESTAMP, next_attempt TIMESTAMP,"
+                    + " error_message VARCHAR(1024), bytes_transferred BIGINT DEFAULT 0 NOT NULL, remote_size BIGINT, remote_mtime INT,"
+                    + " lease_owner VARCHAR(128), lease_expires TIMESTAMP)");
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        keepAlive.close();
+    }
+
+    @Test
+    public void testWorkersClaimDisjointBatches() throws Exception {
+        insertPending(10);
+        DownloadQueue a = queue("a");
+        DownloadQueue b = queue("b");
+
+        List<DownloadQueue.Claim> first = a.claim(4);
+        List<DownloadQueue.Claim> second = b.claim(4);
+        List<DownloadQueue.Claim> third = a.claim(4);
+
+        assertEquals(4, first.size());
+        assertEquals(4, second.size());
+        assertEquals(2, third.size());
+        Set<Long> ids = new HashSet<>();
+        for (List<DownloadQueue.Claim> claims : Arrays.asList(first, second, third)) {
+            for (DownloadQueue.Claim claim : claims) {
+                assertTrue("claimed twice: " + claim, ids.add(claim.getId()));
+            }
+        }
+        assertEquals(10, ids.size());
+        assertTrue(b.claim(4).isEmpty());
+        assertEquals("a", leaseOwner(first.get(0).getId()));
+    }
+
+    @Test
+    public void testReclaimsExpiredLeases() throws Exception {
+        insertPending(3);
+        DownloadQueue a = queue("a");
+        DownloadQueue b = queue("b");
+        List<DownloadQueue.Claim> claimed = a.claim(3);
+        assertTrue(b.claim(3).isEmpty());
+
+        // a stopped renewing, e.g. because its node died
+        clock.advance(LEASE.plusSeconds(1));
+        List<DownloadQueue.Claim> reclaimed = b.claim(3);
+        assertEquals(3, reclaimed.size());
+
+        // a comes back, but its writes no longer count
+        assertFalse(a.saveCheckpoint(claimed.get(0).getId(), new DownloadCheckpoint(100, 1000, 1)));
+        assertFalse(a.release(DownloadQueue.Outcome.succeeded(claimed.get(0).getId())));
+        assertEquals(0, a.renew());
+        assertTrue(b.release(DownloadQueue.Outcome.succeeded(reclaimed.get(0).getId())));
+        assertEquals("SUCCESS", status(reclaimed.get(0).getId()));
+    }
+
+    @Test
+    public void testRenewalKeepsLeases() throws Exception {
+        insertPending(2);
+        DownloadQueue a = queue("a");
+        DownloadQueue b = queue("b");
+        a.claim(2);
+
+        clock.advance(LEASE.dividedBy(2));
+        assertEquals(2, a.renew());
+        clock.advance(LEASE.dividedBy(2).plusSeconds(1));
+        assertTrue(b.claim(2).isEmpty());
+    }
+
+    @Test
+    public void testAbandonedRowsAreNotRenewed() throws Exception {
+        insertPending(2);
+        DownloadQueue a = queue("a");
+        DownloadQueue b = queue("b");
+        List<DownloadQueue.Claim> claims = a.claim(2);
+        // The first download ended without an outcome, e.g. on a RuntimeException
+        a.abandon(claims.get(0).getId());
+
+        for (int i = 0; i < 3; i++) {
+            clock.advance(LEASE.dividedBy(2));
+            assertEquals(1, a.renew());
+        }
+        List<DownloadQueue.Claim> reclaimed = b.claim(2);
+        assertEquals(1, reclaimed.size());
+        assertEquals(claims.get(0).getId(), reclaimed.get(0).getId());
+        assertEquals("a", leaseOwner(claims.get(1).getId()));
+
+        // Released rows are not renewed either, even if the release was lost
+        assertFalse(a.release(DownloadQueue.Outcome.succeeded(claims.get(0).getId())));
+        assertTrue(a.release(DownloadQueue.Outcome.succeeded(claims.get(1).getId())));
+        assertEquals(0, a.renew());
+    }
+
+    @Test
+    public void testFailedRowsWaitForTheirNextAttempt() throws Exception {
+        insertPending(2);
+        DownloadQueue a = queue("a");
+        List<DownloadQueue.Claim> claims = a.claim(2);
+        Instant nextAttempt = clock.instant().plus(Duration.ofMinutes(5));
+        assertTrue(a.saveCheckpoint(claims.get(0).getId(), new DownloadCheckpoint(100, 1000, 7)));
+        assertTrue(a.release(DownloadQueue.Outcome.failed(claims.get(0).getId(), "Connection reset", nextAttempt)));
+        assertTrue(a.release(DownloadQueue.Outcome.succeeded(claims.get(1).getId())));
+        assertNull(leaseOwner(claims.get(0).getId()));
+
+        assertTrue(a.claim(2).isEmpty());
+        clock.advance(Duration.ofMinutes(5));
+        List<DownloadQueue.Claim> retry = a.claim(2);
+        assertEquals(1, retry.size());
+        assertEquals(1, retry.get(0).getRetryCount());
+        assertEquals(100, retry.get(0).getCheckpoint().getOffset());
+        assertEquals(7, retry.get(0).getCheckpoint().getRemoteMtime());
+
+        // The last allowed attempt fails as well
+        assertTrue(a.release(DownloadQueue.Outcome.failed(retry.get(0).getId(), "Connection reset", clock.instant())));
+        assertTrue(queue("a", 2).claim(2).isEmpty());
+    }
+
+    @Test
+    public void testDeferredRowsKeepTheirRetryCount() throws Exception {
+        insertPending(1);
+        DownloadQueue a = queue("a");
+        long id = a.claim(1).get(0).getId();
+        assertTrue(a.release(DownloadQueue.Outcome.deferred(id, "Host is failing", clock.instant().plus(Duration.ofMinutes(1)))));
+
+        assertTrue(a.claim(1).isEmpty());
+        clock.advance(Duration.ofMinutes(1));
+        List<DownloadQueue.Claim> retry = a.claim(1);
+        assertEquals(1, retry.size());
+        assertEquals(0, retry.get(0).getRetryCount());
+        assertNull(column(id, "last_attempt"));
+
+        // Given up: no next attempt
+        assertTrue(a.release(DownloadQueue.Outcome.failed(id, "No such file", null)));
+        clock.advance(Duration.ofDays(1));
+        assertTrue(a.claim(1).isEmpty());
+    }
+
+    @Test
+    public void testNodesProcessEveryRowOnce() throws Exception {
+        int rows = 500;
+        insertPending(rows);
+        ConcurrentMap<Long, String> processedBy = new ConcurrentHashMap<>();
+        AtomicInteger duplicates = new AtomicInteger();
+        ExecutorService nodes = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int node = 0; node < 8; node++) {
+                DownloadQueue queue = new DownloadQueue(() -> DriverManager.getConnection(url), "file_downloads", "node" + node,
+                        LEASE, 3);
+                workers.add(nodes.submit(() -> {
+                    List<DownloadQueue.Claim> claims;
+                    while (!(claims = queue.claim(7)).isEmpty()) {
+                        for (DownloadQueue.Claim claim : claims) {
+                            if (processedBy.putIfAbsent(claim.getId(), queue.getOwner()) != null) {
+                                duplicates.incrementAndGet();
+                            }
+                            assertTrue(queue.release(DownloadQueue.Outcome.succeeded(claim.getId())));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            nodes.shutdownNow();
+        }
+        assertEquals(0, duplicates.get());
+        assertEquals(rows, processedBy.size());
+        assertTrue("work spread over nodes", new HashSet<>(processedBy.values()).size() > 1);
+        try (Statement stmt = keepAlive.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM file_downloads WHERE status = 'SUCCESS' AND lease_owner IS NULL")) {
+            rs.next();
+            assertEquals(rows, rs.getInt(1));
+        }
+    }
+
+    private DownloadQueue queue(String owner) {
+        return queue(owner, 3);
+    }
+
+    private DownloadQueue queue(String owner, int maxRetries) {
+        return new DownloadQueue(() -> DriverManager.getConnection(url), "file_downloads", owner, LEASE, maxRetries, clock);
+    }
+
+    private void insertPending(int count) throws SQLException {
+        try (PreparedStatement stmt = keepAlive.prepareStatement("INSERT INTO file_downloads (id, file_name, status) VALUES (?, ?, 'PENDING')")) {
+            for (int i = 1; i <= count; i++) {
+                stmt.setLong(1, i);
+                stmt.setString(2, "file" + i + ".pgp");
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    private String leaseOwner(long id) throws SQLException {
+        return column(id, "lease_owner");
+    }
+
+    private String status(long id) throws SQLException {
+        return column(id, "status");
+    }
+
+    private String column(long id, String column) throws SQLException {
+        try (PreparedStatement stmt = keepAlive.prepareStatement("SELECT " + column + " FROM file_downloads WHERE id = ?")) {
+            stmt.setLong(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                assertTrue(rs.next());
+                return rs.getString(1);
+            }
+        }
+    }
+}
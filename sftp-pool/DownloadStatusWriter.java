@@ -0,0 +1,187 @@
+package com.example.sftp.pool;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records download outcomes for many workers at once, so a busy node commits one batch of status
+ * updates every few milliseconds instead of one transaction per file.
+ *
+ * <p>{@link #write} hands an outcome to a writer thread and waits until the batch holding it is
+ * committed, so an outcome is on disk before its worker moves on, as with
+ * {@link DownloadQueue#release(DownloadQueue.Outcome)}. A batch is written as soon as
+ * {@code batchSize} outcomes are waiting, or {@code maxDelay} after the first of them arrived,
+ * whichever comes first; a worker waits at most about {@code maxDelay} plus one commit. If a batch
+ * fails, every writer in it gets the exception and nothing of it is committed.
+ */
+public class DownloadStatusWriter implements AutoCloseable {
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private static final class Pending {
+
+        final DownloadQueue.Outcome outcome;
+        final CompletableFuture<Boolean> written = new CompletableFuture<>();
+        final long arrived = System.nanoTime();
+
+        Pending(DownloadQueue.Outcome outcome) {
+            this.outcome = outcome;
+        }
+    }
+
+    private final DownloadQueue queue;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final Thread writer;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong outcomes = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // Guarded by lock
+    private final List<Pending> pending = new ArrayList<>();
+    private boolean closed;
+
+    public DownloadStatusWriter(DownloadQueue queue, int batchSize, Duration maxDelay) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Expected batchSize >= 1, got " + batchSize + ".");
+        }
+        this.queue = queue;
+        this.batchSize = batchSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.writer = new Thread(this::run, "download-status-writer-" + THREADS.incrementAndGet());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records {@code outcome} and gives up its lease, returning once it is committed. Returns
+     * false, writing nothing, if the row is no longer leased to this worker.
+     *
+     * @throws SQLException if the batch could not be committed
+     */
+    public boolean write(DownloadQueue.Outcome outcome) throws SQLException, InterruptedException {
+        Pending entry = new Pending(outcome);
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Status writer is closed.");
+            }
+            pending.add(entry);
+            if (pending.size() == 1 || pending.size() >= batchSize) {
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            return entry.written.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw new SQLException("Could not record " + outcome + ".", cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Batches committed so far.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Outcomes committed so far.
+     */
+    public long getOutcomes() {
+        return outcomes.get();
+    }
+
+    private void run() {
+        List<Pending> batch;
+        while ((batch = nextBatch()) != null) {
+            List<DownloadQueue.Outcome> items = new ArrayList<>(batch.size());
+            for (Pending entry : batch) {
+                items.add(entry.outcome);
+            }
+            try {
+                boolean[] released = queue.release(items);
+                batches.incrementAndGet();
+                outcomes.addAndGet(items.size());
+                for (int i = 0; i < released.length; i++) {
+                    batch.get(i).written.complete(released[i]);
+                }
+            } catch (SQLException | RuntimeException e) {
+                for (Pending entry : batch) {
+                    entry.written.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until a batch is full or its oldest outcome has waited {@code maxDelay}, and takes it.
+     * Returns null once closed and drained.
+     */
+    private List<Pending> nextBatch() {
+        lock.lock();
+        try {
+            while (true) {
+                if (pending.isEmpty()) {
+                    if (closed) {
+                        return null;
+                    }
+                    changed.awaitUninterruptibly();
+                    continue;
+                }
+                long wait = pending.get(0).arrived + maxDelayNanos - System.nanoTime();
+                if (pending.size() >= batchSize || wait <= 0 || closed) {
+                    List<Pending> batch = new ArrayList<>(pending.subList(0, Math.min(batchSize, pending.size())));
+                    pending.subList(0, batch.size()).clear();
+                    return batch;
+                }
+                try {
+                    changed.awaitNanos(wait);
+                } catch (InterruptedException e) {
+                    // Only close() stops the writer; outcomes already accepted are still written
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes what is still waiting and stops the writer thread. If the caller is interrupted while
+     * waiting for the writer, it returns with its interrupt flag set.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.sftp.pool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DownloadStatusWriterTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private String url;
+    private Connection keepAlive;
+
+    @Before
+    public void setUp() throws Exception {
+        url = "jdbc:h2:mem:statuses" + DATABASES.incrementAndGet() + ";LOCK_TIMEOUT=10000";
+        keepAlive = DriverManager.getConnection(url);
+        try (Statement stmt = keepAlive.createStatement()) {
+            stmt.execute("CREATE TABLE file_downloads (id BIGINT PRIMARY KEY, file_name VARCHAR(255) NOT NULL,"
+                    + " status VARCHAR(16) NOT NULL, retry_count INT DEFAULT 0 NOT NULL, last_attempt TIMESTAMP, next_attempt TIMESTAMP,"
+                    + " error_message VARCHAR(1024), bytes_transferred BIGINT DEFAULT 0 NOT NULL, remote_size BIGINT, remote_mtime INT,"
+                    + " lease_owner VARCHAR(128), lease_expires TIMESTAMP)");
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        keepAlive.close();
+    }
+
+    @Test
+    public void testBatchesConcurrentWritesAndCommitsBeforeReturning() throws Exception {
+        int rows = 400;
+        insertPending(rows);
+        DownloadQueue queue = queue("a");
+        List<DownloadQueue.Claim> claims = queue.claim(rows);
+        AtomicInteger notDurable = new AtomicInteger();
+
+        ExecutorService workers = Executors.newFixedThreadPool(32);
+        try (DownloadStatusWriter writer = new DownloadStatusWriter(queue, 50, Duration.ofMillis(20))) {
+            List<Future<?>> results = new ArrayList<>();
+            for (DownloadQueue.Claim claim : claims) {
+                results.add(workers.submit(() -> {
+                    assertTrue(writer.write(DownloadQueue.Outcome.succeeded(claim.getId())));
+                    // Seen from another connection as soon as write returns
+                    if (!"SUCCESS".equals(status(claim.getId()))) {
+                        notDurable.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+            assertEquals(rows, writer.getOutcomes());
+            assertTrue(writer.getBatches() + " batches", writer.getBatches() <= rows / 4);
+        } finally {
+            workers.shutdownNow();
+        }
+        assertEquals(0, notDurable.get());
+        assertEquals(rows, count("status = 'SUCCESS' AND lease_owner IS NULL"));
+    }
+
+    @Test
+    public void testFlushesALoneWriteAfterMaxDelay() throws Exception {
+        insertPending(1);
+        DownloadQueue queue = queue("a");
+        long id = queue.claim(1).get(0).getId();
+        try (DownloadStatusWriter writer = new DownloadStatusWriter(queue, 100, Duration.ofMillis(50))) {
+            long start = System.nanoTime();
+            assertTrue(writer.write(DownloadQueue.Outcome.failed(id, "Connection reset", null)));
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(millis + " ms", millis >= 40 && millis < 5_000);
+            assertEquals(1, writer.getBatches());
+        }
+        assertEquals("FAILED", status(id));
+    }
+
+    @Test
+    public void testReportsLostLeasesPerOutcome() throws Exception {
+        insertPending(2);
+        DownloadQueue a = queue("a");
+        List<DownloadQueue.Claim> claims = a.claim(2);
+        // Row 2 was taken over by another node meanwhile
+        try (Statement stmt = keepAlive.createStatement()) {
+            stmt.executeUpdate("UPDATE file_downloads SET lease_owner = 'b' WHERE id = " + claims.get(1).getId());
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        try (DownloadStatusWriter writer = new DownloadStatusWriter(a, 2, Duration.ofSeconds(10))) {
+            Future<Boolean> first = workers.submit(() -> writer.write(DownloadQueue.Outcome.succeeded(claims.get(0).getId())));
+            Future<Boolean> second = workers.submit(() -> writer.write(DownloadQueue.Outcome.succeeded(claims.get(1).getId())));
+            assertTrue(first.get(5, TimeUnit.SECONDS));
+            assertFalse(second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, writer.getBatches());
+        } finally {
+            workers.shutdownNow();
+        }
+        assertEquals("SUCCESS", status(claims.get(0).getId()));
+        assertEquals("PENDING", status(claims.get(1).getId()));
+    }
+
+    @Test
+    public void testFailsEveryWriterOfAFailedBatch() throws Exception {
+        insertPending(1);
+        DownloadQueue working = queue("a");
+        long id = working.claim(1).get(0).getId();
+        DownloadQueue broken = new DownloadQueue(() -> DriverManager.getConnection(url), "missing_table", "a", Duration.ofMinutes(2), 3);
+        try (DownloadStatusWriter writer = new DownloadStatusWriter(broken, 10, Duration.ofMillis(10))) {
+            try {
+                writer.write(DownloadQueue.Outcome.succeeded(id));
+                fail("a batch that cannot be written should not be acknowledged");
+            } catch (SQLException expected) {
+            }
+            assertEquals(0, writer.getOutcomes());
+        }
+        assertEquals("PENDING", status(id));
+    }
+
+    private DownloadQueue queue(String owner) {
+        return new DownloadQueue(() -> DriverManager.getConnection(url), "file_downloads", owner, Duration.ofMinutes(2), 3);
+    }
+
+    private void insertPending(int count) throws SQLException {
+        try (PreparedStatement stmt = keepAlive.prepareStatement("INSERT INTO file_downloads (id, file_name, status) VALUES (?, ?, 'PENDING')")) {
+            for (int i = 1; i <= count; i++) {
+                stmt.setLong(1, i);
+                stmt.setString(2, "file" + i + ".pgp");
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    private String status(long id) throws SQLException {
+        try (Connection conn = DriverManager.getConnection(url);
+             PreparedStatement stmt = conn.prepareStatement("SELECT status FROM file_downloads WHERE id = ?")) {
+            stmt.setLong(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                assertTrue(rs.next());
+                return rs.getString(1);
+            }
+        }
+    }
+
+    private int count(String condition) throws SQLException {
+        try (Statement stmt = keepAlive.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM file_downloads WHERE " + condition)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
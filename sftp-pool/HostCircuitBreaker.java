@@ -0,0 +1,138 @@
+package com.example.sftp.pool;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * One circuit breaker per host, so that while a partner is down its transfers are put off
+ * without each of them waiting for a connection timeout, and workers stay free for the others.
+ *
+ * <p>A host starts {@link State#CLOSED}. After {@code failureThreshold} host failures in a row
+ * (see {@link RetryPolicy.FailureKind#isHostFailure()}) it opens: {@link #tryAcquire} refuses it
+ * for {@code openDuration}. Then it is {@link State#HALF_OPEN}: a single caller is let through as a
+ * probe. If the probe succeeds the host closes again; if it fails the host opens for another
+ * {@code openDuration}. A probe that reports nothing within {@code openDuration}, e.g. because
+ * its worker died, is given up and the next caller probes instead.
+ */
+public class HostCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final class Host {
+
+        // Guarded by this
+        State state = State.CLOSED;
+        int failures;
+        Instant openUntil;
+        Instant probeUntil;
+    }
+
+    private final int failureThreshold;
+    private final Duration openDuration;
+    private final Clock clock;
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    public HostCircuitBreaker(int failureThreshold, Duration openDuration) {
+        this(failureThreshold, openDuration, Clock.systemUTC());
+    }
+
+    HostCircuitBreaker(int failureThreshold, Duration openDuration, Clock clock) {
+        if (failureThreshold < 1 || openDuration.isZero() || openDuration.isNegative()) {
+            throw new IllegalArgumentException("Expected failureThreshold >= 1 and a positive openDuration, got "
+                    + failureThreshold + " and " + openDuration + ".");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.clock = clock;
+    }
+
+    /**
+     * Whether a transfer to {@code host} may go ahead now. Once the host is half-open, a true
+     * makes the caller its probe, which must report back through {@link #onSuccess} or
+     * {@link #onFailure}.
+     */
+    public boolean tryAcquire(String host) {
+        Host h = host(host);
+        Instant now = clock.instant();
+        synchronized (h) {
+            switch (h.state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (now.isBefore(h.openUntil)) {
+                        return false;
+                    }
+                    h.state = State.HALF_OPEN;
+                    h.probeUntil = now.plus(openDuration);
+                    return true;
+                default:
+                    if (now.isBefore(h.probeUntil)) {
+                        return false;
+                    }
+                    h.probeUntil = now.plus(openDuration);
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Reports that a transfer reached {@code host}, whether or not the file itself was fine.
+     */
+    public void onSuccess(String host) {
+        Host h = host(host);
+        synchronized (h) {
+            h.state = State.CLOSED;
+            h.failures = 0;
+        }
+    }
+
+    /**
+     * Reports a host failure of {@code host}.
+     */
+    public void onFailure(String host) {
+        Host h = host(host);
+        Instant now = clock.instant();
+        synchronized (h) {
+            h.failures++;
+            if (h.state == State.HALF_OPEN || h.state == State.CLOSED && h.failures >= failureThreshold) {
+                h.state = State.OPEN;
+                h.openUntil = now.plus(openDuration);
+            }
+        }
+    }
+
+    public State state(String host) {
+        Host h = host(host);
+        synchronized (h) {
+            return h.state;
+        }
+    }
+
+    /**
+     * The earliest time {@link #tryAcquire} may let a transfer to {@code host} through, which is
+     * now for a closed host.
+     */
+    public Instant retryAt(String host) {
+        Host h = host(host);
+        Instant now = clock.instant();
+        synchronized (h) {
+            switch (h.state) {
+                case CLOSED:
+                    return now;
+                case OPEN:
+                    return h.openUntil.isAfter(now) ? h.openUntil : now;
+                default:
+                    return h.probeUntil.isAfter(now) ? h.probeUntil : now;
+            }
+        }
+    }
+
+    private Host host(String host) {
+        return hosts.computeIfAbsent(host, k -> new Host());
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.sftp.pool;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.Assert.*;
+
+public class HostCircuitBreakerTest {
+
+    private static final Duration OPEN = Duration.ofMinutes(1);
+
+    private final MutableClock clock = new MutableClock(Instant.parse("2024-01-01T00:00:00Z"));
+    private final HostCircuitBreaker breaker = new HostCircuitBreaker(3, OPEN, clock);
+
+    @Test
+    public void testOpensAfterFailuresInARow() {
+        breaker.onFailure("down");
+        breaker.onFailure("down");
+        breaker.onSuccess("down");
+        breaker.onFailure("down");
+        breaker.onFailure("down");
+        assertEquals("a success resets the count", HostCircuitBreaker.State.CLOSED, breaker.state("down"));
+
+        breaker.onFailure("down");
+        assertEquals(HostCircuitBreaker.State.OPEN, breaker.state("down"));
+        assertFalse(breaker.tryAcquire("down"));
+        assertEquals(clock.instant().plus(OPEN), breaker.retryAt("down"));
+
+        assertTrue("other hosts go on", breaker.tryAcquire("up"));
+        assertEquals(clock.instant(), breaker.retryAt("up"));
+    }
+
+    @Test
+    public void testLetsOneProbeThroughWhenHalfOpen() {
+        open("down");
+        clock.advance(OPEN);
+
+        assertTrue(breaker.tryAcquire("down"));
+        assertEquals(HostCircuitBreaker.State.HALF_OPEN, breaker.state("down"));
+        assertFalse("only one probe at a time", breaker.tryAcquire("down"));
+
+        breaker.onSuccess("down");
+        assertEquals(HostCircuitBreaker.State.CLOSED, breaker.state("down"));
+        assertTrue(breaker.tryAcquire("down"));
+    }
+
+    @Test
+    public void testReopensWhenTheProbeFails() {
+        open("down");
+        clock.advance(OPEN);
+        assertTrue(breaker.tryAcquire("down"));
+
+        breaker.onFailure("down");
+        assertEquals(HostCircuitBreaker.State.OPEN, breaker.state("down"));
+        assertFalse(breaker.tryAcquire("down"));
+        clock.advance(OPEN.minusSeconds(1));
+        assertFalse(breaker.tryAcquire("down"));
+        clock.advance(Duration.ofSeconds(1));
+        assertTrue(breaker.tryAcquire("down"));
+    }
+
+    @Test
+    public void testReplacesAProbeThatNeverReported() {
+        open("down");
+        clock.advance(OPEN);
+        assertTrue(breaker.tryAcquire("down"));
+
+        clock.advance(OPEN.minusSeconds(1));
+        assertFalse(breaker.tryAcquire("down"));
+        clock.advance(Duration.ofSeconds(1));
+        assertTrue("the probe's worker is presumed dead", breaker.tryAcquire("down"));
+    }
+
+    private void open(String host) {
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure(host);
+        }
+        assertEquals(HostCircuitBreaker.State.OPEN, breaker.state(host));
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.sftp.pool;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fair permits per host, and optionally over all hosts, for work whose executor does not bound
+ * its concurrency, e.g. one virtual thread per task. Waiting for a permit parks the thread
+ * without holding a monitor, so a virtual thread waiting here leaves its carrier free.
+ */
+public class HostPermits {
+
+    private final int maxPerHost;
+    private final Semaphore total;
+    private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxTotal permits over all hosts, or 0 for no limit beyond the per-host one
+     */
+    public HostPermits(int maxPerHost, int maxTotal) {
+        if (maxPerHost < 1 || maxTotal < 0) {
+            throw new IllegalArgumentException("Expected maxPerHost >= 1 and maxTotal >= 0, got " + maxPerHost + " and " + maxTotal + ".");
+        }
+        this.maxPerHost = maxPerHost;
+        this.total = maxTotal == 0 ? null : new Semaphore(maxTotal, true);
+    }
+
+    /**
+     * Waits for a permit for {@code host}, then for one of the total. Each successful call must
+     * be matched by one {@link #release}.
+     */
+    public void acquire(String host) throws InterruptedException {
+        Semaphore permits = permits(host);
+        permits.acquire();
+        if (total != null) {
+            try {
+                total.acquire();
+            } catch (InterruptedException e) {
+                permits.release();
+                throw e;
+            }
+        }
+    }
+
+    public void release(String host) {
+        if (total != null) {
+            total.release();
+        }
+        permits(host).release();
+    }
+
+    /**
+     * Permits of {@code host} not taken right now.
+     */
+    public int available(String host) {
+        return permits(host).availablePermits();
+    }
+
+    private Semaphore permits(String host) {
+        return hosts.computeIfAbsent(host, h -> new Semaphore(maxPerHost, true));
+    }
+}
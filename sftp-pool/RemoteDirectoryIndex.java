@@ -0,0 +1,328 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * What was last seen of a remote directory, file by file (name, size and modification time), so
+ * a poll transfers only what is new or changed since, instead of the whole listing.
+ *
+ * <p>{@link #diff(Collection)} compares a listing with the index without changing it, and
+ * {@link #scan()} does the same for a listing that streams in, telling for each entry whether it
+ * needs a transfer; {@link #commit(DirectoryChanges, Collection)} then records the files that
+ * were transferred and forgets the deleted ones. Files whose transfer failed keep their old
+ * state, so the next poll reports them again.
+ *
+ * <p>Entries are held in three parallel arrays sorted by name and looked up by binary search, so
+ * a directory of a few hundred thousand files costs a few bytes per file beyond its name. The
+ * index file is rewritten on every commit, through a temporary file and an atomic rename,
+ * gzip-compressed with each name stored as the length of the prefix it shares with the previous
+ * name plus the rest. Commits hold a {@link ReentrantLock} rather than the monitor while they
+ * write, so a virtual thread waiting for one releases its carrier.
+ */
+public class RemoteDirectoryIndex {
+
+    private static final int MAGIC = 0x53494458; // "SIDX"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final Comparator<ChannelSftp.LsEntry> BY_NAME = Comparator.comparing(ChannelSftp.LsEntry::getFilename);
+
+    private final Path file;
+    private final ReentrantLock lock = new ReentrantLock();
+    private String[] names;
+    private long[] sizes;
+    private int[] mtimes;
+
+    /**
+     * Opens the index kept in {@code file}, or an empty one if the file does not exist yet.
+     *
+     * @throws IOException if the file exists but cannot be read as an index
+     */
+    public RemoteDirectoryIndex(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            load();
+        } else {
+            names = new String[0];
+            sizes = new long[0];
+            mtimes = new int[0];
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return names.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compares {@code listing} with the index. Directories, {@code .} and {@code ..} are ignored.
+     */
+    public DirectoryChanges diff(Collection<ChannelSftp.LsEntry> listing) {
+        Scan scan = scan(true);
+        for (ChannelSftp.LsEntry entry : listing) {
+            scan.offer(entry);
+        }
+        return scan.finish(true);
+    }
+
+    /**
+     * Starts comparing a listing that arrives entry by entry, e.g. from a {@link RemoteListing},
+     * with the index as it is now. New and changed entries are only counted, since the caller
+     * gets each of them from {@link Scan#offer} as it goes, so a first scan of a large directory
+     * keeps no more than the index does.
+     */
+    public Scan scan() {
+        return scan(false);
+    }
+
+    private Scan scan(boolean keepEntries) {
+        lock.lock();
+        try {
+            return new Scan(names, sizes, mtimes, keepEntries);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One pass of a listing over the index. Each entry is looked up by binary search and the
+     * entries of the index seen so far are marked in a bit set, so what was not seen is known to be
+     * deleted once the listing is complete.
+     */
+    public static final class Scan {
+
+        private final String[] names;
+        private final long[] sizes;
+        private final int[] mtimes;
+        private final BitSet seen;
+        private final boolean keepEntries;
+        private final List<ChannelSftp.LsEntry> added = new ArrayList<>();
+        private final List<ChannelSftp.LsEntry> changed = new ArrayList<>();
+        private int addedCount;
+        private int changedCount;
+        private int unchanged;
+
+        private Scan(String[] names, long[] sizes, int[] mtimes, boolean keepEntries) {
+            this.names = names;
+            this.sizes = sizes;
+            this.mtimes = mtimes;
+            this.seen = new BitSet(names.length);
+            this.keepEntries = keepEntries;
+        }
+
+        /**
+         * Returns true if {@code entry} is a file that is new or changed since it was recorded.
+         * Directories, {@code .} and {@code ..} are ignored.
+         */
+        public synchronized boolean offer(ChannelSftp.LsEntry entry) {
+            String name = entry.getFilename();
+            if (entry.getAttrs().isDir() || ".".equals(name) || "..".equals(name)) {
+                return false;
+            }
+            int i = Arrays.binarySearch(names, name);
+            if (i < 0) {
+                addedCount++;
+                if (keepEntries) {
+                    added.add(entry);
+                }
+                return true;
+            }
+            seen.set(i);
+            SftpATTRS attrs = entry.getAttrs();
+            if (sizes[i] == attrs.getSize() && mtimes[i] == attrs.getMTime()) {
+                unchanged++;
+                return false;
+            }
+            changedCount++;
+            if (keepEntries) {
+                changed.add(entry);
+            }
+            return true;
+        }
+
+        /**
+         * The changes found, each list sorted by name. Files not seen are reported deleted only if
+         * {@code listingComplete}; a listing that was cut short says nothing about them.
+         */
+        public synchronized DirectoryChanges finish(boolean listingComplete) {
+            List<String> deleted = new ArrayList<>();
+            if (listingComplete) {
+                for (int i = seen.nextClearBit(0); i < names.length; i = seen.nextClearBit(i + 1)) {
+                    deleted.add(names[i]);
+                }
+            }
+            List<ChannelSftp.LsEntry> sortedAdded = new ArrayList<>(added);
+            List<ChannelSftp.LsEntry> sortedChanged = new ArrayList<>(changed);
+            sortedAdded.sort(BY_NAME);
+            sortedChanged.sort(BY_NAME);
+            return new DirectoryChanges(sortedAdded, sortedChanged, addedCount, changedCount, deleted, unchanged);
+        }
+    }
+
+    /**
+     * Records {@code transferred}, typically the successful part of {@code changes.getModified()},
+     * drops {@code changes.getDeleted()} and writes the index to its file.
+     */
+    public void commit(DirectoryChanges changes, Collection<ChannelSftp.LsEntry> transferred) throws IOException {
+        lock.lock();
+        try {
+            merge(changes, transferred);
+            save();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void merge(DirectoryChanges changes, Collection<ChannelSftp.LsEntry> transferred) {
+        List<ChannelSftp.LsEntry> updates = new ArrayList<>(transferred);
+        updates.sort(BY_NAME);
+        Set<String> deleted = new HashSet<>(changes.getDeleted());
+
+        int capacity = names.length + updates.size();
+        String[] newNames = new String[capacity];
+        long[] newSizes = new long[capacity];
+        int[] newMtimes = new int[capacity];
+        int n = 0;
+        int i = 0;
+        int u = 0;
+        while (i < names.length || u < updates.size()) {
+            int order = i == names.length ? 1 : u == updates.size() ? -1 : names[i].compareTo(updates.get(u).getFilename());
+            if (order < 0) {
+                if (!deleted.contains(names[i])) {
+                    newNames[n] = names[i];
+                    newSizes[n] = sizes[i];
+                    newMtimes[n++] = mtimes[i];
+                }
+                i++;
+            } else {
+                ChannelSftp.LsEntry entry = updates.get(u++);
+                if (n > 0 && newNames[n - 1].equals(entry.getFilename())) {
+                    n--; // listed twice; the later one wins
+                }
+                newNames[n] = entry.getFilename();
+                newSizes[n] = entry.getAttrs().getSize();
+                newMtimes[n++] = entry.getAttrs().getMTime();
+                if (order == 0) {
+                    i++;
+                }
+            }
+        }
+        names = Arrays.copyOf(newNames, n);
+        sizes = Arrays.copyOf(newSizes, n);
+        mtimes = Arrays.copyOf(newMtimes, n);
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file), BUFFER_SIZE), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a remote directory index.");
+            }
+            int count = in.readInt();
+            names = new String[count];
+            sizes = new long[count];
+            mtimes = new int[count];
+            byte[] name = new byte[256];
+            for (int i = 0; i < count; i++) {
+                int shared = readVarInt(in);
+                int length = shared + readVarInt(in);
+                if (length > name.length) {
+                    name = Arrays.copyOf(name, Math.max(length, name.length * 2));
+                }
+                in.readFully(name, shared, length - shared);
+                names[i] = new String(name, 0, length, StandardCharsets.UTF_8);
+                sizes[i] = readVarLong(in);
+                mtimes[i] = in.readInt();
+            }
+        }
+    }
+
+    private void save() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(Files.newOutputStream(temp), BUFFER_SIZE), BUFFER_SIZE))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(names.length);
+                byte[] previous = new byte[0];
+                for (int i = 0; i < names.length; i++) {
+                    byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+                    int shared = 0;
+                    int max = Math.min(previous.length, name.length);
+                    while (shared < max && previous[shared] == name[shared]) {
+                        shared++;
+                    }
+                    writeVarInt(out, shared);
+                    writeVarInt(out, name.length - shared);
+                    out.write(name, shared, name.length - shared);
+                    writeVarLong(out, sizes[i]);
+                    out.writeInt(mtimes[i]);
+                    previous = name;
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        long value = readVarLong(in);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt remote directory index.");
+        }
+        return (int) value;
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt remote directory index.");
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class RemoteDirectoryIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SshServer server;
+    private SftpConnectionPool pool;
+    private SftpEndpoint endpoint;
+    private Path inbox;
+    private Path indexFile;
+
+    @Before
+    public void setUp() throws Exception {
+        Path root = folder.newFolder("root").toPath();
+        inbox = Files.createDirectory(root.resolve("inbox"));
+        indexFile = folder.getRoot().toPath().resolve("state/inbox.idx");
+
+        server = SshServer.setUpDefaultServer();
+        server.setPort(0);
+        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(folder.getRoot().toPath().resolve("hostkey.ser")));
+        server.setPasswordAuthenticator((user, password, session) -> "test".equals(user) && "secret".equals(password));
+        server.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        server.setFileSystemFactory(new VirtualFileSystemFactory(root));
+        server.start();
+
+        endpoint = SftpEndpoint.builder("localhost", server.getPort(), "test").password("secret").build();
+        pool = new SftpConnectionPool(SftpPoolConfig.builder().evictionInterval(Duration.ZERO).build());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        server.stop(true);
+    }
+
+    @Test
+    public void testReportsAddedChangedAndDeletedFiles() throws Exception {
+        write("a.pgp", 10);
+        write("b.pgp", 20);
+        write("c.pgp", 30);
+        Files.createDirectory(inbox.resolve("archive"));
+        RemoteDirectoryIndex index = new RemoteDirectoryIndex(indexFile);
+
+        DirectoryChanges first = index.diff(list());
+        assertEquals(list("a.pgp", "b.pgp", "c.pgp"), names(first.getAdded()));
+        assertTrue(first.getChanged().isEmpty());
+        index.commit(first, first.getModified());
+
+        DirectoryChanges quiet = index.diff(list());
+        assertTrue(quiet.isEmpty());
+        assertEquals(3, quiet.getUnchanged());
+
+        write("b.pgp", 21);
+        Files.setLastModifiedTime(inbox.resolve("c.pgp"), FileTime.fromMillis(Files.getLastModifiedTime(inbox.resolve("c.pgp")).toMillis() + 60_000));
+        Files.delete(inbox.resolve("a.pgp"));
+        write("d.pgp", 40);
+        DirectoryChanges changes = index.diff(list());
+        assertEquals(list("d.pgp"), names(changes.getAdded()));
+        assertEquals(list("b.pgp", "c.pgp"), names(changes.getChanged()));
+        assertEquals(list("a.pgp"), changes.getDeleted());
+        assertEquals(0, changes.getUnchanged());
+        index.commit(changes, changes.getModified());
+
+        assertTrue(index.diff(list()).isEmpty());
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void testReportsFailedTransfersAgainAfterRestart() throws Exception {
+        write("a.pgp", 10);
+        write("b.pgp", 20);
+        RemoteDirectoryIndex index = new RemoteDirectoryIndex(indexFile);
+        DirectoryChanges changes = index.diff(list());
+        // Only a.pgp made it
+        index.commit(changes, changes.getModified().subList(0, 1));
+
+        RemoteDirectoryIndex reopened = new RemoteDirectoryIndex(indexFile);
+        DirectoryChanges next = reopened.diff(list());
+        assertEquals(list("b.pgp"), names(next.getAdded()));
+        assertEquals(1, next.getUnchanged());
+    }
+
+    @Test
+    public void testStaysCompactForLargeDirectories() throws Exception {
+        int count = 5_000;
+        for (int i = 0; i < count; i++) {
+            Files.createFile(inbox.resolve(String.format("PAYMENTS_%08d.csv.pgp", i)));
+        }
+        RemoteDirectoryIndex index = new RemoteDirectoryIndex(indexFile);
+        DirectoryChanges changes = index.diff(list());
+        assertEquals(count, changes.getAdded().size());
+        index.commit(changes, changes.getModified());
+
+        // 27-character names shared mostly with their predecessor take a couple of bytes each
+        assertTrue(Files.size(indexFile) + " bytes", Files.size(indexFile) < count * 4L);
+        RemoteDirectoryIndex reopened = new RemoteDirectoryIndex(indexFile);
+        assertEquals(count, reopened.size());
+        assertEquals(count, reopened.diff(list()).getUnchanged());
+    }
+
+    @Test
+    public void testRejectsForeignFile() throws Exception {
+        Files.createDirectories(indexFile.getParent());
+        Files.write(indexFile, new byte[]{1, 2, 3});
+        try {
+            new RemoteDirectoryIndex(indexFile);
+            fail("a file that is not an index should not load");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void write(String name, int size) throws Exception {
+        Files.write(inbox.resolve(name), new byte[size]);
+    }
+
+    private List<ChannelSftp.LsEntry> list() throws Exception {
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            List<ChannelSftp.LsEntry> entries = new ArrayList<>();
+            for (Object entry : lease.channel().ls("inbox")) {
+                entries.add((ChannelSftp.LsEntry) entry);
+            }
+            return entries;
+        }
+    }
+
+    private static List<String> list(String... names) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, names);
+        return list;
+    }
+
+    private static List<String> names(List<ChannelSftp.LsEntry> entries) {
+        return entries.stream().map(ChannelSftp.LsEntry::getFilename).collect(Collectors.toList());
+    }
+}
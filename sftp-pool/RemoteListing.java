@@ -0,0 +1,295 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Lists a remote directory lazily: entries are handed out as the server returns them, instead of
+ * being collected into one {@code Vector} first, so the first transfer of a directory of a few
+ * hundred thousand files starts after one round trip and memory holds at most {@code capacity}
+ * entries.
+ *
+ * <p>The listing runs on its own thread through {@link ChannelSftp#ls(String, ChannelSftp.LsEntrySelector)}
+ * and feeds a bounded queue; when the consumer falls behind, the listing thread blocks and stops
+ * reading further entries from the server. The filter is applied on the listing thread, so entries
+ * it rejects are never queued. {@link #close()} cancels the listing: the selector breaks off at the
+ * next entry and the channel is released, or dropped if it was leased from a pool, since the
+ * server may still be sending entries on it.
+ *
+ * <p>{@link #hasNext()} returns false once the listing has ended, whether it completed, failed or
+ * was cancelled; {@link #isComplete()} and {@link #getFailure()} tell which.
+ */
+public class RemoteListing implements Iterator<ChannelSftp.LsEntry>, AutoCloseable {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final Object END = new Object();
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private final BlockingQueue<Object> queue;
+    private volatile boolean cancelled;
+    private volatile boolean complete;
+    private volatile Exception failure;
+    private Object next;
+    private boolean ended;
+
+    private RemoteListing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Expected capacity >= 1, got " + capacity + ".");
+        }
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Lists {@code path} over a channel leased from {@code pool}, which is returned when the
+     * listing completes and dropped if it failed or was cancelled.
+     */
+    public static RemoteListing open(SftpConnectionPool pool, SftpEndpoint endpoint, String path,
+                                     Predicate<ChannelSftp.LsEntry> filter, int capacity) throws JSchException {
+        RemoteListing listing = new RemoteListing(capacity);
+        SftpLease lease = pool.borrow(endpoint);
+        listing.start(() -> {
+            try (SftpLease l = lease) {
+                listing.list(l.channel(), path, filter);
+                if (!listing.complete) {
+                    // After a BREAK, ls stops reading while READDIR replies may still be in flight
+                    l.invalidate();
+                }
+            }
+        });
+        return listing;
+    }
+
+    /**
+     * Lists {@code path} over {@code channel}, which must not be used for anything else until the
+     * listing has ended.
+     */
+    public static RemoteListing open(ChannelSftp channel, String path, Predicate<ChannelSftp.LsEntry> filter, int capacity) {
+        RemoteListing listing = new RemoteListing(capacity);
+        listing.start(() -> listing.list(channel, path, filter));
+        return listing;
+    }
+
+    private void start(Runnable task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } finally {
+                // Only once the channel is released, so a consumer that sees the end can reuse it
+                enqueueEnd();
+            }
+        }, "sftp-list-" + THREADS.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the listing to its end, recording whether it completed or why it failed.
+     */
+    private void list(ChannelSftp channel, String path, Predicate<ChannelSftp.LsEntry> filter) {
+        try {
+            channel.ls(path, entry -> {
+                if (cancelled) {
+                    return ChannelSftp.LsEntrySelector.BREAK;
+                }
+                if (filter.test(entry) && !enqueue(entry)) {
+                    return ChannelSftp.LsEntrySelector.BREAK;
+                }
+                return ChannelSftp.LsEntrySelector.CONTINUE;
+            });
+            complete = !cancelled;
+        } catch (SftpException | RuntimeException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Waits for room in the queue. Returns false if the listing was cancelled meanwhile.
+     */
+    private boolean enqueue(Object entry) {
+        try {
+            while (!cancelled) {
+                if (queue.offer(entry, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelled = true;
+        }
+        return false;
+    }
+
+    private void enqueueEnd() {
+        while (true) {
+            if (cancelled) {
+                // Nobody wants the entries left in the queue any more
+                queue.clear();
+            }
+            try {
+                if (queue.offer(END, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * Waits for the next entry, or the end of the listing. If the caller is interrupted, the
+     * listing is cancelled and this returns false with the interrupt flag set.
+     */
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (ended) {
+            return false;
+        }
+        try {
+            next = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            return false;
+        }
+        if (next == END) {
+            next = null;
+            ended = true;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public ChannelSftp.LsEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ChannelSftp.LsEntry entry = (ChannelSftp.LsEntry) next;
+        next = null;
+        return entry;
+    }
+
+    /**
+     * Whether every entry of the directory went through the filter. Only meaningful once
+     * {@link #hasNext()} returned false.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Why the listing ended early, or null if it completed or was cancelled.
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * Cancels the listing if it is still running. Entries not taken yet are discarded and
+     * {@link #hasNext()} returns false from now on.
+     */
+    @Override
+    public void close() {
+        cancelled = true;
+        ended = true;
+        next = null;
+    }
+
+    /**
+     * Everything but directories, {@code .} and {@code ..}.
+     */
+    public static Predicate<ChannelSftp.LsEntry> files() {
+        return entry -> !entry.getAttrs().isDir() && !".".equals(entry.getFilename()) && !"..".equals(entry.getFilename());
+    }
+
+    /**
+     * Files whose name matches {@code glob}, where {@code *} matches any run of characters,
+     * {@code ?} any one character, {@code [abc]} or {@code [a-z]} one of a set and
+     * {@code {pgp,gpg}} one of the alternatives.
+     */
+    public static Predicate<ChannelSftp.LsEntry> glob(String glob) {
+        return regex(Pattern.compile(globToRegex(glob)));
+    }
+
+    /**
+     * Files whose whole name matches {@code pattern}.
+     */
+    public static Predicate<ChannelSftp.LsEntry> regex(Pattern pattern) {
+        return files().and(entry -> pattern.matcher(entry.getFilename()).matches());
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder(glob.length() + 8);
+        boolean inGroup = false;
+        boolean inClass = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                } else if (c == '\\' || c == '[' || c == '&') {
+                    regex.append('\\');
+                }
+                regex.append(c);
+                continue;
+            }
+            switch (c) {
+                case '*':
+                    regex.append(".*");
+                    break;
+                case '?':
+                    regex.append('.');
+                    break;
+                case '[':
+                    inClass = true;
+                    regex.append('[');
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '!') {
+                        regex.append('^');
+                        i++;
+                    }
+                    break;
+                case '{':
+                    if (inGroup) {
+                        throw new IllegalArgumentException("Nested group in glob " + glob + ".");
+                    }
+                    inGroup = true;
+                    regex.append("(?:");
+                    break;
+                case '}':
+                    if (!inGroup) {
+                        throw new IllegalArgumentException("Unmatched } in glob " + glob + ".");
+                    }
+                    inGroup = false;
+                    regex.append(')');
+                    break;
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+                default:
+                    if ("\\.^$|()+]}".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+            }
+        }
+        if (inClass || inGroup) {
+            throw new IllegalArgumentException("Unclosed " + (inClass ? "[" : "{") + " in glob " + glob + ".");
+        }
+        return regex.toString();
+    }
+}
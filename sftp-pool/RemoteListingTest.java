@@ -0,0 +1,160 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class RemoteListingTest {
+
+    private static final int FILES = 3_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SshServer server;
+    private SftpConnectionPool pool;
+    private SftpEndpoint endpoint;
+    private Path inbox;
+
+    @Before
+    public void setUp() throws Exception {
+        Path root = folder.newFolder("root").toPath();
+        inbox = Files.createDirectory(root.resolve("inbox"));
+        for (int i = 0; i < FILES; i++) {
+            Files.write(inbox.resolve(String.format("PAYMENTS_%05d.csv.pgp", i)), new byte[i % 100]);
+        }
+        Files.createFile(inbox.resolve("README.txt"));
+        Files.createDirectory(inbox.resolve("archive.pgp"));
+
+        server = SshServer.setUpDefaultServer();
+        server.setPort(0);
+        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(folder.getRoot().toPath().resolve("hostkey.ser")));
+        server.setPasswordAuthenticator((user, password, session) -> "test".equals(user) && "secret".equals(password));
+        server.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        server.setFileSystemFactory(new VirtualFileSystemFactory(root));
+        server.start();
+
+        endpoint = SftpEndpoint.builder("localhost", server.getPort(), "test").password("secret").build();
+        pool = new SftpConnectionPool(SftpPoolConfig.builder().maxSessions(1).maxChannelsPerSession(4).evictionInterval(Duration.ZERO).build());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        server.stop(true);
+    }
+
+    @Test
+    public void testStreamsMatchingFilesOnly() throws Exception {
+        List<String> names = new ArrayList<>();
+        try (RemoteListing listing = RemoteListing.open(pool, endpoint, "inbox", RemoteListing.glob("*.pgp"), 16)) {
+            while (listing.hasNext()) {
+                names.add(listing.next().getFilename());
+            }
+            assertTrue(listing.isComplete());
+            assertNull(listing.getFailure());
+        }
+        assertEquals(FILES, names.size());
+        assertTrue(names.stream().allMatch(name -> name.startsWith("PAYMENTS_")));
+        assertEquals(0, pool.stats(endpoint).getActiveChannels());
+    }
+
+    @Test
+    public void testHoldsBackAndCancelsListing() throws Exception {
+        AtomicInteger filtered = new AtomicInteger();
+        // Closing early is what is tested, so the listing is closed by hand rather than by a
+        // try-with-resources; the pool is closed after every test either way
+        RemoteListing listing = RemoteListing.open(pool, endpoint, "inbox", entry -> filtered.incrementAndGet() > 0, 4);
+        listing.next();
+        listing.next();
+        Thread.sleep(300);
+        // Two taken, four queued and one waiting for room
+        assertTrue(filtered.get() + " entries filtered", filtered.get() <= 7);
+
+        listing.close();
+        assertFalse(listing.hasNext());
+        assertFalse(listing.isComplete());
+        // The listing channel is dropped, as replies may still be in flight on it, and the pool
+        // opens a fresh one
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (pool.stats(endpoint).getActiveChannels() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.stats(endpoint).getActiveChannels());
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            assertEquals(FILES + 4, lease.channel().ls("inbox").size());
+        }
+        assertEquals(1, pool.stats(endpoint).getChannelsDestroyed());
+    }
+
+    @Test
+    public void testReportsFailedListing() throws Exception {
+        try (RemoteListing listing = RemoteListing.open(pool, endpoint, "missing", RemoteListing.files(), 16)) {
+            assertFalse(listing.hasNext());
+            assertFalse(listing.isComplete());
+            assertTrue(listing.getFailure() instanceof SftpException);
+        }
+        assertEquals(0, pool.stats(endpoint).getActiveChannels());
+    }
+
+    @Test
+    public void testFeedsTransfersWhileListing() throws Exception {
+        RemoteDirectoryIndex index = new RemoteDirectoryIndex(folder.getRoot().toPath().resolve("inbox.idx"));
+        for (int round = 0; round < 2; round++) {
+            RemoteDirectoryIndex.Scan scan = index.scan();
+            List<ChannelSftp.LsEntry> transferred = Collections.synchronizedList(new ArrayList<>());
+            boolean complete;
+            try (SftpTransferEngine engine = new SftpTransferEngine(pool, 2, 2);
+                 RemoteListing listing = RemoteListing.open(pool, endpoint, "inbox",
+                         RemoteListing.regex(Pattern.compile("PAYMENTS_000\\d\\d\\.csv\\.pgp")).and(scan::offer), 8)) {
+                engine.run(endpoint, listing, (channel, entry) -> channel.stat("inbox/" + entry.getFilename()).getSize(), outcome -> {
+                    assertTrue(outcome.isSucceeded());
+                    transferred.add(outcome.getItem());
+                });
+                complete = listing.isComplete();
+            }
+            assertTrue(complete);
+            DirectoryChanges changes = scan.finish(complete);
+            index.commit(changes, transferred);
+            // Everything the first round moved is unchanged in the second
+            assertEquals(round == 0 ? 100 : 0, transferred.size());
+            assertEquals(round == 0 ? 100 : 0, changes.getAddedCount());
+            assertTrue(changes.getAdded().isEmpty());
+        }
+        assertEquals(100, index.size());
+    }
+
+    @Test
+    public void testGlobSyntax() {
+        assertTrue(matches("*.{pgp,gpg}", "a.pgp"));
+        assertTrue(matches("*.{pgp,gpg}", "a.gpg"));
+        assertFalse(matches("*.{pgp,gpg}", "a.txt"));
+        assertTrue(matches("file?.[0-9]", "file1.7"));
+        assertFalse(matches("file?.[!0-9]", "file1.7"));
+        assertFalse(matches("a.b", "axb"));
+        assertTrue(matches("(1)+$.csv", "(1)+$.csv"));
+    }
+
+    private static boolean matches(String glob, String name) {
+        return Pattern.matches(RemoteListing.globToRegex(glob), name);
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+
+/**
+ * Downloads into {@code <local>.part} and reports checkpoints along the way, so a download that
+ * broke off can pick up where the last checkpoint left it instead of starting over.
+ *
+ * <p>A checkpoint is taken at most once per {@code checkpointInterval}, after the part file has
+ * been forced to disk, so the recorded offset never runs ahead of what a crash would keep. A resume
+ * continues with {@link ChannelSftp#RESUME} from the checkpoint only if the remote file still has
+ * the checkpoint's size and modification time and the part file holds at least that many bytes;
+ * otherwise it starts from zero. The finished file must match the remote size and modification
+ * time, read again at the end, before it is renamed into place.
+ */
+public class ResumableDownloader {
+
+    /**
+     * Receives checkpoints as the download progresses, e.g. to persist them with the download's
+     * status. Called on the downloading thread.
+     */
+    @FunctionalInterface
+    public interface CheckpointListener {
+        void checkpoint(DownloadCheckpoint checkpoint);
+    }
+
+    private final long checkpointIntervalNanos;
+
+    public ResumableDownloader(Duration checkpointInterval) {
+        this.checkpointIntervalNanos = checkpointInterval.toNanos();
+    }
+
+    /**
+     * Downloads {@code remotePath} to {@code localPath}, resuming from {@code previous} when it is
+     * still valid.
+     *
+     * @param previous the last checkpoint of an earlier attempt, or null
+     * @return the number of bytes transferred by this call
+     */
+    public long download(ChannelSftp channel, String remotePath, Path localPath, DownloadCheckpoint previous,
+                         CheckpointListener listener) throws IOException, SftpException {
+        SftpATTRS attrs = channel.stat(remotePath);
+        Path partial = Paths.get(localPath + ".part");
+        long offset = resumeOffset(attrs, partial, previous);
+
+        try (FileChannel file = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Drop anything written after the last checkpoint; it may not have reached the disk
+            file.truncate(offset);
+        }
+
+        try (FileOutputStream out = new FileOutputStream(partial.toFile(), true)) {
+            CheckpointMonitor monitor = new CheckpointMonitor(out, attrs, listener);
+            channel.get(remotePath, out, monitor, offset > 0 ? ChannelSftp.RESUME : ChannelSftp.OVERWRITE, offset);
+            if (monitor.failure != null) {
+                throw monitor.failure;
+            }
+            out.getFD().sync();
+        }
+
+        long size = Files.size(partial);
+        SftpATTRS after = channel.stat(remotePath);
+        if (size != attrs.getSize() || after.getSize() != attrs.getSize() || after.getMTime() != attrs.getMTime()) {
+            // The remote file changed underneath us; the next attempt starts over
+            Files.deleteIfExists(partial);
+            throw new IOException("Downloaded " + size + " bytes of " + remotePath + ", but the remote file is now "
+                    + after.getSize() + " bytes (mtime " + after.getMTime() + "), expected " + attrs.getSize() + " bytes (mtime " + attrs.getMTime() + ").");
+        }
+        Files.move(partial, localPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size - offset;
+    }
+
+    static long resumeOffset(SftpATTRS attrs, Path partial, DownloadCheckpoint previous) throws IOException {
+        if (previous == null || previous.getOffset() <= 0 || !Files.exists(partial)) {
+            return 0;
+        }
+        if (previous.getRemoteSize() != attrs.getSize() || previous.getRemoteMtime() != attrs.getMTime()) {
+            return 0;
+        }
+        if (previous.getOffset() > attrs.getSize() || Files.size(partial) < previous.getOffset()) {
+            return 0;
+        }
+        return previous.getOffset();
+    }
+
+    /**
+     * JSch reports progress once per buffer; this turns that into a checkpoint per interval.
+     */
+    private final class CheckpointMonitor implements SftpProgressMonitor {
+
+        private final FileOutputStream out;
+        private final SftpATTRS attrs;
+        private final CheckpointListener listener;
+        private long lastCheckpoint = System.nanoTime();
+        private IOException failure;
+
+        CheckpointMonitor(FileOutputStream out, SftpATTRS attrs, CheckpointListener listener) {
+            this.out = out;
+            this.attrs = attrs;
+            this.listener = listener;
+        }
+
+        @Override
+        public void init(int op, String src, String dest, long max) {
+        }
+
+        @Override
+        public boolean count(long count) {
+            long now = System.nanoTime();
+            if (listener != null && now - lastCheckpoint >= checkpointIntervalNanos) {
+                long position;
+                try {
+                    // The stream is unbuffered, so its position is what has been written; count()
+                    // is not, as JSch also reports the skipped bytes of a resume through it
+                    position = out.getChannel().position();
+                    out.getFD().sync();
+                } catch (IOException e) {
+                    // Returning false cancels the transfer; download() rethrows this
+                    failure = e;
+                    return false;
+                }
+                lastCheckpoint = now;
+                listener.checkpoint(new DownloadCheckpoint(position, attrs.getSize(), attrs.getMTime()));
+            }
+            return true;
+        }
+
+        @Override
+        public void end() {
+        }
+    }
+}
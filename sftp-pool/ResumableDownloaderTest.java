@@ -0,0 +1,125 @@
+package com.example.sftp.pool;
+
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ResumableDownloaderTest {
+
+    private static final int SIZE = 3 * 1024 * 1024 + 4321;
+    private static final int MTIME = 1_700_000_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SshServer server;
+    private SftpConnectionPool pool;
+    private SftpEndpoint endpoint;
+    private byte[] data;
+    private Path local;
+
+    @Before
+    public void setUp() throws Exception {
+        Path root = folder.newFolder("root").toPath();
+        data = new byte[SIZE];
+        new Random(16).nextBytes(data);
+        Path remote = Files.write(root.resolve("data.pgp"), data);
+        Files.setLastModifiedTime(remote, FileTime.fromMillis(MTIME * 1000L));
+        local = folder.newFolder("local").toPath();
+
+        server = SshServer.setUpDefaultServer();
+        server.setPort(0);
+        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(folder.getRoot().toPath().resolve("hostkey.ser")));
+        server.setPasswordAuthenticator((user, password, session) -> "test".equals(user) && "secret".equals(password));
+        server.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        server.setFileSystemFactory(new VirtualFileSystemFactory(root));
+        server.start();
+
+        endpoint = SftpEndpoint.builder("localhost", server.getPort(), "test").password("secret").build();
+        pool = new SftpConnectionPool(SftpPoolConfig.builder().evictionInterval(Duration.ZERO).build());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        server.stop(true);
+    }
+
+    @Test
+    public void testResumesFromCheckpoint() throws Exception {
+        int offset = 1024 * 1024;
+        // Bytes past the checkpoint may not have been synced, so they must be fetched again
+        byte[] partial = Arrays.copyOf(data, offset + 5000);
+        Arrays.fill(partial, offset, partial.length, (byte) 7);
+        Files.write(local.resolve("data.pgp.part"), partial);
+
+        long transferred = download(new DownloadCheckpoint(offset, SIZE, MTIME), Duration.ofHours(1), null);
+
+        assertEquals(SIZE - offset, transferred);
+        assertArrayEquals(data, Files.readAllBytes(local.resolve("data.pgp")));
+        assertFalse(Files.exists(local.resolve("data.pgp.part")));
+    }
+
+    @Test
+    public void testRestartsWhenRemoteFileChanged() throws Exception {
+        Files.write(local.resolve("data.pgp.part"), new byte[1024 * 1024]);
+
+        long transferred = download(new DownloadCheckpoint(1024 * 1024, SIZE, MTIME - 60), Duration.ofHours(1), null);
+
+        assertEquals(SIZE, transferred);
+        assertArrayEquals(data, Files.readAllBytes(local.resolve("data.pgp")));
+    }
+
+    @Test
+    public void testRestartsWhenPartialFileIsShort() throws Exception {
+        Files.write(local.resolve("data.pgp.part"), Arrays.copyOf(data, 1000));
+
+        assertEquals(SIZE, download(new DownloadCheckpoint(1024 * 1024, SIZE, MTIME), Duration.ofHours(1), null));
+        assertArrayEquals(data, Files.readAllBytes(local.resolve("data.pgp")));
+    }
+
+    @Test
+    public void testCheckpointsAtMostOncePerInterval() throws Exception {
+        List<DownloadCheckpoint> checkpoints = new ArrayList<>();
+        download(null, Duration.ZERO, checkpoints::add);
+
+        assertFalse(checkpoints.isEmpty());
+        long previous = 0;
+        for (DownloadCheckpoint checkpoint : checkpoints) {
+            assertTrue(checkpoint.getOffset() > previous);
+            assertTrue(checkpoint.getOffset() <= SIZE);
+            assertEquals(SIZE, checkpoint.getRemoteSize());
+            assertEquals(MTIME, checkpoint.getRemoteMtime());
+            previous = checkpoint.getOffset();
+        }
+
+        checkpoints.clear();
+        Files.delete(local.resolve("data.pgp"));
+        download(null, Duration.ofHours(1), checkpoints::add);
+        assertTrue(checkpoints.isEmpty());
+    }
+
+    private long download(DownloadCheckpoint previous, Duration interval, ResumableDownloader.CheckpointListener listener) throws Exception {
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            return new ResumableDownloader(interval).download(lease.channel(), "data.pgp", local.resolve("data.pgp"), previous, listener);
+        }
+    }
+}
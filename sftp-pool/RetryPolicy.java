@@ -0,0 +1,208 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+
+import java.io.EOFException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When to try a failed transfer again, depending on why it failed.
+ *
+ * <p>{@link #classify(Throwable)} sorts a failure into a {@link FailureKind}. Each kind has its
+ * own number of attempts and backoff: the delay before attempt {@code n + 1} is
+ * {@code baseDelay * 2^(n - 1)}, capped at {@code maxDelay}, of which a random half is taken off
+ * again ("equal jitter"), so files that failed together against the same partner do not all come
+ * back on the same beat. By default a network failure is retried often and soon, a failed login
+ * rarely and late, since it needs someone to fix credentials or keys, and a file that is gone not
+ * at all.
+ */
+public final class RetryPolicy {
+
+    public static final RetryPolicy DEFAULT = builder().build();
+
+    /**
+     * Why a transfer failed, as far as retrying is concerned.
+     */
+    public enum FailureKind {
+        /** Login, host key or permission problems: only a configuration change fixes them. */
+        AUTH,
+        /** The host could not be reached, or the connection broke off. */
+        NETWORK,
+        /** The remote file does not exist (any more). */
+        MISSING_FILE,
+        /** Anything else, e.g. a full local disk or no free channel in our own pool. */
+        OTHER;
+
+        /**
+         * Whether the failure says something about the host rather than about one file, and so
+         * should count towards its {@link HostCircuitBreaker}.
+         */
+        public boolean isHostFailure() {
+            return this == AUTH || this == NETWORK;
+        }
+    }
+
+    /**
+     * The backoff of one {@link FailureKind}.
+     */
+    public static final class Backoff {
+
+        private final int maxAttempts;
+        private final Duration baseDelay;
+        private final Duration maxDelay;
+
+        public Backoff(int maxAttempts, Duration baseDelay, Duration maxDelay) {
+            if (maxAttempts < 1 || baseDelay.isNegative() || maxDelay.compareTo(baseDelay) < 0) {
+                throw new IllegalArgumentException("Expected maxAttempts >= 1 and 0 <= baseDelay <= maxDelay, got "
+                        + maxAttempts + ", " + baseDelay + " and " + maxDelay + ".");
+            }
+            this.maxAttempts = maxAttempts;
+            this.baseDelay = baseDelay;
+            this.maxDelay = maxDelay;
+        }
+
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        public Duration getBaseDelay() {
+            return baseDelay;
+        }
+
+        public Duration getMaxDelay() {
+            return maxDelay;
+        }
+
+        @Override
+        public String toString() {
+            return "Backoff{maxAttempts=" + maxAttempts + ", baseDelay=" + baseDelay + ", maxDelay=" + maxDelay + "}";
+        }
+    }
+
+    private final Map<FailureKind, Backoff> backoffs;
+    private final Random random;
+
+    private RetryPolicy(Builder builder) {
+        this.backoffs = new EnumMap<>(builder.backoffs);
+        this.random = builder.random;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Backoff getBackoff(FailureKind kind) {
+        return backoffs.get(kind);
+    }
+
+    /**
+     * The most attempts any kind of failure gets.
+     */
+    public int getMaxAttempts() {
+        int max = 1;
+        for (Backoff backoff : backoffs.values()) {
+            max = Math.max(max, backoff.maxAttempts);
+        }
+        return max;
+    }
+
+    /**
+     * How long to wait after attempt {@code attempt} (1 for the first) failed with {@code kind},
+     * or null if it was the last one.
+     */
+    public Duration nextDelay(FailureKind kind, int attempt) {
+        Backoff backoff = backoffs.get(kind);
+        if (attempt >= backoff.maxAttempts) {
+            return null;
+        }
+        long max = backoff.maxDelay.toMillis();
+        long delay = backoff.baseDelay.toMillis();
+        for (int i = 1; i < attempt && delay < max; i++) {
+            delay = Math.min(max, delay * 2);
+        }
+        long half = delay / 2;
+        Random r = random != null ? random : ThreadLocalRandom.current();
+        return Duration.ofMillis(delay - half + (half == 0 ? 0 : (long) (r.nextDouble() * (half + 1))));
+    }
+
+    /**
+     * Sorts {@code failure}, or the first of its causes that says more, into a kind.
+     */
+    public static FailureKind classify(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof SftpException) {
+                switch (((SftpException) t).id) {
+                    case ChannelSftp.SSH_FX_NO_SUCH_FILE:
+                        return FailureKind.MISSING_FILE;
+                    case ChannelSftp.SSH_FX_PERMISSION_DENIED:
+                        return FailureKind.AUTH;
+                    case ChannelSftp.SSH_FX_NO_CONNECTION:
+                    case ChannelSftp.SSH_FX_CONNECTION_LOST:
+                        return FailureKind.NETWORK;
+                    default:
+                        // JSch reports broken streams as SSH_FX_FAILURE with the IOException as cause
+                        continue;
+                }
+            }
+            if (t instanceof SftpPoolUnavailableException) {
+                // Our own pool was saturated or shut down; the host is fine
+                return FailureKind.OTHER;
+            }
+            if (t instanceof SocketException || t instanceof SocketTimeoutException || t instanceof UnknownHostException
+                    || t instanceof EOFException) {
+                return FailureKind.NETWORK;
+            }
+            if (t instanceof JSchException) {
+                String message = String.valueOf(t.getMessage()).toLowerCase(Locale.ROOT);
+                if (message.startsWith("auth") || message.contains("userauth") || message.contains("hostkey")) {
+                    return FailureKind.AUTH;
+                }
+                if (t.getCause() == null) {
+                    // Timeouts, "session is down", "channel is not opened" and the like
+                    return FailureKind.NETWORK;
+                }
+            }
+        }
+        return FailureKind.OTHER;
+    }
+
+    public static final class Builder {
+
+        private final Map<FailureKind, Backoff> backoffs = new EnumMap<>(FailureKind.class);
+        private Random random;
+
+        private Builder() {
+            backoffs.put(FailureKind.NETWORK, new Backoff(8, Duration.ofSeconds(30), Duration.ofMinutes(30)));
+            backoffs.put(FailureKind.AUTH, new Backoff(3, Duration.ofMinutes(15), Duration.ofHours(2)));
+            backoffs.put(FailureKind.MISSING_FILE, new Backoff(1, Duration.ZERO, Duration.ZERO));
+            backoffs.put(FailureKind.OTHER, new Backoff(5, Duration.ofMinutes(1), Duration.ofMinutes(15)));
+        }
+
+        public Builder backoff(FailureKind kind, int maxAttempts, Duration baseDelay, Duration maxDelay) {
+            backoffs.put(kind, new Backoff(maxAttempts, baseDelay, maxDelay));
+            return this;
+        }
+
+        /**
+         * Jitter from {@code random} rather than {@link ThreadLocalRandom}, for repeatable tests.
+         */
+        Builder random(Random random) {
+            this.random = random;
+            return this;
+        }
+
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testClassifiesFailures() {
+        assertEquals(RetryPolicy.FailureKind.AUTH, RetryPolicy.classify(new JSchException("Auth fail")));
+        assertEquals(RetryPolicy.FailureKind.AUTH, RetryPolicy.classify(new JSchException("reject HostKey: sftp.example.com")));
+        assertEquals(RetryPolicy.FailureKind.AUTH, RetryPolicy.classify(new SftpException(ChannelSftp.SSH_FX_PERMISSION_DENIED, "Permission denied")));
+
+        assertEquals(RetryPolicy.FailureKind.NETWORK,
+                RetryPolicy.classify(new JSchException("java.net.ConnectException: Connection refused", new ConnectException("Connection refused"))));
+        assertEquals(RetryPolicy.FailureKind.NETWORK,
+                RetryPolicy.classify(new JSchException("java.net.UnknownHostException: nowhere", new UnknownHostException("nowhere"))));
+        assertEquals(RetryPolicy.FailureKind.NETWORK, RetryPolicy.classify(new JSchException("timeout: socket is not established")));
+        assertEquals(RetryPolicy.FailureKind.NETWORK, RetryPolicy.classify(new JSchException("session is down")));
+        assertEquals(RetryPolicy.FailureKind.NETWORK,
+                RetryPolicy.classify(new SftpException(ChannelSftp.SSH_FX_FAILURE, "Read timed out", new SocketTimeoutException("Read timed out"))));
+        assertEquals(RetryPolicy.FailureKind.NETWORK, RetryPolicy.classify(new SftpException(ChannelSftp.SSH_FX_CONNECTION_LOST, "lost")));
+
+        assertEquals(RetryPolicy.FailureKind.MISSING_FILE, RetryPolicy.classify(new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE, "No such file")));
+
+        assertEquals(RetryPolicy.FailureKind.OTHER, RetryPolicy.classify(new IOException("No space left on device")));
+        assertEquals(RetryPolicy.FailureKind.OTHER,
+                RetryPolicy.classify(new SftpPoolUnavailableException("Timed out after 30000 ms waiting for an SFTP channel")));
+        assertEquals(RetryPolicy.FailureKind.OTHER,
+                RetryPolicy.classify(new IOException("Segment failed", new SftpPoolUnavailableException("SFTP connection pool is closed."))));
+        assertFalse(RetryPolicy.classify(new SftpPoolUnavailableException("Timed out")).isHostFailure());
+        assertEquals(RetryPolicy.FailureKind.OTHER, RetryPolicy.classify(new SftpException(ChannelSftp.SSH_FX_FAILURE, "Failure")));
+    }
+
+    @Test
+    public void testBacksOffExponentiallyWithJitterUpToTheCap() {
+        RetryPolicy policy = RetryPolicy.builder()
+                .backoff(RetryPolicy.FailureKind.NETWORK, 10, Duration.ofSeconds(30), Duration.ofMinutes(10))
+                .random(new Random(42))
+                .build();
+        long[] ceilings = {30, 60, 120, 240, 480, 600, 600, 600, 600};
+        for (int attempt = 1; attempt < 10; attempt++) {
+            long ceiling = ceilings[attempt - 1] * 1000;
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.nextDelay(RetryPolicy.FailureKind.NETWORK, attempt).toMillis();
+                assertTrue("attempt " + attempt + ": " + delay, delay >= ceiling / 2 && delay <= ceiling);
+            }
+        }
+        assertNull("ten attempts and no more", policy.nextDelay(RetryPolicy.FailureKind.NETWORK, 10));
+    }
+
+    @Test
+    public void testSpreadsFailuresOfTheSameAttempt() {
+        Set<Duration> delays = new HashSet<>();
+        for (int i = 0; i < 50; i++) {
+            delays.add(RetryPolicy.DEFAULT.nextDelay(RetryPolicy.FailureKind.NETWORK, 3));
+        }
+        assertTrue(delays.size() + " distinct delays", delays.size() > 40);
+    }
+
+    @Test
+    public void testDefaults() {
+        assertNull("a missing file is not retried", RetryPolicy.DEFAULT.nextDelay(RetryPolicy.FailureKind.MISSING_FILE, 1));
+        Duration auth = RetryPolicy.DEFAULT.nextDelay(RetryPolicy.FailureKind.AUTH, 1);
+        Duration network = RetryPolicy.DEFAULT.nextDelay(RetryPolicy.FailureKind.NETWORK, 1);
+        assertTrue(auth + " vs " + network, auth.compareTo(network) > 0);
+        assertNull(RetryPolicy.DEFAULT.nextDelay(RetryPolicy.FailureKind.AUTH, 3));
+        assertEquals(8, RetryPolicy.DEFAULT.getMaxAttempts());
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Downloads a remote file to a local path, splitting files of at least {@code threshold} bytes
+ * into byte ranges fetched side by side over several channels. One SFTP stream is capped at
+ * roughly its window size per round trip, so on a long link a multi-GB file moves several times
+ * faster over a handful of channels.
+ *
+ * <p>The ranges are written at their offsets into a preallocated {@code <local>.part} file through
+ * positional {@link FileChannel} writes, and the file is renamed into place only once every range
+ * is complete, the local size matches and the remote size and modification time are unchanged.
+ * The caller's channel always takes part; extra channels are taken from the pool only while it
+ * has some to spare, so a busy pool slows a segmented download down but never blocks it.
+ *
+ * <p>A download given a {@link ResumableDownloader.CheckpointListener} keeps its {@code .part} file
+ * when a range fails and reports how far the completed ranges reach from the start of the file, so
+ * a {@link ResumableDownloader} can pick up from there instead of from byte 0.
+ */
+public class SegmentedDownloader implements AutoCloseable {
+
+    public static final long DEFAULT_THRESHOLD = 256L * 1024 * 1024;
+
+    /** Smallest range handed to a channel, so small files don't pay a request round per range. */
+    static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /** Ranges per channel, so channels that finish early pick up work from slower ones. */
+    private static final int SEGMENTS_PER_CHANNEL = 4;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final SftpConnectionPool pool;
+    private final long threshold;
+    private final int maxChannels;
+    private final ExecutorService executor;
+
+    /**
+     * @param threshold   file size from which downloads are segmented
+     * @param maxChannels channels a segmented download uses at most, the caller's included
+     */
+    public SegmentedDownloader(SftpConnectionPool pool, long threshold, int maxChannels) {
+        if (maxChannels < 1) {
+            throw new IllegalArgumentException("Expected maxChannels >= 1, got " + maxChannels + ".");
+        }
+        this.pool = pool;
+        this.threshold = threshold;
+        this.maxChannels = maxChannels;
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "sftp-segment-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean isSegmented(long size) {
+        return maxChannels > 1 && size > 0 && size >= threshold;
+    }
+
+    /**
+     * Downloads {@code remotePath}, relative to {@code channel}'s working directory or absolute,
+     * to {@code localPath}, segmented if the file is large enough.
+     *
+     * @return the number of bytes downloaded
+     */
+    public long download(SftpEndpoint endpoint, ChannelSftp channel, String remotePath, Path localPath) throws IOException, SftpException {
+        return download(endpoint, channel, remotePath, channel.stat(remotePath), localPath);
+    }
+
+    /**
+     * Like {@link #download(SftpEndpoint, ChannelSftp, String, Path)}, with the attributes the
+     * caller already has from a listing, which saves a round trip for files that are not segmented.
+     */
+    public long download(SftpEndpoint endpoint, ChannelSftp channel, String remotePath, SftpATTRS attrs, Path localPath)
+            throws IOException, SftpException {
+        return download(endpoint, channel, remotePath, attrs, localPath, null);
+    }
+
+    /**
+     * Like {@link #download(SftpEndpoint, ChannelSftp, String, SftpATTRS, Path)}. If a segmented
+     * download fails after some leading ranges are complete, the {@code .part} file is synced and
+     * kept, and {@code listener} is given a checkpoint to hand to
+     * {@link ResumableDownloader#download} on the next attempt.
+     *
+     * @param listener receives the checkpoint of a failed download, or null to delete the
+     *                 {@code .part} file on every failure
+     */
+    public long download(SftpEndpoint endpoint, ChannelSftp channel, String remotePath, SftpATTRS attrs, Path localPath,
+                         ResumableDownloader.CheckpointListener listener) throws IOException, SftpException {
+        if (!isSegmented(attrs.getSize())) {
+            channel.get(remotePath, localPath.toString());
+            return attrs.getSize();
+        }
+        // Pooled channels start in the home directory, so hand them an absolute path
+        String absolutePath = channel.realpath(remotePath);
+        long size = attrs.getSize();
+
+        Path partial = Paths.get(localPath + ".part");
+        List<long[]> segments = segments(size);
+        boolean keepPartial = false;
+        try {
+            try (FileChannel file = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                // Preallocate, so positional writes never extend the file out of order
+                file.write(ByteBuffer.wrap(new byte[1]), size - 1);
+                try {
+                    fetchSegments(endpoint, channel, absolutePath, file, segments);
+                } catch (IOException | SftpException | RuntimeException e) {
+                    keepPartial = checkpoint(file, segments, attrs, listener);
+                    throw e;
+                }
+                file.force(false);
+                if (file.size() != size) {
+                    throw new IOException("Downloaded " + file.size() + " bytes of " + absolutePath + ", expected " + size + ".");
+                }
+            }
+            SftpATTRS after = channel.stat(absolutePath);
+            if (after.getSize() != size || after.getMTime() != attrs.getMTime()) {
+                throw new IOException("Remote file " + absolutePath + " changed during the download.");
+            }
+            Files.move(partial, localPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return size;
+        } catch (IOException | SftpException | RuntimeException e) {
+            if (!keepPartial) {
+                Files.deleteIfExists(partial);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reports the bytes that are complete from the start of the file, after syncing them, so a
+     * checkpoint never runs ahead of what a crash would leave on disk. Returns false if there is
+     * nothing worth keeping.
+     */
+    private static boolean checkpoint(FileChannel file, List<long[]> segments, SftpATTRS attrs,
+                                      ResumableDownloader.CheckpointListener listener) {
+        if (listener == null) {
+            return false;
+        }
+        long offset = completedPrefix(segments);
+        if (offset == 0) {
+            return false;
+        }
+        try {
+            file.force(false);
+        } catch (IOException e) {
+            return false;
+        }
+        listener.checkpoint(new DownloadCheckpoint(offset, attrs.getSize(), attrs.getMTime()));
+        return true;
+    }
+
+    /** End of the leading ranges that are complete, plus however far the first incomplete one got. */
+    static long completedPrefix(List<long[]> segments) {
+        long offset = 0;
+        for (long[] segment : segments) {
+            offset = segment[2];
+            if (segment[2] < segment[1]) {
+                break;
+            }
+        }
+        return offset;
+    }
+
+    /** Ranges in offset order, each {start, end, position reached}. */
+    private List<long[]> segments(long size) {
+        long segmentSize = Math.max(MIN_SEGMENT_SIZE, (size + maxChannels * SEGMENTS_PER_CHANNEL - 1) / (maxChannels * SEGMENTS_PER_CHANNEL));
+        List<long[]> segments = new ArrayList<>();
+        for (long offset = 0; offset < size; offset += segmentSize) {
+            segments.add(new long[]{offset, Math.min(size, offset + segmentSize), offset});
+        }
+        return segments;
+    }
+
+    private void fetchSegments(SftpEndpoint endpoint, ChannelSftp channel, String remotePath, FileChannel file, List<long[]> segments)
+            throws IOException, SftpException {
+        // Helper channels read with the buffer size the tuner chose for this transfer
+        int bufferSize = pool.getTuner() == null ? BUFFER_SIZE : pool.getTuner().bufferSize(channel, BUFFER_SIZE);
+        Queue<long[]> queue = new ConcurrentLinkedQueue<>(segments);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Future<?>> helpers = new ArrayList<>();
+        for (int i = 1; i < Math.min(maxChannels, segments.size()); i++) {
+            SftpLease lease;
+            try {
+                lease = pool.tryBorrow(endpoint);
+            } catch (JSchException e) {
+                break;
+            }
+            if (lease == null) {
+                break;
+            }
+            try {
+                // Same pipelining depth as the caller's channel, which the tuner may have set
+                lease.channel().setBulkRequests(channel.getBulkRequests());
+            } catch (JSchException e) {
+                lease.close();
+                break;
+            }
+            helpers.add(executor.submit(() -> {
+                try (SftpLease helper = lease) {
+                    if (!fetch(helper.channel(), remotePath, file, bufferSize, queue, failure)) {
+                        helper.invalidate();
+                    }
+                }
+            }));
+        }
+        fetch(channel, remotePath, file, bufferSize, queue, failure);
+        for (Future<?> helper : helpers) {
+            try {
+                helper.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, new IOException("Interrupted while downloading " + remotePath + ".", e));
+            } catch (ExecutionException e) {
+                failure.compareAndSet(null, new IOException("Segment download of " + remotePath + " failed.", e.getCause()));
+            }
+        }
+        Exception e = failure.get();
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e instanceof SftpException) {
+            throw (SftpException) e;
+        }
+        if (e != null) {
+            throw new IOException("Segment download of " + remotePath + " failed.", e);
+        }
+    }
+
+    /**
+     * Takes ranges off the queue until it is empty or another channel failed. Returns false if this
+     * channel failed, after recording the error.
+     */
+    private static boolean fetch(ChannelSftp channel, String remotePath, FileChannel file, int bufferSize, Queue<long[]> queue,
+                                 AtomicReference<Exception> failure) {
+        byte[] buffer = new byte[bufferSize];
+        long[] segment;
+        while (failure.get() == null && (segment = queue.poll()) != null) {
+            long position = segment[0];
+            try (InputStream in = channel.get(remotePath, null, position)) {
+                while (position < segment[1]) {
+                    int len = in.read(buffer, 0, (int) Math.min(buffer.length, segment[1] - position));
+                    if (len < 0) {
+                        throw new IOException("Remote file " + remotePath + " ended at " + position + ", expected " + segment[1] + " bytes.");
+                    }
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, len);
+                    while (data.hasRemaining()) {
+                        position += file.write(data, position);
+                    }
+                    segment[2] = position;
+                }
+            } catch (IOException | SftpException | RuntimeException e) {
+                failure.compareAndSet(null, e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.SftpException;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.sftp.server.FileHandle;
+import org.apache.sshd.sftp.server.SftpFileSystemAccessor;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+import org.apache.sshd.sftp.server.SftpSubsystemProxy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class SegmentedDownloaderTest {
+
+    private static final int SIZE = 5 * (int) SegmentedDownloader.MIN_SEGMENT_SIZE + 12345;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SshServer server;
+    private SftpEndpoint endpoint;
+    private SftpConnectionPool pool;
+    private byte[] data;
+    private Path local;
+
+    /** Remote offset from which the server fails reads. */
+    private volatile long failAt = Long.MAX_VALUE;
+
+    @Before
+    public void setUp() throws Exception {
+        Path root = folder.newFolder("root").toPath();
+        Files.createDirectory(root.resolve("outbound"));
+        data = new byte[SIZE];
+        new Random(15).nextBytes(data);
+        Files.write(root.resolve("outbound/large.pgp"), data);
+        Files.write(root.resolve("outbound/small.pgp"), new byte[]{1, 2, 3});
+        local = folder.newFolder("local").toPath();
+
+        server = SshServer.setUpDefaultServer();
+        server.setPort(0);
+        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(folder.getRoot().toPath().resolve("hostkey.ser")));
+        server.setPasswordAuthenticator((user, password, session) -> "test".equals(user) && "secret".equals(password));
+        SftpSubsystemFactory sftp = new SftpSubsystemFactory();
+        sftp.setFileSystemAccessor(new SftpFileSystemAccessor() {
+            @Override
+            public SeekableByteChannel openFile(SftpSubsystemProxy subsystem, FileHandle fileHandle, Path file, String handle,
+                                                Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+                return new FailingChannel(SftpFileSystemAccessor.super.openFile(subsystem, fileHandle, file, handle, options, attrs));
+            }
+        });
+        server.setSubsystemFactories(Collections.singletonList(sftp));
+        server.setFileSystemFactory(new VirtualFileSystemFactory(root));
+        server.start();
+
+        endpoint = SftpEndpoint.builder("localhost", server.getPort(), "test").password("secret").build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        server.stop(true);
+    }
+
+    @Test
+    public void testSplitsLargeFileAcrossChannels() throws Exception {
+        pool = new SftpConnectionPool(config().maxSessions(2).maxChannelsPerSession(2).build());
+        try (SegmentedDownloader downloader = new SegmentedDownloader(pool, 1024 * 1024, 4);
+             SftpLease lease = pool.borrow(endpoint)) {
+            lease.channel().cd("outbound");
+            assertEquals(SIZE, downloader.download(endpoint, lease.channel(), "large.pgp", local.resolve("large.pgp")));
+        }
+        assertArrayEquals(data, Files.readAllBytes(local.resolve("large.pgp")));
+        assertFalse(Files.exists(local.resolve("large.pgp.part")));
+        assertEquals(4, pool.stats().getChannelsCreated());
+        assertEquals(0, pool.stats().getActiveChannels());
+    }
+
+    @Test
+    public void testUsesOnlyCallerChannelWhenPoolIsBusy() throws Exception {
+        pool = new SftpConnectionPool(config().maxSessions(1).maxChannelsPerSession(1).build());
+        try (SegmentedDownloader downloader = new SegmentedDownloader(pool, 1024 * 1024, 4);
+             SftpLease lease = pool.borrow(endpoint)) {
+            downloader.download(endpoint, lease.channel(), "outbound/large.pgp", local.resolve("large.pgp"));
+        }
+        assertArrayEquals(data, Files.readAllBytes(local.resolve("large.pgp")));
+        assertEquals(1, pool.stats().getChannelsCreated());
+        assertEquals(0, pool.stats().getBorrowTimeouts());
+    }
+
+    @Test
+    public void testSmallFileUsesPlainGet() throws Exception {
+        pool = new SftpConnectionPool(config().build());
+        try (SegmentedDownloader downloader = new SegmentedDownloader(pool, 1024 * 1024, 4);
+             SftpLease lease = pool.borrow(endpoint)) {
+            assertFalse(downloader.isSegmented(3));
+            assertEquals(3, downloader.download(endpoint, lease.channel(), "outbound/small.pgp", local.resolve("small.pgp")));
+        }
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(local.resolve("small.pgp")));
+        assertEquals(1, pool.stats().getChannelsCreated());
+    }
+
+    @Test
+    public void testMissingFileLeavesNothingBehind() throws Exception {
+        pool = new SftpConnectionPool(config().build());
+        try (SegmentedDownloader downloader = new SegmentedDownloader(pool, 1024 * 1024, 4);
+             SftpLease lease = pool.borrow(endpoint)) {
+            downloader.download(endpoint, lease.channel(), "outbound/missing.pgp", local.resolve("missing.pgp"));
+            fail("missing remote file should fail the download");
+        } catch (SftpException expected) {
+            assertEquals(2, expected.id);
+        }
+        try (Stream<Path> files = Files.list(local)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testFailedDownloadResumesFromCompletedRanges() throws Exception {
+        pool = new SftpConnectionPool(config().maxSessions(1).maxChannelsPerSession(1).build());
+        failAt = 3 * SegmentedDownloader.MIN_SEGMENT_SIZE + 200_000;
+        List<DownloadCheckpoint> checkpoints = new ArrayList<>();
+        try (SegmentedDownloader downloader = new SegmentedDownloader(pool, 1024 * 1024, 4);
+             SftpLease lease = pool.borrow(endpoint)) {
+            downloader.download(endpoint, lease.channel(), "outbound/large.pgp", lease.channel().stat("outbound/large.pgp"),
+                    local.resolve("large.pgp"), checkpoints::add);
+            fail("read error should fail the download");
+        } catch (IOException expected) {
+            // the server refused a read past failAt
+        }
+        assertEquals(1, checkpoints.size());
+        DownloadCheckpoint checkpoint = checkpoints.get(0);
+        assertTrue(checkpoint.getOffset() >= 3 * SegmentedDownloader.MIN_SEGMENT_SIZE);
+        // A read that starts just short of failAt still succeeds, but the fourth range never completes
+        assertTrue(checkpoint.getOffset() < 4 * SegmentedDownloader.MIN_SEGMENT_SIZE);
+        assertEquals(SIZE, checkpoint.getRemoteSize());
+        assertTrue(Files.exists(local.resolve("large.pgp.part")));
+
+        failAt = Long.MAX_VALUE;
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            long transferred = new ResumableDownloader(Duration.ofHours(1))
+                    .download(lease.channel(), "outbound/large.pgp", local.resolve("large.pgp"), checkpoint, null);
+            assertEquals(SIZE - checkpoint.getOffset(), transferred);
+        }
+        assertArrayEquals(data, Files.readAllBytes(local.resolve("large.pgp")));
+        assertFalse(Files.exists(local.resolve("large.pgp.part")));
+    }
+
+    @Test
+    public void testFailedDownloadWithoutListenerLeavesNothingBehind() throws Exception {
+        pool = new SftpConnectionPool(config().maxSessions(1).maxChannelsPerSession(1).build());
+        failAt = 3 * SegmentedDownloader.MIN_SEGMENT_SIZE;
+        try (SegmentedDownloader downloader = new SegmentedDownloader(pool, 1024 * 1024, 4);
+             SftpLease lease = pool.borrow(endpoint)) {
+            downloader.download(endpoint, lease.channel(), "outbound/large.pgp", local.resolve("large.pgp"));
+            fail("read error should fail the download");
+        } catch (IOException expected) {
+            // the server refused a read past failAt
+        }
+        try (Stream<Path> files = Files.list(local)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private static SftpPoolConfig.Builder config() {
+        return SftpPoolConfig.builder().evictionInterval(Duration.ZERO).borrowTimeout(Duration.ofSeconds(5));
+    }
+
+    /** Fails every read that starts at or past {@link #failAt}. */
+    private class FailingChannel implements SeekableByteChannel {
+
+        private final SeekableByteChannel delegate;
+
+        FailingChannel(SeekableByteChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (delegate.position() >= failAt) {
+                throw new IOException("Injected read failure at " + delegate.position() + ".");
+            }
+            return delegate.read(dst);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return delegate.write(src);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,579 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps SSH sessions and SFTP channels open between transfers, so a transfer to a known server
+ * skips the TCP connect, key exchange and authentication, and usually the channel open as well.
+ *
+ * <p>Connections are pooled per {@link SftpEndpoint} (host, port and user). Each endpoint has up to
+ * {@link SftpPoolConfig#getMaxSessions()} sessions, each multiplexing up to
+ * {@link SftpPoolConfig#getMaxChannelsPerSession()} channels. {@link #borrow(SftpEndpoint)} hands
+ * out an idle channel first, then opens a channel on a session with room, then connects a new
+ * session, and otherwise waits up to {@link SftpPoolConfig#getBorrowTimeout()}. A background
+ * evictor closes channels and sessions idle for longer than {@link SftpPoolConfig#getIdleTimeout()}
+ * and keeps {@link SftpPoolConfig#getMinSessions()} sessions open for endpoints already in use.
+ *
+ * <p>Network I/O (connect, channel open, validation, disconnect) happens outside the endpoint's
+ * lock, so a slow server only holds up the callers waiting for that server.
+ */
+public class SftpConnectionPool implements AutoCloseable {
+
+    private static final class SharedHolder {
+        static final SftpConnectionPool INSTANCE = new SftpConnectionPool(SftpPoolConfig.DEFAULT);
+    }
+
+    private final SftpPoolConfig config;
+    private final SftpTuner tuner;
+    private final ConcurrentMap<SftpEndpoint, EndpointPool> pools = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    public SftpConnectionPool(SftpPoolConfig config) {
+        this(config, null);
+    }
+
+    /**
+     * A pool whose new sessions take their ciphers and compression from {@code tuner}, and whose
+     * transfers through {@link SftpTransferEngine} feed it.
+     */
+    public SftpConnectionPool(SftpPoolConfig config, SftpTuner tuner) {
+        this.config = config;
+        this.tuner = tuner;
+        long interval = config.getEvictionInterval().toMillis();
+        if (interval > 0) {
+            this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "sftp-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.evictor.scheduleWithFixedDelay(this::evict, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.evictor = null;
+        }
+    }
+
+    /**
+     * The process-wide pool with {@link SftpPoolConfig#DEFAULT} settings, for code that is not
+     * wired by Spring. Its evictor runs on a daemon thread, so it never keeps the JVM alive.
+     */
+    public static SftpConnectionPool shared() {
+        return SharedHolder.INSTANCE;
+    }
+
+    public SftpPoolConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * The tuner of this pool, or null if transfers are not tuned.
+     */
+    public SftpTuner getTuner() {
+        return tuner;
+    }
+
+    /**
+     * Leases a connected SFTP channel, in the endpoint's home directory, to be given back by
+     * closing the lease.
+     *
+     * @throws JSchException if no session can be connected, or no channel frees up within the
+     *                       borrow timeout
+     */
+    public SftpLease borrow(SftpEndpoint endpoint) throws JSchException {
+        return borrow(endpoint, true);
+    }
+
+    /**
+     * Like {@link #borrow(SftpEndpoint)}, but returns null instead of waiting when the endpoint is
+     * at its limits, for callers that can make do with the channels they already have.
+     */
+    public SftpLease tryBorrow(SftpEndpoint endpoint) throws JSchException {
+        return borrow(endpoint, false);
+    }
+
+    private SftpLease borrow(SftpEndpoint endpoint, boolean wait) throws JSchException {
+        EndpointPool pool = poolFor(endpoint);
+        long start = System.nanoTime();
+        long deadline = start + config.getBorrowTimeout().toNanos();
+        while (true) {
+            PooledChannel idle = null;
+            PooledSession withRoom = null;
+            boolean connect = false;
+            pool.lock.lock();
+            try {
+                while (true) {
+                    checkOpen();
+                    idle = pool.idle.pollFirst();
+                    if (idle != null) {
+                        break;
+                    }
+                    withRoom = pool.sessionWithRoom(config.getMaxChannelsPerSession());
+                    if (withRoom != null) {
+                        withRoom.channels++;
+                        break;
+                    }
+                    if (pool.sessions.size() + pool.connecting < config.getMaxSessions()) {
+                        pool.connecting++;
+                        connect = true;
+                        break;
+                    }
+                    if (!wait) {
+                        return null;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        pool.borrowTimeouts.incrementAndGet();
+                        throw new SftpPoolUnavailableException("Timed out after " + config.getBorrowTimeout().toMillis() + " ms waiting for an SFTP channel to "
+                                + endpoint + " (" + pool.active + " in use).");
+                    }
+                    try {
+                        pool.available.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SftpPoolUnavailableException("Interrupted while waiting for an SFTP channel to " + endpoint + ".", e);
+                    }
+                }
+            } finally {
+                pool.lock.unlock();
+            }
+
+            PooledChannel channel;
+            if (idle != null) {
+                if (!validate(idle)) {
+                    pool.validationFailures.incrementAndGet();
+                    discard(pool, idle);
+                    continue;
+                }
+                channel = idle;
+            } else {
+                if (connect) {
+                    withRoom = connectSession(pool, 1);
+                }
+                channel = openChannel(pool, withRoom);
+                if (channel == null) {
+                    continue;
+                }
+            }
+            pool.lock.lock();
+            try {
+                pool.active++;
+            } finally {
+                pool.lock.unlock();
+            }
+            pool.borrows.incrementAndGet();
+            pool.borrowWaitNanos.addAndGet(System.nanoTime() - start);
+            return new SftpLease(this, pool, channel);
+        }
+    }
+
+    /**
+     * Connects {@link SftpPoolConfig#getMinSessions()} sessions to {@code endpoint} ahead of the
+     * first transfer, and keeps them connected from then on.
+     */
+    public void warmUp(SftpEndpoint endpoint) throws JSchException {
+        topUp(poolFor(endpoint));
+    }
+
+    /**
+     * Counters and gauges summed over all endpoints.
+     */
+    public SftpPoolStats stats() {
+        SftpPoolStats total = SftpPoolStats.EMPTY;
+        for (EndpointPool pool : pools.values()) {
+            total = total.plus(pool.stats());
+        }
+        return total;
+    }
+
+    public SftpPoolStats stats(SftpEndpoint endpoint) {
+        EndpointPool pool = pools.get(endpoint);
+        return pool == null ? SftpPoolStats.EMPTY : pool.stats();
+    }
+
+    /**
+     * Disconnects every session, including those whose channels are still leased, and fails
+     * further and waiting borrows.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        for (EndpointPool pool : pools.values()) {
+            List<PooledSession> sessions;
+            pool.lock.lock();
+            try {
+                pool.idle.clear();
+                sessions = new ArrayList<>(pool.sessions);
+                pool.sessions.clear();
+                pool.available.signalAll();
+            } finally {
+                pool.lock.unlock();
+            }
+            for (PooledSession session : sessions) {
+                session.session.disconnect();
+                pool.sessionsDestroyed.incrementAndGet();
+            }
+        }
+    }
+
+    void release(EndpointPool pool, PooledChannel channel, boolean broken) {
+        if (!broken && !closed) {
+            try {
+                if (!channel.home.equals(channel.channel.pwd())) {
+                    channel.channel.cd(channel.home);
+                }
+            } catch (SftpException e) {
+                broken = true;
+            }
+        }
+        boolean keep = !broken && !closed && channel.channel.isConnected() && channel.owner.session.isConnected();
+        pool.lock.lock();
+        try {
+            pool.active--;
+            if (keep) {
+                channel.idleSince = System.nanoTime();
+                pool.idle.addFirst(channel);
+            }
+            pool.available.signal();
+        } finally {
+            pool.lock.unlock();
+        }
+        if (!keep) {
+            discard(pool, channel);
+        }
+    }
+
+    private EndpointPool poolFor(SftpEndpoint endpoint) throws JSchException {
+        checkOpen();
+        EndpointPool pool = pools.get(endpoint);
+        if (pool == null) {
+            EndpointPool created = new EndpointPool(endpoint, endpoint.newJSch());
+            pool = pools.putIfAbsent(endpoint, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    private void checkOpen() throws JSchException {
+        if (closed) {
+            throw new SftpPoolUnavailableException("SFTP connection pool is closed.");
+        }
+    }
+
+    /**
+     * A round trip for idle channels when {@link SftpPoolConfig#isValidateOnBorrow()} is set, a
+     * local connection check otherwise.
+     */
+    private boolean validate(PooledChannel channel) {
+        if (!channel.channel.isConnected() || !channel.owner.session.isConnected()) {
+            return false;
+        }
+        if (config.isValidateOnBorrow()) {
+            try {
+                channel.channel.realpath(".");
+            } catch (SftpException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Connects a session reserved through {@code pool.connecting}, with {@code channels} channel
+     * slots already taken.
+     */
+    private PooledSession connectSession(EndpointPool pool, int channels) throws JSchException {
+        Session session = null;
+        try {
+            session = pool.endpoint.newSession(pool.jsch);
+            if (tuner != null) {
+                tuner.configure(pool.endpoint, session);
+            }
+            session.setServerAliveInterval((int) config.getServerAliveInterval().toMillis());
+            session.setServerAliveCountMax(config.getServerAliveCountMax());
+            session.connect((int) config.getConnectTimeout().toMillis());
+        } catch (JSchException e) {
+            if (session != null) {
+                session.disconnect();
+            }
+            pool.lock.lock();
+            try {
+                pool.connecting--;
+                pool.available.signal();
+            } finally {
+                pool.lock.unlock();
+            }
+            throw e;
+        }
+        PooledSession pooled = new PooledSession(session);
+        pooled.channels = channels;
+        pool.sessionsCreated.incrementAndGet();
+        pool.lock.lock();
+        try {
+            pool.connecting--;
+            if (!closed) {
+                pool.sessions.add(pooled);
+                pool.available.signal();
+                return pooled;
+            }
+        } finally {
+            pool.lock.unlock();
+        }
+        session.disconnect();
+        pool.sessionsDestroyed.incrementAndGet();
+        throw new SftpPoolUnavailableException("SFTP connection pool is closed.");
+    }
+
+    /**
+     * Opens a channel in a slot reserved on {@code session}. Returns null if the session turned
+     * out to be down, after dropping it, so the caller can try again.
+     */
+    private PooledChannel openChannel(EndpointPool pool, PooledSession session) throws JSchException {
+        ChannelSftp channel = null;
+        try {
+            channel = (ChannelSftp) session.session.openChannel("sftp");
+            channel.connect((int) config.getConnectTimeout().toMillis());
+            PooledChannel pooled = new PooledChannel(session, channel, channel.getHome());
+            pool.channelsCreated.incrementAndGet();
+            return pooled;
+        } catch (JSchException | SftpException e) {
+            if (channel != null) {
+                channel.disconnect();
+            }
+            boolean sessionDown = !session.session.isConnected();
+            pool.lock.lock();
+            try {
+                session.channels--;
+                if (sessionDown) {
+                    pool.removeSession(session);
+                }
+                pool.available.signal();
+            } finally {
+                pool.lock.unlock();
+            }
+            if (sessionDown) {
+                session.session.disconnect();
+                pool.sessionsDestroyed.incrementAndGet();
+                return null;
+            }
+            throw e instanceof JSchException ? (JSchException) e : new JSchException("Could not open an SFTP channel to " + pool.endpoint + ".", e);
+        }
+    }
+
+    /**
+     * Closes a channel that is no longer pooled, and its session too once the session is down.
+     */
+    private void discard(EndpointPool pool, PooledChannel channel) {
+        channel.channel.disconnect();
+        pool.channelsDestroyed.incrementAndGet();
+        boolean sessionDown = !channel.owner.session.isConnected();
+        boolean removed = false;
+        pool.lock.lock();
+        try {
+            channel.owner.channels--;
+            channel.owner.idleSince = System.nanoTime();
+            if (sessionDown) {
+                removed = pool.removeSession(channel.owner);
+                pool.idle.removeIf(idle -> idle.owner == channel.owner);
+            }
+            pool.available.signal();
+        } finally {
+            pool.lock.unlock();
+        }
+        if (removed) {
+            channel.owner.session.disconnect();
+            pool.sessionsDestroyed.incrementAndGet();
+        }
+    }
+
+    void evict() {
+        for (EndpointPool pool : pools.values()) {
+            if (closed) {
+                return;
+            }
+            evict(pool);
+            try {
+                topUp(pool);
+            } catch (JSchException e) {
+                // The next borrow reports it; the next run tries again.
+            }
+        }
+    }
+
+    void evict(EndpointPool pool) {
+        long now = System.nanoTime();
+        long idleTimeout = config.getIdleTimeout().toNanos();
+        List<PooledChannel> channels = new ArrayList<>();
+        List<PooledSession> sessions = new ArrayList<>();
+        pool.lock.lock();
+        try {
+            for (Iterator<PooledChannel> it = pool.idle.descendingIterator(); it.hasNext(); ) {
+                PooledChannel channel = it.next();
+                if (now - channel.idleSince > idleTimeout || !channel.channel.isConnected() || !channel.owner.session.isConnected()) {
+                    it.remove();
+                    channel.owner.channels--;
+                    channel.owner.idleSince = channel.idleSince; // oldest first, so this ends at the newest
+                    channels.add(channel);
+                }
+            }
+            for (Iterator<PooledSession> it = pool.sessions.iterator(); it.hasNext(); ) {
+                PooledSession session = it.next();
+                if (session.channels > 0) {
+                    continue;
+                }
+                if (!session.session.isConnected()
+                        || (now - session.idleSince > idleTimeout && pool.sessions.size() - 1 >= config.getMinSessions())) {
+                    it.remove();
+                    sessions.add(session);
+                }
+            }
+        } finally {
+            pool.lock.unlock();
+        }
+        for (PooledChannel channel : channels) {
+            channel.channel.disconnect();
+            pool.channelsDestroyed.incrementAndGet();
+        }
+        for (PooledSession session : sessions) {
+            session.session.disconnect();
+            pool.sessionsDestroyed.incrementAndGet();
+        }
+        pool.evictions.addAndGet(channels.size() + sessions.size());
+    }
+
+    private void topUp(EndpointPool pool) throws JSchException {
+        int missing;
+        pool.lock.lock();
+        try {
+            missing = config.getMinSessions() - pool.sessions.size() - pool.connecting;
+            if (missing > 0) {
+                pool.connecting += missing;
+            }
+        } finally {
+            pool.lock.unlock();
+        }
+        for (int i = 0; i < missing; i++) {
+            try {
+                connectSession(pool, 0);
+            } catch (JSchException e) {
+                pool.lock.lock();
+                try {
+                    pool.connecting -= missing - i - 1;
+                } finally {
+                    pool.lock.unlock();
+                }
+                throw e;
+            }
+        }
+    }
+
+    static final class EndpointPool {
+
+        final SftpEndpoint endpoint;
+        final JSch jsch;
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition available = lock.newCondition();
+        final List<PooledSession> sessions = new ArrayList<>();
+        /** Most recently released first, so the oldest idle channels age out at the tail. */
+        final ArrayDeque<PooledChannel> idle = new ArrayDeque<>();
+        int connecting;
+        int active;
+
+        final AtomicLong sessionsCreated = new AtomicLong();
+        final AtomicLong sessionsDestroyed = new AtomicLong();
+        final AtomicLong channelsCreated = new AtomicLong();
+        final AtomicLong channelsDestroyed = new AtomicLong();
+        final AtomicLong borrows = new AtomicLong();
+        final AtomicLong borrowTimeouts = new AtomicLong();
+        final AtomicLong borrowWaitNanos = new AtomicLong();
+        final AtomicLong validationFailures = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+
+        EndpointPool(SftpEndpoint endpoint, JSch jsch) {
+            this.endpoint = endpoint;
+            this.jsch = jsch;
+        }
+
+        /**
+         * The connected session with the most channels that still has room, packing channels onto
+         * few sessions so the rest can go idle and be evicted.
+         */
+        PooledSession sessionWithRoom(int maxChannels) {
+            PooledSession best = null;
+            for (PooledSession session : sessions) {
+                if (session.channels < maxChannels && session.session.isConnected() && (best == null || session.channels > best.channels)) {
+                    best = session;
+                }
+            }
+            return best;
+        }
+
+        boolean removeSession(PooledSession session) {
+            return sessions.remove(session);
+        }
+
+        SftpPoolStats stats() {
+            int openSessions;
+            int activeChannels;
+            int idleChannels;
+            lock.lock();
+            try {
+                openSessions = sessions.size();
+                activeChannels = active;
+                idleChannels = idle.size();
+            } finally {
+                lock.unlock();
+            }
+            return new SftpPoolStats(openSessions, activeChannels, idleChannels, sessionsCreated.get(), sessionsDestroyed.get(),
+                    channelsCreated.get(), channelsDestroyed.get(), borrows.get(), borrowTimeouts.get(),
+                    TimeUnit.NANOSECONDS.toMillis(borrowWaitNanos.get()), validationFailures.get(), evictions.get());
+        }
+    }
+
+    static final class PooledSession {
+
+        final Session session;
+        /** Open channels, idle or leased, plus slots reserved by borrowers opening one. */
+        int channels;
+        long idleSince = System.nanoTime();
+
+        PooledSession(Session session) {
+            this.session = session;
+        }
+    }
+
+    static final class PooledChannel {
+
+        final PooledSession owner;
+        final ChannelSftp channel;
+        final String home;
+        long idleSince;
+
+        PooledChannel(PooledSession owner, ChannelSftp channel, String home) {
+            this.owner = owner;
+            this.channel = channel;
+            this.home = home;
+        }
+    }
+}
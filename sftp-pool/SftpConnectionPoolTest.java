@@ -0,0 +1,205 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SftpConnectionPoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SshServer server;
+    private SftpEndpoint endpoint;
+    private SftpConnectionPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        Path root = folder.newFolder("root").toPath();
+        Files.createDirectory(root.resolve("inbound"));
+        Files.write(root.resolve("inbound/data.txt"), "hello".getBytes());
+
+        server = SshServer.setUpDefaultServer();
+        server.setPort(0);
+        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(folder.getRoot().toPath().resolve("hostkey.ser")));
+        server.setPasswordAuthenticator((user, password, session) -> "test".equals(user) && "secret".equals(password));
+        server.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        server.setFileSystemFactory(new VirtualFileSystemFactory(root));
+        server.start();
+
+        endpoint = SftpEndpoint.builder("localhost", server.getPort(), "test").password("secret").build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (pool != null) {
+            pool.close();
+        }
+        server.stop(true);
+    }
+
+    @Test
+    public void testReusesChannelBetweenBorrows() throws Exception {
+        pool = new SftpConnectionPool(config().build());
+        ChannelSftp first;
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            first = lease.channel();
+            assertEquals(1, first.ls("inbound").size() - 2);
+        }
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            assertSame(first, lease.channel());
+            assertEquals(1, pool.stats().getActiveChannels());
+        }
+        SftpPoolStats stats = pool.stats();
+        assertEquals(1, stats.getSessionsCreated());
+        assertEquals(1, stats.getChannelsCreated());
+        assertEquals(2, stats.getBorrows());
+        assertEquals(1, stats.getIdleChannels());
+        assertEquals(0, stats.getActiveChannels());
+    }
+
+    @Test
+    public void testMultiplexesChannelsOverSessions() throws Exception {
+        pool = new SftpConnectionPool(config().maxSessions(2).maxChannelsPerSession(2).build());
+        try (SftpLease a = pool.borrow(endpoint); SftpLease b = pool.borrow(endpoint); SftpLease c = pool.borrow(endpoint)) {
+            assertSame(a.channel().getSession(), b.channel().getSession());
+            assertNotSame(a.channel().getSession(), c.channel().getSession());
+        }
+        assertEquals(2, pool.stats().getOpenSessions());
+        assertEquals(3, pool.stats().getIdleChannels());
+    }
+
+    @Test
+    public void testWaitsForReleaseAndTimesOut() throws Exception {
+        pool = new SftpConnectionPool(config().maxSessions(1).maxChannelsPerSession(1).borrowTimeout(Duration.ofMillis(300)).build());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SftpLease held = pool.borrow(endpoint);
+            try {
+                pool.borrow(endpoint);
+                fail("borrow beyond the limits should time out");
+            } catch (JSchException expected) {
+                assertTrue(expected.getMessage().contains("Timed out"));
+                assertTrue(expected instanceof SftpPoolUnavailableException);
+            }
+            assertEquals(1, pool.stats().getBorrowTimeouts());
+
+            Future<ChannelSftp> waiter = executor.submit(() -> {
+                try (SftpLease lease = pool.borrow(endpoint)) {
+                    return lease.channel();
+                }
+            });
+            Thread.sleep(50);
+            ChannelSftp channel = held.channel();
+            held.close();
+            assertSame(channel, waiter.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReleaseReturnsToHomeDirectory() throws Exception {
+        pool = new SftpConnectionPool(config().build());
+        String home;
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            home = lease.channel().pwd();
+            lease.channel().cd("inbound");
+        }
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            assertEquals(home, lease.channel().pwd());
+        }
+    }
+
+    @Test
+    public void testInvalidatedChannelIsClosed() throws Exception {
+        pool = new SftpConnectionPool(config().build());
+        ChannelSftp first;
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            first = lease.channel();
+            lease.invalidate();
+        }
+        assertFalse(first.isConnected());
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            assertNotSame(first, lease.channel());
+        }
+        assertEquals(1, pool.stats().getSessionsCreated());
+        assertEquals(1, pool.stats().getChannelsDestroyed());
+    }
+
+    @Test
+    public void testReplacesChannelsOfDroppedSession() throws Exception {
+        pool = new SftpConnectionPool(config().build());
+        ChannelSftp first;
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            first = lease.channel();
+        }
+        first.getSession().disconnect();
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            assertNotSame(first, lease.channel());
+            assertEquals(1, lease.channel().ls("inbound").size() - 2);
+        }
+        SftpPoolStats stats = pool.stats();
+        assertEquals(1, stats.getValidationFailures());
+        assertEquals(2, stats.getSessionsCreated());
+        assertEquals(1, stats.getOpenSessions());
+    }
+
+    @Test
+    public void testEvictsIdleButKeepsMinimum() throws Exception {
+        pool = new SftpConnectionPool(config().minSessions(1).maxChannelsPerSession(1).idleTimeout(Duration.ZERO).build());
+        pool.warmUp(endpoint);
+        assertEquals(1, pool.stats().getOpenSessions());
+        try (SftpLease a = pool.borrow(endpoint); SftpLease b = pool.borrow(endpoint)) {
+            assertNotSame(a.channel().getSession(), b.channel().getSession());
+        }
+        assertEquals(2, pool.stats().getOpenSessions());
+        Thread.sleep(5);
+
+        pool.evict();
+        SftpPoolStats stats = pool.stats();
+        assertEquals(0, stats.getIdleChannels());
+        assertEquals(1, stats.getOpenSessions());
+        assertEquals(3, stats.getEvictions());
+    }
+
+    @Test
+    public void testClosedPoolRejectsBorrows() throws Exception {
+        pool = new SftpConnectionPool(config().build());
+        ChannelSftp channel;
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            channel = lease.channel();
+        }
+        pool.close();
+        assertFalse(channel.getSession().isConnected());
+        try {
+            pool.borrow(endpoint);
+            fail("closed pool should not lend channels");
+        } catch (JSchException expected) {
+            assertTrue(expected.getMessage().contains("closed"));
+        }
+    }
+
+    private static SftpPoolConfig.Builder config() {
+        return SftpPoolConfig.builder().evictionInterval(Duration.ZERO).borrowTimeout(Duration.ofSeconds(5));
+    }
+}
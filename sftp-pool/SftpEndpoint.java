@@ -0,0 +1,176 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.util.Base64;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * An SFTP server account: host, port and user, which is what connections are pooled by, plus how
+ * to authenticate and configure a new session for it. Two endpoints with the same host, port and
+ * user share one pool, so every caller of an account must configure it the same way.
+ */
+public final class SftpEndpoint {
+
+    private final String host;
+    private final int port;
+    private final String user;
+    private final String password;
+    private final String privateKey;
+    private final byte[] passphrase;
+    private final String knownHosts;
+    private final String hostKey;
+    private final Properties config;
+
+    private SftpEndpoint(Builder builder) {
+        this.host = builder.host;
+        this.port = builder.port;
+        this.user = builder.user;
+        this.password = builder.password;
+        this.privateKey = builder.privateKey;
+        this.passphrase = builder.passphrase;
+        this.knownHosts = builder.knownHosts;
+        this.hostKey = builder.hostKey;
+        this.config = (Properties) builder.config.clone();
+    }
+
+    public static Builder builder(String host, int port, String user) {
+        return new Builder(host, port, user);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * A {@link JSch} holding this endpoint's identity and trusted host keys, shared by all of its
+     * sessions.
+     */
+    JSch newJSch() throws JSchException {
+        JSch jsch = new JSch();
+        if (privateKey != null) {
+            jsch.addIdentity(privateKey, passphrase);
+        }
+        if (knownHosts != null) {
+            jsch.setKnownHosts(knownHosts);
+        }
+        if (hostKey != null) {
+            jsch.getHostKeyRepository().add(new HostKey(host, Base64.getDecoder().decode(hostKey)), null);
+        }
+        return jsch;
+    }
+
+    /**
+     * Creates an unconnected session for this endpoint with its password and SSH settings.
+     */
+    Session newSession(JSch jsch) throws JSchException {
+        Session session = jsch.getSession(user, host, port);
+        if (password != null) {
+            session.setPassword(password);
+        }
+        session.setConfig(config);
+        return session;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SftpEndpoint)) {
+            return false;
+        }
+        SftpEndpoint other = (SftpEndpoint) o;
+        return port == other.port && host.equals(other.host) && user.equals(other.user);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(host, port, user);
+    }
+
+    @Override
+    public String toString() {
+        return user + "@" + host + ":" + port;
+    }
+
+    public static final class Builder {
+
+        private final String host;
+        private final int port;
+        private final String user;
+        private String password;
+        private String privateKey;
+        private byte[] passphrase;
+        private String knownHosts;
+        private String hostKey;
+        private final Properties config = new Properties();
+
+        private Builder(String host, int port, String user) {
+            this.host = Objects.requireNonNull(host, "host");
+            this.port = port;
+            this.user = Objects.requireNonNull(user, "user");
+            config.put("StrictHostKeyChecking", "no");
+        }
+
+        public Builder password(String password) {
+            this.password = password;
+            return this;
+        }
+
+        public Builder privateKey(String privateKey) {
+            this.privateKey = privateKey;
+            return this;
+        }
+
+        public Builder privateKey(String privateKey, String passphrase) {
+            this.privateKey = privateKey;
+            this.passphrase = passphrase == null ? null : passphrase.getBytes();
+            return this;
+        }
+
+        /**
+         * Verifies the server against {@code knownHosts} and turns strict host key checking on.
+         */
+        public Builder knownHosts(String knownHosts) {
+            this.knownHosts = knownHosts;
+            config.put("StrictHostKeyChecking", "yes");
+            return this;
+        }
+
+        /**
+         * Trusts the server key given in base64, as found in a {@code known_hosts} line, and turns
+         * strict host key checking on.
+         */
+        public Builder hostKey(String hostKey) {
+            this.hostKey = hostKey;
+            config.put("StrictHostKeyChecking", "yes");
+            return this;
+        }
+
+        /**
+         * Sets a JSch session option, e.g. {@code StrictHostKeyChecking}, {@code cipher.c2s} or
+         * {@code compression.s2c}.
+         */
+        public Builder config(String key, String value) {
+            config.put(key, value);
+            return this;
+        }
+
+        public SftpEndpoint build() {
+            return new SftpEndpoint(this);
+        }
+    }
+}
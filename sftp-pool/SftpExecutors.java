@@ -0,0 +1,133 @@
+package com.example.sftp.pool;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for blocking SFTP work, on platform threads or, on Java 21 and later, on virtual
+ * threads. The library is built for Java 8, so virtual threads are reached through method
+ * handles and {@link #isVirtualThreadsSupported()} tells whether the running JVM has them.
+ *
+ * <p>Virtual threads make a blocked transfer cost a few KB instead of a platform thread, so the
+ * number of transfers in flight is bounded by permits per host rather than by thread count; see
+ * {@link SftpTransferEngine#withVirtualThreads}. JSch 0.1.55 waits for window space and channel
+ * data inside {@code synchronized} blocks, which keeps a virtual thread on its carrier while it
+ * waits. On Java 21 to 23 the scheduler makes up for it with extra carriers, up to
+ * {@code jdk.virtualThreadScheduler.maxPoolSize} (256 by default), which should stay above the
+ * sum of the per-host limits; from Java 24 monitors no longer pin. Pinning shows up with
+ * {@code -Djdk.tracePinnedThreads=short} on Java 21.
+ */
+public final class SftpExecutors {
+
+    /**
+     * How blocking work is run: {@code PLATFORM} threads from a fixed pool, {@code VIRTUAL}
+     * threads, one per task, or {@code AUTO}, virtual where the JVM has them.
+     */
+    public enum Mode {
+        PLATFORM, VIRTUAL, AUTO;
+
+        public static Mode of(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final MethodHandle VIRTUAL_THREAD_FACTORY = virtualThreadFactory();
+    private static final MethodHandle THREAD_PER_TASK_EXECUTOR = threadPerTaskExecutor();
+
+    private SftpExecutors() {
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        return VIRTUAL_THREAD_FACTORY != null && THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * An executor starting one virtual thread per task, named {@code <name>-<n>}.
+     *
+     * @throws UnsupportedOperationException before Java 21
+     */
+    public static ExecutorService newVirtualThreadExecutor(String name) {
+        if (!isVirtualThreadsSupported()) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, running on " + System.getProperty("java.version") + ".");
+        }
+        try {
+            ThreadFactory factory = (ThreadFactory) VIRTUAL_THREAD_FACTORY.invoke(name + "-", 1L);
+            return (ExecutorService) THREAD_PER_TASK_EXECUTOR.invoke(factory);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not create a virtual thread executor.", e);
+        }
+    }
+
+    /**
+     * A fixed pool of {@code threads} daemon platform threads, named {@code <name>-<n>}.
+     */
+    public static ExecutorService newPlatformThreadExecutor(String name, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Expected threads >= 1, got " + threads + ".");
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * An executor for {@code mode}; {@code threads} sizes the platform pool and is ignored for
+     * virtual threads, whose concurrency callers bound with permits.
+     */
+    public static ExecutorService newExecutor(Mode mode, String name, int threads) {
+        if (isVirtual(mode)) {
+            return newVirtualThreadExecutor(name);
+        }
+        return newPlatformThreadExecutor(name, threads);
+    }
+
+    /**
+     * Whether {@code mode} runs on virtual threads in this JVM.
+     */
+    public static boolean isVirtual(Mode mode) {
+        return mode == Mode.VIRTUAL || mode == Mode.AUTO && isVirtualThreadsSupported();
+    }
+
+    /**
+     * {@code Thread.ofVirtual().name(prefix, start).factory()}, or null before Java 21.
+     */
+    private static MethodHandle virtualThreadFactory() {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Class<?> virtualBuilderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            MethodHandle ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtualBuilderClass));
+            MethodHandle name = lookup.findVirtual(virtualBuilderClass, "name",
+                    MethodType.methodType(virtualBuilderClass, String.class, long.class));
+            MethodHandle factory = lookup.findVirtual(builderClass, "factory", MethodType.methodType(ThreadFactory.class));
+            // (prefix, start) -> ofVirtual().name(prefix, start).factory()
+            MethodHandle named = MethodHandles.foldArguments(name, ofVirtual);
+            return MethodHandles.filterReturnValue(named, factory.asType(MethodType.methodType(ThreadFactory.class, virtualBuilderClass)));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * {@code Executors.newThreadPerTaskExecutor(ThreadFactory)}, or null before Java 21.
+     */
+    private static MethodHandle threadPerTaskExecutor() {
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class, ThreadFactory.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+
+/**
+ * A pooled SFTP channel on loan. Closing the lease returns the channel to the pool, back in its
+ * home directory; use it in try-with-resources and don't disconnect the channel yourself.
+ */
+public class SftpLease implements AutoCloseable {
+
+    private final SftpConnectionPool pool;
+    private final SftpConnectionPool.EndpointPool endpointPool;
+    private final SftpConnectionPool.PooledChannel channel;
+    private boolean broken;
+    private boolean closed;
+
+    SftpLease(SftpConnectionPool pool, SftpConnectionPool.EndpointPool endpointPool, SftpConnectionPool.PooledChannel channel) {
+        this.pool = pool;
+        this.endpointPool = endpointPool;
+        this.channel = channel;
+    }
+
+    public ChannelSftp channel() {
+        if (closed) {
+            throw new IllegalStateException("SFTP lease to " + endpointPool.endpoint + " is already closed.");
+        }
+        return channel.channel;
+    }
+
+    public SftpEndpoint endpoint() {
+        return endpointPool.endpoint;
+    }
+
+    /**
+     * Marks the channel as unusable, e.g. after a transfer failed half-way, so closing the lease
+     * disconnects it instead of pooling it.
+     */
+    public void invalidate() {
+        broken = true;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            pool.release(endpointPool, channel, broken);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.sftp.pool;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Limits and timings of an {@link SftpConnectionPool}, applied to each endpoint separately.
+ *
+ * <p>The keep-alive and timeout settings use the names and units of
+ * {@code sftp_configuration_example.json} ({@code serverAliveInterval}, {@code serverAliveCountMax}
+ * and {@code timeout} in seconds), and {@link #from(Map)} reads them together with the pool's own
+ * keys {@code minSessions}, {@code maxSessions}, {@code maxChannelsPerSession} and
+ * {@code idleTimeout}.
+ */
+public final class SftpPoolConfig {
+
+    public static final SftpPoolConfig DEFAULT = builder().build();
+
+    private final int minSessions;
+    private final int maxSessions;
+    private final int maxChannelsPerSession;
+    private final Duration idleTimeout;
+    private final Duration evictionInterval;
+    private final Duration serverAliveInterval;
+    private final int serverAliveCountMax;
+    private final Duration connectTimeout;
+    private final Duration borrowTimeout;
+    private final boolean validateOnBorrow;
+
+    private SftpPoolConfig(Builder builder) {
+        if (builder.minSessions < 0 || builder.maxSessions < 1 || builder.minSessions > builder.maxSessions || builder.maxChannelsPerSession < 1) {
+            throw new IllegalArgumentException("Expected 0 <= minSessions <= maxSessions, maxSessions >= 1 and maxChannelsPerSession >= 1, got "
+                    + builder.minSessions + ", " + builder.maxSessions + " and " + builder.maxChannelsPerSession + ".");
+        }
+        this.minSessions = builder.minSessions;
+        this.maxSessions = builder.maxSessions;
+        this.maxChannelsPerSession = builder.maxChannelsPerSession;
+        this.idleTimeout = builder.idleTimeout;
+        this.evictionInterval = builder.evictionInterval;
+        this.serverAliveInterval = builder.serverAliveInterval;
+        this.serverAliveCountMax = builder.serverAliveCountMax;
+        this.connectTimeout = builder.connectTimeout;
+        this.borrowTimeout = builder.borrowTimeout;
+        this.validateOnBorrow = builder.validateOnBorrow;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Reads the settings present in {@code settings}, e.g. {@code sftp_configuration_example.json}
+     * parsed into a map, and keeps the defaults for the rest. Durations are in seconds.
+     */
+    public static SftpPoolConfig from(Map<String, ?> settings) {
+        Builder builder = builder();
+        if (settings.containsKey("minSessions")) {
+            builder.minSessions(intValue(settings.get("minSessions")));
+        }
+        if (settings.containsKey("maxSessions")) {
+            builder.maxSessions(intValue(settings.get("maxSessions")));
+        }
+        if (settings.containsKey("maxChannelsPerSession")) {
+            builder.maxChannelsPerSession(intValue(settings.get("maxChannelsPerSession")));
+        }
+        if (settings.containsKey("idleTimeout")) {
+            builder.idleTimeout(Duration.ofSeconds(intValue(settings.get("idleTimeout"))));
+        }
+        if (settings.containsKey("serverAliveInterval")) {
+            builder.serverAliveInterval(Duration.ofSeconds(intValue(settings.get("serverAliveInterval"))));
+        }
+        if (settings.containsKey("serverAliveCountMax")) {
+            builder.serverAliveCountMax(intValue(settings.get("serverAliveCountMax")));
+        }
+        if (settings.containsKey("timeout")) {
+            builder.connectTimeout(Duration.ofSeconds(intValue(settings.get("timeout"))));
+        }
+        return builder.build();
+    }
+
+    private static int intValue(Object value) {
+        return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+    }
+
+    /**
+     * Sessions kept open per endpoint once it has been used, even when idle.
+     */
+    public int getMinSessions() {
+        return minSessions;
+    }
+
+    /**
+     * Upper bound on SSH sessions per endpoint; borrowers wait once all are at
+     * {@link #getMaxChannelsPerSession()}.
+     */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * SFTP channels multiplexed over one session. Servers cap this too (OpenSSH: {@code MaxSessions},
+     * 10 by default).
+     */
+    public int getMaxChannelsPerSession() {
+        return maxChannelsPerSession;
+    }
+
+    /**
+     * How long an idle channel, or a session without channels, is kept before it is closed.
+     */
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public Duration getEvictionInterval() {
+        return evictionInterval;
+    }
+
+    public Duration getServerAliveInterval() {
+        return serverAliveInterval;
+    }
+
+    public int getServerAliveCountMax() {
+        return serverAliveCountMax;
+    }
+
+    public Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * How long {@link SftpConnectionPool#borrow(SftpEndpoint)} waits for a channel when the
+     * endpoint is at its limits.
+     */
+    public Duration getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    /**
+     * Whether an idle channel is checked with a round trip to the server before it is handed out.
+     */
+    public boolean isValidateOnBorrow() {
+        return validateOnBorrow;
+    }
+
+    @Override
+    public String toString() {
+        return "SftpPoolConfig[sessions=" + minSessions + ".." + maxSessions + ", channelsPerSession=" + maxChannelsPerSession
+                + ", idleTimeout=" + idleTimeout + ", serverAliveInterval=" + serverAliveInterval + "x" + serverAliveCountMax
+                + ", validateOnBorrow=" + validateOnBorrow + "]";
+    }
+
+    public static final class Builder {
+
+        private int minSessions = 0;
+        private int maxSessions = 4;
+        private int maxChannelsPerSession = 4;
+        private Duration idleTimeout = Duration.ofMinutes(5);
+        private Duration evictionInterval = Duration.ofSeconds(30);
+        private Duration serverAliveInterval = Duration.ofSeconds(60);
+        private int serverAliveCountMax = 3;
+        private Duration connectTimeout = Duration.ofSeconds(30);
+        private Duration borrowTimeout = Duration.ofSeconds(30);
+        private boolean validateOnBorrow = true;
+
+        private Builder() {
+        }
+
+        public Builder minSessions(int minSessions) {
+            this.minSessions = minSessions;
+            return this;
+        }
+
+        public Builder maxSessions(int maxSessions) {
+            this.maxSessions = maxSessions;
+            return this;
+        }
+
+        public Builder maxChannelsPerSession(int maxChannelsPerSession) {
+            this.maxChannelsPerSession = maxChannelsPerSession;
+            return this;
+        }
+
+        public Builder idleTimeout(Duration idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        public Builder evictionInterval(Duration evictionInterval) {
+            this.evictionInterval = evictionInterval;
+            return this;
+        }
+
+        public Builder serverAliveInterval(Duration serverAliveInterval) {
+            this.serverAliveInterval = serverAliveInterval;
+            return this;
+        }
+
+        public Builder serverAliveCountMax(int serverAliveCountMax) {
+            this.serverAliveCountMax = serverAliveCountMax;
+            return this;
+        }
+
+        public Builder connectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public Builder borrowTimeout(Duration borrowTimeout) {
+            this.borrowTimeout = borrowTimeout;
+            return this;
+        }
+
+        public Builder validateOnBorrow(boolean validateOnBorrow) {
+            this.validateOnBorrow = validateOnBorrow;
+            return this;
+        }
+
+        public SftpPoolConfig build() {
+            return new SftpPoolConfig(this);
+        }
+    }
+}
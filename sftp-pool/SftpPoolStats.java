@@ -0,0 +1,116 @@
+package com.example.sftp.pool;
+
+/**
+ * A snapshot of an {@link SftpConnectionPool}: gauges for what is open now and counters since the
+ * pool was created, for one endpoint or summed over all of them.
+ */
+public final class SftpPoolStats {
+
+    static final SftpPoolStats EMPTY = new SftpPoolStats(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+    private final int openSessions;
+    private final int activeChannels;
+    private final int idleChannels;
+    private final long sessionsCreated;
+    private final long sessionsDestroyed;
+    private final long channelsCreated;
+    private final long channelsDestroyed;
+    private final long borrows;
+    private final long borrowTimeouts;
+    private final long borrowWaitMillis;
+    private final long validationFailures;
+    private final long evictions;
+
+    SftpPoolStats(int openSessions, int activeChannels, int idleChannels, long sessionsCreated, long sessionsDestroyed,
+                  long channelsCreated, long channelsDestroyed, long borrows, long borrowTimeouts, long borrowWaitMillis,
+                  long validationFailures, long evictions) {
+        this.openSessions = openSessions;
+        this.activeChannels = activeChannels;
+        this.idleChannels = idleChannels;
+        this.sessionsCreated = sessionsCreated;
+        this.sessionsDestroyed = sessionsDestroyed;
+        this.channelsCreated = channelsCreated;
+        this.channelsDestroyed = channelsDestroyed;
+        this.borrows = borrows;
+        this.borrowTimeouts = borrowTimeouts;
+        this.borrowWaitMillis = borrowWaitMillis;
+        this.validationFailures = validationFailures;
+        this.evictions = evictions;
+    }
+
+    SftpPoolStats plus(SftpPoolStats other) {
+        return new SftpPoolStats(openSessions + other.openSessions, activeChannels + other.activeChannels, idleChannels + other.idleChannels,
+                sessionsCreated + other.sessionsCreated, sessionsDestroyed + other.sessionsDestroyed,
+                channelsCreated + other.channelsCreated, channelsDestroyed + other.channelsDestroyed,
+                borrows + other.borrows, borrowTimeouts + other.borrowTimeouts, borrowWaitMillis + other.borrowWaitMillis,
+                validationFailures + other.validationFailures, evictions + other.evictions);
+    }
+
+    public int getOpenSessions() {
+        return openSessions;
+    }
+
+    /**
+     * Channels currently leased.
+     */
+    public int getActiveChannels() {
+        return activeChannels;
+    }
+
+    public int getIdleChannels() {
+        return idleChannels;
+    }
+
+    public long getSessionsCreated() {
+        return sessionsCreated;
+    }
+
+    public long getSessionsDestroyed() {
+        return sessionsDestroyed;
+    }
+
+    public long getChannelsCreated() {
+        return channelsCreated;
+    }
+
+    public long getChannelsDestroyed() {
+        return channelsDestroyed;
+    }
+
+    public long getBorrows() {
+        return borrows;
+    }
+
+    public long getBorrowTimeouts() {
+        return borrowTimeouts;
+    }
+
+    /**
+     * Total time successful borrows took, including connecting new sessions and waiting for a
+     * free channel.
+     */
+    public long getBorrowWaitMillis() {
+        return borrowWaitMillis;
+    }
+
+    /**
+     * Idle channels found dead when borrowed and replaced.
+     */
+    public long getValidationFailures() {
+        return validationFailures;
+    }
+
+    /**
+     * Idle channels and sessions closed by the evictor.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return "SftpPoolStats[sessions=" + openSessions + ", active=" + activeChannels + ", idle=" + idleChannels
+                + ", borrows=" + borrows + ", timeouts=" + borrowTimeouts + ", sessionsCreated=" + sessionsCreated
+                + ", channelsCreated=" + channelsCreated + ", validationFailures=" + validationFailures + ", evictions=" + evictions + "]";
+    }
+}
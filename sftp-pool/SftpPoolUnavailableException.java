@@ -0,0 +1,21 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.JSchException;
+
+/**
+ * Thrown by {@link SftpConnectionPool} when it cannot hand out a channel for reasons of its own:
+ * waiting for one timed out, the wait was interrupted, or the pool is closed. Unlike other
+ * {@link JSchException}s it says nothing about the server, so it must not count against the host.
+ */
+public class SftpPoolUnavailableException extends JSchException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SftpPoolUnavailableException(String message) {
+        super(message);
+    }
+
+    public SftpPoolUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Runs the transfers of a listing side by side, each on its own channel leased from an
+ * {@link SftpConnectionPool}, so a high-latency link carries several files at once instead of
+ * waiting out one round trip after another. Whatever a transfer does with the data, e.g. decrypt
+ * it while it streams in, overlaps with the other files' downloads.
+ *
+ * <p>{@code maxConcurrentTransfers} caps the transfers the engine runs at once, over all hosts;
+ * {@code maxTransfersPerHost} caps those to one host, over all runs, so a partner server is never
+ * hit with more parallel transfers than it allows. Failures are reported per item and never stop
+ * the rest of the run.
+ *
+ * <p>If the pool has an {@link SftpTuner}, each transfer runs under the profile it chooses and
+ * reports its throughput back to it.
+ *
+ * <p>{@link #withVirtualThreads} runs each transfer on a virtual thread of its own, so thousands
+ * of transfers waiting on slow partners cost memory rather than platform threads; permits then
+ * bound {@code maxConcurrentTransfers} as well.
+ */
+public class SftpTransferEngine implements AutoCloseable {
+
+    /**
+     * Moves one item over {@code channel} and returns the number of bytes transferred, or -1 if
+     * unknown. Throwing marks the item failed and drops the channel instead of pooling it.
+     */
+    @FunctionalInterface
+    public interface Transfer<T> {
+        long transfer(ChannelSftp channel, T item) throws Exception;
+    }
+
+    private final SftpConnectionPool pool;
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final HostPermits permits;
+
+    public SftpTransferEngine(SftpConnectionPool pool, int maxConcurrentTransfers, int maxTransfersPerHost) {
+        this(pool, newTransferExecutor(maxConcurrentTransfers), maxTransfersPerHost, 0, true);
+    }
+
+    /**
+     * Runs transfers on {@code executor}, which then bounds the overall concurrency and is left
+     * running by {@link #close()}.
+     */
+    public SftpTransferEngine(SftpConnectionPool pool, Executor executor, int maxTransfersPerHost) {
+        this(pool, executor, maxTransfersPerHost, 0, false);
+    }
+
+    private SftpTransferEngine(SftpConnectionPool pool, Executor executor, int maxTransfersPerHost, int maxConcurrentTransfers,
+                               boolean ownsExecutor) {
+        if (maxTransfersPerHost < 1) {
+            throw new IllegalArgumentException("Expected maxTransfersPerHost >= 1, got " + maxTransfersPerHost + ".");
+        }
+        this.pool = pool;
+        this.executor = executor;
+        this.ownExecutor = ownsExecutor ? (ExecutorService) executor : null;
+        this.permits = new HostPermits(maxTransfersPerHost, maxConcurrentTransfers);
+    }
+
+    /**
+     * An engine running each transfer on a new virtual thread, at most
+     * {@code maxConcurrentTransfers} at once over all hosts.
+     *
+     * @throws UnsupportedOperationException before Java 21
+     */
+    public static SftpTransferEngine withVirtualThreads(SftpConnectionPool pool, int maxConcurrentTransfers, int maxTransfersPerHost) {
+        checkMaxConcurrentTransfers(maxConcurrentTransfers);
+        return new SftpTransferEngine(pool, SftpExecutors.newVirtualThreadExecutor("sftp-transfer"), maxTransfersPerHost,
+                maxConcurrentTransfers, true);
+    }
+
+    /**
+     * An engine on virtual or platform threads, as {@code mode} says.
+     */
+    public static SftpTransferEngine create(SftpConnectionPool pool, SftpExecutors.Mode mode, int maxConcurrentTransfers,
+                                            int maxTransfersPerHost) {
+        return SftpExecutors.isVirtual(mode)
+                ? withVirtualThreads(pool, maxConcurrentTransfers, maxTransfersPerHost)
+                : new SftpTransferEngine(pool, maxConcurrentTransfers, maxTransfersPerHost);
+    }
+
+    private static ExecutorService newTransferExecutor(int maxConcurrentTransfers) {
+        checkMaxConcurrentTransfers(maxConcurrentTransfers);
+        return SftpExecutors.newPlatformThreadExecutor("sftp-transfer", maxConcurrentTransfers);
+    }
+
+    private static void checkMaxConcurrentTransfers(int maxConcurrentTransfers) {
+        if (maxConcurrentTransfers < 1) {
+            throw new IllegalArgumentException("Expected maxConcurrentTransfers >= 1, got " + maxConcurrentTransfers + ".");
+        }
+    }
+
+    /**
+     * Transfers every item and waits for all of them. The outcomes are in the order of
+     * {@code items}.
+     *
+     * @throws InterruptedException if the caller is interrupted while waiting; transfers already
+     *                              started run to completion
+     */
+    public <T> List<TransferOutcome<T>> run(SftpEndpoint endpoint, Collection<T> items, Transfer<T> transfer) throws InterruptedException {
+        AtomicReferenceArray<TransferOutcome<T>> outcomes = new AtomicReferenceArray<>(items.size());
+        run(endpoint, items.iterator(), transfer, (index, outcome) -> outcomes.set(index, outcome));
+        List<TransferOutcome<T>> list = new ArrayList<>(outcomes.length());
+        for (int i = 0; i < outcomes.length(); i++) {
+            list.add(outcomes.get(i));
+        }
+        return list;
+    }
+
+    /**
+     * Like {@link #run(SftpEndpoint, Collection, Transfer)}, for items that arrive while the run
+     * goes on, e.g. from a {@link RemoteListing}: each transfer starts as soon as its item is
+     * taken, and no further item is taken while the host has no permit to spare, which holds the
+     * producer back.
+     *
+     * <p>Each outcome goes to {@code listener} as soon as its transfer ends, on the thread that ran
+     * it, so {@code listener} must be thread-safe. The engine keeps nothing of a finished transfer,
+     * so a run over a listing of any length holds only the transfers in flight.
+     */
+    public <T> void run(SftpEndpoint endpoint, Iterator<T> items, Transfer<T> transfer, Consumer<TransferOutcome<T>> listener)
+            throws InterruptedException {
+        run(endpoint, items, transfer, (index, outcome) -> listener.accept(outcome));
+    }
+
+    private <T> void run(SftpEndpoint endpoint, Iterator<T> items, Transfer<T> transfer, IndexedListener<T> listener)
+            throws InterruptedException {
+        String host = endpoint.getHost();
+        // The caller's party holds the phase open until every item has been handed out
+        Phaser inFlight = new Phaser(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int index = 0; items.hasNext(); index++) {
+            T item = items.next();
+            int i = index;
+            // Queue on the caller's thread, so workers never sit blocked behind a busy host
+            permits.acquire(host);
+            inFlight.register();
+            try {
+                executor.execute(() -> {
+                    try {
+                        listener.outcome(i, transfer(endpoint, item, transfer));
+                    } catch (RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        permits.release(host);
+                        inFlight.arriveAndDeregister();
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release(host);
+                inFlight.arriveAndDeregister();
+                throw e;
+            }
+        }
+        inFlight.awaitAdvanceInterruptibly(inFlight.arrive());
+        if (failure.get() != null) {
+            throw new IllegalStateException("Transfer task failed outside the transfer.", failure.get());
+        }
+    }
+
+    @FunctionalInterface
+    private interface IndexedListener<T> {
+        void outcome(int index, TransferOutcome<T> outcome);
+    }
+
+    private <T> TransferOutcome<T> transfer(SftpEndpoint endpoint, T item, Transfer<T> transfer) {
+        long start = System.nanoTime();
+        SftpTuner tuner = pool.getTuner();
+        try (SftpLease lease = pool.borrow(endpoint)) {
+            ChannelSftp channel = lease.channel();
+            long transferStart = 0;
+            try {
+                if (tuner != null) {
+                    tuner.begin(endpoint, channel);
+                }
+                transferStart = System.nanoTime();
+                long bytes = transfer.transfer(channel, item);
+                if (tuner != null) {
+                    tuner.end(channel, bytes, System.nanoTime() - transferStart);
+                }
+                return TransferOutcome.succeeded(item, bytes, elapsedMillis(start));
+            } catch (Exception e) {
+                if (tuner != null) {
+                    tuner.end(channel, -1, 0);
+                }
+                lease.invalidate();
+                return TransferOutcome.failed(item, e, elapsedMillis(start));
+            }
+        } catch (Exception e) {
+            return TransferOutcome.failed(item, e, elapsedMillis(start));
+        }
+    }
+
+    private static long elapsedMillis(long start) {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    @Override
+    public void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.SftpException;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SftpTransferEngineTest {
+
+    private static final int FILES = 12;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SshServer server;
+    private SftpEndpoint endpoint;
+    private SftpConnectionPool pool;
+    private Path local;
+
+    @Before
+    public void setUp() throws Exception {
+        Path root = folder.newFolder("root").toPath();
+        for (int i = 0; i < FILES; i++) {
+            Files.write(root.resolve("file" + i + ".pgp"), new byte[1000 * (i + 1)]);
+        }
+        local = folder.newFolder("local").toPath();
+
+        server = SshServer.setUpDefaultServer();
+        server.setPort(0);
+        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(folder.getRoot().toPath().resolve("hostkey.ser")));
+        server.setPasswordAuthenticator((user, password, session) -> "test".equals(user) && "secret".equals(password));
+        server.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        server.setFileSystemFactory(new VirtualFileSystemFactory(root));
+        server.start();
+
+        endpoint = SftpEndpoint.builder("localhost", server.getPort(), "test").password("secret").build();
+        pool = new SftpConnectionPool(SftpPoolConfig.builder().maxSessions(2).maxChannelsPerSession(4).evictionInterval(Duration.ZERO).build());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        server.stop(true);
+    }
+
+    @Test
+    public void testDownloadsAllFilesInParallel() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            names.add("file" + i + ".pgp");
+        }
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+
+        List<TransferOutcome<String>> outcomes;
+        try (SftpTransferEngine engine = new SftpTransferEngine(pool, 8, 3)) {
+            outcomes = engine.run(endpoint, names, (channel, name) -> {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try (InputStream in = channel.get(name)) {
+                    Thread.sleep(50);
+                    return Files.copy(in, local.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+        }
+
+        assertEquals(FILES, outcomes.size());
+        for (int i = 0; i < FILES; i++) {
+            TransferOutcome<String> outcome = outcomes.get(i);
+            assertEquals(names.get(i), outcome.getItem());
+            assertTrue(outcome.toString(), outcome.isSucceeded());
+            assertEquals(1000 * (i + 1), outcome.getBytes());
+            assertEquals(1000 * (i + 1), Files.size(local.resolve(names.get(i))));
+        }
+        assertEquals("per-host cap", 3, peak.get());
+        assertEquals(3, pool.stats().getChannelsCreated());
+    }
+
+    @Test
+    public void testReportsFailuresPerFile() throws Exception {
+        List<String> names = Arrays.asList("file0.pgp", "missing.pgp", "file1.pgp");
+        List<TransferOutcome<String>> outcomes;
+        try (SftpTransferEngine engine = new SftpTransferEngine(pool, 2, 2)) {
+            outcomes = engine.run(endpoint, names, (channel, name) -> {
+                try (InputStream in = channel.get(name)) {
+                    return Files.copy(in, local.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+                }
+            });
+        }
+
+        assertTrue(outcomes.get(0).isSucceeded());
+        assertFalse(outcomes.get(1).isSucceeded());
+        assertTrue(outcomes.get(1).getError().getMessage(), outcomes.get(1).getError() instanceof SftpException);
+        assertTrue(outcomes.get(2).isSucceeded());
+        assertTrue(Files.exists(local.resolve("file1.pgp")));
+        assertEquals(0, pool.stats().getActiveChannels());
+    }
+
+    @Test
+    public void testHandsEachOutcomeToListenerAsItEnds() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            names.add(i == 5 ? "missing.pgp" : "file" + i + ".pgp");
+        }
+        List<TransferOutcome<String>> outcomes = Collections.synchronizedList(new ArrayList<>());
+        try (SftpTransferEngine engine = new SftpTransferEngine(pool, 4, 2)) {
+            engine.run(endpoint, names.iterator(), (channel, name) -> channel.stat(name).getSize(), outcomes::add);
+        }
+
+        assertEquals(FILES, outcomes.size());
+        Set<String> seen = new HashSet<>();
+        for (TransferOutcome<String> outcome : outcomes) {
+            assertTrue(seen.add(outcome.getItem()));
+            assertEquals(outcome.toString(), !"missing.pgp".equals(outcome.getItem()), outcome.isSucceeded());
+        }
+        assertEquals(0, pool.stats().getActiveChannels());
+    }
+
+    @Test
+    public void testListenerFailureFailsRun() throws Exception {
+        try (SftpTransferEngine engine = new SftpTransferEngine(pool, 2, 2)) {
+            engine.run(endpoint, Arrays.asList("file0.pgp", "file1.pgp").iterator(), (channel, name) -> 1, outcome -> {
+                throw new IllegalArgumentException("listener");
+            });
+            fail("listener failure should fail the run");
+        } catch (IllegalStateException expected) {
+            assertEquals("listener", expected.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testRunsEachTransferOnAVirtualThread() throws Exception {
+        Assume.assumeTrue(SftpExecutors.isVirtualThreadsSupported());
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            names.add("file" + i + ".pgp");
+        }
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+
+        List<TransferOutcome<String>> outcomes;
+        try (SftpTransferEngine engine = SftpTransferEngine.create(pool, SftpExecutors.Mode.VIRTUAL, 2, 3)) {
+            outcomes = engine.run(endpoint, names, (channel, name) -> {
+                threads.add(Thread.currentThread().toString());
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try (InputStream in = channel.get(name)) {
+                    Thread.sleep(50);
+                    return Files.copy(in, local.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+        }
+
+        for (TransferOutcome<String> outcome : outcomes) {
+            assertTrue(outcome.toString(), outcome.isSucceeded());
+        }
+        assertEquals("overall cap below the per-host one", 2, peak.get());
+        assertEquals(FILES, threads.size());
+        assertTrue(threads.toString(), threads.stream().allMatch(thread -> thread.startsWith("VirtualThread")));
+    }
+
+    @Test
+    public void testFallsBackToPlatformThreadsWithoutVirtualThreads() throws Exception {
+        Assume.assumeFalse(SftpExecutors.isVirtualThreadsSupported());
+        try {
+            SftpTransferEngine.create(pool, SftpExecutors.Mode.VIRTUAL, 2, 2);
+            fail("virtual threads asked for explicitly should not be replaced silently");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try (SftpTransferEngine engine = SftpTransferEngine.create(pool, SftpExecutors.Mode.AUTO, 2, 2)) {
+            List<TransferOutcome<String>> outcomes = engine.run(endpoint, Arrays.asList("file0.pgp", "file1.pgp"),
+                    (channel, name) -> channel.stat(name).getSize());
+            assertTrue(outcomes.get(1).isSucceeded());
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Learns per host which {@link TransferProfile} moves data fastest, from the throughput of live
+ * transfers, and hands it to new sessions and to each transfer.
+ *
+ * <p>Starting from the configured profile, the tuner tries one change at a time: twice or half the
+ * outstanding read requests, twice or half the buffer size, compression toggled, the next cipher
+ * first. A trial runs on every other transfer to the host, interleaved with the current profile so
+ * both see the same network, and replaces it if its throughput over {@value #SAMPLES_PER_TRIAL}
+ * transfers is at least 5% higher. A change that paid off is pushed further (twice again) before
+ * moving on. Once no change helps, the host is converged and the tuner only looks
+ * again after {@value #REEXPLORE_AFTER} more transfers, in case the link changed. Doubling the
+ * outstanding requests is only tried while throughput is near what the current number allows
+ * per round trip, which the tuner measures every minute with a {@code realpath} request.
+ *
+ * <p>Compression and ciphers are fixed when a session connects, so trials of those run on sessions
+ * the pool opens while they are active (every other one) and are given up after
+ * {@value #MAX_TRIAL_MISSES} transfers find no such session. Transfers smaller than
+ * {@value #MIN_SAMPLE_BYTES} bytes are not sampled; their time is mostly latency.
+ *
+ * <p>With a state directory, each host's profile and throughput are written to
+ * {@code <host>_<port>.properties} whenever they change, and picked up by the next process.
+ */
+public class SftpTuner {
+
+    static final long MIN_SAMPLE_BYTES = 256 * 1024;
+    static final int SAMPLES_PER_TRIAL = 3;
+    static final int REEXPLORE_AFTER = 200;
+    static final int MAX_TRIAL_MISSES = 20;
+
+    /** Throughput gain a trial needs to replace the current profile, so noise doesn't flip it. */
+    private static final double MIN_GAIN = 0.05;
+
+    /** Data JSch asks for per read request: its 32 KB remote packet size, less headers. */
+    private static final int REQUEST_SIZE = 32 * 1024;
+
+    private static final double EWMA_WEIGHT = 0.3;
+    private static final long RTT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final int MORE_REQUESTS = 0;
+    private static final int FEWER_REQUESTS = 1;
+    private static final int LARGER_BUFFER = 2;
+    private static final int SMALLER_BUFFER = 3;
+    private static final int TOGGLE_COMPRESSION = 4;
+    private static final int NEXT_CIPHER = 5;
+    private static final int MOVES = 6;
+
+    private final TransferProfile initial;
+    private final Path stateDirectory;
+    private final ConcurrentMap<String, HostState> hosts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ChannelSftp, InFlight> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param initial        the profile for hosts without saved state; its ciphers are the ones
+     *                       the tuner chooses among
+     * @param stateDirectory where learned profiles are kept between runs, or null to keep them in
+     *                       memory only
+     */
+    public SftpTuner(TransferProfile initial, Path stateDirectory) {
+        this.initial = initial;
+        this.stateDirectory = stateDirectory;
+    }
+
+    /**
+     * The best profile known for {@code endpoint}'s host.
+     */
+    public TransferProfile profile(SftpEndpoint endpoint) {
+        HostState host = host(endpoint);
+        synchronized (host) {
+            return host.best;
+        }
+    }
+
+    /**
+     * Sets the ciphers and compression of a session about to connect.
+     */
+    void configure(SftpEndpoint endpoint, Session session) {
+        TransferProfile profile = host(endpoint).sessionProfile();
+        session.setConfig("cipher.s2c", profile.getCipherList());
+        session.setConfig("cipher.c2s", profile.getCipherList());
+        session.setConfig("compression.s2c", profile.getCompressionConfig());
+        session.setConfig("compression.c2s", profile.getCompressionConfig());
+    }
+
+    /**
+     * Prepares {@code channel} for a transfer to be reported through {@link #end}, and returns the
+     * profile it runs under.
+     */
+    public TransferProfile begin(SftpEndpoint endpoint, ChannelSftp channel) throws JSchException {
+        HostState host = host(endpoint);
+        if (host.rttDue()) {
+            long start = System.nanoTime();
+            try {
+                channel.realpath(".");
+                host.recordRtt(System.nanoTime() - start);
+            } catch (SftpException e) {
+                // Leave it to the transfer to fail on a broken channel
+            }
+        }
+        Session session = channel.getSession();
+        boolean compression = TransferProfile.isCompressionConfig(session.getConfig("compression.s2c"));
+        String cipher = firstOf(session.getConfig("cipher.s2c"));
+        TransferProfile profile = host.choose(compression, cipher);
+        channel.setBulkRequests(profile.getBulkRequests());
+        inFlight.put(channel, new InFlight(host, profile, compression, cipher));
+        return profile;
+    }
+
+    /**
+     * Reports how the transfer started by {@link #begin} went.
+     *
+     * @param bytes bytes transferred, or -1 if the transfer failed
+     * @param nanos time the transfer took
+     */
+    public void end(ChannelSftp channel, long bytes, long nanos) {
+        InFlight transfer = inFlight.remove(channel);
+        if (transfer == null || bytes < MIN_SAMPLE_BYTES || nanos <= 0) {
+            return;
+        }
+        if (transfer.host.record(transfer, bytes * 1e9 / nanos, bytes, nanos)) {
+            save(transfer.host);
+        }
+    }
+
+    /**
+     * The read size for the transfer running on {@code channel}, or {@code defaultSize} if none was
+     * started with {@link #begin}.
+     */
+    public int bufferSize(ChannelSftp channel, int defaultSize) {
+        InFlight transfer = inFlight.get(channel);
+        return transfer == null ? defaultSize : transfer.profile.getBufferSize();
+    }
+
+    void recordRtt(SftpEndpoint endpoint, long nanos) {
+        host(endpoint).recordRtt(nanos);
+    }
+
+    /**
+     * What has been learned so far, by {@code host:port}.
+     */
+    public Map<String, SftpTunerStats> stats() {
+        Map<String, SftpTunerStats> stats = new TreeMap<>();
+        for (HostState host : hosts.values()) {
+            stats.put(host.key, host.stats());
+        }
+        return stats;
+    }
+
+    private HostState host(SftpEndpoint endpoint) {
+        String key = endpoint.getHost() + ":" + endpoint.getPort();
+        HostState host = hosts.get(key);
+        if (host == null) {
+            HostState created = load(key);
+            host = hosts.putIfAbsent(key, created);
+            if (host == null) {
+                host = created;
+            }
+        }
+        return host;
+    }
+
+    private static String firstOf(String list) {
+        if (list == null) {
+            return "";
+        }
+        int comma = list.indexOf(',');
+        return comma < 0 ? list : list.substring(0, comma);
+    }
+
+    private Path stateFile(String key) {
+        return stateDirectory.resolve(key.replaceAll("[^A-Za-z0-9.-]", "_") + ".properties");
+    }
+
+    private HostState load(String key) {
+        HostState host = new HostState(key, initial);
+        if (stateDirectory == null || !Files.exists(stateFile(key))) {
+            return host;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(stateFile(key))) {
+            properties.load(in);
+            TransferProfile saved = TransferProfile.fromProperties(properties);
+            // A profile saved before the cipher choice was reconfigured no longer applies
+            if (saved != null && new HashSet<>(saved.getCiphers()).equals(new HashSet<>(initial.getCiphers()))) {
+                host.best = saved;
+                host.bestRate = Double.parseDouble(properties.getProperty("throughput", "0"));
+                host.bestSamples = host.bestRate > 0 ? SAMPLES_PER_TRIAL : 0;
+                host.rttNanos = Double.parseDouble(properties.getProperty("rttMillis", "0")) * 1e6;
+                host.converged = Boolean.parseBoolean(properties.getProperty("converged"));
+            }
+        } catch (IOException | RuntimeException e) {
+            // Unreadable state only costs the tuning done so far
+        }
+        return host;
+    }
+
+    private void save(HostState host) {
+        if (stateDirectory == null) {
+            return;
+        }
+        Properties properties;
+        synchronized (host) {
+            properties = host.best.toProperties();
+            properties.setProperty("throughput", Double.toString(host.bestRate));
+            properties.setProperty("rttMillis", Double.toString(host.rttNanos / 1e6));
+            properties.setProperty("converged", Boolean.toString(host.converged));
+        }
+        Path file = stateFile(host.key);
+        try {
+            Files.createDirectories(stateDirectory);
+            Path temp = Files.createTempFile(stateDirectory, file.getFileName().toString(), ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, "Transfer profile learned for " + host.key);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Tuning is an optimisation; failing to keep it must never fail a transfer
+        }
+    }
+
+    private static final class InFlight {
+
+        final HostState host;
+        final TransferProfile profile;
+        final boolean compression;
+        final String cipher;
+
+        InFlight(HostState host, TransferProfile profile, boolean compression, String cipher) {
+            this.host = host;
+            this.profile = profile;
+            this.compression = compression;
+            this.cipher = cipher;
+        }
+
+        boolean runsOn(TransferProfile candidate) {
+            return profile.equals(candidate) && compression == candidate.isCompression() && cipher.equals(candidate.getCiphers().get(0));
+        }
+    }
+
+    /**
+     * The tuning state of one host, guarded by its own monitor.
+     */
+    private static final class HostState {
+
+        final String key;
+        TransferProfile best;
+        double bestRate;
+        int bestSamples;
+        TransferProfile trial;
+        int trialMove;
+        long trialBytes;
+        long trialNanos;
+        int trialSamples;
+        int trialMisses;
+        boolean nextIsTrial;
+        long newSessions;
+        int nextMove;
+        int movesWithoutGain;
+        boolean converged;
+        long samplesSinceConverged;
+        double rttNanos;
+        long lastRtt;
+        boolean rttMeasured;
+        long samples;
+        long trials;
+        long profileChanges;
+
+        HostState(String key, TransferProfile best) {
+            this.key = key;
+            this.best = best;
+        }
+
+        synchronized boolean rttDue() {
+            return !rttMeasured || System.nanoTime() - lastRtt >= RTT_INTERVAL_NANOS;
+        }
+
+        synchronized void recordRtt(long nanos) {
+            rttNanos = rttNanos == 0 ? nanos : rttNanos + EWMA_WEIGHT * (nanos - rttNanos);
+            lastRtt = System.nanoTime();
+            rttMeasured = true;
+        }
+
+        synchronized TransferProfile sessionProfile() {
+            if (trial != null && !trial.sameSession(best) && newSessions++ % 2 == 0) {
+                return trial;
+            }
+            return best;
+        }
+
+        synchronized TransferProfile choose(boolean compression, String cipher) {
+            if (trial != null && (nextIsTrial = !nextIsTrial)) {
+                if (trial.isCompression() == compression && trial.getCiphers().get(0).equals(cipher)) {
+                    return trial;
+                }
+                if (++trialMisses >= MAX_TRIAL_MISSES) {
+                    reject();
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Returns whether the state worth saving changed.
+         */
+        synchronized boolean record(InFlight transfer, double rate, long bytes, long nanos) {
+            samples++;
+            boolean changed = false;
+            if (trial != null && transfer.runsOn(trial)) {
+                trialBytes += bytes;
+                trialNanos += nanos;
+                if (++trialSamples >= SAMPLES_PER_TRIAL) {
+                    changed = evaluate();
+                }
+            } else if (transfer.runsOn(best)) {
+                bestRate = bestRate == 0 ? rate : bestRate + EWMA_WEIGHT * (rate - bestRate);
+                bestSamples++;
+            } else {
+                return false;
+            }
+            if (trial == null && converged && ++samplesSinceConverged >= REEXPLORE_AFTER) {
+                converged = false;
+                movesWithoutGain = 0;
+            }
+            if (trial == null && !converged && bestSamples >= SAMPLES_PER_TRIAL) {
+                changed |= startTrial();
+            }
+            return changed;
+        }
+
+        private boolean evaluate() {
+            double trialRate = trialBytes * 1e9 / trialNanos;
+            trials++;
+            if (trialRate > bestRate * (1 + MIN_GAIN)) {
+                best = trial;
+                bestRate = trialRate;
+                bestSamples = trialSamples;
+                profileChanges++;
+                movesWithoutGain = 0;
+                trial = null;
+                if (trialMove >= TOGGLE_COMPRESSION) {
+                    // Toggling back would undo it; sizes are worth pushing further the same way
+                    nextMove = (trialMove + 1) % MOVES;
+                }
+                return true;
+            }
+            reject();
+            return converged;
+        }
+
+        private void reject() {
+            trial = null;
+            movesWithoutGain++;
+            nextMove = (trialMove + 1) % MOVES;
+            converge();
+        }
+
+        private boolean converge() {
+            if (movesWithoutGain >= MOVES) {
+                converged = true;
+                samplesSinceConverged = 0;
+            }
+            return converged;
+        }
+
+        /**
+         * Starts the next applicable trial, or marks the host converged. Returns whether it did the
+         * latter.
+         */
+        private boolean startTrial() {
+            while (true) {
+                TransferProfile candidate = candidate(nextMove);
+                if (candidate != null && !candidate.equals(best)) {
+                    trial = candidate;
+                    trialMove = nextMove;
+                    trialBytes = 0;
+                    trialNanos = 0;
+                    trialSamples = 0;
+                    trialMisses = 0;
+                    return false;
+                }
+                movesWithoutGain++;
+                nextMove = (nextMove + 1) % MOVES;
+                if (converge()) {
+                    return true;
+                }
+            }
+        }
+
+        private TransferProfile candidate(int move) {
+            switch (move) {
+                case MORE_REQUESTS:
+                    return windowLimited() ? best.withBulkRequests(best.getBulkRequests() * 2) : null;
+                case FEWER_REQUESTS:
+                    return best.withBulkRequests(best.getBulkRequests() / 2);
+                case LARGER_BUFFER:
+                    return best.withBufferSize(best.getBufferSize() * 2);
+                case SMALLER_BUFFER:
+                    return best.withBufferSize(best.getBufferSize() / 2);
+                case TOGGLE_COMPRESSION:
+                    return best.withCompression(!best.isCompression());
+                case NEXT_CIPHER:
+                    List<String> ciphers = new ArrayList<>(best.getCiphers().subList(1, best.getCiphers().size()));
+                    ciphers.add(best.getCiphers().get(0));
+                    return best.withCiphers(ciphers);
+                default:
+                    throw new IllegalArgumentException("Unknown move " + move + ".");
+            }
+        }
+
+        /**
+         * Whether throughput is close to what the outstanding requests allow per round trip, so
+         * more of them could help. Without a round-trip time, assume it is.
+         */
+        private boolean windowLimited() {
+            if (rttNanos <= 0) {
+                return true;
+            }
+            double windowRate = (double) best.getBulkRequests() * REQUEST_SIZE * 1e9 / rttNanos;
+            return bestRate >= windowRate / 2;
+        }
+
+        synchronized SftpTunerStats stats() {
+            return new SftpTunerStats(key, best, bestRate, rttNanos / 1e6, samples, trials, profileChanges, converged);
+        }
+    }
+}
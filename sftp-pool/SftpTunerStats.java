@@ -0,0 +1,89 @@
+package com.example.sftp.pool;
+
+/**
+ * What an {@link SftpTuner} has learned about one host: the profile transfers use, the throughput
+ * it achieves and the round-trip time last measured.
+ */
+public final class SftpTunerStats {
+
+    private final String host;
+    private final TransferProfile profile;
+    private final double throughput;
+    private final double rttMillis;
+    private final long samples;
+    private final long trials;
+    private final long profileChanges;
+    private final boolean converged;
+
+    SftpTunerStats(String host, TransferProfile profile, double throughput, double rttMillis, long samples, long trials,
+                   long profileChanges, boolean converged) {
+        this.host = host;
+        this.profile = profile;
+        this.throughput = throughput;
+        this.rttMillis = rttMillis;
+        this.samples = samples;
+        this.trials = trials;
+        this.profileChanges = profileChanges;
+        this.converged = converged;
+    }
+
+    /**
+     * {@code host:port}.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    public TransferProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Moving average of the bytes per second transfers under {@link #getProfile()} achieve, 0
+     * until one has been sampled.
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * Moving average of the SFTP round-trip time, 0 until measured.
+     */
+    public double getRttMillis() {
+        return rttMillis;
+    }
+
+    /**
+     * Transfers large enough to have been sampled, under any profile.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Alternative profiles tried so far.
+     */
+    public long getTrials() {
+        return trials;
+    }
+
+    /**
+     * Trials that beat the profile in use and replaced it.
+     */
+    public long getProfileChanges() {
+        return profileChanges;
+    }
+
+    /**
+     * Whether no single change to the profile made transfers faster the last time each was tried.
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+
+    @Override
+    public String toString() {
+        return host + ": " + profile + ", " + Math.round(throughput / 1024) + " KB/s, rtt " + Math.round(rttMillis) + " ms"
+                + (converged ? ", converged" : "");
+    }
+}
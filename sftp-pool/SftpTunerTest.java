@@ -0,0 +1,142 @@
+package com.example.sftp.pool;
+
+import com.jcraft.jsch.ChannelSftp;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SftpTunerTest {
+
+    private static final TransferProfile INITIAL = new TransferProfile(64 * 1024, 16, false, Arrays.asList("aes128-ctr", "aes256-ctr"));
+    private static final long RTT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long BYTES = 4 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SshServer server;
+    private SftpEndpoint endpoint;
+    private Path state;
+
+    @Before
+    public void setUp() throws Exception {
+        server = SshServer.setUpDefaultServer();
+        server.setPort(0);
+        server.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(folder.getRoot().toPath().resolve("hostkey.ser")));
+        server.setPasswordAuthenticator((user, password, session) -> "test".equals(user) && "secret".equals(password));
+        server.setSubsystemFactories(Collections.singletonList(new SftpSubsystemFactory()));
+        server.setFileSystemFactory(new VirtualFileSystemFactory(folder.newFolder("root").toPath()));
+        server.start();
+
+        endpoint = SftpEndpoint.builder("localhost", server.getPort(), "test").password("secret").build();
+        state = folder.getRoot().toPath().resolve("tuning");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(true);
+    }
+
+    @Test
+    public void testConvergesOnBestProfileForSimulatedLink() throws Exception {
+        SftpTuner tuner = new SftpTuner(INITIAL, state);
+        try (SftpConnectionPool pool = new SftpConnectionPool(config(), tuner);
+             SftpLease lease = pool.borrow(endpoint)) {
+            ChannelSftp channel = lease.channel();
+            assertEquals(INITIAL.getCipherList(), channel.getSession().getConfig("cipher.s2c"));
+            assertEquals("none", channel.getSession().getConfig("compression.s2c"));
+            tuner.recordRtt(endpoint, RTT_NANOS);
+
+            for (int i = 0; i < 500 && !tuner.stats().get(key()).isConverged(); i++) {
+                TransferProfile profile = tuner.begin(endpoint, channel);
+                assertEquals(profile.getBulkRequests(), channel.getBulkRequests());
+                assertEquals(profile.getBufferSize(), tuner.bufferSize(channel, -1));
+                tuner.end(channel, BYTES, (long) (BYTES * 1e9 / simulatedRate(profile)));
+            }
+            assertEquals(-1, tuner.bufferSize(channel, -1));
+        }
+
+        SftpTunerStats stats = tuner.stats().get(key());
+        assertTrue(stats.isConverged());
+        // 64 requests of 32 KB per 50 ms round trip fill the simulated 40 MB/s link
+        assertEquals(64, stats.getProfile().getBulkRequests());
+        assertEquals(128 * 1024, stats.getProfile().getBufferSize());
+        assertFalse(stats.getProfile().isCompression());
+        assertEquals(INITIAL.getCiphers(), stats.getProfile().getCiphers());
+        assertEquals(3, stats.getProfileChanges());
+        assertEquals(simulatedRate(stats.getProfile()), stats.getThroughput(), simulatedRate(stats.getProfile()) * 0.01);
+        assertEquals(50, stats.getRttMillis(), 0.01);
+    }
+
+    @Test
+    public void testKeepsLearnedProfileForNextRun() throws Exception {
+        SftpTuner tuner = new SftpTuner(INITIAL, state);
+        try (SftpConnectionPool pool = new SftpConnectionPool(config(), tuner);
+             SftpLease lease = pool.borrow(endpoint)) {
+            tuner.recordRtt(endpoint, RTT_NANOS);
+            for (int i = 0; i < 500 && !tuner.stats().get(key()).isConverged(); i++) {
+                TransferProfile profile = tuner.begin(endpoint, lease.channel());
+                tuner.end(lease.channel(), BYTES, (long) (BYTES * 1e9 / simulatedRate(profile)));
+            }
+        }
+        TransferProfile learned = tuner.profile(endpoint);
+        assertNotEquals(INITIAL, learned);
+        assertTrue(Files.exists(state.resolve("localhost_" + server.getPort() + ".properties")));
+
+        SftpTuner next = new SftpTuner(INITIAL, state);
+        assertEquals(learned, next.profile(endpoint));
+        assertTrue(next.stats().get(key()).isConverged());
+
+        // A different cipher choice invalidates what was learned
+        SftpTuner reconfigured = new SftpTuner(INITIAL.withCiphers(Collections.singletonList("aes192-ctr")), state);
+        assertEquals(Collections.singletonList("aes192-ctr"), reconfigured.profile(endpoint).getCiphers());
+    }
+
+    @Test
+    public void testIgnoresSmallAndFailedTransfers() throws Exception {
+        SftpTuner tuner = new SftpTuner(INITIAL, null);
+        try (SftpConnectionPool pool = new SftpConnectionPool(config(), tuner);
+             SftpLease lease = pool.borrow(endpoint)) {
+            for (int i = 0; i < 10; i++) {
+                tuner.begin(endpoint, lease.channel());
+                tuner.end(lease.channel(), i % 2 == 0 ? SftpTuner.MIN_SAMPLE_BYTES - 1 : -1, 1_000_000);
+            }
+        }
+        SftpTunerStats stats = tuner.stats().get(key());
+        assertEquals(0, stats.getSamples());
+        assertEquals(0, stats.getThroughput(), 0);
+        assertEquals(INITIAL, stats.getProfile());
+    }
+
+    /**
+     * A 50 ms link capped at 40 MB/s, which reads 20% faster with buffers of 128 KB and more.
+     */
+    private static double simulatedRate(TransferProfile profile) {
+        double window = profile.getBulkRequests() * 32 * 1024 * 1e9 / RTT_NANOS;
+        double rate = Math.min(window, 40 * 1024 * 1024);
+        return profile.getBufferSize() >= 128 * 1024 ? rate * 1.2 : rate;
+    }
+
+    private String key() {
+        return "localhost:" + server.getPort();
+    }
+
+    private static SftpPoolConfig config() {
+        return SftpPoolConfig.builder().evictionInterval(Duration.ZERO).build();
+    }
+}
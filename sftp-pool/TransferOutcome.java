@@ -0,0 +1,59 @@
+package com.example.sftp.pool;
+
+/**
+ * How one item of a {@link SftpTransferEngine} run went: the bytes moved and the time taken, or
+ * the error that stopped it.
+ */
+public final class TransferOutcome<T> {
+
+    private final T item;
+    private final long bytes;
+    private final long elapsedMillis;
+    private final Exception error;
+
+    private TransferOutcome(T item, long bytes, long elapsedMillis, Exception error) {
+        this.item = item;
+        this.bytes = bytes;
+        this.elapsedMillis = elapsedMillis;
+        this.error = error;
+    }
+
+    public static <T> TransferOutcome<T> succeeded(T item, long bytes, long elapsedMillis) {
+        return new TransferOutcome<>(item, bytes, elapsedMillis, null);
+    }
+
+    public static <T> TransferOutcome<T> failed(T item, Exception error, long elapsedMillis) {
+        return new TransferOutcome<>(item, 0, elapsedMillis, error);
+    }
+
+    public T getItem() {
+        return item;
+    }
+
+    public boolean isSucceeded() {
+        return error == null;
+    }
+
+    /**
+     * Bytes reported by the transfer; 0 for failed transfers.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Time from getting a channel to the end of the transfer, not counting the wait for a slot.
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return item + (error == null ? ": " + bytes + " bytes in " + elapsedMillis + " ms" : ": failed after " + elapsedMillis + " ms, " + error);
+    }
+}
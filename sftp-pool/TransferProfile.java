@@ -0,0 +1,196 @@
+package com.example.sftp.pool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * The transfer settings an {@link SftpTuner} adjusts per host: the read size handed to JSch, the
+ * number of SFTP read requests kept in flight, zlib compression and the cipher preference order.
+ *
+ * <p>{@link #from(Map)} reads the keys of {@code sftp_configuration_example.json}:
+ * {@code bufferSize} (or {@code chunkSize}), {@code bulkRequests}, {@code compression} and
+ * {@code cipherAlgorithms}.
+ */
+public final class TransferProfile {
+
+    public static final TransferProfile DEFAULT = new TransferProfile(64 * 1024, 16, false,
+            Arrays.asList("aes128-ctr", "aes192-ctr", "aes256-ctr"));
+
+    static final int MIN_BUFFER_SIZE = 8 * 1024;
+    static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    static final int MIN_BULK_REQUESTS = 2;
+    static final int MAX_BULK_REQUESTS = 256;
+
+    private static final String COMPRESSION_ON = "zlib@openssh.com,zlib,none";
+    private static final String COMPRESSION_OFF = "none";
+
+    private final int bufferSize;
+    private final int bulkRequests;
+    private final boolean compression;
+    private final List<String> ciphers;
+
+    public TransferProfile(int bufferSize, int bulkRequests, boolean compression, List<String> ciphers) {
+        if (ciphers.isEmpty()) {
+            throw new IllegalArgumentException("Expected at least one cipher.");
+        }
+        this.bufferSize = clamp(bufferSize, MIN_BUFFER_SIZE, MAX_BUFFER_SIZE);
+        this.bulkRequests = clamp(bulkRequests, MIN_BULK_REQUESTS, MAX_BULK_REQUESTS);
+        this.compression = compression;
+        this.ciphers = Collections.unmodifiableList(new ArrayList<>(ciphers));
+    }
+
+    /**
+     * Reads the settings present in {@code settings}, e.g. {@code sftp_configuration_example.json}
+     * parsed into a map, and keeps the defaults for the rest.
+     */
+    public static TransferProfile from(Map<String, ?> settings) {
+        TransferProfile profile = DEFAULT;
+        Object bufferSize = settings.containsKey("bufferSize") ? settings.get("bufferSize") : settings.get("chunkSize");
+        if (bufferSize != null) {
+            profile = profile.withBufferSize(intValue(bufferSize));
+        }
+        if (settings.containsKey("bulkRequests")) {
+            profile = profile.withBulkRequests(intValue(settings.get("bulkRequests")));
+        }
+        if (settings.containsKey("compression")) {
+            profile = profile.withCompression(Boolean.parseBoolean(settings.get("compression").toString()));
+        }
+        Object ciphers = settings.get("cipherAlgorithms");
+        if (ciphers instanceof Collection) {
+            List<String> names = new ArrayList<>();
+            for (Object cipher : (Collection<?>) ciphers) {
+                names.add(cipher.toString());
+            }
+            profile = profile.withCiphers(names);
+        } else if (ciphers != null) {
+            profile = profile.withCiphers(Arrays.asList(ciphers.toString().split("\\s*,\\s*")));
+        }
+        return profile;
+    }
+
+    /**
+     * Reads a profile written by {@link #toProperties()}, or null if {@code properties} holds none.
+     */
+    static TransferProfile fromProperties(Properties properties) {
+        String ciphers = properties.getProperty("ciphers");
+        if (ciphers == null || ciphers.isEmpty()) {
+            return null;
+        }
+        return new TransferProfile(Integer.parseInt(properties.getProperty("bufferSize")),
+                Integer.parseInt(properties.getProperty("bulkRequests")),
+                Boolean.parseBoolean(properties.getProperty("compression")),
+                Arrays.asList(ciphers.split(",")));
+    }
+
+    Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("bufferSize", Integer.toString(bufferSize));
+        properties.setProperty("bulkRequests", Integer.toString(bulkRequests));
+        properties.setProperty("compression", Boolean.toString(compression));
+        properties.setProperty("ciphers", getCipherList());
+        return properties;
+    }
+
+    private static int intValue(Object value) {
+        return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Bytes asked of a remote stream per read. JSch turns each read into SFTP read requests of at
+     * most this size, so small buffers mean many small requests.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * SFTP read requests JSch keeps outstanding ({@code ChannelSftp.setBulkRequests}). A stream
+     * moves at most this many requests per round trip, so long links need more.
+     */
+    public int getBulkRequests() {
+        return bulkRequests;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * Ciphers offered to the server, most preferred first.
+     */
+    public List<String> getCiphers() {
+        return ciphers;
+    }
+
+    String getCipherList() {
+        return String.join(",", ciphers);
+    }
+
+    /**
+     * The value for JSch's {@code compression.s2c} and {@code compression.c2s} options.
+     */
+    String getCompressionConfig() {
+        return compression ? COMPRESSION_ON : COMPRESSION_OFF;
+    }
+
+    static boolean isCompressionConfig(String config) {
+        return config != null && !config.startsWith(COMPRESSION_OFF);
+    }
+
+    public TransferProfile withBufferSize(int bufferSize) {
+        return new TransferProfile(bufferSize, bulkRequests, compression, ciphers);
+    }
+
+    public TransferProfile withBulkRequests(int bulkRequests) {
+        return new TransferProfile(bufferSize, bulkRequests, compression, ciphers);
+    }
+
+    public TransferProfile withCompression(boolean compression) {
+        return new TransferProfile(bufferSize, bulkRequests, compression, ciphers);
+    }
+
+    public TransferProfile withCiphers(List<String> ciphers) {
+        return new TransferProfile(bufferSize, bulkRequests, compression, ciphers);
+    }
+
+    /**
+     * Whether transfers under the two profiles run over identically configured sessions.
+     */
+    boolean sameSession(TransferProfile other) {
+        return compression == other.compression && ciphers.get(0).equals(other.ciphers.get(0));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TransferProfile)) {
+            return false;
+        }
+        TransferProfile other = (TransferProfile) o;
+        return bufferSize == other.bufferSize && bulkRequests == other.bulkRequests && compression == other.compression
+                && ciphers.equals(other.ciphers);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(bufferSize, bulkRequests, compression, ciphers);
+    }
+
+    @Override
+    public String toString() {
+        return "TransferProfile[bufferSize=" + bufferSize + ", bulkRequests=" + bulkRequests + ", compression=" + compression
+                + ", ciphers=" + getCipherList() + "]";
+    }
+}
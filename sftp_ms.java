@@ -23,6 +23,13 @@ Copy code
         <version>0.1.55</version>
     </dependency>
 
+    <!-- Shared SFTP session and channel pool -->
+    <dependency>
+        <groupId>com.example</groupId>
+        <artifactId>sftp-pool</artifactId>
+        <version>1.0-SNAPSHOT</version>
+    </dependency>
+
     <!-- Bouncy Castle dependencies for PGP -->
     <dependency>
         <groupId>org.bouncycastle</groupId>
@@ -66,27 +73,80 @@ sftp.user=username
 sftp.password=password
 sftp.remote.directory=/remote/path
 
+# SFTP connection pool; sessions and channels stay open between uploads
+sftp.pool.min-sessions=1
+sftp.pool.max-sessions=4
+sftp.pool.max-channels-per-session=4
+sftp.pool.idle-timeout=5m
+sftp.pool.server-alive-interval=60s
+sftp.pool.server-alive-count-max=3
+sftp.pool.borrow-timeout=30s
+
+# Starting point of the per-host transfer tuner; what it learns is kept in state-dir
+sftp.tuning.buffer-size=65536
+sftp.tuning.bulk-requests=16
+sftp.tuning.compression=false
+sftp.tuning.cipher-algorithms=aes128-ctr,aes192-ctr,aes256-ctr
+sftp.tuning.state-dir=/var/lib/sftp-ms/tuning
+
 vault.uri=http://127.0.0.1:8200
 vault.token=myroot
-vault.secret.path=secret/data/pgp
-SFTP Service
-Create a service to handle SFTP connections and file transfers using JSCH:
+vault.pgp.mount=secret
+vault.pgp.path=pgp/partners
+
+# Partner keys: "vault", or "file" to read <partner>.pub.asc etc. from pgp.keys.directory
+pgp.keys.source=vault
+pgp.keys.ttl=1h
+pgp.keys.refresh-ahead=10m
+pgp.keys.max-stale=24h
+pgp.keys.partners=acme,globex
+pgp.keys.default-partner=acme
+
+# Uploads are streamed through encryption to the SFTP server, so their size is not bounded by memory.
+# Spring still writes each multipart body to a temporary file before the controller sees it, and
+# queued uploads are spooled once more, so keep the limits at the largest file a partner sends
+spring.servlet.multipart.max-file-size=2GB
+spring.servlet.multipart.max-request-size=2GB
+
+# Asynchronous uploads: spooled to spool-dir until sent, at most capacity queued or running at
+# once, run by max-concurrent threads of which max-per-destination for one partner. thread-mode
+# is platform, virtual (Java 21+) or auto. Failed uploads are retried with backoff by kind of failure,
+# and wait for partner keys still loading, before their spooled content is given up
+sftp.uploads.spool-dir=/var/lib/sftp-ms/uploads
+sftp.uploads.capacity=1000
+sftp.uploads.max-concurrent=8
+sftp.uploads.max-per-destination=2
+sftp.uploads.retention=1d
+sftp.uploads.thread-mode=platform
+SFTP Connection Pool Configuration
+Keep SSH sessions and SFTP channels open between uploads instead of paying the handshake and key exchange on every request. A tuner learns per host which buffer size, pipelining depth, compression and cipher order move data fastest. The pool's gauges and counters, and the tuner's chosen profile and observed throughput, are published through Actuator's Micrometer registry:
 
 java
 Copy code
-package com.example.sftp.service;
+package com.example.sftp.config;
 
-import com.jcraft.jsch.ChannelSftp;
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.Session;
+import com.example.sftp.pool.SftpConnectionPool;
+import com.example.sftp.pool.SftpEndpoint;
+import com.example.sftp.pool.SftpPoolConfig;
+import com.example.sftp.pool.SftpPoolStats;
+import com.example.sftp.pool.SftpTuner;
+import com.example.sftp.pool.SftpTunerStats;
+import com.example.sftp.pool.TransferProfile;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.stereotype.Service;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
 
-import java.io.InputStream;
-import java.util.Properties;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.function.ToDoubleFunction;
 
-@Service
-public class SftpService {
+@Configuration
+public class SftpConfig {
 
     @Value("${sftp.host}")
     private String sftpHost;
@@ -100,37 +160,286 @@ public class SftpService {
     @Value("${sftp.password}")
     private String sftpPassword;
 
+    @Value("${sftp.pool.min-sessions:1}")
+    private int minSessions;
+
+    @Value("${sftp.pool.max-sessions:4}")
+    private int maxSessions;
+
+    @Value("${sftp.pool.max-channels-per-session:4}")
+    private int maxChannelsPerSession;
+
+    @Value("${sftp.pool.idle-timeout:5m}")
+    private Duration idleTimeout;
+
+    @Value("${sftp.pool.server-alive-interval:60s}")
+    private Duration serverAliveInterval;
+
+    @Value("${sftp.pool.server-alive-count-max:3}")
+    private int serverAliveCountMax;
+
+    @Value("${sftp.pool.borrow-timeout:30s}")
+    private Duration borrowTimeout;
+
+    @Value("${sftp.tuning.buffer-size:65536}")
+    private int bufferSize;
+
+    @Value("${sftp.tuning.bulk-requests:16}")
+    private int bulkRequests;
+
+    @Value("${sftp.tuning.compression:false}")
+    private boolean compression;
+
+    @Value("${sftp.tuning.cipher-algorithms:aes128-ctr,aes192-ctr,aes256-ctr}")
+    private String[] cipherAlgorithms;
+
+    @Value("${sftp.tuning.state-dir:}")
+    private String tuningStateDir;
+
+    @Bean
+    public SftpEndpoint sftpEndpoint() {
+        return SftpEndpoint.builder(sftpHost, sftpPort, sftpUser)
+                .password(sftpPassword)
+                .build();
+    }
+
+    /**
+     * Sessions are connected on first use; the minimum is kept open from then on, so a failing
+     * SFTP server never blocks startup.
+     */
+    @Bean
+    public SftpTuner sftpTuner() {
+        return new SftpTuner(new TransferProfile(bufferSize, bulkRequests, compression, Arrays.asList(cipherAlgorithms)),
+                tuningStateDir.isEmpty() ? null : Paths.get(tuningStateDir));
+    }
+
+    @Bean(destroyMethod = "close")
+    public SftpConnectionPool sftpConnectionPool(SftpTuner sftpTuner) {
+        return new SftpConnectionPool(SftpPoolConfig.builder()
+                .minSessions(minSessions)
+                .maxSessions(maxSessions)
+                .maxChannelsPerSession(maxChannelsPerSession)
+                .idleTimeout(idleTimeout)
+                .serverAliveInterval(serverAliveInterval)
+                .serverAliveCountMax(serverAliveCountMax)
+                .borrowTimeout(borrowTimeout)
+                .build(), sftpTuner);
+    }
+
+    @Bean
+    public MeterBinder sftpPoolMetrics(SftpConnectionPool sftpConnectionPool) {
+        return registry -> {
+            gauge(registry, sftpConnectionPool, "sftp.pool.sessions", SftpPoolStats::getOpenSessions);
+            gauge(registry, sftpConnectionPool, "sftp.pool.channels.active", SftpPoolStats::getActiveChannels);
+            gauge(registry, sftpConnectionPool, "sftp.pool.channels.idle", SftpPoolStats::getIdleChannels);
+            counter(registry, sftpConnectionPool, "sftp.pool.sessions.created", SftpPoolStats::getSessionsCreated);
+            counter(registry, sftpConnectionPool, "sftp.pool.channels.created", SftpPoolStats::getChannelsCreated);
+            counter(registry, sftpConnectionPool, "sftp.pool.borrows", SftpPoolStats::getBorrows);
+            counter(registry, sftpConnectionPool, "sftp.pool.borrow.timeouts", SftpPoolStats::getBorrowTimeouts);
+            counter(registry, sftpConnectionPool, "sftp.pool.validation.failures", SftpPoolStats::getValidationFailures);
+            counter(registry, sftpConnectionPool, "sftp.pool.evictions", SftpPoolStats::getEvictions);
+        };
+    }
+
+    /**
+     * The profile chosen for the configured host and the throughput it achieves; the gauges read
+     * the tuner's current state whenever they are scraped.
+     */
+    @Bean
+    public MeterBinder sftpTunerMetrics(SftpTuner sftpTuner, SftpEndpoint sftpEndpoint) {
+        String host = sftpEndpoint.getHost() + ":" + sftpEndpoint.getPort();
+        return registry -> {
+            tunerGauge(registry, sftpTuner, host, "sftp.tuner.throughput", null, SftpTunerStats::getThroughput);
+            tunerGauge(registry, sftpTuner, host, "sftp.tuner.rtt", "milliseconds", SftpTunerStats::getRttMillis);
+            tunerGauge(registry, sftpTuner, host, "sftp.tuner.buffer.size", "bytes", s -> s.getProfile().getBufferSize());
+            tunerGauge(registry, sftpTuner, host, "sftp.tuner.bulk.requests", null, s -> s.getProfile().getBulkRequests());
+            tunerGauge(registry, sftpTuner, host, "sftp.tuner.compression", null, s -> s.getProfile().isCompression() ? 1 : 0);
+            tunerGauge(registry, sftpTuner, host, "sftp.tuner.converged", null, s -> s.isConverged() ? 1 : 0);
+            FunctionCounter.builder("sftp.tuner.profile.changes", sftpTuner, t -> stats(t, host, SftpTunerStats::getProfileChanges))
+                    .tag("host", host)
+                    .register(registry);
+        };
+    }
+
+    private static void tunerGauge(MeterRegistry registry, SftpTuner tuner, String host, String name, String unit,
+                                   ToDoubleFunction<SftpTunerStats> value) {
+        Gauge.builder(name, tuner, t -> stats(t, host, value))
+                .tag("host", host)
+                .baseUnit(unit)
+                .register(registry);
+    }
+
+    private static double stats(SftpTuner tuner, String host, ToDoubleFunction<SftpTunerStats> value) {
+        SftpTunerStats stats = tuner.stats().get(host);
+        return stats == null ? Double.NaN : value.applyAsDouble(stats);
+    }
+
+    private static void gauge(MeterRegistry registry, SftpConnectionPool pool, String name,
+                              ToDoubleFunction<SftpPoolStats> value) {
+        Gauge.builder(name, pool, p -> value.applyAsDouble(p.stats())).register(registry);
+    }
+
+    private static void counter(MeterRegistry registry, SftpConnectionPool pool, String name,
+                                ToDoubleFunction<SftpPoolStats> value) {
+        FunctionCounter.builder(name, pool, p -> value.applyAsDouble(p.stats())).register(registry);
+    }
+}
+SFTP Service
+Create a service that uploads files over a channel leased from the connection pool. An upload can be written straight into the remote file, so it never has to be held in memory first:
+
+java
+Copy code
+package com.example.sftp.service;
+
+import com.example.sftp.pool.SftpConnectionPool;
+import com.example.sftp.pool.SftpEndpoint;
+import com.example.sftp.pool.SftpLease;
+import com.example.sftp.pool.SftpTuner;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+@Service
+public class SftpService {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Suffix of the temporary name a file is uploaded under before it is renamed into place.
+     */
+    public static final String PARTIAL_SUFFIX = ".part";
+
+    /**
+     * Writes the content of an upload to {@code out}, which goes to the remote file.
+     */
+    @FunctionalInterface
+    public interface UploadBody {
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    private final SftpConnectionPool sftpConnectionPool;
+
+    private final SftpEndpoint sftpEndpoint;
+
     @Value("${sftp.remote.directory}")
     private String remoteDirectory;
 
+    public SftpService(SftpConnectionPool sftpConnectionPool, SftpEndpoint sftpEndpoint) {
+        this.sftpConnectionPool = sftpConnectionPool;
+        this.sftpEndpoint = sftpEndpoint;
+    }
+
     public void uploadFile(InputStream inputStream, String remoteFileName) throws Exception {
-        JSch jsch = new JSch();
-        Session session = jsch.getSession(sftpUser, sftpHost, sftpPort);
-        session.setPassword(sftpPassword);
+        uploadFile(remoteFileName, out -> {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        });
+    }
+
+    /**
+     * Streams what {@code body} writes into {@code remoteFileName} as it is written. Writes are
+     * gathered into one buffer of the size the tuner chose and sent as they fill it; a server
+     * that falls behind holds the writer back through the SSH window.
+     *
+     * <p>The data goes to {@code remoteFileName + ".part"}, which is renamed once {@code body} has
+     * finished, so a partner never picks up a file that an encryption error, a client disconnect
+     * or an interrupt cut short. A failed upload removes the temporary file if it still can.
+     *
+     * @return the number of bytes uploaded
+     */
+    public long uploadFile(String remoteFileName, UploadBody body) throws Exception {
+        SftpTuner tuner = sftpConnectionPool.getTuner();
+        String partialFileName = remoteFileName + PARTIAL_SUFFIX;
+        try (SftpLease lease = sftpConnectionPool.borrow(sftpEndpoint)) {
+            ChannelSftp channelSftp = lease.channel();
+            try {
+                channelSftp.cd(remoteDirectory);
+                tuner.begin(sftpEndpoint, channelSftp);
+                long start = System.nanoTime();
+                CountingOutputStream out = new CountingOutputStream(
+                        new BufferedOutputStream(channelSftp.put(partialFileName), tuner.bufferSize(channelSftp, BUFFER_SIZE)));
+                try {
+                    body.writeTo(out);
+                } finally {
+                    out.close();
+                }
+                rename(channelSftp, partialFileName, remoteFileName);
+                tuner.end(channelSftp, out.count, System.nanoTime() - start);
+                return out.count;
+            } catch (Exception e) {
+                tuner.end(channelSftp, -1, 0);
+                removeQuietly(channelSftp, partialFileName);
+                // An upload that died half-way may leave the channel mid-request
+                lease.invalidate();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Renames {@code from} over {@code to}. JSch uses the OpenSSH posix-rename extension where the
+     * server offers it; plain SFTP v3 refuses to replace an existing file, so that is removed first.
+     */
+    private static void rename(ChannelSftp channelSftp, String from, String to) throws SftpException {
+        try {
+            channelSftp.rename(from, to);
+        } catch (SftpException e) {
+            if (e.id != ChannelSftp.SSH_FX_FAILURE) {
+                throw e;
+            }
+            channelSftp.rm(to);
+            channelSftp.rename(from, to);
+        }
+    }
 
-        Properties config = new Properties();
-        config.put("StrictHostKeyChecking", "no");
-        session.setConfig(config);
+    private static void removeQuietly(ChannelSftp channelSftp, String fileName) {
+        try {
+            channelSftp.rm(fileName);
+        } catch (SftpException | RuntimeException e) {
+            // Best effort: the channel may be broken, and the next upload of the file overwrites it
+        }
+    }
 
-        session.connect();
+    private static class CountingOutputStream extends FilterOutputStream {
 
-        ChannelSftp channelSftp = (ChannelSftp) session.openChannel("sftp");
-        channelSftp.connect();
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
 
-        channelSftp.cd(remoteDirectory);
-        channelSftp.put(inputStream, remoteFileName);
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
 
-        channelSftp.disconnect();
-        session.disconnect();
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
     }
 }
 PGP Encryption Service
-Create a service to handle PGP encryption using Bouncy Castle:
+Create a service to handle PGP encryption using Bouncy Castle. Literal data, compression, encryption and armor are chained streams writing partial-length packets, so a file is encrypted as it is read, in a few buffers whatever its size:
 
 java
 Copy code
 package com.example.sftp.service;
 
+import com.example.sftp.keys.PgpKeyProvider;
+import org.bouncycastle.bcpg.ArmoredOutputStream;
 import org.bouncycastle.openpgp.*;
 import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
@@ -138,58 +447,86 @@ import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodG
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.*;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.SecureRandom;
-import java.util.Iterator;
+import java.util.Date;
 
 @Service
 public class PgpService {
 
-    private final PGPPublicKey pgpPublicKey;
+    private static final int BUFFER_SIZE = 1 << 16;
 
-    public PgpService(PGPPublicKey pgpPublicKey) {
-        this.pgpPublicKey = pgpPublicKey;
-    }
-
-    public InputStream encryptFile(InputStream inputStream) throws Exception {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        PGPCompressedDataGenerator compressedDataGenerator = new PGPCompressedDataGenerator(PGPCompressedDataGenerator.ZIP);
-        PGPUtil.writeFileToLiteralData(compressedDataGenerator.open(byteArrayOutputStream), PGPLiteralData.BINARY, new File("input.txt"));
+    private final PgpKeyProvider keyProvider;
 
-        byte[] compressedData = byteArrayOutputStream.toByteArray();
+    public PgpService(PgpKeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+    }
 
-        ByteArrayOutputStream encryptedOutputStream = new ByteArrayOutputStream();
-        OutputStream encryptedOut = new ArmoredOutputStream(encryptedOutputStream);
+    /**
+     * The key files for {@code partnerId} are encrypted with, served from the key cache; never
+     * waits on Vault.
+     */
+    public PGPPublicKey getEncryptionKey(String partnerId) {
+        return keyProvider.getEncryptionKey(partnerId);
+    }
 
+    /**
+     * Reads {@code in} to its end and writes it to {@code out} encrypted for {@code key}, as an
+     * armored message holding {@code fileName}. {@code out} is left open.
+     */
+    public void encrypt(InputStream in, OutputStream out, String fileName, PGPPublicKey key) throws IOException, PGPException {
         PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(
                 new JcePGPDataEncryptorBuilder(PGPEncryptedData.CAST5).setWithIntegrityPacket(true).setSecureRandom(new SecureRandom()).setProvider("BC"));
-        encryptedDataGenerator.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(pgpPublicKey));
+        encryptedDataGenerator.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(key));
+        PGPCompressedDataGenerator compressedDataGenerator = new PGPCompressedDataGenerator(PGPCompressedDataGenerator.ZIP);
+        PGPLiteralDataGenerator literalDataGenerator = new PGPLiteralDataGenerator();
 
-        OutputStream cOut = encryptedDataGenerator.open(encryptedOut, compressedData.length);
-        cOut.write(compressedData);
-        cOut.close();
-        encryptedOut.close();
+        ArmoredOutputStream armoredOut = new ArmoredOutputStream(new FilterOutputStream(out) {
+            @Override
+            public void close() throws IOException {
+                flush(); // the caller closes out
+            }
+        });
+        OutputStream encryptedOut = encryptedDataGenerator.open(armoredOut, new byte[BUFFER_SIZE]);
+        OutputStream compressedOut = compressedDataGenerator.open(encryptedOut, new byte[BUFFER_SIZE]);
+        OutputStream literalOut = literalDataGenerator.open(compressedOut, PGPLiteralData.BINARY, fileName, new Date(), new byte[BUFFER_SIZE]);
 
-        return new ByteArrayInputStream(encryptedOutputStream.toByteArray());
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            literalOut.write(buffer, 0, len);
+        }
+        literalDataGenerator.close();
+        compressedDataGenerator.close();
+        encryptedDataGenerator.close();
+        armoredOut.close();
     }
 }
 Hashicorp Vault Configuration
-Create a configuration class to fetch the PGP certificate from Hashicorp Vault:
+Create a configuration class that wires the Vault client and the cached PGP key provider. Keys are loaded in the background, so a Vault outage no longer blocks startup and rotated keys are picked up without a restart:
 
 java
 Copy code
 package com.example.sftp.config;
 
-import org.bouncycastle.openpgp.PGPPublicKey;
-import org.bouncycastle.openpgp.PGPUtil;
+import com.example.sftp.keys.FileKeySource;
+import com.example.sftp.keys.KeySource;
+import com.example.sftp.keys.PgpKeyProvider;
+import com.example.sftp.keys.VaultKeySource;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.vault.authentication.TokenAuthentication;
+import org.springframework.vault.client.VaultEndpoint;
 import org.springframework.vault.core.VaultTemplate;
-import org.springframework.vault.support.VaultResponseSupport;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
 
 @Configuration
 public class VaultConfig {
@@ -200,71 +537,1744 @@ public class VaultConfig {
     @Value("${vault.token}")
     private String vaultToken;
 
-    @Value("${vault.secret.path}")
-    private String vaultSecretPath;
+    @Value("${vault.pgp.mount:secret}")
+    private String vaultPgpMount;
+
+    @Value("${vault.pgp.path:pgp/partners}")
+    private String vaultPgpPath;
+
+    @Value("${pgp.keys.source:vault}")
+    private String keySource;
+
+    @Value("${pgp.keys.directory:keys}")
+    private String keyDirectory;
+
+    @Value("${pgp.keys.ttl:1h}")
+    private Duration keyTtl;
+
+    @Value("${pgp.keys.refresh-ahead:10m}")
+    private Duration keyRefreshAhead;
+
+    @Value("${pgp.keys.max-stale:24h}")
+    private Duration keyMaxStale;
+
+    @Value("${pgp.keys.partners:}")
+    private String[] partners;
 
     @Bean
     public VaultTemplate vaultTemplate() {
-        return new VaultTemplate(new VaultEndpoint().setUri(URI.create(vaultUri)), new TokenAuthentication(vaultToken));
+        return new VaultTemplate(VaultEndpoint.from(URI.create(vaultUri)), new TokenAuthentication(vaultToken));
     }
 
     @Bean
-    public PGPPublicKey pgpPublicKey(VaultTemplate vaultTemplate) throws Exception {
-        VaultResponseSupport<PGPCertificate> response = vaultTemplate.read(vaultSecretPath, PGPCertificate.class);
-        InputStream keyIn = new ByteArrayInputStream(response.getData().getPublicKey().getBytes());
-        return new JcaPGPPublicKeyRingCollection(PGPUtil.getDecoderStream(keyIn)).getKeyRings().next().getPublicKey();
+    public KeySource pgpKeySource(VaultTemplate vaultTemplate) {
+        if ("file".equals(keySource)) {
+            return new FileKeySource(Paths.get(keyDirectory));
+        }
+        return new VaultKeySource(vaultTemplate, vaultPgpMount, vaultPgpPath);
+    }
+
+    /**
+     * Partner keys are loaded in the background, so a Vault outage at startup no longer fails the
+     * boot; uploads for a partner whose keys are not loaded yet are rejected until they are.
+     */
+    @Bean(destroyMethod = "close")
+    public PgpKeyProvider pgpKeyProvider(KeySource pgpKeySource) {
+        PgpKeyProvider keyProvider = new PgpKeyProvider(pgpKeySource, keyTtl, keyRefreshAhead, keyMaxStale);
+        keyProvider.warmUp(Arrays.asList(partners));
+        return keyProvider;
+    }
+}
+PGP Key Source
+Define where partner keys come from. The encrypt path never calls a source directly:
+
+java
+Copy code
+package com.example.sftp.keys;
+
+/**
+ * Where partner key material lives. Implementations may be slow or unavailable; callers on the
+ * encrypt path go through {@link PgpKeyProvider}, which never waits on a source.
+ */
+public interface KeySource {
+
+    /**
+     * Fetches the public keys of {@code partnerId} and, if we receive files from that partner, our
+     * secret keys for it. Throws if the source cannot be reached or has no entry for the partner.
+     */
+    PartnerKeys fetch(String partnerId) throws Exception;
+}
+Partner Keys
+Hold one partner's key material, with private keys extracted on first use by key ID:
+
+java
+Copy code
+package com.example.sftp.keys;
+
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One partner's key material: their public keys, which we encrypt to, and optionally our secret
+ * keys for files they send us. Private keys are extracted on first use by key ID and kept, so the
+ * passphrase derivation runs once per key per refresh.
+ */
+public class PartnerKeys {
+
+    private final PGPPublicKeyRingCollection publicKeys;
+    private final PGPSecretKeyRingCollection secretKeys;
+    private final char[] passphrase;
+    private final PGPPublicKey encryptionKey;
+    private final Map<Long, PGPPrivateKey> privateKeys = new ConcurrentHashMap<>();
+
+    public PartnerKeys(PGPPublicKeyRingCollection publicKeys, PGPSecretKeyRingCollection secretKeys, char[] passphrase) {
+        this.publicKeys = publicKeys;
+        this.secretKeys = secretKeys;
+        this.passphrase = passphrase;
+        this.encryptionKey = firstEncryptionKey(publicKeys);
+    }
+
+    /**
+     * Parses ASCII-armored or binary key rings. {@code secretKeyRing} and {@code passphrase} may be
+     * {@code null} for partners we only send to.
+     */
+    public static PartnerKeys parse(String publicKeyRing, String secretKeyRing, String passphrase) throws IOException, PGPException {
+        PGPPublicKeyRingCollection publicKeys = new PGPPublicKeyRingCollection(
+                PGPUtil.getDecoderStream(new ByteArrayInputStream(publicKeyRing.getBytes(StandardCharsets.US_ASCII))),
+                new JcaKeyFingerprintCalculator());
+        PGPSecretKeyRingCollection secretKeys = null;
+        if (secretKeyRing != null) {
+            secretKeys = new PGPSecretKeyRingCollection(
+                    PGPUtil.getDecoderStream(new ByteArrayInputStream(secretKeyRing.getBytes(StandardCharsets.US_ASCII))),
+                    new JcaKeyFingerprintCalculator());
+        }
+        return new PartnerKeys(publicKeys, secretKeys, passphrase == null ? null : passphrase.toCharArray());
+    }
+
+    /**
+     * The first encryption-capable public key, or {@code null} if there is none.
+     */
+    public PGPPublicKey getEncryptionKey() {
+        return encryptionKey;
     }
 
-    public static class PGPCertificate {
-        private String publicKey;
+    public PGPPublicKey getPublicKey(long keyID) throws PGPException {
+        return publicKeys.getPublicKey(keyID);
+    }
 
-        // Getters and setters
-        public String getPublicKey() {
-            return publicKey;
+    /**
+     * Our private key with {@code keyID}, or {@code null} if it is not held for this partner.
+     */
+    public PGPPrivateKey getPrivateKey(long keyID) throws PGPException {
+        PGPPrivateKey privateKey = privateKeys.get(keyID);
+        if (privateKey == null && secretKeys != null) {
+            PGPSecretKey secretKey = secretKeys.getSecretKey(keyID);
+            if (secretKey == null) {
+                return null;
+            }
+            privateKey = secretKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider("BC").build(passphrase));
+            privateKeys.put(keyID, privateKey);
         }
+        return privateKey;
+    }
 
-        public void setPublicKey(String publicKey) {
-            this.publicKey = publicKey;
+    private static PGPPublicKey firstEncryptionKey(PGPPublicKeyRingCollection publicKeys) {
+        Iterator<PGPPublicKeyRing> rings = publicKeys.getKeyRings();
+        while (rings.hasNext()) {
+            Iterator<PGPPublicKey> keys = rings.next().getPublicKeys();
+            while (keys.hasNext()) {
+                PGPPublicKey key = keys.next();
+                if (key.isEncryptionKey()) {
+                    return key;
+                }
+            }
         }
+        return null;
     }
 }
-Controller
-Create a controller to handle file uploads and encrypt them before uploading to the SFTP server:
+Vault Key Source
+Read partner keys from a Vault KV v2 secret per partner:
 
 java
 Copy code
-package com.example.sftp.controller;
+package com.example.sftp.keys;
 
-import com.example.sftp.service.PgpService;
-import com.example.sftp.service.SftpService;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.vault.core.VaultKeyValueOperations;
+import org.springframework.vault.core.VaultKeyValueOperationsSupport.KeyValueBackend;
+import org.springframework.vault.core.VaultTemplate;
+import org.springframework.vault.support.VaultResponse;
 
-import java.io.InputStream;
+import java.util.Map;
 
-@RestController
-@RequestMapping("/sftp")
-public class SftpController {
+/**
+ * Reads partner keys from a Vault KV v2 secret at {@code <path>/<partnerId>} with the fields
+ * {@code publicKey}, and optionally {@code secretKey} and {@code passphrase}.
+ */
+public class VaultKeySource implements KeySource {
 
-    @Autowired
-    private SftpService sftpService;
+    private final VaultKeyValueOperations keyValue;
+    private final String path;
 
-    @Autowired
-    private PgpService pgpService;
+    public VaultKeySource(VaultTemplate vaultTemplate, String mount, String path) {
+        this.keyValue = vaultTemplate.opsForKeyValue(mount, KeyValueBackend.KV_2);
+        this.path = path;
+    }
 
-    @PostMapping("/upload")
-    public String uploadFile(@RequestParam("file") MultipartFile file) {
-        try (InputStream inputStream = file.getInputStream()) {
-            InputStream encryptedStream = pgpService.encryptFile(inputStream);
-            sftpService.uploadFile(encryptedStream, file.getOriginalFilename() + ".pgp");
-            return "File uploaded successfully!";
-        } catch (Exception e) {
-            e.printStackTrace();
-            return "File upload failed!";
+    @Override
+    public PartnerKeys fetch(String partnerId) throws Exception {
+        VaultResponse response = keyValue.get(path + "/" + partnerId);
+        if (response == null || response.getData() == null) {
+            throw new IllegalArgumentException("No PGP keys in Vault for partner " + partnerId);
+        }
+        Map<String, Object> data = response.getData();
+        return PartnerKeys.parse((String) data.get("publicKey"), (String) data.get("secretKey"), (String) data.get("passphrase"));
+    }
+}
+File Key Source
+Provide a local, file-based stand-in for Vault, for tests and development:
+
+java
+Copy code
+package com.example.sftp.keys;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Local stand-in for {@link VaultKeySource}, for tests and development. Reads
+ * {@code <partnerId>.pub.asc}, and optionally {@code <partnerId>.sec.asc} and
+ * {@code <partnerId>.passphrase}, from one directory.
+ */
+public class FileKeySource implements KeySource {
+
+    private final Path directory;
+
+    public FileKeySource(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public PartnerKeys fetch(String partnerId) throws Exception {
+        Path publicKey = directory.resolve(partnerId + ".pub.asc");
+        if (!Files.exists(publicKey)) {
+            throw new IllegalArgumentException("No PGP keys in " + directory + " for partner " + partnerId);
+        }
+        return PartnerKeys.parse(read(publicKey), readIfExists(directory.resolve(partnerId + ".sec.asc")),
+                readIfExists(directory.resolve(partnerId + ".passphrase")));
+    }
+
+    private static String readIfExists(Path file) throws IOException {
+        return Files.exists(file) ? read(file).trim() : null;
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.US_ASCII);
+    }
+}
+PGP Key Provider
+Cache partner keys with a TTL, refresh them ahead of expiry in the background, and keep serving them stale while Vault is unavailable:
+
+java
+Copy code
+package com.example.sftp.keys;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches partner keys from a {@link KeySource} so that encrypting never waits on Vault.
+ *
+ * <p>Keys are fresh for {@code ttl} after they were fetched. From {@code refreshAhead} before
+ * that, a read starts a background refresh and keeps returning the cached keys; a periodic sweep
+ * does the same for partners nobody is reading. If the source is down, the cached keys are served
+ * stale for up to {@code maxStale} past the TTL while refreshes are retried every
+ * {@link #RETRY_BACKOFF}. Only a partner that has never been loaded, or whose keys are older than
+ * {@code ttl + maxStale}, fails with {@link KeyNotAvailableException}; the load it needs is
+ * already running by then.
+ */
+public class PgpKeyProvider implements AutoCloseable {
+
+    static final Duration RETRY_BACKOFF = Duration.ofSeconds(30);
+
+    private final KeySource source;
+    private final Duration ttl;
+    private final Duration refreshAhead;
+    private final Duration maxStale;
+    private final Clock clock;
+    private final ScheduledExecutorService refresher;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<PartnerKeys>> inFlight = new ConcurrentHashMap<>();
+
+    public PgpKeyProvider(KeySource source, Duration ttl, Duration refreshAhead, Duration maxStale) {
+        this(source, ttl, refreshAhead, maxStale, Clock.systemUTC());
+    }
+
+    PgpKeyProvider(KeySource source, Duration ttl, Duration refreshAhead, Duration maxStale, Clock clock) {
+        this.source = source;
+        this.ttl = ttl;
+        this.refreshAhead = refreshAhead;
+        this.maxStale = maxStale;
+        this.clock = clock;
+
+        AtomicInteger count = new AtomicInteger();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2, r -> {
+            Thread thread = new Thread(r, "pgp-key-refresh-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        this.refresher = executor;
+
+        long sweepMillis = Math.max(1000, refreshAhead.toMillis() / 2);
+        refresher.scheduleWithFixedDelay(this::sweep, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts loading {@code partnerIds} in the background and returns at once, so an unreachable
+     * Vault does not hold up startup.
+     */
+    public void warmUp(Collection<String> partnerIds) {
+        partnerIds.forEach(this::refresh);
+    }
+
+    /**
+     * The public key to encrypt to for {@code partnerId}. Never blocks.
+     */
+    public PGPPublicKey getEncryptionKey(String partnerId) {
+        PGPPublicKey key = get(partnerId).getEncryptionKey();
+        if (key == null) {
+            throw new IllegalArgumentException("No encryption key for partner " + partnerId);
+        }
+        return key;
+    }
+
+    /**
+     * Our private key {@code keyID} for files from {@code partnerId}, or {@code null} if it is not
+     * held. Never blocks on the source.
+     */
+    public PGPPrivateKey getPrivateKey(String partnerId, long keyID) throws PGPException {
+        return get(partnerId).getPrivateKey(keyID);
+    }
+
+    /**
+     * The cached keys for {@code partnerId}, starting a background refresh if they are due. Never
+     * blocks on the source.
+     */
+    public PartnerKeys get(String partnerId) {
+        Entry entry = entries.get(partnerId);
+        Instant now = clock.instant();
+        if (entry == null || entry.keys == null) {
+            refreshIfNotBackingOff(partnerId, entry, now);
+            throw new KeyNotAvailableException("PGP keys for partner " + partnerId + " are not loaded yet",
+                    entry == null ? null : entry.lastError);
+        }
+
+        Duration age = Duration.between(entry.fetchedAt, now);
+        if (age.compareTo(ttl.minus(refreshAhead)) >= 0) {
+            refreshIfNotBackingOff(partnerId, entry, now);
+        }
+        if (age.compareTo(ttl.plus(maxStale)) > 0) {
+            throw new KeyNotAvailableException("PGP keys for partner " + partnerId + " were fetched at " + entry.fetchedAt
+                    + " and could not be refreshed since", entry.lastError);
+        }
+        return entry.keys;
+    }
+
+    /**
+     * Fetches {@code partnerId} in the background, joining a fetch already in flight. Callers
+     * outside the hot path, e.g. startup checks or tests, may wait on the result.
+     */
+    public CompletableFuture<PartnerKeys> refresh(String partnerId) {
+        CompletableFuture<PartnerKeys> created = new CompletableFuture<>();
+        CompletableFuture<PartnerKeys> existing = inFlight.putIfAbsent(partnerId, created);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            refresher.execute(() -> fetch(partnerId, created));
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(partnerId, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    private void refreshIfNotBackingOff(String partnerId, Entry entry, Instant now) {
+        if (entry == null || entry.lastFailureAt == null || !now.isBefore(entry.lastFailureAt.plus(RETRY_BACKOFF))) {
+            refresh(partnerId);
+        }
+    }
+
+    private void fetch(String partnerId, CompletableFuture<PartnerKeys> future) {
+        try {
+            PartnerKeys keys = source.fetch(partnerId);
+            entries.put(partnerId, new Entry(keys, clock.instant(), null, null));
+            inFlight.remove(partnerId, future);
+            future.complete(keys);
+        } catch (Throwable e) {
+            Instant now = clock.instant();
+            entries.merge(partnerId, new Entry(null, null, e, now),
+                    (previous, failed) -> new Entry(previous.keys, previous.fetchedAt, e, now));
+            inFlight.remove(partnerId, future);
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void sweep() {
+        Instant now = clock.instant();
+        entries.forEach((partnerId, entry) -> {
+            if (entry.keys == null || Duration.between(entry.fetchedAt, now).compareTo(ttl.minus(refreshAhead)) >= 0) {
+                refreshIfNotBackingOff(partnerId, entry, now);
+            }
+        });
+    }
+
+    /**
+     * The last keys fetched for a partner, if any, and the last failure since then.
+     */
+    private static class Entry {
+
+        final PartnerKeys keys;
+        final Instant fetchedAt;
+        final Throwable lastError;
+        final Instant lastFailureAt;
+
+        Entry(PartnerKeys keys, Instant fetchedAt, Throwable lastError, Instant lastFailureAt) {
+            this.keys = keys;
+            this.fetchedAt = fetchedAt;
+            this.lastError = lastError;
+            this.lastFailureAt = lastFailureAt;
         }
     }
 }
+Key Not Available Exception
+Signal that a partner's keys are not usable yet, without blocking the caller:
+
+java
+Copy code
+package com.example.sftp.keys;
+
+/**
+ * Thrown by {@link PgpKeyProvider} when a partner's keys are not cached yet, or were last
+ * fetched longer ago than the maximum staleness allows. A background load is already running.
+ */
+public class KeyNotAvailableException extends IllegalStateException {
+
+    public KeyNotAvailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
+Upload Job
+The state of an asynchronous upload, as returned by the status endpoint:
+
+java
+Copy code
+package com.example.sftp.jobs;
+
+import java.time.Instant;
+import java.util.Properties;
+
+/**
+ * The state of one asynchronous upload, as returned by the status endpoint. Immutable; each
+ * change of status is a new instance.
+ */
+public final class UploadJob {
+
+    public enum Status {
+        QUEUED, RUNNING, SUCCEEDED, FAILED
+    }
+
+    private final String id;
+    private final String destination;
+    private final String fileName;
+    private final Status status;
+    private final long bytes;
+    private final String error;
+    private final int attempts;
+    private final Instant nextAttempt;
+    private final Instant submittedAt;
+    private final Instant updatedAt;
+
+    UploadJob(String id, String destination, String fileName, Status status, long bytes, String error, int attempts,
+              Instant nextAttempt, Instant submittedAt, Instant updatedAt) {
+        this.id = id;
+        this.destination = destination;
+        this.fileName = fileName;
+        this.status = status;
+        this.bytes = bytes;
+        this.error = error;
+        this.attempts = attempts;
+        this.nextAttempt = nextAttempt;
+        this.submittedAt = submittedAt;
+        this.updatedAt = updatedAt;
+    }
+
+    static UploadJob queued(String id, String destination, String fileName, Instant now) {
+        return new UploadJob(id, destination, fileName, Status.QUEUED, -1, null, 0, null, now, now);
+    }
+
+    UploadJob running(Instant now) {
+        return new UploadJob(id, destination, fileName, Status.RUNNING, -1, null, attempts, null, submittedAt, now);
+    }
+
+    UploadJob succeeded(long bytes, Instant now) {
+        return new UploadJob(id, destination, fileName, Status.SUCCEEDED, bytes, null, attempts, null, submittedAt, now);
+    }
+
+    UploadJob failed(String error, Instant now) {
+        return new UploadJob(id, destination, fileName, Status.FAILED, -1, error, attempts + 1, null, submittedAt, now);
+    }
+
+    /**
+     * Queued again to run from {@code nextAttempt}, or at once if it is null, after
+     * {@code attempts} failed attempts in all.
+     */
+    UploadJob retrying(String error, int attempts, Instant nextAttempt, Instant now) {
+        return new UploadJob(id, destination, fileName, Status.QUEUED, -1, error, attempts, nextAttempt, submittedAt, now);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * What the job counts against for the per-destination limit; the partner the file is for.
+     */
+    public String getDestination() {
+        return destination;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Bytes written to the server, once the job succeeded; -1 until then.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * The error of the last failed attempt, also while the job waits to be retried.
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Attempts that failed so far.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * When a queued job that failed before may run again, or null if it may run at once.
+     */
+    public Instant getNextAttempt() {
+        return nextAttempt;
+    }
+
+    public Instant getSubmittedAt() {
+        return submittedAt;
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public boolean isFinished() {
+        return status == Status.SUCCEEDED || status == Status.FAILED;
+    }
+
+    Properties toProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("id", id);
+        properties.setProperty("destination", destination);
+        properties.setProperty("fileName", fileName);
+        properties.setProperty("status", status.name());
+        properties.setProperty("bytes", Long.toString(bytes));
+        if (error != null) {
+            properties.setProperty("error", error);
+        }
+        properties.setProperty("attempts", Integer.toString(attempts));
+        if (nextAttempt != null) {
+            properties.setProperty("nextAttempt", nextAttempt.toString());
+        }
+        properties.setProperty("submittedAt", submittedAt.toString());
+        properties.setProperty("updatedAt", updatedAt.toString());
+        return properties;
+    }
+
+    static UploadJob fromProperties(Properties properties) {
+        return new UploadJob(properties.getProperty("id"), properties.getProperty("destination"), properties.getProperty("fileName"),
+                Status.valueOf(properties.getProperty("status")), Long.parseLong(properties.getProperty("bytes")),
+                properties.getProperty("error"), Integer.parseInt(properties.getProperty("attempts", "0")),
+                properties.containsKey("nextAttempt") ? Instant.parse(properties.getProperty("nextAttempt")) : null,
+                Instant.parse(properties.getProperty("submittedAt")), Instant.parse(properties.getProperty("updatedAt")));
+    }
+
+    @Override
+    public String toString() {
+        return "UploadJob[" + id + ", " + fileName + " for " + destination + ", " + status + "]";
+    }
+}
+Upload Job Queue
+Spool uploads to disk and send them in the background, on a dedicated pool of threads, or virtual threads, with a limit per destination, so a slow partner never ties up request threads:
+
+java
+Copy code
+package com.example.sftp.jobs;
+
+import com.example.sftp.keys.KeyNotAvailableException;
+import com.example.sftp.pool.RetryPolicy;
+import com.example.sftp.pool.SftpExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts uploads and runs them in the background, so the request that submits one returns as
+ * soon as its content is on local disk.
+ *
+ * <p>Each job is spooled to {@code <id>.upload} in the spool directory, with its state in
+ * {@code <id>.properties} next to it, rewritten through an atomic rename on every change. A job
+ * is acknowledged only once both are on disk, and jobs still queued or running when the service
+ * stopped are queued again on startup.
+ *
+ * <p>At most {@code capacity} jobs are queued or running at once; further submissions are
+ * rejected with {@link UploadQueueFullException}. At most {@code maxConcurrent} jobs run at once,
+ * on a dedicated pool of that many threads or each on a virtual thread of its own, and at most
+ * {@code maxPerDestination} of them for one destination, so a slow partner holds up its own
+ * uploads but not everyone else's. Finished jobs are kept for {@code retention}, so their status
+ * can be looked up.
+ *
+ * <p>A failed upload is queued again after a backoff from the {@link RetryPolicy}, by the kind of
+ * failure, and its content stays spooled until it succeeds or the policy gives up. A job whose
+ * partner keys are not loaded yet, e.g. right after startup or while Vault is down, waits as long
+ * as a first network retry, as often as it takes, without using up its attempts; once the key
+ * source answers that it has no keys for the partner, the job fails.
+ */
+public class UploadJobQueue implements AutoCloseable {
+
+    /**
+     * Uploads the content spooled in {@code data} for {@code job} and returns the number of bytes
+     * written to the server. Throwing fails the attempt; an {@link IllegalArgumentException}, e.g.
+     * for a partner without an encryption key, fails the job at once.
+     */
+    @FunctionalInterface
+    public interface Upload {
+        long upload(UploadJob job, Path data) throws Exception;
+    }
+
+    /**
+     * Writes the content of a submission to {@code target}, e.g. {@code MultipartFile::transferTo}.
+     */
+    @FunctionalInterface
+    public interface Content {
+        void writeTo(Path target) throws IOException;
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(UploadJobQueue.class);
+
+    private static final long PRUNE_INTERVAL_MILLIS = 60_000;
+
+    private final Path spoolDirectory;
+    private final int capacity;
+    private final int maxConcurrent;
+    private final int maxPerDestination;
+    private final Duration retention;
+    private final Upload upload;
+    private final RetryPolicy retryPolicy;
+    private final Clock clock;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService retries;
+    private final Map<String, UploadJob> jobs = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private final Deque<UploadJob> queued = new ArrayDeque<>();
+    private final Map<String, Integer> runningPerDestination = new HashMap<>();
+    private int running;
+    private int outstanding;
+    private long lastPrune;
+    private boolean closed;
+
+    public UploadJobQueue(Path spoolDirectory, int capacity, int maxConcurrent, int maxPerDestination, Duration retention,
+                          Upload upload) throws IOException {
+        this(spoolDirectory, capacity, maxConcurrent, maxPerDestination, retention, upload, SftpExecutors.Mode.PLATFORM);
+    }
+
+    /**
+     * A queue running its jobs on threads of {@code threadMode}; its own count of running jobs
+     * bounds them either way.
+     */
+    public UploadJobQueue(Path spoolDirectory, int capacity, int maxConcurrent, int maxPerDestination, Duration retention,
+                          Upload upload, SftpExecutors.Mode threadMode) throws IOException {
+        this(spoolDirectory, capacity, maxConcurrent, maxPerDestination, retention, upload, threadMode, RetryPolicy.DEFAULT);
+    }
+
+    /**
+     * A queue retrying failed uploads by {@code retryPolicy}.
+     */
+    public UploadJobQueue(Path spoolDirectory, int capacity, int maxConcurrent, int maxPerDestination, Duration retention,
+                          Upload upload, SftpExecutors.Mode threadMode, RetryPolicy retryPolicy) throws IOException {
+        this(spoolDirectory, capacity, maxConcurrent, maxPerDestination, retention, upload, threadMode, retryPolicy,
+                Clock.systemUTC());
+    }
+
+    UploadJobQueue(Path spoolDirectory, int capacity, int maxConcurrent, int maxPerDestination, Duration retention,
+                   Upload upload, SftpExecutors.Mode threadMode, RetryPolicy retryPolicy, Clock clock) throws IOException {
+        if (capacity < 1 || maxConcurrent < 1 || maxPerDestination < 1) {
+            throw new IllegalArgumentException("Expected capacity, maxConcurrent and maxPerDestination >= 1, got "
+                    + capacity + ", " + maxConcurrent + " and " + maxPerDestination + ".");
+        }
+        this.spoolDirectory = spoolDirectory;
+        this.capacity = capacity;
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerDestination = maxPerDestination;
+        this.retention = retention;
+        this.upload = upload;
+        this.retryPolicy = retryPolicy;
+        this.clock = clock;
+        this.executor = SftpExecutors.newExecutor(threadMode, "sftp-upload", maxConcurrent);
+        this.retries = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sftp-upload-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Files.createDirectories(spoolDirectory);
+        recover();
+    }
+
+    /**
+     * Spools {@code content} and queues it for upload to {@code destination} as {@code fileName}.
+     * Returns once the job is on disk, without waiting for the upload.
+     *
+     * @throws UploadQueueFullException if {@code capacity} jobs are already queued or running
+     */
+    public UploadJob submit(String destination, String fileName, Content content) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Upload queue is closed.");
+            }
+            if (outstanding >= capacity) {
+                throw new UploadQueueFullException("Upload queue is full: " + outstanding + " jobs queued or running.");
+            }
+            outstanding++;
+        }
+        String id = UUID.randomUUID().toString();
+        UploadJob job = UploadJob.queued(id, destination, fileName, clock.instant());
+        try {
+            content.writeTo(dataFile(id));
+            try (FileChannel data = FileChannel.open(dataFile(id), StandardOpenOption.WRITE)) {
+                data.force(true);
+            }
+            save(job);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                outstanding--;
+            }
+            Files.deleteIfExists(dataFile(id));
+            Files.deleteIfExists(stateFile(id));
+            throw e;
+        }
+        jobs.put(id, job);
+        synchronized (this) {
+            queued.add(job);
+            dispatch();
+        }
+        pruneIfDue();
+        return job;
+    }
+
+    /**
+     * The current state of job {@code id}, or null if there is no such job or it finished longer
+     * than the retention ago.
+     */
+    public UploadJob get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Jobs queued or running.
+     */
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * Starts as many queued jobs as the limits allow, oldest first, skipping those whose
+     * destination is at its limit.
+     */
+    private void dispatch() {
+        if (closed) {
+            return;
+        }
+        Iterator<UploadJob> it = queued.iterator();
+        while (running < maxConcurrent && it.hasNext()) {
+            UploadJob job = it.next();
+            int forDestination = runningPerDestination.getOrDefault(job.getDestination(), 0);
+            if (forDestination < maxPerDestination) {
+                it.remove();
+                running++;
+                runningPerDestination.put(job.getDestination(), forDestination + 1);
+                executor.execute(() -> run(job));
+            }
+        }
+    }
+
+    private void run(UploadJob job) {
+        UploadJob current = job.running(clock.instant());
+        UploadJob retry = null;
+        try {
+            update(current);
+            long bytes = upload.upload(current, dataFile(job.getId()));
+            update(current.succeeded(bytes, clock.instant()));
+            Files.deleteIfExists(dataFile(job.getId()));
+        } catch (Exception e) {
+            if (isClosed()) {
+                // Interrupted by shutdown; the job is still marked running and queued again on restart
+                return;
+            }
+            retry = retryOrFail(current, e);
+        } finally {
+            synchronized (this) {
+                running--;
+                if (retry == null) {
+                    outstanding--;
+                }
+                int forDestination = runningPerDestination.get(job.getDestination()) - 1;
+                if (forDestination == 0) {
+                    runningPerDestination.remove(job.getDestination());
+                } else {
+                    runningPerDestination.put(job.getDestination(), forDestination);
+                }
+                dispatch();
+            }
+        }
+        if (retry != null) {
+            schedule(retry);
+        }
+    }
+
+    /**
+     * Records the failed attempt {@code job} and returns it queued again, or null if it failed for
+     * good, in which case its content is deleted.
+     */
+    private UploadJob retryOrFail(UploadJob job, Exception e) {
+        Instant now = clock.instant();
+        Duration delay;
+        int attempts = job.getAttempts();
+        String error = e.toString();
+        if (e instanceof KeyNotAvailableException && !(e.getCause() instanceof IllegalArgumentException)) {
+            // Not the upload's fault; the key provider is already loading the keys
+            delay = retryPolicy.nextDelay(RetryPolicy.FailureKind.NETWORK, 1);
+        } else if (e instanceof KeyNotAvailableException) {
+            // The key source has no keys for the partner, e.g. it was removed after submission
+            delay = null;
+            error = e.getCause().toString();
+        } else if (e instanceof IllegalArgumentException) {
+            delay = null;
+        } else {
+            RetryPolicy.FailureKind kind = RetryPolicy.classify(e);
+            attempts++;
+            delay = retryPolicy.nextDelay(kind, attempts);
+            error = kind + ": " + error;
+        }
+        if (delay == null) {
+            try {
+                update(job.failed(error, now));
+                Files.deleteIfExists(dataFile(job.getId()));
+            } catch (IOException ex) {
+                logger.error("Could not record the failure of upload {}", job.getId(), ex);
+            }
+            return null;
+        }
+        UploadJob retry = job.retrying(error, attempts, now.plus(delay), now);
+        try {
+            update(retry);
+        } catch (IOException ex) {
+            // Still marked running on disk, so it is queued again on restart at the latest
+            logger.warn("Could not record the retry of upload {}", job.getId(), ex);
+            jobs.put(retry.getId(), retry);
+        }
+        return retry;
+    }
+
+    /**
+     * Queues {@code job} again once its next attempt is due.
+     */
+    private void schedule(UploadJob job) {
+        long delayMillis = job.getNextAttempt() == null ? 0 : Duration.between(clock.instant(), job.getNextAttempt()).toMillis();
+        Runnable requeue = () -> {
+            synchronized (this) {
+                queued.add(job);
+                dispatch();
+            }
+        };
+        synchronized (this) {
+            if (!closed) {
+                retries.schedule(requeue, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void update(UploadJob job) throws IOException {
+        save(job);
+        jobs.put(job.getId(), job);
+    }
+
+    private void recover() throws IOException {
+        List<UploadJob> unfinished = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spoolDirectory, "*.properties")) {
+            for (Path file : files) {
+                Properties properties = new Properties();
+                try (InputStream in = Files.newInputStream(file)) {
+                    properties.load(in);
+                }
+                UploadJob job = UploadJob.fromProperties(properties);
+                if (job.isFinished()) {
+                    jobs.put(job.getId(), job);
+                } else if (Files.exists(dataFile(job.getId()))) {
+                    unfinished.add(job);
+                } else {
+                    Files.delete(file);
+                }
+            }
+        }
+        // Spooled content whose state was never written was not acknowledged
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spoolDirectory, "*.upload")) {
+            for (Path file : files) {
+                String id = file.getFileName().toString().replaceFirst("\\.upload$", "");
+                if (!Files.exists(stateFile(id))) {
+                    Files.delete(file);
+                }
+            }
+        }
+        unfinished.sort(Comparator.comparing(UploadJob::getSubmittedAt));
+        List<UploadJob> waiting = new ArrayList<>();
+        synchronized (this) {
+            for (UploadJob job : unfinished) {
+                // Runs again from the start; a partial upload left under its temporary name is
+                // overwritten. A job waiting for a retry keeps waiting
+                UploadJob requeued = job.retrying(job.getError(), job.getAttempts(), job.getNextAttempt(), job.getUpdatedAt());
+                jobs.put(requeued.getId(), requeued);
+                if (requeued.getNextAttempt() == null) {
+                    queued.add(requeued);
+                } else {
+                    waiting.add(requeued);
+                }
+                outstanding++;
+            }
+            dispatch();
+        }
+        waiting.forEach(this::schedule);
+        prune();
+    }
+
+    private void pruneIfDue() {
+        long now = clock.millis();
+        synchronized (this) {
+            if (now - lastPrune < PRUNE_INTERVAL_MILLIS) {
+                return;
+            }
+            lastPrune = now;
+        }
+        prune();
+    }
+
+    private void prune() {
+        Instant cutoff = clock.instant().minus(retention);
+        for (UploadJob job : jobs.values()) {
+            if (job.isFinished() && job.getUpdatedAt().isBefore(cutoff)) {
+                jobs.remove(job.getId());
+                try {
+                    Files.deleteIfExists(stateFile(job.getId()));
+                } catch (IOException e) {
+                    logger.warn("Could not delete the state of upload {}", job.getId(), e);
+                }
+            }
+        }
+    }
+
+    private void save(UploadJob job) throws IOException {
+        Path temp = Files.createTempFile(spoolDirectory, job.getId(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                job.toProperties().store(out, null);
+            }
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                file.force(true);
+            }
+            Files.move(temp, stateFile(job.getId()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path dataFile(String id) {
+        return spoolDirectory.resolve(id + ".upload");
+    }
+
+    private Path stateFile(String id) {
+        return spoolDirectory.resolve(id + ".properties");
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops taking jobs and interrupts those running; they stay on disk and run again on the next
+     * start, as do those waiting for a retry.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        retries.shutdownNow();
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+Upload Queue Full Exception
+Signal that the upload queue is at capacity, so the client can back off and retry:
+
+java
+Copy code
+package com.example.sftp.jobs;
+
+/**
+ * Thrown by {@link UploadJobQueue#submit} when the queue is at capacity. Nothing was spooled; the
+ * client may retry later.
+ */
+public class UploadQueueFullException extends IllegalStateException {
+
+    public UploadQueueFullException(String message) {
+        super(message);
+    }
+}
+Upload Job Configuration
+Wire the upload queue to the PGP and SFTP services:
+
+java
+Copy code
+package com.example.sftp.config;
+
+import com.example.sftp.jobs.UploadJobQueue;
+import com.example.sftp.pool.SftpExecutors;
+import com.example.sftp.service.PgpService;
+import com.example.sftp.service.SftpService;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+@Configuration
+public class UploadConfig {
+
+    @Value("${sftp.uploads.spool-dir:/var/lib/sftp-ms/uploads}")
+    private String spoolDir;
+
+    @Value("${sftp.uploads.capacity:1000}")
+    private int capacity;
+
+    @Value("${sftp.uploads.max-concurrent:8}")
+    private int maxConcurrent;
+
+    @Value("${sftp.uploads.max-per-destination:2}")
+    private int maxPerDestination;
+
+    @Value("${sftp.uploads.retention:1d}")
+    private Duration retention;
+
+    @Value("${sftp.uploads.thread-mode:platform}")
+    private String threadMode;
+
+    /**
+     * Jobs left queued or running by the previous run start again as soon as the queue is
+     * created; those that find their partner's keys still loading wait and try again. Each is
+     * encrypted for its partner on its way from the spool to the server.
+     */
+    @Bean(destroyMethod = "close")
+    public UploadJobQueue uploadJobQueue(SftpService sftpService, PgpService pgpService) throws IOException {
+        return new UploadJobQueue(Paths.get(spoolDir), capacity, maxConcurrent, maxPerDestination, retention, (job, data) -> {
+            PGPPublicKey key = pgpService.getEncryptionKey(job.getDestination());
+            try (InputStream in = Files.newInputStream(data)) {
+                return sftpService.uploadFile(job.getFileName() + ".pgp", out -> pgpService.encrypt(in, out, job.getFileName(), key));
+            }
+        }, SftpExecutors.Mode.of(threadMode));
+    }
+}
+Controller
+Create a controller to handle file uploads and encrypt them on their way to the SFTP server. Uploads posted to /sftp/uploads are queued and answered at once with a job to poll; /sftp/upload still sends the file before answering:
+
+java
+Copy code
+package com.example.sftp.controller;
+
+import com.example.sftp.jobs.UploadJob;
+import com.example.sftp.jobs.UploadJobQueue;
+import com.example.sftp.jobs.UploadQueueFullException;
+import com.example.sftp.keys.KeyNotAvailableException;
+import com.example.sftp.service.PgpService;
+import com.example.sftp.service.SftpService;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+
+@RestController
+@RequestMapping("/sftp")
+public class SftpController {
+
+    @Autowired
+    private SftpService sftpService;
+
+    @Autowired
+    private PgpService pgpService;
+
+    @Autowired
+    private UploadJobQueue uploadJobQueue;
+
+    @PostMapping("/upload")
+    public String uploadFile(@RequestParam("file") MultipartFile file,
+                             @RequestParam(value = "partner", defaultValue = "${pgp.keys.default-partner}") String partner) {
+        try (InputStream inputStream = file.getInputStream()) {
+            // Before anything reaches the server, so an unknown partner leaves no empty file
+            PGPPublicKey key = pgpService.getEncryptionKey(partner);
+            // Read, encrypted and written to the server a buffer at a time
+            sftpService.uploadFile(file.getOriginalFilename() + ".pgp",
+                    out -> pgpService.encrypt(inputStream, out, file.getOriginalFilename(), key));
+            return "File uploaded successfully!";
+        } catch (Exception e) {
+            e.printStackTrace();
+            return "File upload failed!";
+        }
+    }
+
+    /**
+     * Queues the file and answers 202 Accepted with the job as soon as the file is spooled; the
+     * Location header points to its status.
+     */
+    @PostMapping("/uploads")
+    public ResponseEntity<UploadJob> submitUpload(@RequestParam("file") MultipartFile file,
+                                                  @RequestParam(value = "partner", defaultValue = "${pgp.keys.default-partner}") String partner)
+            throws IOException {
+        // Refused before anything is spooled if the partner's key is unknown or not loaded yet
+        pgpService.getEncryptionKey(partner);
+        UploadJob job = uploadJobQueue.submit(partner, file.getOriginalFilename(), file::transferTo);
+        return ResponseEntity.accepted().location(URI.create("/sftp/uploads/" + job.getId())).body(job);
+    }
+
+    @GetMapping("/uploads/{id}")
+    public ResponseEntity<UploadJob> getUpload(@PathVariable String id) {
+        UploadJob job = uploadJobQueue.get(id);
+        return job == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(job);
+    }
+
+    @ExceptionHandler({UploadQueueFullException.class, KeyNotAvailableException.class})
+    public ResponseEntity<String> unavailable(IllegalStateException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "30").body(e.getMessage());
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<String> badRequest(IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(e.getMessage());
+    }
+}
+Key Provider Test
+Test the key provider against the file-based key source, with a controllable clock and a source that can be slowed down or taken offline:
+
+java
+Copy code
+package com.example.sftp.keys;
+
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PgpKeyProviderTest {
+
+    private static final Duration TTL = Duration.ofMinutes(10);
+    private static final Duration REFRESH_AHEAD = Duration.ofMinutes(2);
+    private static final Duration MAX_STALE = Duration.ofHours(1);
+
+    @TempDir
+    Path keyDir;
+
+    private final MutableClock clock = new MutableClock();
+    private final AtomicInteger fetches = new AtomicInteger();
+    private volatile boolean sourceDown;
+    private volatile CountDownLatch sourceGate;
+    private PgpKeyProvider provider;
+
+    @BeforeAll
+    static void registerProvider() {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    @AfterEach
+    void close() {
+        if (provider != null) {
+            provider.close();
+        }
+    }
+
+    @Test
+    void servesCachedKeysWithoutTouchingTheSource() throws Exception {
+        PGPSecretKey key = writeKeys("acme");
+        provider = newProvider();
+
+        provider.refresh("acme").get(10, TimeUnit.SECONDS);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(key.getKeyID(), provider.getEncryptionKey("acme").getKeyID());
+        }
+        assertNotNull(provider.getPrivateKey("acme", key.getKeyID()));
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    void coldMissFailsFastAndLoadsInTheBackground() throws Exception {
+        writeKeys("acme");
+        provider = newProvider();
+
+        assertThrows(KeyNotAvailableException.class, () -> provider.getEncryptionKey("acme"));
+        provider.refresh("acme").get(10, TimeUnit.SECONDS);
+        assertNotNull(provider.getEncryptionKey("acme"));
+    }
+
+    @Test
+    void refreshesAheadOfExpiryWithoutBlockingReaders() throws Exception {
+        PGPSecretKey oldKey = writeKeys("acme");
+        provider = newProvider();
+        provider.refresh("acme").get(10, TimeUnit.SECONDS);
+
+        PGPSecretKey rotatedKey = writeKeys("acme");
+        sourceGate = new CountDownLatch(1);
+        clock.advance(TTL.minus(REFRESH_AHEAD).plusSeconds(1));
+
+        // the refresh is stuck in the source, yet the read returns the cached key at once
+        assertEquals(oldKey.getKeyID(), provider.getEncryptionKey("acme").getKeyID());
+        sourceGate.countDown();
+        provider.refresh("acme").get(10, TimeUnit.SECONDS);
+        assertEquals(rotatedKey.getKeyID(), provider.getEncryptionKey("acme").getKeyID());
+    }
+
+    @Test
+    void servesStaleKeysWhileTheSourceIsDownUpToMaxStale() throws Exception {
+        PGPSecretKey key = writeKeys("acme");
+        provider = newProvider();
+        provider.refresh("acme").get(10, TimeUnit.SECONDS);
+
+        sourceDown = true;
+        clock.advance(TTL.plusMinutes(5));
+        assertEquals(key.getKeyID(), provider.getEncryptionKey("acme").getKeyID());
+        assertThrows(Exception.class, () -> provider.refresh("acme").get(10, TimeUnit.SECONDS));
+        assertEquals(key.getKeyID(), provider.getEncryptionKey("acme").getKeyID());
+
+        clock.advance(MAX_STALE);
+        KeyNotAvailableException e = assertThrows(KeyNotAvailableException.class, () -> provider.getEncryptionKey("acme"));
+        assertNotNull(e.getCause());
+        assertThrows(Exception.class, () -> provider.refresh("acme").get(10, TimeUnit.SECONDS));
+
+        sourceDown = false;
+        provider.refresh("acme").get(10, TimeUnit.SECONDS);
+        assertEquals(key.getKeyID(), provider.getEncryptionKey("acme").getKeyID());
+    }
+
+    @Test
+    void warmUpDoesNotWaitForTheSource() throws Exception {
+        writeKeys("acme");
+        sourceGate = new CountDownLatch(1);
+        provider = newProvider();
+
+        provider.warmUp(Collections.singletonList("acme"));
+        assertThrows(KeyNotAvailableException.class, () -> provider.getEncryptionKey("acme"));
+
+        sourceGate.countDown();
+        provider.refresh("acme").get(10, TimeUnit.SECONDS);
+        assertNotNull(provider.getEncryptionKey("acme"));
+    }
+
+    private PgpKeyProvider newProvider() {
+        FileKeySource files = new FileKeySource(keyDir);
+        KeySource source = partnerId -> {
+            fetches.incrementAndGet();
+            CountDownLatch gate = sourceGate;
+            if (gate != null) {
+                gate.await();
+            }
+            if (sourceDown) {
+                throw new IllegalStateException("Vault is down");
+            }
+            return files.fetch(partnerId);
+        };
+        return new PgpKeyProvider(source, TTL, REFRESH_AHEAD, MAX_STALE, clock);
+    }
+
+    private PGPSecretKey writeKeys(String partnerId) throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", "BC");
+        kpg.initialize(2048);
+        PGPKeyPair keyPair = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1);
+        PGPSecretKey secretKey = new PGPSecretKey(PGPSignature.DEFAULT_CERTIFICATION, keyPair, partnerId + "@example.com", sha1Calc, null, null,
+                new JcaPGPContentSignerBuilder(keyPair.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256, sha1Calc).setProvider("BC").build("secret".toCharArray()));
+
+        try (OutputStream out = new ArmoredOutputStream(Files.newOutputStream(keyDir.resolve(partnerId + ".pub.asc")))) {
+            secretKey.getPublicKey().encode(out);
+        }
+        try (OutputStream out = new ArmoredOutputStream(Files.newOutputStream(keyDir.resolve(partnerId + ".sec.asc")))) {
+            secretKey.encode(out);
+        }
+        Files.write(keyDir.resolve(partnerId + ".passphrase"), "secret\n".getBytes());
+        return secretKey;
+    }
+
+    private static class MutableClock extends Clock {
+
+        private volatile Instant now = Instant.parse("2024-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
+Upload Job Queue Test
+Test the upload queue against a temporary spool directory, with uploads that can be held up or made to fail:
+
+java
+Copy code
+package com.example.sftp.jobs;
+
+import com.example.sftp.keys.KeyNotAvailableException;
+import com.example.sftp.keys.PgpKeyProvider;
+import com.example.sftp.pool.RetryPolicy;
+import com.example.sftp.pool.SftpExecutors;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadJobQueueTest {
+
+    private static final RetryPolicy FAST_RETRIES = RetryPolicy.builder()
+            .backoff(RetryPolicy.FailureKind.NETWORK, 3, Duration.ofMillis(10), Duration.ofMillis(20))
+            .backoff(RetryPolicy.FailureKind.OTHER, 2, Duration.ofMillis(10), Duration.ofMillis(20))
+            .build();
+
+    @TempDir
+    Path spoolDir;
+
+    private UploadJobQueue queue;
+
+    @AfterEach
+    void close() {
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    @Test
+    void runsJobsLeftOverByACrashOnStartup() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        UploadJobQueue crashed = newQueue(2, 2, (job, data) -> {
+            started.countDown();
+            new CountDownLatch(1).await();
+            return 0;
+        });
+        UploadJob job = crashed.submit("acme", "invoice.csv", content("a,b,c"));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        crashed.close();
+        // Spooled by a submission that never got acknowledged
+        Files.write(spoolDir.resolve("orphan.upload"), new byte[1]);
+
+        Map<String, String> uploaded = new ConcurrentHashMap<>();
+        queue = newQueue(2, 2, (j, data) -> {
+            uploaded.put(j.getFileName(), new String(Files.readAllBytes(data), StandardCharsets.UTF_8));
+            return data.toFile().length();
+        });
+        assertEquals(UploadJob.Status.SUCCEEDED, await(job.getId(), UploadJob.Status.SUCCEEDED).getStatus());
+        assertEquals("a,b,c", uploaded.get("invoice.csv"));
+        assertFalse(Files.exists(spoolDir.resolve(job.getId() + ".upload")));
+        assertFalse(Files.exists(spoolDir.resolve("orphan.upload")));
+        awaitIdle();
+    }
+
+    @Test
+    void waitsForKeysStillLoadingWithoutUsingUpAttempts() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        queue = newQueue(2, 2, (job, data) -> {
+            if (calls.incrementAndGet() <= 5) {
+                throw new KeyNotAvailableException("PGP keys for partner acme are not loaded yet", null);
+            }
+            return 1;
+        });
+        UploadJob job = queue.submit("acme", "invoice.csv", content("a,b,c"));
+
+        UploadJob done = await(job.getId(), UploadJob.Status.SUCCEEDED);
+        assertEquals(6, calls.get());
+        assertEquals(0, done.getAttempts());
+    }
+
+    @Test
+    void failsJobOncePartnerHasNoKeys() throws Exception {
+        CountDownLatch removed = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        try (PgpKeyProvider keys = new PgpKeyProvider(partnerId -> {
+            removed.await();
+            throw new IllegalArgumentException("No PGP keys in Vault for partner " + partnerId);
+        }, Duration.ofHours(1), Duration.ofMinutes(5), Duration.ofHours(1))) {
+            queue = newQueue(2, 2, (job, data) -> {
+                calls.incrementAndGet();
+                keys.getEncryptionKey(job.getDestination());
+                return 1;
+            });
+            UploadJob job = queue.submit("acme", "invoice.csv", content("a,b,c"));
+            // Waits while the keys are loading, then the partner turns out to be gone
+            while (calls.get() < 3) {
+                Thread.sleep(10);
+            }
+            removed.countDown();
+
+            UploadJob failed = await(job.getId(), UploadJob.Status.FAILED);
+            assertEquals(1, failed.getAttempts());
+            assertTrue(failed.getError().contains("No PGP keys in Vault for partner acme"), failed.getError());
+            assertFalse(Files.exists(spoolDir.resolve(job.getId() + ".upload")));
+            awaitIdle();
+        }
+    }
+
+    @Test
+    void retriesTransientFailuresAndKeepsTheContentUntilDone() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        queue = newQueue(2, 2, (job, data) -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new SocketException("Connection reset");
+            }
+            assertTrue(Files.exists(data));
+            return 1;
+        });
+        UploadJob job = queue.submit("acme", "invoice.csv", content("a,b,c"));
+
+        UploadJob done = await(job.getId(), UploadJob.Status.SUCCEEDED);
+        assertEquals(2, calls.get());
+        assertEquals(1, done.getAttempts());
+    }
+
+    @Test
+    void failsForGoodWhenThePolicyGivesUp() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        queue = newQueue(2, 2, (job, data) -> {
+            calls.incrementAndGet();
+            if (job.getFileName().equals("missing.csv")) {
+                throw new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE, "No such file");
+            }
+            throw new IOException("No space left on device");
+        });
+        UploadJob missing = queue.submit("acme", "missing.csv", content("a"));
+        UploadJob full = queue.submit("acme", "full.csv", content("b"));
+
+        UploadJob failed = await(missing.getId(), UploadJob.Status.FAILED);
+        assertEquals(1, failed.getAttempts());
+        assertTrue(failed.getError().startsWith("MISSING_FILE"), failed.getError());
+        failed = await(full.getId(), UploadJob.Status.FAILED);
+        assertEquals(2, failed.getAttempts());
+        assertEquals(3, calls.get());
+        assertFalse(Files.exists(spoolDir.resolve(missing.getId() + ".upload")));
+        assertFalse(Files.exists(spoolDir.resolve(full.getId() + ".upload")));
+        awaitIdle();
+    }
+
+    @Test
+    void limitsJobsPerDestination() throws Exception {
+        Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+        AtomicInteger mostForOne = new AtomicInteger();
+        CountDownLatch otherPartnerRan = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        queue = newQueue(4, 1, (job, data) -> {
+            int now = running.computeIfAbsent(job.getDestination(), d -> new AtomicInteger()).incrementAndGet();
+            mostForOne.accumulateAndGet(now, Math::max);
+            try {
+                if (job.getDestination().equals("globex")) {
+                    otherPartnerRan.countDown();
+                } else {
+                    release.await();
+                }
+                return 1;
+            } finally {
+                running.get(job.getDestination()).decrementAndGet();
+            }
+        });
+        UploadJob[] jobs = new UploadJob[4];
+        for (int i = 0; i < 3; i++) {
+            jobs[i] = queue.submit("acme", "file" + i + ".csv", content("x"));
+        }
+        jobs[3] = queue.submit("globex", "file3.csv", content("x"));
+
+        // One slow partner does not hold up the other
+        assertTrue(otherPartnerRan.await(10, TimeUnit.SECONDS));
+        assertEquals(UploadJob.Status.QUEUED, queue.get(jobs[2].getId()).getStatus());
+        release.countDown();
+        for (UploadJob job : jobs) {
+            await(job.getId(), UploadJob.Status.SUCCEEDED);
+        }
+        assertEquals(1, mostForOne.get());
+    }
+
+    private UploadJobQueue newQueue(int maxConcurrent, int maxPerDestination, UploadJobQueue.Upload upload) throws IOException {
+        return new UploadJobQueue(spoolDir, 10, maxConcurrent, maxPerDestination, Duration.ofDays(1), upload,
+                SftpExecutors.Mode.PLATFORM, FAST_RETRIES);
+    }
+
+    private static UploadJobQueue.Content content(String text) {
+        return target -> Files.write(target, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Waits for the last finished job to leave the queue's count, which follows its status.
+     */
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (queue.getOutstanding() > 0) {
+            assertTrue(System.nanoTime() < deadline, queue.getOutstanding() + " jobs outstanding");
+            Thread.sleep(10);
+        }
+    }
+
+    private UploadJob await(String id, UploadJob.Status status) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        UploadJob job = queue.get(id);
+        while (job.getStatus() != status) {
+            assertTrue(System.nanoTime() < deadline, "still " + job);
+            Thread.sleep(10);
+            job = queue.get(id);
+        }
+        return job;
+    }
+}
+SFTP Service Test
+Test that an upload only appears under its final name once it is complete, with the pool and channel mocked:
+
+java
+Copy code
+package com.example.sftp.service;
+
+import com.example.sftp.pool.SftpConnectionPool;
+import com.example.sftp.pool.SftpEndpoint;
+import com.example.sftp.pool.SftpLease;
+import com.example.sftp.pool.SftpTuner;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
+import org.bouncycastle.openpgp.PGPException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class SftpServiceTest {
+
+    private final SftpConnectionPool pool = mock(SftpConnectionPool.class);
+    private final SftpTuner tuner = mock(SftpTuner.class);
+    private final SftpLease lease = mock(SftpLease.class);
+    private final ChannelSftp channel = mock(ChannelSftp.class);
+    private final SftpEndpoint endpoint = SftpEndpoint.builder("sftp.example.com", 22, "sftpuser").build();
+    private final ByteArrayOutputStream remote = new ByteArrayOutputStream();
+
+    private SftpService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(pool.getTuner()).thenReturn(tuner);
+        when(pool.borrow(endpoint)).thenReturn(lease);
+        when(lease.channel()).thenReturn(channel);
+        when(tuner.bufferSize(eq(channel), anyInt())).thenReturn(8192);
+        when(channel.put("report.csv.pgp.part")).thenReturn(remote);
+        service = new SftpService(pool, endpoint);
+        ReflectionTestUtils.setField(service, "remoteDirectory", "/outbound");
+    }
+
+    @Test
+    void renamesACompleteUploadIntoPlace() throws Exception {
+        assertEquals(3, service.uploadFile("report.csv.pgp", out -> out.write(new byte[]{1, 2, 3})));
+
+        assertArrayEquals(new byte[]{1, 2, 3}, remote.toByteArray());
+        InOrder order = inOrder(channel);
+        order.verify(channel).put("report.csv.pgp.part");
+        order.verify(channel).rename("report.csv.pgp.part", "report.csv.pgp");
+        verify(channel, never()).put("report.csv.pgp");
+        verify(lease, never()).invalidate();
+    }
+
+    @Test
+    void replacesAnExistingFileWithoutPosixRename() throws Exception {
+        doThrow(new SftpException(ChannelSftp.SSH_FX_FAILURE, "Failure")).doNothing()
+                .when(channel).rename("report.csv.pgp.part", "report.csv.pgp");
+
+        service.uploadFile("report.csv.pgp", out -> out.write(1));
+
+        InOrder order = inOrder(channel);
+        order.verify(channel).rename("report.csv.pgp.part", "report.csv.pgp");
+        order.verify(channel).rm("report.csv.pgp");
+        order.verify(channel).rename("report.csv.pgp.part", "report.csv.pgp");
+    }
+
+    @Test
+    void failedUploadNeverReachesItsFinalName() throws Exception {
+        PGPException e = assertThrows(PGPException.class, () -> service.uploadFile("report.csv.pgp", out -> {
+            out.write(new byte[]{1, 2});
+            throw new PGPException("Encryption failed");
+        }));
+
+        assertEquals("Encryption failed", e.getMessage());
+        verify(channel, never()).rename(anyString(), anyString());
+        verify(channel).rm("report.csv.pgp.part");
+        verify(lease).invalidate();
+    }
+}
 Application Class
 Finally, create the main application class:
 
@@ -288,4 +2298,4 @@ Run the application using the Spring Boot Maven plugin:
 bash
 Copy code
 mvn spring-boot:run
-You can now upload files to your SFTP server through the /sftp/upload endpoint. The files will be encrypted using PGP before being uploaded, with the PGP public key fetched from Hashicorp Vault.
\ No newline at end of file
+You can now upload files to your SFTP server through the /sftp/upload endpoint, or queue them through /sftp/uploads and follow the returned job at /sftp/uploads/{id}. The files will be encrypted using PGP before being uploaded, with the partner's PGP public key served from the Vault-backed key cache. Choose the partner with the partner request parameter.
\ No newline at end of file